@@ -33,6 +33,7 @@ import static android.system.OsConstants.RT_SCOPE_UNIVERSE;
 
 import static com.android.net.module.util.Inet4AddressUtils.intToInet4AddressHTH;
 import static com.android.net.module.util.NetworkStackConstants.RFC7421_PREFIX_LENGTH;
+import static com.android.net.module.util.ip.CoalescingNeighborEventConsumer.SAME_VALIDITY_AND_MAC;
 import static com.android.networkstack.tethering.TetheringConfiguration.USE_SYNC_SM;
 import static com.android.networkstack.tethering.UpstreamNetworkState.isVcnInterface;
 import static com.android.networkstack.tethering.util.PrefixUtils.asIpPrefix;
@@ -75,6 +76,7 @@ import com.android.net.module.util.InterfaceParams;
 import com.android.net.module.util.NetdUtils;
 import com.android.net.module.util.SdkUtil.LateSdk;
 import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.ip.CoalescingNeighborEventConsumer;
 import com.android.net.module.util.ip.InterfaceController;
 import com.android.net.module.util.ip.IpNeighborMonitor;
 import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEvent;
@@ -312,6 +314,10 @@ public class IpServer extends StateMachineShim {
     }
 
     private final IpNeighborMonitor mIpNeighborMonitor;
+    // Removes the neighbor events that do not change the validity or the MAC address of the
+    // neighbor, which are the only properties used by handleNeighborEvent. Null if disabled.
+    @Nullable
+    private final CoalescingNeighborEventConsumer mNeighborEventCoalescer;
 
     private LinkAddress mIpv4Address;
 
@@ -346,8 +352,14 @@ public class IpServer extends StateMachineShim {
         mLastError = TETHER_ERROR_NO_ERROR;
         mServingMode = STATE_AVAILABLE;
 
+        final int coalescingWindowMs = config.getNeighborEventCoalescingWindowMs();
+        mNeighborEventCoalescer = coalescingWindowMs > 0
+                ? new CoalescingNeighborEventConsumer(getHandler(), coalescingWindowMs,
+                        SAME_VALIDITY_AND_MAC, new MyNeighborEventConsumer())
+                : null;
         mIpNeighborMonitor = mDeps.getIpNeighborMonitor(getHandler(), mLog,
-                new MyNeighborEventConsumer());
+                mNeighborEventCoalescer != null
+                        ? mNeighborEventCoalescer : new MyNeighborEventConsumer());
 
         // IP neighbor monitor monitors the neighbor events for adding/removing IPv6 downstream rule
         // per client. If BPF offload is not supported, don't start listening for neighbor events.
@@ -726,6 +738,9 @@ public class IpServer extends StateMachineShim {
     }
 
     private boolean startIPv6() {
+        // Neighbor events were ignored until now, so the next event of each neighbor must be
+        // processed even if its state did not change.
+        clearNeighborEventCoalescer();
         mInterfaceParams = mDeps.getInterfaceParams(mIfaceName);
         if (mInterfaceParams == null) {
             mLog.e("Failed to find InterfaceParams");
@@ -747,8 +762,13 @@ public class IpServer extends StateMachineShim {
         return true;
     }
 
+    private void clearNeighborEventCoalescer() {
+        if (mNeighborEventCoalescer != null) mNeighborEventCoalescer.clear();
+    }
+
     private void stopIPv6() {
         mInterfaceParams = null;
+        clearNeighborEventCoalescer();
         setRaParams(null);
 
         if (mRaDaemon != null) {
@@ -1518,6 +1538,10 @@ public class IpServer extends StateMachineShim {
             // TODO: move mIpNeighborMonitor.stop() to TetheredState#exit, and trigger a neighbours
             //       dump after starting mIpNeighborMonitor.
             mIpNeighborMonitor.stop();
+            if (mNeighborEventCoalescer != null) {
+                mLog.log(mNeighborEventCoalescer.toString());
+                mNeighborEventCoalescer.clear();
+            }
             mLastError = TETHER_ERROR_NO_ERROR;
             sendInterfaceState(STATE_UNAVAILABLE);
         }
@@ -829,8 +829,8 @@ public class OffloadController {
             mNatUpdateNetlinkErrors++;
             mLog.e("Error updating NAT conntrack entry >" + natDescription + "<: " + e
                     + ", msg: " + NetlinkConstants.hexify(msg));
-            mLog.log("NAT timeout update callbacks received: " + mNatUpdateCallbacksReceived);
-            mLog.log("NAT timeout update netlink errors: " + mNatUpdateNetlinkErrors);
+            mLog.log("NAT timeout update callbacks received: %d", mNatUpdateCallbacksReceived);
+            mLog.log("NAT timeout update netlink errors: %d", mNatUpdateNetlinkErrors);
         }
     }
 
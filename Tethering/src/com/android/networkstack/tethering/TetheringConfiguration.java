@@ -21,6 +21,7 @@ import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.ConnectivityManager.TYPE_MOBILE_DUN;
 import static android.net.ConnectivityManager.TYPE_MOBILE_HIPRI;
 import static android.provider.DeviceConfig.NAMESPACE_CONNECTIVITY;
+import static android.provider.DeviceConfig.NAMESPACE_TETHERING;
 
 import static com.android.networkstack.apishim.ConstantsShim.KEY_CARRIER_SUPPORTS_TETHERING_BOOL;
 
@@ -133,6 +134,13 @@ public class TetheringConfiguration {
 
     public static final String TETHER_ENABLE_SYNC_SM = "tether_enable_sync_sm";
 
+    /**
+     * Window during which neighbor events are batched before being processed by IpServer, in
+     * milliseconds. 0 disables the batching and the removal of redundant neighbor events.
+     */
+    public static final String TETHER_NEIGHBOR_EVENT_COALESCING_WINDOW_MS =
+            "tether_neighbor_event_coalescing_window_ms";
+
     /**
      * Default value that used to periodic polls tether offload stats from tethering offload HAL
      * to make the data warnings work.
@@ -175,6 +183,7 @@ public class TetheringConfiguration {
 
     private final boolean mEnableWearTethering;
     private final boolean mRandomPrefixBase;
+    private final int mNeighborEventCoalescingWindowMs;
 
     private final int mUsbTetheringFunction;
     protected final ContentResolver mContentResolver;
@@ -208,6 +217,11 @@ public class TetheringConfiguration {
                     0 /* defaultValue */);
             return flagValue > 0;
         }
+
+        int getDeviceConfigPropertyInt(@NonNull String name, int defaultValue) {
+            return DeviceConfigUtils.getDeviceConfigPropertyInt(NAMESPACE_TETHERING, name,
+                    defaultValue);
+        }
     }
 
     public TetheringConfiguration(@NonNull Context ctx, @NonNull SharedLog log, int id) {
@@ -294,6 +308,9 @@ public class TetheringConfiguration {
 
         mRandomPrefixBase = mDeps.isFeatureEnabled(ctx, TETHER_FORCE_RANDOM_PREFIX_BASE_SELECTION);
 
+        mNeighborEventCoalescingWindowMs = Math.max(0, mDeps.getDeviceConfigPropertyInt(
+                TETHER_NEIGHBOR_EVENT_COALESCING_WINDOW_MS, 0 /* defaultValue */));
+
         configLog.log(toString());
     }
 
@@ -386,6 +403,14 @@ public class TetheringConfiguration {
         return mRandomPrefixBase;
     }
 
+    /**
+     * Returns the window during which IpServer batches neighbor events, or 0 if neighbor events
+     * are processed as they are received.
+     */
+    public int getNeighborEventCoalescingWindowMs() {
+        return mNeighborEventCoalescingWindowMs;
+    }
+
     /**
      * Check whether sync SM is enabled then set it to USE_SYNC_SM. This should be called once
      * when tethering is created. Otherwise if the flag is pushed while tethering is enabled,
@@ -450,6 +475,9 @@ public class TetheringConfiguration {
         pw.print("mRandomPrefixBase: ");
         pw.println(mRandomPrefixBase);
 
+        pw.print("neighborEventCoalescingWindowMs: ");
+        pw.println(mNeighborEventCoalescingWindowMs);
+
         pw.print("USE_SYNC_SM: ");
         pw.println(USE_SYNC_SM);
     }
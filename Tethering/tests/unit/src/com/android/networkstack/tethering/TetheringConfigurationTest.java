@@ -29,6 +29,7 @@ import static com.android.networkstack.apishim.ConstantsShim.KEY_CARRIER_SUPPORT
 import static com.android.networkstack.tethering.TetheringConfiguration.OVERRIDE_TETHER_ENABLE_BPF_OFFLOAD;
 import static com.android.networkstack.tethering.TetheringConfiguration.TETHER_ENABLE_LEGACY_DHCP_SERVER;
 import static com.android.networkstack.tethering.TetheringConfiguration.TETHER_FORCE_USB_FUNCTIONS;
+import static com.android.networkstack.tethering.TetheringConfiguration.TETHER_NEIGHBOR_EVENT_COALESCING_WINDOW_MS;
 import static com.android.networkstack.tethering.TetheringConfiguration.TETHER_USB_NCM_FUNCTION;
 import static com.android.networkstack.tethering.TetheringConfiguration.TETHER_USB_RNDIS_FUNCTION;
 
@@ -153,6 +154,7 @@ public class TetheringConfigurationTest {
 
     private static class MockDependencies extends TetheringConfiguration.Dependencies {
         private ArrayMap<String, Boolean> mMockFlags = new ArrayMap<>();
+        private ArrayMap<String, Integer> mMockIntFlags = new ArrayMap<>();
 
         @Override
         boolean isFeatureEnabled(@NonNull Context context, @NonNull String name) {
@@ -177,6 +179,11 @@ public class TetheringConfigurationTest {
                     false /* defaultEnabled */);
         }
 
+        @Override
+        int getDeviceConfigPropertyInt(@NonNull String name, int defaultValue) {
+            return mMockIntFlags.getOrDefault(name, defaultValue);
+        }
+
         private boolean isMockFlagEnabled(@NonNull String name, boolean defaultEnabled) {
             final Boolean flag = mMockFlags.getOrDefault(name, defaultEnabled);
             // Value in the map can also be null
@@ -187,6 +194,10 @@ public class TetheringConfigurationTest {
         void setFeatureEnabled(@NonNull String flag, Boolean enabled) {
             mMockFlags.put(flag, enabled);
         }
+
+        void setIntFlag(@NonNull String flag, int value) {
+            mMockIntFlags.put(flag, value);
+        }
     }
 
     @Before
@@ -777,4 +788,16 @@ public class TetheringConfigurationTest {
         setTetherEnableSyncSMFlagEnabled(false);
         assertEnableSyncSM(false);
     }
+
+    @Test
+    public void testNeighborEventCoalescingWindow() throws Exception {
+        assertEquals(0, getTetheringConfiguration().getNeighborEventCoalescingWindowMs());
+
+        mDeps.setIntFlag(TETHER_NEIGHBOR_EVENT_COALESCING_WINDOW_MS, 100);
+        assertEquals(100, getTetheringConfiguration().getNeighborEventCoalescingWindowMs());
+
+        // Negative values disable the coalescing.
+        mDeps.setIntFlag(TETHER_NEIGHBOR_EVENT_COALESCING_WINDOW_MS, -1);
+        assertEquals(0, getTetheringConfiguration().getNeighborEventCoalescingWindowMs());
+    }
 }
@@ -52,11 +52,42 @@ struct frag_hdr {
     __be32 identification;
 };
 
+DEFINE_BPF_MAP_GRW(clat_stats_map, HASH, ClatStatsKey, ClatStatsValue, 1024, AID_SYSTEM)
+
+static inline __always_inline void update_clat_stats(const __u32 ifindex, const __u32 uid,
+                                                     const bool egress, const bool bpf,
+                                                     const __u32 len) {
+    const ClatStatsKey k = {
+            .ifindex = ifindex,
+            .uid = uid,
+    };
+    ClatStatsValue* v = bpf_clat_stats_map_lookup_elem(&k);
+    if (!v) {
+        ClatStatsValue newValue = {};
+        bpf_clat_stats_map_update_elem(&k, &newValue, BPF_NOEXIST);
+        v = bpf_clat_stats_map_lookup_elem(&k);
+    }
+    // The map is full: the entries are only deleted when clatd is stopped.
+    if (!v) return;
+
+    if (egress) {
+        __sync_fetch_and_add(bpf ? &v->txBpfPackets : &v->txDaemonPackets, 1);
+        __sync_fetch_and_add(bpf ? &v->txBpfBytes : &v->txDaemonBytes, len);
+    } else {
+        __sync_fetch_and_add(bpf ? &v->rxBpfPackets : &v->rxDaemonPackets, 1);
+        __sync_fetch_and_add(bpf ? &v->rxBpfBytes : &v->rxDaemonBytes, len);
+    }
+}
+
 DEFINE_BPF_MAP_GRW(clat_ingress6_map, HASH, ClatIngress6Key, ClatIngress6Value, 16, AID_SYSTEM)
 
-static inline __always_inline int nat64(struct __sk_buff* skb,
-                                        const struct rawip_bool rawip,
-                                        const struct kver_uint kver) {
+// *v4ifindex and *v4len are set to the v4-* interface and the length of the IPv4 packet iff the
+// packet is bound for a clat address, i.e. would otherwise be translated by clatd.
+static inline __always_inline int do_nat64(struct __sk_buff* skb,
+                                           const struct rawip_bool rawip,
+                                           const struct kver_uint kver,
+                                           __u32* const v4ifindex,
+                                           __u32* const v4len) {
     const bool is_ethernet = !rawip.rawip;
 
     // Require ethernet dst mac address to be our unicast address.
@@ -114,6 +145,8 @@ static inline __always_inline int nat64(struct __sk_buff* skb,
     __be16 ip_id = 0;
     __be16 frag_off = htons(IP_DF);
     __u16 tot_len = ntohs(ip6->payload_len) + sizeof(struct iphdr);  // cannot overflow, see above
+    *v4ifindex = v->oif;
+    *v4len = tot_len;
 
     if (proto == IPPROTO_FRAGMENT) {
         // Fragment handling requires bpf_skb_adjust_room which is 4.14+
@@ -137,6 +170,7 @@ static inline __always_inline int nat64(struct __sk_buff* skb,
         tot_len -= sizeof(struct frag_hdr);
         // This is a badly formed IPv6 packet with less payload than the size of an IPv6 Frag EH
         if (tot_len < sizeof(struct iphdr)) return TC_ACT_PIPE;
+        *v4len = tot_len;
     }
 
     switch (proto) {
@@ -272,6 +306,21 @@ static inline __always_inline int nat64(struct __sk_buff* skb,
     return TC_ACT_PIPE;
 }
 
+static inline __always_inline int nat64(struct __sk_buff* skb,
+                                        const struct rawip_bool rawip,
+                                        const struct kver_uint kver) {
+    __u32 v4ifindex = 0;
+    __u32 v4len = 0;
+    const int ret = do_nat64(skb, rawip, kver, &v4ifindex, &v4len);
+
+    // Translated packets are redirected to the v4-* interface, the others are left to clatd.
+    if (v4ifindex && ret != TC_ACT_SHOT) {
+        update_clat_stats(v4ifindex, CLAT_STATS_UID_UNKNOWN, false /* egress */,
+                          ret == TC_ACT_REDIRECT, v4len);
+    }
+    return ret;
+}
+
 DEFINE_BPF_PROG_KVER("schedcls/ingress6/clat_ether$4_14", AID_ROOT, AID_SYSTEM, sched_cls_ingress6_clat_ether_4_14, KVER_4_14)
 (struct __sk_buff* skb) {
     return nat64(skb, ETHER, KVER_4_14);
@@ -294,8 +343,7 @@ DEFINE_BPF_PROG_KVER_RANGE("schedcls/ingress6/clat_rawip$4_9", AID_ROOT, AID_SYS
 
 DEFINE_BPF_MAP_GRW(clat_egress4_map, HASH, ClatEgress4Key, ClatEgress4Value, 16, AID_SYSTEM)
 
-DEFINE_BPF_PROG("schedcls/egress4/clat_rawip", AID_ROOT, AID_SYSTEM, sched_cls_egress4_clat_rawip)
-(struct __sk_buff* skb) {
+static inline __always_inline int nat46(struct __sk_buff* skb) {
     // Must be meta-ethernet IPv4 frame
     if (skb->protocol != htons(ETH_P_IP)) return TC_ACT_PIPE;
 
@@ -420,6 +468,26 @@ DEFINE_BPF_PROG("schedcls/egress4/clat_rawip", AID_ROOT, AID_SYSTEM, sched_cls_e
     return bpf_redirect(v->oif, 0 /* this is effectively BPF_F_EGRESS */);
 }
 
+DEFINE_BPF_PROG("schedcls/egress4/clat_rawip", AID_ROOT, AID_SYSTEM, sched_cls_egress4_clat_rawip)
+(struct __sk_buff* skb) {
+    // This program is only attached to v4-* interfaces, so all IPv4 packets are clat traffic.
+    if (skb->protocol != htons(ETH_P_IP)) return nat46(skb);
+
+    const __u32 ifindex = skb->ifindex;
+    const __u32 len = skb->len;  // rawip, so this is the length of the IPv4 packet
+    // Same as netd: 'overflowuid' means there is no full socket, e.g. a timewait socket.
+    __u32 uid = bpf_get_socket_uid(skb);
+    if (uid == 65534) uid = 0;
+
+    const int ret = nat46(skb);
+
+    // Translated packets are redirected to the underlying interface, the others reach clatd.
+    if (ret != TC_ACT_SHOT) {
+        update_clat_stats(ifindex, uid, true /* egress */, ret == TC_ACT_REDIRECT, len);
+    }
+    return ret;
+}
+
 LICENSE("Apache 2.0");
 CRITICAL("Connectivity");
 DISABLE_BTF_ON_USER_BUILDS();
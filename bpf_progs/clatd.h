@@ -57,4 +57,27 @@ typedef struct {
 } ClatEgress4Value;
 STRUCT_SIZE(ClatEgress4Value, 4 + 2 * 16 + 1 + 3);  // 40
 
+// UID of the ingress stats: the socket of a packet is not known yet when it is translated.
+#define CLAT_STATS_UID_UNKNOWN 0xFFFFFFFF
+
+typedef struct {
+    uint32_t ifindex;  // The index of the v4-* interface
+    uint32_t uid;      // The UID of the socket, or CLAT_STATS_UID_UNKNOWN
+} ClatStatsKey;
+STRUCT_SIZE(ClatStatsKey, 4 + 4);  // 8
+
+// Packets and bytes of IPv4 traffic on a clat interface, by direction and by whether they were
+// translated by the BPF programs or passed to clatd.
+typedef struct {
+    uint64_t rxBpfPackets;     // Translated by the ingress6 program
+    uint64_t rxBpfBytes;
+    uint64_t rxDaemonPackets;  // Passed to clatd
+    uint64_t rxDaemonBytes;
+    uint64_t txBpfPackets;     // Translated by the egress4 program
+    uint64_t txBpfBytes;
+    uint64_t txDaemonPackets;  // Passed to clatd
+    uint64_t txDaemonBytes;
+} ClatStatsValue;
+STRUCT_SIZE(ClatStatsValue, 8 * 8);  // 64
+
 #undef STRUCT_SIZE
@@ -268,6 +268,46 @@ void send_dad(int fd, const struct in6_addr* tgt) {
   sendto(fd, &dad_pkt, sizeof(dad_pkt), 0 /*flags*/, (const struct sockaddr *)&dst, sizeof(dst));
 }
 
+/* function: read_config_update
+ * reads a config update from the control pipe and switches to the new plat prefix and local
+ * IPv6 address, without touching the tun interface or its IPv4 address
+ *   tunnel - tun device data
+ *   returns: false if the control pipe was closed and must no longer be polled
+ */
+static bool read_config_update(struct tun_data *tunnel) {
+  struct clat_config_update update;
+  ssize_t readlen = read(tunnel->control_fd, &update, sizeof(update));
+
+  if (readlen < 0) {
+    if (errno != EAGAIN && errno != EINTR) {
+      logmsg(ANDROID_LOG_WARN, "read_config_update/read error: %s", strerror(errno));
+    }
+    return true;
+  }
+  if (readlen == 0) {
+    logmsg(ANDROID_LOG_INFO, "read_config_update/control pipe closed");
+    return false;
+  }
+  if (readlen != sizeof(update)) {
+    logmsg(ANDROID_LOG_WARN, "read_config_update/ignoring update of %zd bytes", readlen);
+    return true;
+  }
+
+  Global_Clatd_Config.plat_subnet = update.plat_subnet;
+  Global_Clatd_Config.ipv6_local_subnet = update.ipv6_local_subnet;
+
+  char plat_str[INET6_ADDRSTRLEN];
+  char v6_str[INET6_ADDRSTRLEN];
+  inet_ntop(AF_INET6, &update.plat_subnet, plat_str, sizeof(plat_str));
+  inet_ntop(AF_INET6, &update.ipv6_local_subnet, v6_str, sizeof(v6_str));
+  logmsg(ANDROID_LOG_INFO, "Reconfigured clat on %s plat=%s v6=%s",
+         Global_Clatd_Config.native_ipv6_interface, plat_str, v6_str);
+
+  // See the comment in event_loop.
+  send_dad(tunnel->write_fd6, &Global_Clatd_Config.ipv6_local_subnet);
+  return true;
+}
+
 /* function: event_loop
  * reads packets from the tun network interface and passes them down the stack
  *   tunnel - tun device data
@@ -287,6 +327,8 @@ void event_loop(struct tun_data *tunnel) {
   struct pollfd wait_fd[] = {
     { tunnel->read_fd6, POLLIN, 0 },
     { tunnel->fd4, POLLIN, 0 },
+    // poll() ignores negative fds, so this is a no-op without a control pipe.
+    { tunnel->control_fd, POLLIN, 0 },
   };
 
   while (running) {
@@ -302,6 +344,7 @@ void event_loop(struct tun_data *tunnel) {
       // socket error flag instead.
       if (wait_fd[0].revents) process_packet_6_to_4(tunnel);
       if (wait_fd[1].revents) process_packet_4_to_6(tunnel);
+      if (wait_fd[2].revents && !read_config_update(tunnel)) wait_fd[2].fd = -1;
     }
   }
 }
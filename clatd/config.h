@@ -24,6 +24,15 @@
 struct tun_data {
   char device4[IFNAMSIZ];
   int read_fd6, write_fd6, fd4;
+  // read end of the pipe on which config updates are received, or -1
+  int control_fd;
+};
+
+// Config update written to the control pipe: the new plat prefix and local IPv6 address.
+// Both addresses are in network byte order, for a total of 32 bytes written atomically.
+struct clat_config_update {
+  struct in6_addr plat_subnet;
+  struct in6_addr ipv6_local_subnet;
 };
 
 struct clat_config {
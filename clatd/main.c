@@ -51,6 +51,7 @@ void print_help() {
   printf("-t [tun file descriptor number]\n");
   printf("-r [read socket descriptor number]\n");
   printf("-w [write socket descriptor number]\n");
+  printf("-c [control pipe descriptor number]\n");
 }
 
 /* function: main
@@ -61,10 +62,10 @@ int main(int argc, char **argv) {
   int opt;
   char *uplink_interface = NULL, *plat_prefix = NULL;
   char *v4_addr = NULL, *v6_addr = NULL, *tunfd_str = NULL, *read_sock_str = NULL,
-       *write_sock_str = NULL;
+       *write_sock_str = NULL, *control_fd_str = NULL;
   unsigned len;
 
-  while ((opt = getopt(argc, argv, "i:p:4:6:t:r:w:h")) != -1) {
+  while ((opt = getopt(argc, argv, "i:p:4:6:t:r:w:c:h")) != -1) {
     switch (opt) {
       case 'i':
         uplink_interface = optarg;
@@ -87,6 +88,9 @@ int main(int argc, char **argv) {
       case 'w':
         write_sock_str = optarg;
         break;
+      case 'c':
+        control_fd_str = optarg;
+        break;
       case 'h':
         print_help();
         exit(0);
@@ -128,6 +132,13 @@ int main(int argc, char **argv) {
     exit(1);
   }
 
+  // The control pipe is optional: without it, clatd must be restarted to change its config.
+  tunnel.control_fd = -1;
+  if (control_fd_str != NULL && !parse_int(control_fd_str, &tunnel.control_fd)) {
+    logmsg(ANDROID_LOG_FATAL, "invalid control fd %s", control_fd_str);
+    exit(1);
+  }
+
   len = snprintf(tunnel.device4, sizeof(tunnel.device4), "%s%s", DEVICEPREFIX, uplink_interface);
   if (len >= sizeof(tunnel.device4)) {
     logmsg(ANDROID_LOG_FATAL, "interface name too long '%s'", tunnel.device4);
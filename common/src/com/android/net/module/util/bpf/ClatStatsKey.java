@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.bpf;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.Struct.Field;
+import com.android.net.module.util.Struct.Type;
+
+/** Key type for clat stats maps. */
+public class ClatStatsKey extends Struct {
+    @Field(order = 0, type = Type.S32)
+    public final int ifindex; // The index of the v4-* interface
+
+    @Field(order = 1, type = Type.S32)
+    public final int uid; // The UID of the socket, or -1 if unknown
+
+    public ClatStatsKey(final int ifindex, final int uid) {
+        this.ifindex = ifindex;
+        this.uid = uid;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.bpf;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.Struct.Field;
+import com.android.net.module.util.Struct.Type;
+
+/** Value type for clat stats maps. */
+public class ClatStatsValue extends Struct {
+    // Packets and bytes translated by the BPF programs, or passed to clatd. The bytes are those
+    // of the IPv4 packets.
+    @Field(order = 0, type = Type.U63)
+    public final long rxBpfPackets;
+    @Field(order = 1, type = Type.U63)
+    public final long rxBpfBytes;
+    @Field(order = 2, type = Type.U63)
+    public final long rxDaemonPackets;
+    @Field(order = 3, type = Type.U63)
+    public final long rxDaemonBytes;
+    @Field(order = 4, type = Type.U63)
+    public final long txBpfPackets;
+    @Field(order = 5, type = Type.U63)
+    public final long txBpfBytes;
+    @Field(order = 6, type = Type.U63)
+    public final long txDaemonPackets;
+    @Field(order = 7, type = Type.U63)
+    public final long txDaemonBytes;
+
+    public ClatStatsValue(final long rxBpfPackets, final long rxBpfBytes,
+            final long rxDaemonPackets, final long rxDaemonBytes, final long txBpfPackets,
+            final long txBpfBytes, final long txDaemonPackets, final long txDaemonBytes) {
+        this.rxBpfPackets = rxBpfPackets;
+        this.rxBpfBytes = rxBpfBytes;
+        this.rxDaemonPackets = rxDaemonPackets;
+        this.rxDaemonBytes = rxDaemonBytes;
+        this.txBpfPackets = txBpfPackets;
+        this.txBpfBytes = txBpfBytes;
+        this.txDaemonPackets = txDaemonPackets;
+        this.txDaemonBytes = txDaemonBytes;
+    }
+}
@@ -48,6 +48,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -1097,6 +1098,21 @@ public class IpSecManager {
         return mService.getTransformState(transformId);
     }
 
+    /**
+     * Get the states of several transforms at once.
+     *
+     * <p>This is cheaper than calling {@link #getTransformState} for each transform, as the
+     * states of all the transforms are read from the kernel at once.
+     *
+     * @return the states of the transforms, in the same order as transformIds. The state of a
+     *     transform that no longer exists in the kernel is null.
+     * @hide
+     */
+    public List<IpSecTransformState> getTransformStates(@NonNull int[] transformIds)
+            throws IllegalStateException, RemoteException {
+        return mService.getTransformStates(transformIds);
+    }
+
     /**
      * Construct an instance of IpSecManager within an application context.
      *
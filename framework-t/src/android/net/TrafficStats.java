@@ -17,28 +17,44 @@
 package android.net;
 
 import static android.annotation.SystemApi.Client.MODULE_LIBRARIES;
+import static android.net.connectivity.ConnectivityCompatChanges.ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE;
+import static android.net.netstats.TrafficStatsSharedMemory.VALUE_UNAVAILABLE;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.SuppressLint;
 import android.annotation.SystemApi;
 import android.annotation.TestApi;
 import android.app.DownloadManager;
 import android.app.backup.BackupManager;
+import android.app.compat.CompatChanges;
 import android.app.usage.NetworkStatsManager;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.content.Context;
 import android.media.MediaPlayer;
+import android.net.netstats.TrafficStatsSharedMemory;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SharedMemory;
 import android.os.StrictMode;
+import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Class that provides network traffic statistics. These statistics include
@@ -197,6 +213,181 @@ public class TrafficStats {
 
     private static final String LOOPBACK_IFACE = "lo";
 
+    // Client-side cache of the values returned by the service, so that apps polling TrafficStats
+    // in a tight loop do not make a binder call every time. Only used by apps with the
+    // ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE compat change enabled. The service may cache the
+    // values as well, so they can be up to twice this duration old.
+    private static final long CLIENT_CACHE_EXPIRY_MS = 1000;
+    private static final int CLIENT_CACHE_MAX_ENTRIES = 32;
+
+    private static final int CACHE_KIND_TOTAL = 0;
+    private static final int CACHE_KIND_IFACE = 1;
+    private static final int CACHE_KIND_UID = 2;
+
+    private static final class ClientCacheKey {
+        final int kind;
+        @Nullable
+        final String iface;
+        final int uid;
+        final int type;
+
+        ClientCacheKey(int kind, @Nullable String iface, int uid, int type) {
+            this.kind = kind;
+            this.iface = iface;
+            this.uid = uid;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ClientCacheKey)) return false;
+            final ClientCacheKey that = (ClientCacheKey) o;
+            return kind == that.kind && uid == that.uid && type == that.type
+                    && Objects.equals(iface, that.iface);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, iface, uid, type);
+        }
+    }
+
+    private static final class ClientCacheValue {
+        final long value;
+        final long timestampMs;
+
+        ClientCacheValue(long value, long timestampMs) {
+            this.value = value;
+            this.timestampMs = timestampMs;
+        }
+    }
+
+    @GuardedBy("sClientCache")
+    private static final LinkedHashMap<ClientCacheKey, ClientCacheValue> sClientCache =
+            new LinkedHashMap<>(16 /* initialCapacity */, 0.75f /* loadFactor */,
+                    true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<ClientCacheKey, ClientCacheValue> eldest) {
+                    return size() > CLIENT_CACHE_MAX_ENTRIES;
+                }
+            };
+
+    private static volatile Boolean sClientCacheEnabled;
+
+    private static boolean isClientCacheEnabled() {
+        Boolean enabled = sClientCacheEnabled;
+        if (enabled == null) {
+            enabled = CompatChanges.isChangeEnabled(ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE);
+            sClientCacheEnabled = enabled;
+        }
+        return enabled;
+    }
+
+    private interface StatsGetter {
+        long get() throws RemoteException;
+    }
+
+    private static long getStatsWithClientCache(int kind, @Nullable String iface, int uid,
+            int type, @NonNull StatsGetter getter) throws RemoteException {
+        if (!isClientCacheEnabled()) return getter.get();
+        final ClientCacheKey key = new ClientCacheKey(kind, iface, uid, type);
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (sClientCache) {
+            final ClientCacheValue cached = sClientCache.get(key);
+            if (cached != null && now - cached.timestampMs <= CLIENT_CACHE_EXPIRY_MS) {
+                return cached.value;
+            }
+        }
+        // Do not hold the lock during the binder call.
+        final long value = getter.get();
+        synchronized (sClientCache) {
+            sClientCache.put(key, new ClientCacheValue(value, now));
+        }
+        return value;
+    }
+
+    // Shared memory region in which the service publishes the counters of this UID and the total
+    // counters, so that they can be read without a binder call. Requested at most once per
+    // process, and only used by apps that accept cached values.
+    private static final Object sSharedStatsLock = new Object();
+    @GuardedBy("sSharedStatsLock")
+    private static boolean sSharedStatsRequested = false;
+    @Nullable
+    private static volatile ByteBuffer sSharedStatsBuffer;
+    // Identifies this process to the service, which frees the region when the process dies.
+    private static final Binder sSharedStatsToken = new Binder();
+
+    @Nullable
+    private static ByteBuffer getSharedStatsBuffer() {
+        final ByteBuffer buffer = sSharedStatsBuffer;
+        if (buffer != null) return buffer;
+        synchronized (sSharedStatsLock) {
+            if (sSharedStatsRequested) return sSharedStatsBuffer;
+            final INetworkStatsService service = getStatsService();
+            sSharedStatsRequested = true;
+            final SharedMemory memory;
+            try {
+                memory = service.getTrafficStatsSharedMemory(sSharedStatsToken);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Cannot get TrafficStats shared memory: " + e);
+                return null;
+            }
+            if (memory == null) return null;
+            // In the process of the service, the call is not a binder transaction and returns
+            // the SharedMemory owned by the service, which must stay open. Otherwise the
+            // SharedMemory is a copy that can be closed once mapped, as this does not unmap it.
+            final boolean ownedByService = service.asBinder() instanceof Binder;
+            try {
+                final ByteBuffer mapped = memory.mapReadOnly().order(ByteOrder.nativeOrder());
+                if (!TrafficStatsSharedMemory.isValid(mapped, Process.myUid())) {
+                    SharedMemory.unmap(mapped);
+                    return null;
+                }
+                sSharedStatsBuffer = mapped;
+                return mapped;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Cannot map TrafficStats shared memory: " + e);
+                return null;
+            } finally {
+                if (!ownedByService) memory.close();
+            }
+        }
+    }
+
+    // Returns a counter from the shared memory region, or VALUE_UNAVAILABLE if it cannot be read
+    // there and the caller must fall back to a binder call.
+    private static long readSharedStats(boolean uidStats, int type) {
+        if (!isClientCacheEnabled()) return VALUE_UNAVAILABLE;
+        final ByteBuffer buffer = getSharedStatsBuffer();
+        if (buffer == null) return VALUE_UNAVAILABLE;
+        return TrafficStatsSharedMemory.read(buffer, uidStats, type,
+                SystemClock.elapsedRealtime());
+    }
+
+    private static long getTotalStats(int type) throws RemoteException {
+        final long sharedValue = readSharedStats(false /* uidStats */, type);
+        if (sharedValue != VALUE_UNAVAILABLE) return sharedValue;
+        return getStatsWithClientCache(CACHE_KIND_TOTAL, null /* iface */, -1 /* uid */, type,
+                () -> getStatsService().getTotalStats(type));
+    }
+
+    private static long getIfaceStats(@NonNull String iface, int type) throws RemoteException {
+        return getStatsWithClientCache(CACHE_KIND_IFACE, iface, -1 /* uid */, type,
+                () -> getStatsService().getIfaceStats(iface, type));
+    }
+
+    private static long getUidStats(int uid, int type) throws RemoteException {
+        // The shared memory only holds the counters of the calling UID.
+        if (uid == Process.myUid()) {
+            final long sharedValue = readSharedStats(true /* uidStats */, type);
+            if (sharedValue != VALUE_UNAVAILABLE) return sharedValue;
+        }
+        return getStatsWithClientCache(CACHE_KIND_UID, null /* iface */, uid, type,
+                () -> getStatsService().getUidStats(uid, type));
+    }
+
     /**
      * Initialization {@link TrafficStats} with the context, to
      * allow {@link TrafficStats} to fetch the needed binder.
@@ -709,7 +900,7 @@ public class TrafficStats {
      */
     public static long getTxPackets(@NonNull String iface) {
         try {
-            return getStatsService().getIfaceStats(iface, TYPE_TX_PACKETS);
+            return getIfaceStats(iface, TYPE_TX_PACKETS);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -732,7 +923,7 @@ public class TrafficStats {
      */
     public static long getRxPackets(@NonNull String iface) {
         try {
-            return getStatsService().getIfaceStats(iface, TYPE_RX_PACKETS);
+            return getIfaceStats(iface, TYPE_RX_PACKETS);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -755,7 +946,7 @@ public class TrafficStats {
      */
     public static long getTxBytes(@NonNull String iface) {
         try {
-            return getStatsService().getIfaceStats(iface, TYPE_TX_BYTES);
+            return getIfaceStats(iface, TYPE_TX_BYTES);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -778,7 +969,7 @@ public class TrafficStats {
      */
     public static long getRxBytes(@NonNull String iface) {
         try {
-            return getStatsService().getIfaceStats(iface, TYPE_RX_BYTES);
+            return getIfaceStats(iface, TYPE_RX_BYTES);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -835,7 +1026,7 @@ public class TrafficStats {
      */
     public static long getTotalTxPackets() {
         try {
-            return getStatsService().getTotalStats(TYPE_TX_PACKETS);
+            return getTotalStats(TYPE_TX_PACKETS);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -852,7 +1043,7 @@ public class TrafficStats {
      */
     public static long getTotalRxPackets() {
         try {
-            return getStatsService().getTotalStats(TYPE_RX_PACKETS);
+            return getTotalStats(TYPE_RX_PACKETS);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -869,7 +1060,7 @@ public class TrafficStats {
      */
     public static long getTotalTxBytes() {
         try {
-            return getStatsService().getTotalStats(TYPE_TX_BYTES);
+            return getTotalStats(TYPE_TX_BYTES);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -886,7 +1077,7 @@ public class TrafficStats {
      */
     public static long getTotalRxBytes() {
         try {
-            return getStatsService().getTotalStats(TYPE_RX_BYTES);
+            return getTotalStats(TYPE_RX_BYTES);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -912,7 +1103,7 @@ public class TrafficStats {
      */
     public static long getUidTxBytes(int uid) {
         try {
-            return getStatsService().getUidStats(uid, TYPE_TX_BYTES);
+            return getUidStats(uid, TYPE_TX_BYTES);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -938,7 +1129,7 @@ public class TrafficStats {
      */
     public static long getUidRxBytes(int uid) {
         try {
-            return getStatsService().getUidStats(uid, TYPE_RX_BYTES);
+            return getUidStats(uid, TYPE_RX_BYTES);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -964,7 +1155,7 @@ public class TrafficStats {
      */
     public static long getUidTxPackets(int uid) {
         try {
-            return getStatsService().getUidStats(uid, TYPE_TX_PACKETS);
+            return getUidStats(uid, TYPE_TX_PACKETS);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -990,7 +1181,7 @@ public class TrafficStats {
      */
     public static long getUidRxPackets(int uid) {
         try {
-            return getStatsService().getUidStats(uid, TYPE_RX_PACKETS);
+            return getUidStats(uid, TYPE_RX_PACKETS);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
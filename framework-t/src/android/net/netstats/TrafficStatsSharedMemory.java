@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.netstats;
+
+import static android.net.TrafficStats.TYPE_RX_BYTES;
+import static android.net.TrafficStats.TYPE_RX_PACKETS;
+import static android.net.TrafficStats.TYPE_TX_BYTES;
+import static android.net.TrafficStats.TYPE_TX_PACKETS;
+import static android.net.TrafficStats.UNSUPPORTED;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the shared memory region that NetworkStatsService uses to publish the TrafficStats
+ * counters of an app, so that the app can read them without a binder call.
+ *
+ * The region holds the total counters of the device and the counters of a single UID. It is
+ * updated by a single writer in the system server and is mapped read-only by the app. Readers
+ * are lock-free: the writer increments a sequence number before and after each update, and
+ * readers retry if the sequence number was odd or changed while they were reading. All buffers
+ * passed to this class must be direct buffers in native byte order.
+ *
+ * @hide
+ */
+public final class TrafficStatsSharedMemory {
+    private TrafficStatsSharedMemory() {}
+
+    /** Returned by {@link #read} if the value cannot be read from the region. */
+    public static final long VALUE_UNAVAILABLE = Long.MIN_VALUE;
+
+    private static final int MAGIC = 0x54535348; // "TSSH"
+    private static final int VERSION = 1;
+    private static final int NUM_TYPES = 4;
+    // Bounds the time a reader can spin if the writer keeps updating the region.
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_SEQ = 8;
+    private static final int OFFSET_UID = 16;
+    private static final int OFFSET_TIMESTAMP = 24;
+    private static final int OFFSET_UPDATE_INTERVAL = 32;
+    private static final int OFFSET_TOTAL_STATS = 40;
+    private static final int OFFSET_UID_STATS = OFFSET_TOTAL_STATS + NUM_TYPES * Long.BYTES;
+
+    /** Size of the shared memory region in bytes. */
+    public static final int SIZE = OFFSET_UID_STATS + NUM_TYPES * Long.BYTES;
+
+    // The region is only shared between processes on the same device, so native order is fine.
+    private static final VarHandle SEQ =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Initializes a newly created region. Must be called before the region is shared.
+     *
+     * @param buf a buffer of at least {@link #SIZE} bytes.
+     * @param uid the UID whose counters are published in the region.
+     * @param updateIntervalMs how often the writer updates the region. Readers consider values
+     *                         older than twice this interval to be stale.
+     */
+    public static void init(@NonNull ByteBuffer buf, int uid, long updateIntervalMs) {
+        buf.putInt(OFFSET_MAGIC, MAGIC);
+        buf.putInt(OFFSET_VERSION, VERSION);
+        buf.putLong(OFFSET_SEQ, 0);
+        buf.putLong(OFFSET_UID, uid);
+        buf.putLong(OFFSET_TIMESTAMP, 0);
+        buf.putLong(OFFSET_UPDATE_INTERVAL, updateIntervalMs);
+        for (int type = 0; type < NUM_TYPES; type++) {
+            buf.putLong(OFFSET_TOTAL_STATS + type * Long.BYTES, UNSUPPORTED);
+            buf.putLong(OFFSET_UID_STATS + type * Long.BYTES, UNSUPPORTED);
+        }
+    }
+
+    /**
+     * Returns whether the region was initialized by {@link #init} for the given UID.
+     */
+    public static boolean isValid(@NonNull ByteBuffer buf, int uid) {
+        return buf.capacity() >= SIZE
+                && buf.getInt(OFFSET_MAGIC) == MAGIC
+                && buf.getInt(OFFSET_VERSION) == VERSION
+                && buf.getLong(OFFSET_UID) == uid;
+    }
+
+    /**
+     * Publishes new counters. Must only be called by the single writer of the region.
+     *
+     * @param total the total counters of the device, or null if unavailable.
+     * @param uidStats the counters of the UID of the region, or null if unavailable.
+     * @param timestampMs the {@link android.os.SystemClock#elapsedRealtime} of the update.
+     */
+    public static void write(@NonNull ByteBuffer buf, @Nullable NetworkStats.Entry total,
+            @Nullable NetworkStats.Entry uidStats, long timestampMs) {
+        final long seq = (long) SEQ.getVolatile(buf, OFFSET_SEQ);
+        // An odd sequence number tells readers that an update is in progress.
+        SEQ.setVolatile(buf, OFFSET_SEQ, seq + 1);
+        VarHandle.fullFence();
+        buf.putLong(OFFSET_TIMESTAMP, timestampMs);
+        writeEntry(buf, OFFSET_TOTAL_STATS, total);
+        writeEntry(buf, OFFSET_UID_STATS, uidStats);
+        VarHandle.fullFence();
+        SEQ.setVolatile(buf, OFFSET_SEQ, seq + 2);
+    }
+
+    private static void writeEntry(@NonNull ByteBuffer buf, int offset,
+            @Nullable NetworkStats.Entry entry) {
+        buf.putLong(offset + TYPE_RX_BYTES * Long.BYTES,
+                entry == null ? UNSUPPORTED : entry.rxBytes);
+        buf.putLong(offset + TYPE_RX_PACKETS * Long.BYTES,
+                entry == null ? UNSUPPORTED : entry.rxPackets);
+        buf.putLong(offset + TYPE_TX_BYTES * Long.BYTES,
+                entry == null ? UNSUPPORTED : entry.txBytes);
+        buf.putLong(offset + TYPE_TX_PACKETS * Long.BYTES,
+                entry == null ? UNSUPPORTED : entry.txPackets);
+    }
+
+    /**
+     * Reads a counter from the region.
+     *
+     * @param uidStats whether to read the counters of the UID of the region instead of the total
+     *                 counters of the device.
+     * @param type one of the TrafficStats TYPE_* constants.
+     * @param nowMs the current {@link android.os.SystemClock#elapsedRealtime}.
+     * @return the value, which may be {@link android.net.TrafficStats#UNSUPPORTED}, or
+     *         {@link #VALUE_UNAVAILABLE} if the region is stale or is being updated
+     *         continuously.
+     */
+    public static long read(@NonNull ByteBuffer buf, boolean uidStats, int type, long nowMs) {
+        if (type < 0 || type >= NUM_TYPES) return UNSUPPORTED;
+        // The writer may be delayed by up to one interval, e.g. if its thread is busy.
+        final long maxAgeMs = 2 * buf.getLong(OFFSET_UPDATE_INTERVAL);
+        final int offset = (uidStats ? OFFSET_UID_STATS : OFFSET_TOTAL_STATS) + type * Long.BYTES;
+        for (int i = 0; i < MAX_READ_ATTEMPTS; i++) {
+            final long seq = (long) SEQ.getAcquire(buf, OFFSET_SEQ);
+            if ((seq & 1) != 0) continue;
+            final long timestampMs = buf.getLong(OFFSET_TIMESTAMP);
+            final long value = buf.getLong(offset);
+            // Order the reads of the data before the second read of the sequence number.
+            VarHandle.acquireFence();
+            if ((long) SEQ.getVolatile(buf, OFFSET_SEQ) != seq) continue;
+            // A zero sequence number means the region was never written.
+            if (seq == 0 || nowMs - timestampMs > maxAgeMs) return VALUE_UNAVAILABLE;
+            return value;
+        }
+        return VALUE_UNAVAILABLE;
+    }
+}
@@ -431,6 +431,11 @@ public final class NsdManager {
         public void onOffloadServiceRemoved(OffloadServiceInfo info) {
             mExecutor.execute(() -> mEngine.onOffloadServiceRemoved(info));
         }
+
+        @Override
+        public void onOffloadImageUpdated(byte[] image) {
+            mExecutor.execute(() -> mEngine.onOffloadImageUpdated(image));
+        }
     }
 
     /**
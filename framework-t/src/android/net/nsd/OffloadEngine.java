@@ -91,4 +91,16 @@ public interface OffloadEngine {
      * @param info The OffloadServiceInfo to remove.
      */
     void onOffloadServiceRemoved(@NonNull OffloadServiceInfo info);
+
+    /**
+     * To be called when the combined offload image of the interface changes.
+     *
+     * The image contains the records of all the services offloaded on the interface, encoded as
+     * a single DNS response packet, so that name compression applies across services. It is only
+     * sent to engines that support {@link #OFFLOAD_TYPE_REPLY}.
+     *
+     * @param image The offload image, or an empty array if no service is offloaded anymore.
+     */
+    @FlaggedApi("com.android.net.flags.nsd_offload_image_api")
+    default void onOffloadImageUpdated(@NonNull byte[] image) {}
 }
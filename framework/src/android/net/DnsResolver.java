@@ -17,9 +17,6 @@
 package android.net;
 
 import static android.net.NetworkUtils.getDnsNetwork;
-import static android.net.NetworkUtils.resNetworkCancel;
-import static android.net.NetworkUtils.resNetworkQuery;
-import static android.net.NetworkUtils.resNetworkResult;
 import static android.net.NetworkUtils.resNetworkSend;
 import static android.net.util.DnsUtils.haveIpv4;
 import static android.net.util.DnsUtils.haveIpv6;
@@ -36,9 +33,13 @@ import android.os.CancellationSignal;
 import android.os.Looper;
 import android.os.MessageQueue;
 import android.system.ErrnoException;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.DnsPacket;
+import com.android.net.module.util.DnsPacketReader;
 
 import java.io.FileDescriptor;
 import java.lang.annotation.Retention;
@@ -47,6 +48,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Executor;
 
 /**
@@ -55,6 +57,8 @@ import java.util.concurrent.Executor;
  * Note that if a client sends a query with more than 1 record in the question section but
  * the remote dns server does not support this, it may not respond at all, leading to a timeout.
  *
+ * Queries by name that are identical to a query in flight in the same process, including the
+ * network and the flags, share its answer instead of being sent again.
  */
 public final class DnsResolver {
     private static final String TAG = "DnsResolver";
@@ -121,6 +125,12 @@ public final class DnsResolver {
 
     private static final DnsResolver sInstance = new DnsResolver();
 
+    // Queries by name that are waiting for their answer. A query that is identical to one of
+    // them is merged into it instead of being sent to the resolver: they share the file
+    // descriptor, the looper listener and the answer.
+    @GuardedBy("mInFlightQueries")
+    private final ArrayMap<QueryKey, InFlightQuery> mInFlightQueries = new ArrayMap<>();
+
     /**
      * Get instance for DnsResolver
      */
@@ -128,7 +138,48 @@ public final class DnsResolver {
         return sInstance;
     }
 
-    private DnsResolver() {}
+    @NonNull
+    private final Dependencies mDeps;
+
+    private DnsResolver() {
+        this(new Dependencies());
+    }
+
+    /**
+     * Creates a resolver that does not share its in-flight queries with the process instance.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    public DnsResolver(@NonNull Dependencies deps) {
+        mDeps = deps;
+    }
+
+    /**
+     * Dependencies of DnsResolver, for injection in tests.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    public static class Dependencies {
+        /** @see NetworkUtils#resNetworkQuery(int, String, int, int, int) */
+        @NonNull
+        public FileDescriptor resNetworkQuery(int netId, @NonNull String dname, int nsClass,
+                int nsType, int flags) throws ErrnoException {
+            return NetworkUtils.resNetworkQuery(netId, dname, nsClass, nsType, flags);
+        }
+
+        /** @see NetworkUtils#resNetworkResult(FileDescriptor) */
+        @NonNull
+        public DnsResponse resNetworkResult(@NonNull FileDescriptor fd) throws ErrnoException {
+            return NetworkUtils.resNetworkResult(fd);
+        }
+
+        /** @see NetworkUtils#resNetworkCancel(FileDescriptor) */
+        public void resNetworkCancel(@NonNull FileDescriptor fd) {
+            NetworkUtils.resNetworkCancel(fd);
+        }
+    }
 
     /**
      * Base interface for answer callbacks
@@ -241,20 +292,16 @@ public final class DnsResolver {
         if (cancellationSignal != null && cancellationSignal.isCanceled()) {
             return;
         }
-        final Object lock = new Object();
-        final FileDescriptor queryfd;
+        final QueryWaiter waiter;
         try {
-            queryfd = resNetworkQuery((network != null)
-                    ? network.getNetIdForResolv() : NETID_UNSET, domain, nsClass, nsType, flags);
+            waiter = sendQuery((network != null) ? network.getNetIdForResolv() : NETID_UNSET,
+                    domain, nsClass, nsType, flags, executor, callback);
         } catch (ErrnoException e) {
             executor.execute(() -> callback.onError(new DnsException(ERROR_SYSTEM, e)));
             return;
         }
-        synchronized (lock)  {
-            registerFDListener(executor, queryfd, callback, cancellationSignal, lock);
-            if (cancellationSignal == null) return;
-            addCancellationSignal(cancellationSignal, queryfd, lock);
-        }
+        if (cancellationSignal == null) return;
+        cancellationSignal.setOnCancelListener(waiter::cancel);
     }
 
     private class InetAddressAnswerAccumulator implements Callback<byte[]> {
@@ -349,7 +396,6 @@ public final class DnsResolver {
         if (cancellationSignal != null && cancellationSignal.isCanceled()) {
             return;
         }
-        final Object lock = new Object();
         final Network queryNetwork;
         try {
             queryNetwork = (network != null) ? network : getDnsNetwork();
@@ -368,21 +414,22 @@ public final class DnsResolver {
             return;
         }
 
-        final FileDescriptor v4fd;
-        final FileDescriptor v6fd;
-
-        int queryCount = 0;
+        final int netId = queryNetwork.getNetIdForResolv();
+        final int queryCount = (queryIpv6 ? 1 : 0) + (queryIpv4 ? 1 : 0);
+        final InetAddressAnswerAccumulator accumulator =
+                new InetAddressAnswerAccumulator(queryNetwork, queryCount, callback);
+        final QueryWaiter v4waiter;
+        final QueryWaiter v6waiter;
 
         if (queryIpv6) {
             try {
-                v6fd = resNetworkQuery(queryNetwork.getNetIdForResolv(), domain, CLASS_IN,
-                        TYPE_AAAA, flags);
+                v6waiter = sendQuery(netId, domain, CLASS_IN, TYPE_AAAA, flags, executor,
+                        accumulator);
             } catch (ErrnoException e) {
                 executor.execute(() -> callback.onError(new DnsException(ERROR_SYSTEM, e)));
                 return;
             }
-            queryCount++;
-        } else v6fd = null;
+        } else v6waiter = null;
 
         // Avoiding gateways drop packets if queries are sent too close together
         try {
@@ -393,34 +440,22 @@ public final class DnsResolver {
 
         if (queryIpv4) {
             try {
-                v4fd = resNetworkQuery(queryNetwork.getNetIdForResolv(), domain, CLASS_IN, TYPE_A,
-                        flags);
+                v4waiter = sendQuery(netId, domain, CLASS_IN, TYPE_A, flags, executor,
+                        accumulator);
             } catch (ErrnoException e) {
-                if (queryIpv6) resNetworkCancel(v6fd);  // Closes fd, marks it invalid.
+                // The accumulator expects two answers, so it cannot report the IPv6 answer
+                // if it arrives before the query is cancelled.
+                if (queryIpv6) v6waiter.cancel();
                 executor.execute(() -> callback.onError(new DnsException(ERROR_SYSTEM, e)));
                 return;
             }
-            queryCount++;
-        } else v4fd = null;
+        } else v4waiter = null;
 
-        final InetAddressAnswerAccumulator accumulator =
-                new InetAddressAnswerAccumulator(queryNetwork, queryCount, callback);
-
-        synchronized (lock)  {
-            if (queryIpv6) {
-                registerFDListener(executor, v6fd, accumulator, cancellationSignal, lock);
-            }
-            if (queryIpv4) {
-                registerFDListener(executor, v4fd, accumulator, cancellationSignal, lock);
-            }
-            if (cancellationSignal == null) return;
-            cancellationSignal.setOnCancelListener(() -> {
-                synchronized (lock)  {
-                    if (queryIpv4) cancelQuery(v4fd);
-                    if (queryIpv6) cancelQuery(v6fd);
-                }
-            });
-        }
+        if (cancellationSignal == null) return;
+        cancellationSignal.setOnCancelListener(() -> {
+            if (queryIpv4) v4waiter.cancel();
+            if (queryIpv6) v6waiter.cancel();
+        });
     }
 
     /**
@@ -448,24 +483,19 @@ public final class DnsResolver {
         if (cancellationSignal != null && cancellationSignal.isCanceled()) {
             return;
         }
-        final Object lock = new Object();
-        final FileDescriptor queryfd;
-        final Network queryNetwork;
+        final QueryWaiter waiter;
         try {
-            queryNetwork = (network != null) ? network : getDnsNetwork();
-            queryfd = resNetworkQuery(queryNetwork.getNetIdForResolv(), domain, CLASS_IN, nsType,
-                    flags);
+            final Network queryNetwork = (network != null) ? network : getDnsNetwork();
+            final InetAddressAnswerAccumulator accumulator =
+                    new InetAddressAnswerAccumulator(queryNetwork, 1, callback);
+            waiter = sendQuery(queryNetwork.getNetIdForResolv(), domain, CLASS_IN, nsType, flags,
+                    executor, accumulator);
         } catch (ErrnoException e) {
             executor.execute(() -> callback.onError(new DnsException(ERROR_SYSTEM, e)));
             return;
         }
-        final InetAddressAnswerAccumulator accumulator =
-                new InetAddressAnswerAccumulator(queryNetwork, 1, callback);
-        synchronized (lock)  {
-            registerFDListener(executor, queryfd, accumulator, cancellationSignal, lock);
-            if (cancellationSignal == null) return;
-            addCancellationSignal(cancellationSignal, queryfd, lock);
-        }
+        if (cancellationSignal == null) return;
+        cancellationSignal.setOnCancelListener(waiter::cancel);
     }
 
     /**
@@ -507,7 +537,7 @@ public final class DnsResolver {
                                 return;
                             }
                             try {
-                                resp = resNetworkResult(fd);  // Closes fd, marks it invalid.
+                                resp = mDeps.resNetworkResult(fd);  // Closes fd, marks it invalid.
                             } catch (ErrnoException e) {
                                 Log.w(TAG, "resNetworkResult:" + e.toString());
                                 exception = e;
@@ -531,7 +561,7 @@ public final class DnsResolver {
     private void cancelQuery(@NonNull FileDescriptor queryfd) {
         if (!queryfd.valid()) return;
         Looper.getMainLooper().getQueue().removeOnFileDescriptorEventListener(queryfd);
-        resNetworkCancel(queryfd);  // Closes fd, marks it invalid.
+        mDeps.resNetworkCancel(queryfd);  // Closes fd, marks it invalid.
     }
 
     private void addCancellationSignal(@NonNull CancellationSignal cancellationSignal,
@@ -543,36 +573,245 @@ public final class DnsResolver {
         });
     }
 
-    private static class DnsAddressAnswer extends DnsPacket {
+    /**
+     * Sends a query by name, or merges it into an identical query that is in flight.
+     *
+     * The callback is called on the executor with the answer of the query, unless the returned
+     * waiter is cancelled first.
+     */
+    @NonNull
+    private QueryWaiter sendQuery(int netId, @NonNull String domain, int nsClass, int nsType,
+            int flags, @NonNull Executor executor, @NonNull Callback<? super byte[]> callback)
+            throws ErrnoException {
+        final QueryKey key = new QueryKey(netId, domain, nsClass, nsType, flags);
+        synchronized (mInFlightQueries) {
+            final InFlightQuery inFlight = mInFlightQueries.get(key);
+            if (inFlight != null) {
+                final QueryWaiter waiter = inFlight.addWaiter(executor, callback);
+                if (waiter != null) return waiter;
+            }
+        }
+
+        // Do not hold the lock while talking to the resolver, so that other queries can be sent
+        // in parallel. Identical queries sent in the meantime are not merged.
+        final InFlightQuery query = new InFlightQuery(key,
+                mDeps.resNetworkQuery(netId, domain, nsClass, nsType, flags));
+        final QueryWaiter waiter = query.addWaiter(executor, callback);
+        // Register the listener before other callers can join the query, so that they cannot
+        // cancel it before the listener is registered.
+        query.registerFDListener();
+        synchronized (mInFlightQueries) {
+            final InFlightQuery inFlight = mInFlightQueries.get(key);
+            if (query.isJoinable() && (inFlight == null || !inFlight.isJoinable())) {
+                mInFlightQueries.put(key, query);
+            }
+        }
+        return waiter;
+    }
+
+    private static final class QueryKey {
+        private final int mNetId;
+        @NonNull
+        private final String mDomain;
+        private final int mNsClass;
+        private final int mNsType;
+        private final int mFlags;
+
+        QueryKey(int netId, @NonNull String domain, int nsClass, int nsType, int flags) {
+            mNetId = netId;
+            mDomain = domain;
+            mNsClass = nsClass;
+            mNsType = nsType;
+            mFlags = flags;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) return true;
+            if (!(o instanceof QueryKey)) return false;
+            final QueryKey other = (QueryKey) o;
+            return mNetId == other.mNetId && mNsClass == other.mNsClass
+                    && mNsType == other.mNsType && mFlags == other.mFlags
+                    && mDomain.equals(other.mDomain);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mNetId, mDomain, mNsClass, mNsType, mFlags);
+        }
+    }
+
+    // A caller waiting for the answer of an in-flight query.
+    private static final class QueryWaiter {
+        @NonNull
+        private final InFlightQuery mQuery;
+        @NonNull
+        private final Executor mExecutor;
+        @NonNull
+        private final Callback<? super byte[]> mCallback;
+
+        QueryWaiter(@NonNull InFlightQuery query, @NonNull Executor executor,
+                @NonNull Callback<? super byte[]> callback) {
+            mQuery = query;
+            mExecutor = executor;
+            mCallback = callback;
+        }
+
+        /**
+         * Stops waiting for the answer. The query is cancelled if no other caller waits for it.
+         */
+        void cancel() {
+            mQuery.removeWaiter(this);
+        }
+    }
+
+    // A query sent to the resolver, whose answer is read once and delivered to all its waiters.
+    private final class InFlightQuery {
+        @NonNull
+        private final QueryKey mKey;
+        @NonNull
+        private final FileDescriptor mFd;
+        @GuardedBy("this")
+        private final ArrayList<QueryWaiter> mWaiters = new ArrayList<>();
+        // False once the answer has arrived or the query was cancelled.
+        @GuardedBy("this")
+        private boolean mJoinable = true;
+        // True once the answer has been read or the query was cancelled, i.e. the fd is closed.
+        @GuardedBy("this")
+        private boolean mFinished = false;
+
+        InFlightQuery(@NonNull QueryKey key, @NonNull FileDescriptor fd) {
+            mKey = key;
+            mFd = fd;
+        }
+
+        synchronized boolean isJoinable() {
+            return mJoinable;
+        }
+
+        @Nullable
+        synchronized QueryWaiter addWaiter(@NonNull Executor executor,
+                @NonNull Callback<? super byte[]> callback) {
+            if (!mJoinable) return null;
+            final QueryWaiter waiter = new QueryWaiter(this, executor, callback);
+            mWaiters.add(waiter);
+            return waiter;
+        }
+
+        void removeWaiter(@NonNull QueryWaiter waiter) {
+            synchronized (this) {
+                if (!mWaiters.remove(waiter) || !mWaiters.isEmpty() || mFinished) return;
+                mJoinable = false;
+                mFinished = true;
+                cancelQuery(mFd);
+            }
+            // Not nested in the lock of the query, as the map lock must be taken first.
+            synchronized (mInFlightQueries) {
+                mInFlightQueries.remove(mKey, this);
+            }
+        }
+
+        void registerFDListener() {
+            Looper.getMainLooper().getQueue().addOnFileDescriptorEventListener(mFd, FD_EVENTS,
+                    (fd, events) -> onFdEvent(fd));
+        }
+
+        private int onFdEvent(@NonNull FileDescriptor fd) {
+            // See the other registerFDListener for why the listener is unregistered first.
+            Looper.getMainLooper().getQueue().removeOnFileDescriptorEventListener(fd);
+            final QueryWaiter reader;
+            synchronized (mInFlightQueries) {
+                synchronized (this) {
+                    mJoinable = false;
+                    // All waiters were removed, so the query was cancelled.
+                    if (mWaiters.isEmpty()) return 0;
+                    reader = mWaiters.get(0);
+                }
+                mInFlightQueries.remove(mKey, this);
+            }
+            // Read the answer off the main thread, like for queries that are not merged.
+            reader.mExecutor.execute(() -> readAndDispatch(reader));
+            return 0;
+        }
+
+        // Runs on the executor of the given waiter, which may have been cancelled since.
+        private void readAndDispatch(@NonNull QueryWaiter reader) {
+            final ArrayList<QueryWaiter> waiters;
+            DnsResponse resp = null;
+            ErrnoException exception = null;
+            synchronized (this) {
+                // All waiters cancelled after the answer arrived.
+                if (mFinished) return;
+                mFinished = true;
+                try {
+                    resp = mDeps.resNetworkResult(mFd);  // Closes fd, marks it invalid.
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "resNetworkResult:" + e.toString());
+                    exception = e;
+                }
+                waiters = new ArrayList<>(mWaiters);
+            }
+            // Only the reader is on its own executor: every other waiter, including one that
+            // became first after the reader was cancelled, is posted to its executor.
+            Runnable readerCallback = null;
+            for (QueryWaiter waiter : waiters) {
+                final Runnable r;
+                if (exception != null) {
+                    final DnsException error = new DnsException(ERROR_SYSTEM, exception);
+                    r = () -> waiter.mCallback.onError(error);
+                } else {
+                    // Each waiter gets its own copy of the answer, as callbacks may modify it.
+                    final byte[] answer =
+                            (waiter == reader) ? resp.answerbuf : resp.answerbuf.clone();
+                    final int rcode = resp.rcode;
+                    r = () -> waiter.mCallback.onAnswer(answer, rcode);
+                }
+                if (waiter == reader) {
+                    readerCallback = r;
+                } else {
+                    waiter.mExecutor.execute(r);
+                }
+            }
+            if (readerCallback != null) readerCallback.run();
+        }
+    }
+
+    // Extracts the addresses from an A or AAAA response without creating objects for the records
+    // that are not used.
+    private static class DnsAddressAnswer {
         private static final String TAG = "DnsResolver.DnsAddressAnswer";
         private static final boolean DBG = false;
 
+        private final DnsPacketReader mReader;
         private final int mQueryType;
 
-        DnsAddressAnswer(@NonNull byte[] data) throws ParseException {
-            super(data);
-            if ((mHeader.getFlags() & (1 << 15)) == 0) {
-                throw new ParseException("Not an answer packet");
+        DnsAddressAnswer(@NonNull byte[] data) throws DnsPacket.ParseException {
+            mReader = new DnsPacketReader(data);
+            if (!mReader.isResponse()) {
+                throw new DnsPacket.ParseException("Not an answer packet");
             }
-            if (mHeader.getRecordCount(QDSECTION) == 0) {
-                throw new ParseException("No question found");
+            if (mReader.getRecordCount(DnsPacket.QDSECTION) == 0) {
+                throw new DnsPacket.ParseException("No question found");
             }
             // Expect only one question in question section.
-            mQueryType = mRecords[QDSECTION].get(0).nsType;
+            mReader.next();
+            mQueryType = mReader.getType();
         }
 
-        public @NonNull List<InetAddress> getAddresses() {
+        public @NonNull List<InetAddress> getAddresses() throws DnsPacket.ParseException {
             final List<InetAddress> results = new ArrayList<InetAddress>();
-            if (mHeader.getRecordCount(ANSECTION) == 0) return results;
-
-            for (final DnsRecord ansSec : mRecords[ANSECTION]) {
+            while (mReader.next()) {
+                final int section = mReader.getSection();
+                if (section == DnsPacket.QDSECTION) continue;
+                // The authority and additional sections are not used.
+                if (section != DnsPacket.ANSECTION) break;
                 // Only support A and AAAA, also ignore answers if query type != answer type.
-                int nsType = ansSec.nsType;
+                int nsType = mReader.getType();
                 if (nsType != mQueryType || (nsType != TYPE_A && nsType != TYPE_AAAA)) {
                     continue;
                 }
                 try {
-                    results.add(InetAddress.getByAddress(ansSec.getRR()));
+                    results.add(InetAddress.getByAddress(mReader.getRdata()));
                 } catch (UnknownHostException e) {
                     if (DBG) {
                         Log.w(TAG, "rr to address fail");
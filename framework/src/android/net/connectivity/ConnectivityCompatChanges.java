@@ -84,6 +84,19 @@ public final class ConnectivityCompatChanges {
     @ChangeId
     @EnabledAfter(targetSdkVersion = Build.VERSION_CODES.TIRAMISU)
     public static final long ENABLE_PLATFORM_MDNS_BACKEND = 270306772L;
+
+    /**
+     * Apps targeting > Android 14 get TrafficStats values that may be rate limited.
+     *
+     * Values returned by the {@link android.net.TrafficStats} methods may be cached for a short
+     * time, both in the app process and in the system server, so that apps polling them in a
+     * tight loop do not cause system server load.
+     *
+     * @hide
+     */
+    @ChangeId
+    @EnabledAfter(targetSdkVersion = Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+    public static final long ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE = 343389586L;
     private ConnectivityCompatChanges() {
     }
 }
@@ -59,7 +59,9 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.Pair;
 import android.util.Range;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
@@ -85,16 +87,22 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A service to manage multiple clients that want to access the IpSec API. The service is
  * responsible for maintaining a list of clients and managing the resources (and related quotas)
  * that each of them own.
  *
- * <p>Synchronization in IpSecService is done on all entrypoints due to potential race conditions at
- * the kernel/xfrm level. Further, this allows the simplifying assumption to be made that only one
- * thread is ever running at a time.
+ * <p>Synchronization in IpSecService is done per user: all the resources owned by a UID, and the
+ * kernel state they track, are only read or modified while holding the lock of the UserRecord of
+ * that UID. Resources only ever depend on resources of the same user, so a single UserRecord lock
+ * covers a whole resource graph, and operations of different users can run in parallel. State
+ * shared between users (resource IDs, tunnel netIds, the table of UserRecords) is protected by
+ * short, separate critical sections that never call out of the service. Callers may hold a
+ * UserRecord lock while taking one of these, but never the reverse.
  *
  * @hide
  */
@@ -132,12 +140,11 @@ public class IpSecService extends IIpSecService.Stub {
 
     /**
      * The next non-repeating global ID for tracking resources between users, this service, and
-     * kernel data structures. Accessing this variable is not thread safe, so it is only read or
-     * modified within blocks synchronized on IpSecService.this. We want to avoid -1
-     * (INVALID_RESOURCE_ID) and 0 (we probably forgot to initialize it).
+     * kernel data structures. This is shared by all users, so it is atomic rather than guarded by
+     * a UserRecord lock. We want to avoid -1 (INVALID_RESOURCE_ID) and 0 (we probably forgot to
+     * initialize it).
      */
-    @GuardedBy("IpSecService.this")
-    private int mNextResourceId = 1;
+    private final AtomicInteger mNextResourceId = new AtomicInteger(1);
 
     /**
      * Dependencies of IpSecService, for injection in tests.
@@ -207,16 +214,24 @@ public class IpSecService extends IIpSecService.Stub {
      * <p>Resources are cleaned up when all references, both implicit and explicit, are released
      * (ie, when userRelease() is called and when all parents have called releaseReference() on this
      * object.)
+     *
+     * <p>The reference counts are guarded by the lock of the UserRecord owning the resource. All
+     * the children of a resource are owned by the same user, so they share the same lock.
      */
     @VisibleForTesting
     public class RefcountedResource<T extends IResource> implements IBinder.DeathRecipient {
         private final T mResource;
         private final List<RefcountedResource> mChildren;
+        private final Object mLock;
         int mRefCount = 1; // starts at 1 for user's reference.
         IBinder mBinder;
 
         RefcountedResource(T resource, IBinder binder, RefcountedResource... children) {
-            synchronized (IpSecService.this) {
+            // Resources that are not owned by a user are only created by tests.
+            mLock = (resource instanceof OwnedResourceRecord)
+                    ? ((OwnedResourceRecord) resource).mUserRecord
+                    : IpSecService.this;
+            synchronized (mLock) {
                 this.mResource = resource;
                 this.mChildren = new ArrayList<>(children.length);
                 this.mBinder = binder;
@@ -242,7 +257,7 @@ public class IpSecService extends IIpSecService.Stub {
          */
         @Override
         public void binderDied() {
-            synchronized (IpSecService.this) {
+            synchronized (mLock) {
                 try {
                     userRelease();
                 } catch (Exception e) {
@@ -266,7 +281,7 @@ public class IpSecService extends IIpSecService.Stub {
          * this time, or that the related quota will be returned. Such actions will only be
          * performed upon the reference count reaching zero.
          */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mLock")
         public void userRelease() throws RemoteException {
             // Prevent users from putting reference counts into a bad state by calling
             // userRelease() multiple times.
@@ -293,7 +308,7 @@ public class IpSecService extends IIpSecService.Stub {
          * released
          */
         @VisibleForTesting
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mLock")
         public void releaseReference() throws RemoteException {
             mRefCount--;
 
@@ -336,7 +351,7 @@ public class IpSecService extends IIpSecService.Stub {
      * Very simple counting class that looks much like a counting semaphore
      *
      * <p>This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock.
+     * synchronization and thread safety by holding the lock of the UserRecord it belongs to.
      */
     @VisibleForTesting
     static class ResourceTracker {
@@ -378,6 +393,12 @@ public class IpSecService extends IIpSecService.Stub {
         }
     }
 
+    /**
+     * Tracks the resources and quotas of a single UID.
+     *
+     * <p>This class is not thread-safe. Its instances are used as the lock guarding the resources
+     * of the UID, and users of this class must hold it while accessing any of its members.
+     */
     @VisibleForTesting
     static final class UserRecord {
         /* Maximum number of each type of resource that a single UID may possess */
@@ -439,7 +460,7 @@ public class IpSecService extends IIpSecService.Stub {
         }
 
         @Override
-        public String toString() {
+        public synchronized String toString() {
             return new StringBuilder()
                     .append("{mSpiQuotaTracker=")
                     .append(mSpiQuotaTracker)
@@ -463,23 +484,26 @@ public class IpSecService extends IIpSecService.Stub {
     }
 
     /**
-     * This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock.
+     * This class is thread-safe. It only holds its own lock while looking up the UserRecords, so
+     * it can be called with or without holding the lock of a UserRecord.
      */
     @VisibleForTesting
     static final class UserResourceTracker {
+        @GuardedBy("mUserRecords")
         private final SparseArray<UserRecord> mUserRecords = new SparseArray<>();
 
         /** Lazy-initialization/getter that populates or retrieves the UserRecord as needed */
         public UserRecord getUserRecord(int uid) {
             checkCallerUid(uid);
 
-            UserRecord r = mUserRecords.get(uid);
-            if (r == null) {
-                r = new UserRecord();
-                mUserRecords.put(uid, r);
+            synchronized (mUserRecords) {
+                UserRecord r = mUserRecords.get(uid);
+                if (r == null) {
+                    r = new UserRecord();
+                    mUserRecords.put(uid, r);
+                }
+                return r;
             }
-            return r;
         }
 
         /** Safety method; guards against access of other user's UserRecords */
@@ -491,7 +515,13 @@ public class IpSecService extends IIpSecService.Stub {
 
         @Override
         public String toString() {
-            return mUserRecords.toString();
+            // Do not lock the UserRecords while holding mUserRecords, as UserRecord locks are
+            // taken before it.
+            final SparseArray<UserRecord> userRecords;
+            synchronized (mUserRecords) {
+                userRecords = mUserRecords.clone();
+            }
+            return userRecords.toString();
         }
     }
 
@@ -509,6 +539,7 @@ public class IpSecService extends IIpSecService.Stub {
     private abstract class OwnedResourceRecord implements IResource {
         final int mPid;
         final int mUid;
+        final UserRecord mUserRecord;
         protected final int mResourceId;
 
         OwnedResourceRecord(int resourceId) {
@@ -519,6 +550,7 @@ public class IpSecService extends IIpSecService.Stub {
             mResourceId = resourceId;
             mPid = Binder.getCallingPid();
             mUid = Binder.getCallingUid();
+            mUserRecord = mUserResourceTracker.getUserRecord(mUid);
 
             getResourceTracker().take();
         }
@@ -528,7 +560,7 @@ public class IpSecService extends IIpSecService.Stub {
 
         /** Convenience method; retrieves the user resource record for the stored UID. */
         protected UserRecord getUserRecord() {
-            return mUserResourceTracker.getUserRecord(mUid);
+            return mUserRecord;
         }
 
         @Override
@@ -610,7 +642,7 @@ public class IpSecService extends IIpSecService.Stub {
      * underlying SA to this class via the mOwnedByTransform flag.
      *
      * <p>This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock
+     * synchronization and thread safety by holding the lock of the owning UserRecord
      */
     private final class TransformRecord extends OwnedResourceRecord {
         private final IpSecConfig mConfig;
@@ -641,12 +673,12 @@ public class IpSecService extends IIpSecService.Stub {
             return mSocket;
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mUserRecord")
         public String getNewSourceAddress() {
             return mNewSourceAddress;
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mUserRecord")
         public String getNewDestinationAddress() {
             return mNewDestinationAddress;
         }
@@ -659,7 +691,7 @@ public class IpSecService extends IIpSecService.Stub {
         }
 
         /** Start migrating this transform to new source and destination addresses */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mUserRecord")
         public void startMigration(String newSourceAddress, String newDestinationAddress) {
             verifyTunnelModeOrThrow();
             Objects.requireNonNull(newSourceAddress, "newSourceAddress was null");
@@ -669,7 +701,7 @@ public class IpSecService extends IIpSecService.Stub {
         }
 
         /** Finish migration and update addresses. */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mUserRecord")
         public void finishMigration() {
             verifyTunnelModeOrThrow();
             mConfig.setSourceAddress(mNewSourceAddress);
@@ -679,14 +711,14 @@ public class IpSecService extends IIpSecService.Stub {
         }
 
         /** Return if this transform is going to be migrated. */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mUserRecord")
         public boolean isMigrating() {
             verifyTunnelModeOrThrow();
 
             return mNewSourceAddress != null;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the owning UserRecord */
         @Override
         public void freeUnderlyingResources() {
             int spi = mSpi.getSpi();
@@ -753,7 +785,7 @@ public class IpSecService extends IIpSecService.Stub {
             mSpi = spi;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the owning UserRecord */
         @Override
         public void freeUnderlyingResources() {
             try {
@@ -863,7 +895,7 @@ public class IpSecService extends IIpSecService.Stub {
      * Tracks an tunnel interface, and manages cleanup paths.
      *
      * <p>This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock
+     * synchronization and thread safety by holding the lock of the owning UserRecord
      */
     @VisibleForTesting
     final class TunnelInterfaceRecord extends OwnedResourceRecord {
@@ -900,7 +932,7 @@ public class IpSecService extends IIpSecService.Stub {
             mIfId = intfId;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the owning UserRecord */
         @Override
         public void freeUnderlyingResources() {
             // Calls to netd
@@ -946,14 +978,14 @@ public class IpSecService extends IIpSecService.Stub {
             releaseNetId(mOkey);
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mUserRecord")
         public void setUnderlyingNetwork(Network underlyingNetwork) {
             // When #applyTunnelModeTransform is called, this new underlying network will be used to
             // update the output mark of the input transform.
             mUnderlyingNetwork = underlyingNetwork;
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mUserRecord")
         public Network getUnderlyingNetwork() {
             return mUnderlyingNetwork;
         }
@@ -1035,7 +1067,7 @@ public class IpSecService extends IIpSecService.Stub {
             mFamily = family;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the owning UserRecord */
         @Override
         public void freeUnderlyingResources() {
             Log.d(TAG, "Closing port " + mPort);
@@ -1162,7 +1194,7 @@ public class IpSecService extends IIpSecService.Stub {
 
     /** Get a new SPI and maintain the reservation in the system server */
     @Override
-    public synchronized IpSecSpiResponse allocateSecurityParameterIndex(
+    public IpSecSpiResponse allocateSecurityParameterIndex(
             String destinationAddress, int requestedSpi, IBinder binder) throws RemoteException {
         checkInetAddress(destinationAddress);
         // RFC 4303 Section 2.1 - 0=local, 1-255=reserved.
@@ -1173,30 +1205,33 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
-        final int resourceId = mNextResourceId++;
+        final int resourceId = mNextResourceId.getAndIncrement();
 
         int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
-        try {
-            if (!userRecord.mSpiQuotaTracker.isAvailable()) {
-                return new IpSecSpiResponse(
-                        IpSecManager.Status.RESOURCE_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
-            }
+        // The kernel guarantees that SPIs are unique across users, so no global lock is needed.
+        synchronized (userRecord) {
+            try {
+                if (!userRecord.mSpiQuotaTracker.isAvailable()) {
+                    return new IpSecSpiResponse(
+                            IpSecManager.Status.RESOURCE_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                }
 
-            spi = mNetd.ipSecAllocateSpi(callingUid, "", destinationAddress, requestedSpi);
-            Log.d(TAG, "Allocated SPI " + spi);
-            userRecord.mSpiRecords.put(
-                    resourceId,
-                    new RefcountedResource<SpiRecord>(
-                            new SpiRecord(resourceId, "",
-                            destinationAddress, spi), binder));
-        } catch (ServiceSpecificException e) {
-            if (e.errorCode == OsConstants.ENOENT) {
-                return new IpSecSpiResponse(
-                        IpSecManager.Status.SPI_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                spi = mNetd.ipSecAllocateSpi(callingUid, "", destinationAddress, requestedSpi);
+                Log.d(TAG, "Allocated SPI " + spi);
+                userRecord.mSpiRecords.put(
+                        resourceId,
+                        new RefcountedResource<SpiRecord>(
+                                new SpiRecord(resourceId, "",
+                                destinationAddress, spi), binder));
+            } catch (ServiceSpecificException e) {
+                if (e.errorCode == OsConstants.ENOENT) {
+                    return new IpSecSpiResponse(
+                            IpSecManager.Status.SPI_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                }
+                throw e;
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
             }
-            throw e;
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
         }
         return new IpSecSpiResponse(IpSecManager.Status.OK, resourceId, spi);
     }
@@ -1204,16 +1239,19 @@ public class IpSecService extends IIpSecService.Stub {
     /* This method should only be called from Binder threads. Do not call this from
      * within the system server as it will crash the system on failure.
      */
-    private void releaseResource(RefcountedResourceArray resArray, int resourceId)
+    private void releaseResource(
+            UserRecord userRecord, RefcountedResourceArray resArray, int resourceId)
             throws RemoteException {
-        resArray.getRefcountedResourceOrThrow(resourceId).userRelease();
+        synchronized (userRecord) {
+            resArray.getRefcountedResourceOrThrow(resourceId).userRelease();
+        }
     }
 
     /** Release a previously allocated SPI that has been registered with the system server */
     @Override
-    public synchronized void releaseSecurityParameterIndex(int resourceId) throws RemoteException {
+    public void releaseSecurityParameterIndex(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mSpiRecords, resourceId);
+        releaseResource(userRecord, userRecord.mSpiRecords, resourceId);
     }
 
     /**
@@ -1279,7 +1317,7 @@ public class IpSecService extends IIpSecService.Stub {
      * needed.
      */
     @Override
-    public synchronized IpSecUdpEncapResponse openUdpEncapsulationSocket(int port, IBinder binder)
+    public IpSecUdpEncapResponse openUdpEncapsulationSocket(int port, IBinder binder)
             throws RemoteException {
         // Experimental support for IPv6 UDP encap.
         final int family;
@@ -1302,54 +1340,56 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
-        final int resourceId = mNextResourceId++;
-
-        ParcelFileDescriptor pFd = null;
-        try {
-            if (!userRecord.mSocketQuotaTracker.isAvailable()) {
-                return new IpSecUdpEncapResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
-            }
+        final int resourceId = mNextResourceId.getAndIncrement();
 
-            FileDescriptor sockFd = null;
+        synchronized (userRecord) {
+            ParcelFileDescriptor pFd = null;
             try {
-                sockFd = Os.socket(family, SOCK_DGRAM, IPPROTO_UDP);
-                pFd = ParcelFileDescriptor.dup(sockFd);
-            } finally {
-                IoUtils.closeQuietly(sockFd);
-            }
+                if (!userRecord.mSocketQuotaTracker.isAvailable()) {
+                    return new IpSecUdpEncapResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+                }
 
-            mUidFdTagger.tag(pFd.getFileDescriptor(), callingUid);
-            // This code is common to both the unspecified and specified port cases
-            Os.setsockoptInt(
-                    pFd.getFileDescriptor(),
-                    OsConstants.IPPROTO_UDP,
-                    OsConstants.UDP_ENCAP,
-                    OsConstants.UDP_ENCAP_ESPINUDP);
+                FileDescriptor sockFd = null;
+                try {
+                    sockFd = Os.socket(family, SOCK_DGRAM, IPPROTO_UDP);
+                    pFd = ParcelFileDescriptor.dup(sockFd);
+                } finally {
+                    IoUtils.closeQuietly(sockFd);
+                }
 
-            mNetd.ipSecSetEncapSocketOwner(pFd, callingUid);
-            if (port != 0) {
-                Log.v(TAG, "Binding to port " + port);
-                Os.bind(pFd.getFileDescriptor(), localAddr, port);
-            } else {
-                port = bindToRandomPort(pFd.getFileDescriptor(), family, localAddr);
-            }
+                mUidFdTagger.tag(pFd.getFileDescriptor(), callingUid);
+                // This code is common to both the unspecified and specified port cases
+                Os.setsockoptInt(
+                        pFd.getFileDescriptor(),
+                        OsConstants.IPPROTO_UDP,
+                        OsConstants.UDP_ENCAP,
+                        OsConstants.UDP_ENCAP_ESPINUDP);
+
+                mNetd.ipSecSetEncapSocketOwner(pFd, callingUid);
+                if (port != 0) {
+                    Log.v(TAG, "Binding to port " + port);
+                    Os.bind(pFd.getFileDescriptor(), localAddr, port);
+                } else {
+                    port = bindToRandomPort(pFd.getFileDescriptor(), family, localAddr);
+                }
 
-            userRecord.mEncapSocketRecords.put(
-                    resourceId,
-                    new RefcountedResource<EncapSocketRecord>(
-                            new EncapSocketRecord(resourceId, pFd.getFileDescriptor(), port,
-                                    family),
-                            binder));
-            return new IpSecUdpEncapResponse(IpSecManager.Status.OK, resourceId, port,
-                    pFd.getFileDescriptor());
-        } catch (IOException | ErrnoException e) {
-            try {
-                if (pFd != null) {
-                    pFd.close();
+                userRecord.mEncapSocketRecords.put(
+                        resourceId,
+                        new RefcountedResource<EncapSocketRecord>(
+                                new EncapSocketRecord(resourceId, pFd.getFileDescriptor(), port,
+                                        family),
+                                binder));
+                return new IpSecUdpEncapResponse(IpSecManager.Status.OK, resourceId, port,
+                        pFd.getFileDescriptor());
+            } catch (IOException | ErrnoException e) {
+                try {
+                    if (pFd != null) {
+                        pFd.close();
+                    }
+                } catch (IOException ex) {
+                    // Nothing can be done at this point
+                    Log.e(TAG, "Failed to close pFd.");
                 }
-            } catch (IOException ex) {
-                // Nothing can be done at this point
-                Log.e(TAG, "Failed to close pFd.");
             }
         }
         // If we make it to here, then something has gone wrong and we couldn't open a socket.
@@ -1359,9 +1399,9 @@ public class IpSecService extends IIpSecService.Stub {
 
     /** close a socket that has been been allocated by and registered with the system server */
     @Override
-    public synchronized void closeUdpEncapsulationSocket(int resourceId) throws RemoteException {
+    public void closeUdpEncapsulationSocket(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mEncapSocketRecords, resourceId);
+        releaseResource(userRecord, userRecord.mEncapSocketRecords, resourceId);
     }
 
     /**
@@ -1370,7 +1410,7 @@ public class IpSecService extends IIpSecService.Stub {
      * needed.
      */
     @Override
-    public synchronized IpSecTunnelInterfaceResponse createTunnelInterface(
+    public IpSecTunnelInterfaceResponse createTunnelInterface(
             String localAddr, String remoteAddr, Network underlyingNetwork, IBinder binder,
             String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
@@ -1384,94 +1424,100 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callerUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callerUid);
-        if (!userRecord.mTunnelQuotaTracker.isAvailable()) {
-            return new IpSecTunnelInterfaceResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
-        }
+        synchronized (userRecord) {
+            if (!userRecord.mTunnelQuotaTracker.isAvailable()) {
+                return new IpSecTunnelInterfaceResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+            }
 
-        final int resourceId = mNextResourceId++;
-        final int ikey = reserveNetId();
-        final int okey = reserveNetId();
-        String intfName = String.format("%s%d", INetd.IPSEC_INTERFACE_PREFIX, resourceId);
+            // Resource IDs and netIds are shared by all users, and have their own locks.
+            final int resourceId = mNextResourceId.getAndIncrement();
+            final int ikey = reserveNetId();
+            final int okey = reserveNetId();
+            String intfName = String.format("%s%d", INetd.IPSEC_INTERFACE_PREFIX, resourceId);
 
-        try {
-            // Calls to netd:
-            //       Create VTI
-            //       Add inbound/outbound global policies
-            //              (use reqid = 0)
-            mNetd.ipSecAddTunnelInterface(intfName, localAddr, remoteAddr, ikey, okey, resourceId);
-
-            BinderUtils.withCleanCallingIdentity(() -> {
-                NetdUtils.setInterfaceUp(mNetd, intfName);
-            });
-
-            for (int selAddrFamily : ADDRESS_FAMILIES) {
-                // Always send down correct local/remote addresses for template.
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_OUT,
-                        localAddr,
-                        remoteAddr,
-                        0,
-                        okey,
-                        0xffffffff,
-                        resourceId);
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_IN,
-                        remoteAddr,
-                        localAddr,
-                        0,
-                        ikey,
-                        0xffffffff,
-                        resourceId);
-
-                // Add a forwarding policy on the tunnel interface. In order to support forwarding
-                // the IpSecTunnelInterface must have a forwarding policy matching the incoming SA.
-                //
-                // Unless a IpSecTransform is also applied against this interface in DIRECTION_FWD,
-                // forwarding will be blocked by default (as would be the case if this policy was
-                // absent).
-                //
-                // This is necessary only on the tunnel interface, and not any the interface to
-                // which traffic will be forwarded to.
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_FWD,
-                        remoteAddr,
-                        localAddr,
-                        0,
-                        ikey,
-                        0xffffffff,
-                        resourceId);
-            }
+            try {
+                // Calls to netd:
+                //       Create VTI
+                //       Add inbound/outbound global policies
+                //              (use reqid = 0)
+                mNetd.ipSecAddTunnelInterface(
+                        intfName, localAddr, remoteAddr, ikey, okey, resourceId);
+
+                BinderUtils.withCleanCallingIdentity(() -> {
+                    NetdUtils.setInterfaceUp(mNetd, intfName);
+                });
 
-            userRecord.mTunnelInterfaceRecords.put(
-                    resourceId,
-                    new RefcountedResource<TunnelInterfaceRecord>(
-                            new TunnelInterfaceRecord(
-                                    resourceId,
-                                    intfName,
-                                    underlyingNetwork,
-                                    localAddr,
-                                    remoteAddr,
-                                    ikey,
-                                    okey,
-                                    resourceId),
-                            binder));
-            return new IpSecTunnelInterfaceResponse(IpSecManager.Status.OK, resourceId, intfName);
-        } catch (RemoteException e) {
-            // Release keys if we got an error.
-            releaseNetId(ikey);
-            releaseNetId(okey);
-            throw e.rethrowFromSystemServer();
-        } catch (Throwable t) {
-            // Release keys if we got an error.
-            releaseNetId(ikey);
-            releaseNetId(okey);
-            throw t;
+                for (int selAddrFamily : ADDRESS_FAMILIES) {
+                    // Always send down correct local/remote addresses for template.
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_OUT,
+                            localAddr,
+                            remoteAddr,
+                            0,
+                            okey,
+                            0xffffffff,
+                            resourceId);
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_IN,
+                            remoteAddr,
+                            localAddr,
+                            0,
+                            ikey,
+                            0xffffffff,
+                            resourceId);
+
+                    // Add a forwarding policy on the tunnel interface. In order to support
+                    // forwarding the IpSecTunnelInterface must have a forwarding policy matching
+                    // the incoming SA.
+                    //
+                    // Unless a IpSecTransform is also applied against this interface in
+                    // DIRECTION_FWD, forwarding will be blocked by default (as would be the case if
+                    // this policy was absent).
+                    //
+                    // This is necessary only on the tunnel interface, and not any the interface to
+                    // which traffic will be forwarded to.
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_FWD,
+                            remoteAddr,
+                            localAddr,
+                            0,
+                            ikey,
+                            0xffffffff,
+                            resourceId);
+                }
+
+                userRecord.mTunnelInterfaceRecords.put(
+                        resourceId,
+                        new RefcountedResource<TunnelInterfaceRecord>(
+                                new TunnelInterfaceRecord(
+                                        resourceId,
+                                        intfName,
+                                        underlyingNetwork,
+                                        localAddr,
+                                        remoteAddr,
+                                        ikey,
+                                        okey,
+                                        resourceId),
+                                binder));
+                return new IpSecTunnelInterfaceResponse(
+                        IpSecManager.Status.OK, resourceId, intfName);
+            } catch (RemoteException e) {
+                // Release keys if we got an error.
+                releaseNetId(ikey);
+                releaseNetId(okey);
+                throw e.rethrowFromSystemServer();
+            } catch (Throwable t) {
+                // Release keys if we got an error.
+                releaseNetId(ikey);
+                releaseNetId(okey);
+                throw t;
+            }
         }
     }
 
@@ -1480,25 +1526,27 @@ public class IpSecService extends IIpSecService.Stub {
      * from multiple local IP addresses over the same tunnel.
      */
     @Override
-    public synchronized void addAddressToTunnelInterface(
+    public void addAddressToTunnelInterface(
             int tunnelResourceId, LinkAddress localAddr, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
 
-        // Get tunnelInterface record; if no such interface is found, will throw
-        // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        synchronized (userRecord) {
+            // Get tunnelInterface record; if no such interface is found, will throw
+            // IllegalArgumentException
+            TunnelInterfaceRecord tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
 
-        try {
-            // We can assume general validity of the IP address, since we get them as a
-            // LinkAddress, which does some validation.
-            mNetd.interfaceAddAddress(
-                    tunnelInterfaceInfo.mInterfaceName,
-                    localAddr.getAddress().getHostAddress(),
-                    localAddr.getPrefixLength());
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
+            try {
+                // We can assume general validity of the IP address, since we get them as a
+                // LinkAddress, which does some validation.
+                mNetd.interfaceAddAddress(
+                        tunnelInterfaceInfo.mInterfaceName,
+                        localAddr.getAddress().getHostAddress(),
+                        localAddr.getPrefixLength());
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
+            }
         }
     }
 
@@ -1507,31 +1555,33 @@ public class IpSecService extends IIpSecService.Stub {
      * longer be available to send from, or receive on.
      */
     @Override
-    public synchronized void removeAddressFromTunnelInterface(
+    public void removeAddressFromTunnelInterface(
             int tunnelResourceId, LinkAddress localAddr, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
 
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        // Get tunnelInterface record; if no such interface is found, will throw
-        // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        synchronized (userRecord) {
+            // Get tunnelInterface record; if no such interface is found, will throw
+            // IllegalArgumentException
+            TunnelInterfaceRecord tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
 
-        try {
-            // We can assume general validity of the IP address, since we get them as a
-            // LinkAddress, which does some validation.
-            mNetd.interfaceDelAddress(
-                            tunnelInterfaceInfo.mInterfaceName,
-                            localAddr.getAddress().getHostAddress(),
-                            localAddr.getPrefixLength());
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
+            try {
+                // We can assume general validity of the IP address, since we get them as a
+                // LinkAddress, which does some validation.
+                mNetd.interfaceDelAddress(
+                                tunnelInterfaceInfo.mInterfaceName,
+                                localAddr.getAddress().getHostAddress(),
+                                localAddr.getPrefixLength());
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
+            }
         }
     }
 
     /** Set TunnelInterface to use a specific underlying network. */
     @Override
-    public synchronized void setNetworkForTunnelInterface(
+    public void setNetworkForTunnelInterface(
             int tunnelResourceId, Network underlyingNetwork, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
         Objects.requireNonNull(underlyingNetwork, "No underlying network was specified");
@@ -1540,8 +1590,13 @@ public class IpSecService extends IIpSecService.Stub {
 
         // Get tunnelInterface record; if no such interface is found, will throw
         // IllegalArgumentException. userRecord.mTunnelInterfaceRecords is never null
-        final TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        final TunnelInterfaceRecord tunnelInterfaceInfo;
+        synchronized (userRecord) {
+            tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        }
+
+        // Do not hold the user lock while calling into ConnectivityService.
 
         final ConnectivityManager connectivityManager =
                 mContext.getSystemService(ConnectivityManager.class);
@@ -1559,7 +1614,9 @@ public class IpSecService extends IIpSecService.Stub {
         // It is meaningless to check if the network exists or is valid because the network might
         // disconnect at any time after it passes the check.
 
-        tunnelInterfaceInfo.setUnderlyingNetwork(underlyingNetwork);
+        synchronized (userRecord) {
+            tunnelInterfaceInfo.setUnderlyingNetwork(underlyingNetwork);
+        }
     }
 
     /**
@@ -1567,11 +1624,11 @@ public class IpSecService extends IIpSecService.Stub {
      * server
      */
     @Override
-    public synchronized void deleteTunnelInterface(
+    public void deleteTunnelInterface(
             int resourceId, String callingPackage) throws RemoteException {
         enforceTunnelFeatureAndPermissions(callingPackage);
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mTunnelInterfaceRecords, resourceId);
+        releaseResource(userRecord, userRecord.mTunnelInterfaceRecords, resourceId);
     }
 
     @VisibleForTesting
@@ -1613,8 +1670,8 @@ public class IpSecService extends IIpSecService.Stub {
      * Checks an IpSecConfig parcel to ensure that the contents are valid and throws an
      * IllegalArgumentException if they are not.
      */
-    private void checkIpSecConfig(IpSecConfig config) {
-        UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
+    @GuardedBy("userRecord")
+    private void checkIpSecConfig(IpSecConfig config, UserRecord userRecord) {
         EncapSocketRecord encapSocketRecord = null;
 
         switch (config.getEncapType()) {
@@ -1777,47 +1834,49 @@ public class IpSecService extends IIpSecService.Stub {
      * result in all of those sockets becoming unable to send or receive data.
      */
     @Override
-    public synchronized IpSecTransformResponse createTransform(
+    public IpSecTransformResponse createTransform(
             IpSecConfig c, IBinder binder, String callingPackage) throws RemoteException {
         Objects.requireNonNull(c);
         if (c.getMode() == IpSecTransform.MODE_TUNNEL) {
             enforceTunnelFeatureAndPermissions(callingPackage);
         }
-        checkIpSecConfig(c);
-        Objects.requireNonNull(binder, "Null Binder passed to createTransform");
-        final int resourceId = mNextResourceId++;
-
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        List<RefcountedResource> dependencies = new ArrayList<>();
+        synchronized (userRecord) {
+            checkIpSecConfig(c, userRecord);
+            Objects.requireNonNull(binder, "Null Binder passed to createTransform");
+            final int resourceId = mNextResourceId.getAndIncrement();
 
-        if (!userRecord.mTransformQuotaTracker.isAvailable()) {
-            return new IpSecTransformResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
-        }
+            List<RefcountedResource> dependencies = new ArrayList<>();
 
-        EncapSocketRecord socketRecord = null;
-        if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
-            RefcountedResource<EncapSocketRecord> refcountedSocketRecord =
-                    userRecord.mEncapSocketRecords.getRefcountedResourceOrThrow(
-                            c.getEncapSocketResourceId());
-            dependencies.add(refcountedSocketRecord);
-            socketRecord = refcountedSocketRecord.getResource();
-        }
+            if (!userRecord.mTransformQuotaTracker.isAvailable()) {
+                return new IpSecTransformResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+            }
+
+            EncapSocketRecord socketRecord = null;
+            if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
+                RefcountedResource<EncapSocketRecord> refcountedSocketRecord =
+                        userRecord.mEncapSocketRecords.getRefcountedResourceOrThrow(
+                                c.getEncapSocketResourceId());
+                dependencies.add(refcountedSocketRecord);
+                socketRecord = refcountedSocketRecord.getResource();
+            }
 
-        RefcountedResource<SpiRecord> refcountedSpiRecord =
-                userRecord.mSpiRecords.getRefcountedResourceOrThrow(c.getSpiResourceId());
-        dependencies.add(refcountedSpiRecord);
-        SpiRecord spiRecord = refcountedSpiRecord.getResource();
+            RefcountedResource<SpiRecord> refcountedSpiRecord =
+                    userRecord.mSpiRecords.getRefcountedResourceOrThrow(c.getSpiResourceId());
+            dependencies.add(refcountedSpiRecord);
+            SpiRecord spiRecord = refcountedSpiRecord.getResource();
 
-        createOrUpdateTransform(c, resourceId, spiRecord, socketRecord);
+            createOrUpdateTransform(c, resourceId, spiRecord, socketRecord);
 
-        // SA was created successfully, time to construct a record and lock it away
-        userRecord.mTransformRecords.put(
-                resourceId,
-                new RefcountedResource<TransformRecord>(
-                        new TransformRecord(resourceId, c, spiRecord, socketRecord),
-                        binder,
-                        dependencies.toArray(new RefcountedResource[dependencies.size()])));
-        return new IpSecTransformResponse(IpSecManager.Status.OK, resourceId);
+            // SA was created successfully, time to construct a record and lock it away
+            userRecord.mTransformRecords.put(
+                    resourceId,
+                    new RefcountedResource<TransformRecord>(
+                            new TransformRecord(resourceId, c, spiRecord, socketRecord),
+                            binder,
+                            dependencies.toArray(new RefcountedResource[dependencies.size()])));
+            return new IpSecTransformResponse(IpSecManager.Status.OK, resourceId);
+        }
     }
 
     /**
@@ -1842,7 +1901,7 @@ public class IpSecService extends IIpSecService.Stub {
      * other types of transforms will throw an {@code UnsupportedOperationException}.
      */
     @Override
-    public synchronized void migrateTransform(
+    public void migrateTransform(
             int transformId,
             String newSourceAddress,
             String newDestinationAddress,
@@ -1854,9 +1913,11 @@ public class IpSecService extends IIpSecService.Stub {
         enforceMigrateFeature();
 
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        TransformRecord transformInfo =
-                userRecord.mTransformRecords.getResourceOrThrow(transformId);
-        transformInfo.startMigration(newSourceAddress, newDestinationAddress);
+        synchronized (userRecord) {
+            TransformRecord transformInfo =
+                    userRecord.mTransformRecords.getResourceOrThrow(transformId);
+            transformInfo.startMigration(newSourceAddress, newDestinationAddress);
+        }
     }
 
     /**
@@ -1866,28 +1927,32 @@ public class IpSecService extends IIpSecService.Stub {
      * other reasons.
      */
     @Override
-    public synchronized void deleteTransform(int resourceId) throws RemoteException {
+    public void deleteTransform(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mTransformRecords, resourceId);
+        releaseResource(userRecord, userRecord.mTransformRecords, resourceId);
     }
 
     @Override
-    public synchronized IpSecTransformState getTransformState(int transformId)
+    public IpSecTransformState getTransformState(int transformId)
             throws IllegalStateException, RemoteException {
         mContext.enforceCallingOrSelfPermission(
                 android.Manifest.permission.ACCESS_NETWORK_STATE, "IpsecService#getTransformState");
 
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        TransformRecord transformInfo =
-                userRecord.mTransformRecords.getResourceOrThrow(transformId);
+        final int spi;
+        final InetAddress destAddress;
+        synchronized (userRecord) {
+            TransformRecord transformInfo =
+                    userRecord.mTransformRecords.getResourceOrThrow(transformId);
 
-        final int spi = transformInfo.getSpiRecord().getSpi();
-        final InetAddress destAddress =
-                InetAddresses.parseNumericAddress(
-                        transformInfo.getConfig().getDestinationAddress());
+            spi = transformInfo.getSpiRecord().getSpi();
+            destAddress =
+                    InetAddresses.parseNumericAddress(
+                            transformInfo.getConfig().getDestinationAddress());
+        }
         Log.d(TAG, "getTransformState for spi " + spi + " destAddress " + destAddress);
 
-        // Make netlink call
+        // Make netlink call. IpSecXfrmController has its own lock.
         final XfrmNetlinkNewSaMessage xfrmNewSaMsg;
         try {
             xfrmNewSaMsg = mIpSecXfrmCtrl.ipSecGetSa(destAddress, Integer.toUnsignedLong(spi));
@@ -1904,6 +1969,52 @@ public class IpSecService extends IIpSecService.Stub {
             throw new IllegalStateException("Failed to get IpSecTransformState");
         }
 
+        return newTransformState(xfrmNewSaMsg);
+    }
+
+    @Override
+    public List<IpSecTransformState> getTransformStates(int[] transformIds)
+            throws IllegalStateException, RemoteException {
+        mContext.enforceCallingOrSelfPermission(
+                android.Manifest.permission.ACCESS_NETWORK_STATE,
+                "IpsecService#getTransformStates");
+        Objects.requireNonNull(transformIds, "Null transformIds passed to getTransformStates");
+
+        // Only hold the user lock to look up the transforms, so that the dump does not block
+        // the other IPsec operations of the user.
+        final ArrayList<Pair<InetAddress, Long>> saIds = new ArrayList<>(transformIds.length);
+        UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
+        synchronized (userRecord) {
+            for (int transformId : transformIds) {
+                TransformRecord transformInfo =
+                        userRecord.mTransformRecords.getResourceOrThrow(transformId);
+                saIds.add(new Pair<>(
+                        InetAddresses.parseNumericAddress(
+                                transformInfo.getConfig().getDestinationAddress()),
+                        Integer.toUnsignedLong(transformInfo.getSpiRecord().getSpi())));
+            }
+        }
+        Log.d(TAG, "getTransformStates for " + transformIds.length + " transforms");
+
+        // Make netlink call. IpSecXfrmController has its own lock.
+        final Map<Pair<InetAddress, Long>, XfrmNetlinkNewSaMessage> xfrmNewSaMsgs;
+        try {
+            xfrmNewSaMsgs = mIpSecXfrmCtrl.ipSecDumpSa(new ArraySet<>(saIds));
+        } catch (ErrnoException | IOException e) {
+            Log.e(TAG, "getTransformStates: failed to get IpSecTransformStates" + e.toString());
+            throw new IllegalStateException("Failed to get IpSecTransformStates", e);
+        }
+
+        final ArrayList<IpSecTransformState> states = new ArrayList<>(saIds.size());
+        for (Pair<InetAddress, Long> saId : saIds) {
+            final XfrmNetlinkNewSaMessage xfrmNewSaMsg = xfrmNewSaMsgs.get(saId);
+            states.add(xfrmNewSaMsg == null ? null : newTransformState(xfrmNewSaMsg));
+        }
+        return states;
+    }
+
+    private static IpSecTransformState newTransformState(
+            @NonNull XfrmNetlinkNewSaMessage xfrmNewSaMsg) {
         return new IpSecTransformState.Builder()
                 .setTxHighestSequenceNumber(xfrmNewSaMsg.getTxSequenceNumber())
                 .setRxHighestSequenceNumber(xfrmNewSaMsg.getRxSequenceNumber())
@@ -1918,32 +2029,34 @@ public class IpSecService extends IIpSecService.Stub {
      * association as a correspondent policy to the provided socket
      */
     @Override
-    public synchronized void applyTransportModeTransform(
+    public void applyTransportModeTransform(
             ParcelFileDescriptor socket, int direction, int resourceId) throws RemoteException {
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
         checkDirection(direction);
-        // Get transform record; if no transform is found, will throw IllegalArgumentException
-        TransformRecord info = userRecord.mTransformRecords.getResourceOrThrow(resourceId);
+        synchronized (userRecord) {
+            // Get transform record; if no transform is found, will throw IllegalArgumentException
+            TransformRecord info = userRecord.mTransformRecords.getResourceOrThrow(resourceId);
 
-        // TODO: make this a function.
-        if (info.mPid != getCallingPid() || info.mUid != callingUid) {
-            throw new SecurityException("Only the owner of an IpSec Transform may apply it!");
-        }
+            // TODO: make this a function.
+            if (info.mPid != getCallingPid() || info.mUid != callingUid) {
+                throw new SecurityException("Only the owner of an IpSec Transform may apply it!");
+            }
 
-        // Get config and check that to-be-applied transform has the correct mode
-        IpSecConfig c = info.getConfig();
-        Preconditions.checkArgument(
-                c.getMode() == IpSecTransform.MODE_TRANSPORT,
-                "Transform mode was not Transport mode; cannot be applied to a socket");
+            // Get config and check that to-be-applied transform has the correct mode
+            IpSecConfig c = info.getConfig();
+            Preconditions.checkArgument(
+                    c.getMode() == IpSecTransform.MODE_TRANSPORT,
+                    "Transform mode was not Transport mode; cannot be applied to a socket");
 
-        mNetd.ipSecApplyTransportModeTransform(
-                socket,
-                callingUid,
-                direction,
-                c.getSourceAddress(),
-                c.getDestinationAddress(),
-                info.getSpiRecord().getSpi());
+            mNetd.ipSecApplyTransportModeTransform(
+                    socket,
+                    callingUid,
+                    direction,
+                    c.getSourceAddress(),
+                    c.getDestinationAddress(),
+                    info.getSpiRecord().getSpi());
+        }
     }
 
     /**
@@ -1953,7 +2066,7 @@ public class IpSecService extends IIpSecService.Stub {
      * reserved for future improved input validation.
      */
     @Override
-    public synchronized void removeTransportModeTransforms(ParcelFileDescriptor socket)
+    public void removeTransportModeTransforms(ParcelFileDescriptor socket)
             throws RemoteException {
         mNetd.ipSecRemoveTransportModeTransform(socket);
     }
@@ -1966,7 +2079,7 @@ public class IpSecService extends IIpSecService.Stub {
      * source/destination addresses, and mark the migration as finished.
      */
     @Override
-    public synchronized void applyTunnelModeTransform(
+    public void applyTunnelModeTransform(
             int tunnelResourceId, int direction, int transformResourceId, String callingPackage)
             throws RemoteException {
         enforceTunnelFeatureAndPermissions(callingPackage);
@@ -1975,115 +2088,119 @@ public class IpSecService extends IIpSecService.Stub {
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
 
-        // Get transform record; if no transform is found, will throw IllegalArgumentException
-        TransformRecord transformInfo =
-                userRecord.mTransformRecords.getResourceOrThrow(transformResourceId);
+        synchronized (userRecord) {
+            // Get transform record; if no transform is found, will throw IllegalArgumentException
+            TransformRecord transformInfo =
+                    userRecord.mTransformRecords.getResourceOrThrow(transformResourceId);
+
+            // Get tunnelInterface record; if no such interface is found, will throw
+            // IllegalArgumentException
+            TunnelInterfaceRecord tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+
+            // Get config and check that to-be-applied transform has the correct mode
+            IpSecConfig c = transformInfo.getConfig();
+            Preconditions.checkArgument(
+                    c.getMode() == IpSecTransform.MODE_TUNNEL,
+                    "Transform mode was not Tunnel mode; cannot be applied to a tunnel interface");
+
+            EncapSocketRecord socketRecord = null;
+            if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
+                socketRecord =
+                        userRecord.mEncapSocketRecords.getResourceOrThrow(
+                                c.getEncapSocketResourceId());
+            }
+            SpiRecord spiRecord = transformInfo.getSpiRecord();
 
-        // Get tunnelInterface record; if no such interface is found, will throw
-        // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+            int mark =
+                    (direction == IpSecManager.DIRECTION_OUT)
+                            ? tunnelInterfaceInfo.getOkey()
+                            : tunnelInterfaceInfo.getIkey(); // Ikey also used for FWD policies
 
-        // Get config and check that to-be-applied transform has the correct mode
-        IpSecConfig c = transformInfo.getConfig();
-        Preconditions.checkArgument(
-                c.getMode() == IpSecTransform.MODE_TUNNEL,
-                "Transform mode was not Tunnel mode; cannot be applied to a tunnel interface");
+            try {
+                // Default to using the invalid SPI of 0 for inbound SAs. This allows policies to
+                // skip SPI matching as part of the template resolution.
+                int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
+                c.setXfrmInterfaceId(tunnelInterfaceInfo.getIfId());
+
+                // TODO: enable this when UPDSA supports updating marks. Adding kernel support
+                //     upstream (and backporting) would allow us to narrow the mark space, and
+                //     ensure that the SA and SPs have matching marks (as VTI are meant to be
+                //     built).
+                // Currently update does nothing with marks. Leave empty (defaulting to 0) to ensure
+                //     the config matches the actual allocated resources in the kernel.
+                // All SAs will have zero marks (from creation time), and any policy that matches
+                //     the same src/dst could match these SAs. Non-IpSecService governed processes
+                //     that establish floating policies with the same src/dst may result in
+                //     undefined behavior. This is generally limited to vendor code due to the
+                //     permissions (CAP_NET_ADMIN) required.
+                //
+                // c.setMarkValue(mark);
+                // c.setMarkMask(0xffffffff);
 
-        EncapSocketRecord socketRecord = null;
-        if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
-            socketRecord =
-                    userRecord.mEncapSocketRecords.getResourceOrThrow(c.getEncapSocketResourceId());
-        }
-        SpiRecord spiRecord = transformInfo.getSpiRecord();
+                if (direction == IpSecManager.DIRECTION_OUT) {
+                    // Set output mark via underlying network (output only)
+                    c.setNetwork(tunnelInterfaceInfo.getUnderlyingNetwork());
 
-        int mark =
-                (direction == IpSecManager.DIRECTION_OUT)
-                        ? tunnelInterfaceInfo.getOkey()
-                        : tunnelInterfaceInfo.getIkey(); // Ikey also used for FWD policies
+                    // Set outbound SPI only. We want inbound to use any valid SA (old, new) on
+                    // rekeys, but want to guarantee outbound packets are sent over the new SA.
+                    spi = spiRecord.getSpi();
+                }
 
-        try {
-            // Default to using the invalid SPI of 0 for inbound SAs. This allows policies to skip
-            // SPI matching as part of the template resolution.
-            int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
-            c.setXfrmInterfaceId(tunnelInterfaceInfo.getIfId());
-
-            // TODO: enable this when UPDSA supports updating marks. Adding kernel support upstream
-            //     (and backporting) would allow us to narrow the mark space, and ensure that the SA
-            //     and SPs have matching marks (as VTI are meant to be built).
-            // Currently update does nothing with marks. Leave empty (defaulting to 0) to ensure the
-            //     config matches the actual allocated resources in the kernel.
-            // All SAs will have zero marks (from creation time), and any policy that matches the
-            //     same src/dst could match these SAs. Non-IpSecService governed processes that
-            //     establish floating policies with the same src/dst may result in undefined
-            //     behavior. This is generally limited to vendor code due to the permissions
-            //     (CAP_NET_ADMIN) required.
-            //
-            // c.setMarkValue(mark);
-            // c.setMarkMask(0xffffffff);
-
-            if (direction == IpSecManager.DIRECTION_OUT) {
-                // Set output mark via underlying network (output only)
-                c.setNetwork(tunnelInterfaceInfo.getUnderlyingNetwork());
-
-                // Set outbound SPI only. We want inbound to use any valid SA (old, new) on rekeys,
-                // but want to guarantee outbound packets are sent over the new SA.
-                spi = spiRecord.getSpi();
-            }
+                // Always update the policy with the relevant XFRM_IF_ID
+                for (int selAddrFamily : ADDRESS_FAMILIES) {
+                    mNetd.ipSecUpdateSecurityPolicy(
+                            callingUid,
+                            selAddrFamily,
+                            direction,
+                            transformInfo.getConfig().getSourceAddress(),
+                            transformInfo.getConfig().getDestinationAddress(),
+                            spi, // If outbound, also add SPI to the policy.
+                            mark, // Must always set policy mark; ikey/okey for VTIs
+                            0xffffffff,
+                            c.getXfrmInterfaceId());
+                }
 
-            // Always update the policy with the relevant XFRM_IF_ID
-            for (int selAddrFamily : ADDRESS_FAMILIES) {
-                mNetd.ipSecUpdateSecurityPolicy(
-                        callingUid,
-                        selAddrFamily,
-                        direction,
-                        transformInfo.getConfig().getSourceAddress(),
-                        transformInfo.getConfig().getDestinationAddress(),
-                        spi, // If outbound, also add SPI to the policy.
-                        mark, // Must always set policy mark; ikey/okey for VTIs
-                        0xffffffff,
-                        c.getXfrmInterfaceId());
-            }
+                // Update SA with tunnel mark (ikey or okey based on direction)
+                createOrUpdateTransform(c, transformResourceId, spiRecord, socketRecord);
 
-            // Update SA with tunnel mark (ikey or okey based on direction)
-            createOrUpdateTransform(c, transformResourceId, spiRecord, socketRecord);
+                if (transformInfo.isMigrating()) {
+                    if (!mContext.getPackageManager()
+                            .hasSystemFeature(FEATURE_IPSEC_TUNNEL_MIGRATION)) {
+                        Log.wtf(
+                                TAG,
+                                "Attempted to migrate a transform without"
+                                        + " FEATURE_IPSEC_TUNNEL_MIGRATION");
+                    }
 
-            if (transformInfo.isMigrating()) {
-                if (!mContext.getPackageManager()
-                        .hasSystemFeature(FEATURE_IPSEC_TUNNEL_MIGRATION)) {
-                    Log.wtf(
-                            TAG,
-                            "Attempted to migrate a transform without"
-                                    + " FEATURE_IPSEC_TUNNEL_MIGRATION");
+                    for (int selAddrFamily : ADDRESS_FAMILIES) {
+                        final IpSecMigrateInfoParcel migrateInfo =
+                                new IpSecMigrateInfoParcel(
+                                        Binder.getCallingUid(),
+                                        selAddrFamily,
+                                        direction,
+                                        c.getSourceAddress(),
+                                        c.getDestinationAddress(),
+                                        transformInfo.getNewSourceAddress(),
+                                        transformInfo.getNewDestinationAddress(),
+                                        c.getXfrmInterfaceId());
+
+                        mNetd.ipSecMigrate(migrateInfo);
+                    }
+                    transformInfo.finishMigration();
                 }
-
-                for (int selAddrFamily : ADDRESS_FAMILIES) {
-                    final IpSecMigrateInfoParcel migrateInfo =
-                            new IpSecMigrateInfoParcel(
-                                    Binder.getCallingUid(),
-                                    selAddrFamily,
-                                    direction,
-                                    c.getSourceAddress(),
-                                    c.getDestinationAddress(),
-                                    transformInfo.getNewSourceAddress(),
-                                    transformInfo.getNewDestinationAddress(),
-                                    c.getXfrmInterfaceId());
-
-                    mNetd.ipSecMigrate(migrateInfo);
+            } catch (ServiceSpecificException e) {
+                if (e.errorCode == EINVAL) {
+                    throw new IllegalArgumentException(e.toString());
+                } else {
+                    throw e;
                 }
-                transformInfo.finishMigration();
-            }
-        } catch (ServiceSpecificException e) {
-            if (e.errorCode == EINVAL) {
-                throw new IllegalArgumentException(e.toString());
-            } else {
-                throw e;
             }
         }
     }
 
     @Override
-    protected synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mContext.enforceCallingOrSelfPermission(DUMP, TAG);
 
         pw.println("IpSecService dump:");
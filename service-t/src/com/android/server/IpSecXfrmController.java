@@ -23,7 +23,9 @@ import static com.android.net.module.util.netlink.xfrm.XfrmNetlinkMessage.XFRM_M
 import android.annotation.TargetApi;
 import android.os.Build;
 import android.system.ErrnoException;
+import android.util.ArrayMap;
 import android.util.Log;
+import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -35,6 +37,7 @@ import com.android.net.module.util.netlink.NetlinkConstants;
 import com.android.net.module.util.netlink.NetlinkErrorMessage;
 import com.android.net.module.util.netlink.NetlinkMessage;
 import com.android.net.module.util.netlink.NetlinkUtils;
+import com.android.net.module.util.netlink.xfrm.StructXfrmUsersaInfo;
 import com.android.net.module.util.netlink.xfrm.XfrmNetlinkGetSaMessage;
 import com.android.net.module.util.netlink.xfrm.XfrmNetlinkMessage;
 import com.android.net.module.util.netlink.xfrm.XfrmNetlinkNewSaMessage;
@@ -47,6 +50,8 @@ import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class handles IPSec XFRM commands between IpSecService and the Linux kernel
@@ -188,6 +193,73 @@ public class IpSecXfrmController {
         }
     }
 
+    /**
+     * Get the state of several IPsec SAs with a single dump of all the SAs
+     *
+     * @param saIds the destination addresses and SPIs of the SAs.
+     * @return the state of the SAs that were found, keyed by destination address and SPI.
+     */
+    @NonNull
+    public synchronized Map<Pair<InetAddress, Long>, XfrmNetlinkNewSaMessage> ipSecDumpSa(
+            @NonNull final Set<Pair<InetAddress, Long>> saIds)
+            throws ErrnoException, InterruptedIOException, IOException {
+        logD("ipSecDumpSa: " + saIds.size() + " SAs");
+        openNetlinkSocketIfNeeded();
+
+        final ArrayMap<Pair<InetAddress, Long>, XfrmNetlinkNewSaMessage> result =
+                new ArrayMap<>();
+        boolean done = false;
+        try {
+            mDependencies.sendMessage(
+                    mNetlinkSocket, XfrmNetlinkGetSaMessage.newXfrmNetlinkDumpSaMessage());
+            while (!done) {
+                final ByteBuffer response = mDependencies.recvMessage(mNetlinkSocket);
+                logV(HexDump.dumpHexString(response.array(), 0 /* offset */, response.limit()));
+                while (!done && response.remaining() > 0) {
+                    done = parseDumpMessage(response, saIds, result);
+                }
+            }
+        } catch (IllegalArgumentException exception) {
+            // Maybe thrown from Struct.parse
+            throw new IOException("Failed to parse the response " + exception);
+        } finally {
+            // The rest of an interrupted dump would be received as the response to the next
+            // request, so start again with a new socket.
+            if (!done) closeNetlinkSocketIfNeeded();
+        }
+        return result;
+    }
+
+    /**
+     * Parse a message of an SA dump, and add it to result if it is one of the requested SAs.
+     *
+     * @return whether the dump is complete.
+     */
+    private static boolean parseDumpMessage(@NonNull ByteBuffer response,
+            @NonNull Set<Pair<InetAddress, Long>> saIds,
+            @NonNull Map<Pair<InetAddress, Long>, XfrmNetlinkNewSaMessage> result)
+            throws ErrnoException, IOException {
+        final NetlinkMessage msg = XfrmNetlinkMessage.parse(response, NETLINK_XFRM);
+        if (msg == null) {
+            throw new IOException("Fail to parse the dump message");
+        }
+
+        final int msgType = msg.getHeader().nlmsg_type;
+        if (msgType == NetlinkConstants.NLMSG_DONE) return true;
+        if (msgType == NetlinkConstants.NLMSG_ERROR) {
+            final int errorCode = ((NetlinkErrorMessage) msg).getNlMsgError().error;
+            throw new ErrnoException("ipSecDumpSa", errorCode);
+        }
+        if (msgType != XFRM_MSG_NEWSA) return false;
+
+        final StructXfrmUsersaInfo info = ((XfrmNetlinkNewSaMessage) msg).getXfrmUsersaInfo();
+        final Pair<InetAddress, Long> saId = new Pair<>(info.getDestAddress(), info.getSpi());
+        if (saIds.contains(saId)) {
+            result.put(saId, (XfrmNetlinkNewSaMessage) msg);
+        }
+        return false;
+    }
+
     private static void logV(String details) {
         if (VDBG) {
             Log.v(TAG, details);
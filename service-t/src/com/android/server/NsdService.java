@@ -2075,6 +2075,42 @@ public class NsdService extends INsdManager.Stub {
                 Log.i(TAG, "Failed to send offload callback, remote died: " + e.getMessage());
             }
         }
+        final byte[] offloadImage = mAdvertiser.getInterfaceOffloadImage(targetInterface);
+        if (offloadImage == null
+                || (offloadEngineInfo.mOffloadType & OffloadEngine.OFFLOAD_TYPE_REPLY) == 0) {
+            return;
+        }
+        try {
+            offloadEngine.onOffloadImageUpdated(offloadImage);
+        } catch (RemoteException e) {
+            // Can happen in regular cases, do not log a stacktrace
+            Log.i(TAG, "Failed to send offload callback, remote died: " + e.getMessage());
+        }
+    }
+
+    private void sendOffloadImageUpdate(@NonNull String targetInterfaceName,
+            @NonNull byte[] offloadImage) {
+        final int count = mOffloadEngines.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                final OffloadEngineInfo offloadEngineInfo =
+                        (OffloadEngineInfo) mOffloadEngines.getBroadcastCookie(i);
+                // The image only contains records used to reply to queries.
+                if (!targetInterfaceName.equals(offloadEngineInfo.mInterfaceName)
+                        || ((offloadEngineInfo.mOffloadType
+                        & OffloadEngine.OFFLOAD_TYPE_REPLY) == 0)) {
+                    continue;
+                }
+                try {
+                    mOffloadEngines.getBroadcastItem(i).onOffloadImageUpdated(offloadImage);
+                } catch (RemoteException e) {
+                    // Can happen in regular cases, do not log a stacktrace
+                    Log.i(TAG, "Failed to send offload callback, remote died: " + e.getMessage());
+                }
+            }
+        } finally {
+            mOffloadEngines.finishBroadcast();
+        }
     }
 
     private void sendOffloadServiceInfosUpdate(@NonNull String targetInterfaceName,
@@ -2154,6 +2190,11 @@ public class NsdService extends INsdManager.Stub {
             sendOffloadServiceInfosUpdate(interfaceName, offloadServiceInfo, true /* isRemove */);
         }
 
+        @Override
+        public void onOffloadImageUpdate(@NonNull String interfaceName, @NonNull byte[] image) {
+            sendOffloadImageUpdate(interfaceName, image);
+        }
+
         private ClientInfo getClientInfoOrLog(int transactionId) {
             final ClientInfo clientInfo = mTransactionIdToClientInfoMap.get(transactionId);
             if (clientInfo == null) {
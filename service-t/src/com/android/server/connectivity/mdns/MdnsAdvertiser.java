@@ -46,6 +46,7 @@ import com.android.server.connectivity.ConnectivityResources;
 import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -89,6 +90,7 @@ public class MdnsAdvertiser {
     @NonNull private final SharedLog mSharedLog;
     private final Map<String, List<OffloadServiceInfoWrapper>> mInterfaceOffloadServices =
             new ArrayMap<>();
+    private final Map<String, byte[]> mInterfaceOffloadImages = new ArrayMap<>();
     private final MdnsFeatureFlags mMdnsFeatureFlags;
     private final Map<String, Integer> mServiceTypeToOffloadPriority;
 
@@ -144,6 +146,48 @@ public class MdnsAdvertiser {
         return mInterfaceOffloadServices.getOrDefault(interfaceName, Collections.emptyList());
     }
 
+    /**
+     * Gets the current combined offload image of the interface.
+     * @param interfaceName the target interfaceName
+     * @return the raw offload image containing the records of all offloaded services, or null if
+     *         no service is offloaded on the interface.
+     */
+    @Nullable
+    public byte[] getInterfaceOffloadImage(@NonNull String interfaceName) {
+        return mInterfaceOffloadImages.get(interfaceName);
+    }
+
+    /**
+     * Rebuilds the combined offload image of the advertiser's interface, and notifies it if it
+     * changed.
+     */
+    private void maybeUpdateOffloadImage(@NonNull MdnsInterfaceAdvertiser advertiser) {
+        final String interfaceName = advertiser.getSocketInterfaceName();
+        final List<OffloadServiceInfoWrapper> wrappers =
+                mInterfaceOffloadServices.get(interfaceName);
+        byte[] newImage = null;
+        if (wrappers != null && !wrappers.isEmpty()) {
+            final List<Integer> serviceIds = new ArrayList<>(wrappers.size());
+            for (OffloadServiceInfoWrapper wrapper : wrappers) {
+                serviceIds.add(wrapper.mServiceId);
+            }
+            newImage = advertiser.getRawOffloadImage(serviceIds);
+            if (newImage == null) {
+                // An empty image would disable offload for all services on the interface, so
+                // keep offloading the previous ones.
+                mSharedLog.w("Keeping the previous offload image of " + interfaceName);
+                return;
+            }
+        }
+        final byte[] oldImage = newImage == null
+                ? mInterfaceOffloadImages.remove(interfaceName)
+                : mInterfaceOffloadImages.put(interfaceName, newImage);
+        // Images are resent only when their content changes, e.g. not when a service is
+        // re-announced with identical records.
+        if (Arrays.equals(oldImage, newImage)) return;
+        mCb.onOffloadImageUpdate(interfaceName, newImage == null ? new byte[0] : newImage);
+    }
+
     private final MdnsInterfaceAdvertiser.Callback mInterfaceAdvertiserCb =
             new MdnsInterfaceAdvertiser.Callback() {
         @Override
@@ -170,6 +214,7 @@ public class MdnsAdvertiser {
                 existingOffloadServiceInfoWrappers.add(newOffloadServiceInfoWrapper);
                 mCb.onOffloadStartOrUpdate(interfaceName,
                         newOffloadServiceInfoWrapper.mOffloadServiceInfo);
+                maybeUpdateOffloadImage(advertiser);
             }
 
             // Wait for all current interfaces to be done probing before notifying of success.
@@ -207,7 +252,7 @@ public class MdnsAdvertiser {
                         return;
                     }
                     if (mMdnsFeatureFlags.mIsMdnsOffloadFeatureEnabled) {
-                        maybeSendOffloadStop(a.getSocketInterfaceName(), serviceId);
+                        maybeSendOffloadStop(a, serviceId);
                     }
                 });
                 return;
@@ -298,7 +343,8 @@ public class MdnsAdvertiser {
         }
     }
 
-    private void maybeSendOffloadStop(final String interfaceName, int serviceId) {
+    private void maybeSendOffloadStop(@NonNull MdnsInterfaceAdvertiser advertiser, int serviceId) {
+        final String interfaceName = advertiser.getSocketInterfaceName();
         final List<OffloadServiceInfoWrapper> existingOffloadServiceInfoWrappers =
                 mInterfaceOffloadServices.get(interfaceName);
         if (existingOffloadServiceInfoWrappers == null) {
@@ -311,6 +357,7 @@ public class MdnsAdvertiser {
             mCb.onOffloadStop(interfaceName,
                     existingOffloadServiceInfoWrappers.get(idx).mOffloadServiceInfo);
             existingOffloadServiceInfoWrappers.remove(idx);
+            maybeUpdateOffloadImage(advertiser);
         }
     }
 
@@ -386,6 +433,9 @@ public class MdnsAdvertiser {
                                 offloadServiceInfoWrapper.mOffloadServiceInfo);
                     }
                 }
+                if (mInterfaceOffloadImages.remove(interfaceName) != null) {
+                    mCb.onOffloadImageUpdate(interfaceName, new byte[0]);
+                }
             }
 
             if (mAdvertisers.size() == 0 && mPendingRegistrations.size() == 0) {
@@ -507,7 +557,7 @@ public class MdnsAdvertiser {
                 advertiser.removeService(id);
 
                 if (mMdnsFeatureFlags.mIsMdnsOffloadFeatureEnabled) {
-                    maybeSendOffloadStop(advertiser.getSocketInterfaceName(), id);
+                    maybeSendOffloadStop(advertiser, id);
                 }
             }
         }
@@ -590,6 +640,7 @@ public class MdnsAdvertiser {
                     mCb.onOffloadStartOrUpdate(interfaceName, newWrapper.mOffloadServiceInfo);
                 }
                 mInterfaceOffloadServices.put(interfaceName, updatedOffloadServiceInfoWrappers);
+                maybeUpdateOffloadImage(advertiser);
             }
         }
     }
@@ -780,6 +831,15 @@ public class MdnsAdvertiser {
          */
         void onOffloadStop(@NonNull String interfaceName,
                 @NonNull OffloadServiceInfo offloadServiceInfo);
+
+        /**
+         * Called when the combined offload image of an interface changes.
+         *
+         * @param interfaceName the interface for sending the update to.
+         * @param image the records of all offloaded services on the interface, encoded as a single
+         *              DNS packet, or an empty array if no service is offloaded anymore.
+         */
+        void onOffloadImageUpdate(@NonNull String interfaceName, @NonNull byte[] image);
     }
 
     /**
@@ -38,6 +38,7 @@ import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,6 +52,9 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
     public static final int CONFLICT_HOST = 1 << 1;
 
     private static final boolean DBG = MdnsAdvertiser.DBG;
+    // Name compression pointers are 14 bits, so offload images cannot be larger than this.
+    @VisibleForTesting
+    public static final int MAX_OFFLOAD_IMAGE_SIZE = 1 << 14;
     @VisibleForTesting
     public static final long EXIT_ANNOUNCEMENT_DELAY_MS = 100L;
     @NonNull
@@ -447,4 +451,39 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
             return new byte[0];
         }
     }
+
+    /**
+     * Gets the combined offload image of multiple services.
+     *
+     * <p>The image is a single DNS packet containing the records of all the given services, so
+     * that an offload engine can answer queries for any of them from one table. It is not sent on
+     * the network, so it may be larger than the packet creation buffer: it is then written to a
+     * larger buffer, up to {@link #MAX_OFFLOAD_IMAGE_SIZE}.
+     * @param serviceIds The serviceIds of the services to include.
+     * @return the raw offload image, or null if it cannot be created, for example if it does not
+     *         fit in {@link #MAX_OFFLOAD_IMAGE_SIZE} bytes.
+     */
+    @Nullable
+    public byte[] getRawOffloadImage(@NonNull Collection<Integer> serviceIds) {
+        final MdnsPacket packet;
+        try {
+            packet = mRecordRepository.getOffloadPacket(serviceIds);
+        } catch (IllegalArgumentException e) {
+            mSharedLog.wtf("Cannot create offload image: ", e);
+            return null;
+        }
+        byte[] buffer = mPacketCreationBuffer;
+        while (true) {
+            try {
+                return MdnsUtils.createRawDnsPacket(buffer, packet);
+            } catch (IOException e) {
+                if (buffer.length >= MAX_OFFLOAD_IMAGE_SIZE) {
+                    mSharedLog.e("Offload image of " + serviceIds.size()
+                            + " services does not fit in " + MAX_OFFLOAD_IMAGE_SIZE + " bytes");
+                    return null;
+                }
+                buffer = new byte[Math.min(buffer.length * 2, MAX_OFFLOAD_IMAGE_SIZE)];
+            }
+        }
+    }
 }
@@ -48,6 +48,7 @@ import java.net.NetworkInterface;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
@@ -982,21 +983,38 @@ public class MdnsRecordRepository {
      * @return The offload {@link MdnsPacket} that contains PTR/SRV/TXT/A/AAAA records.
      */
     public MdnsPacket getOffloadPacket(int serviceId) throws IllegalArgumentException {
-        final ServiceRegistration registration = mServices.get(serviceId);
-        if (registration == null) throw new IllegalArgumentException(
-                "Service is not registered: " + serviceId);
+        return getOffloadPacket(Collections.singletonList(serviceId));
+    }
 
+    /**
+     * Gets a combined offload MdnsPacket for multiple services.
+     *
+     * <p>The A/AAAA records of the host are shared by all services and only included once. When
+     * the packet is written, name compression also applies across services, so the combined
+     * packet is smaller than the sum of the per-service packets.
+     * @param serviceIds The serviceIds of the services to include.
+     * @return The offload {@link MdnsPacket} that contains PTR/SRV/TXT records of all services,
+     *         followed by the A/AAAA records.
+     */
+    public MdnsPacket getOffloadPacket(@NonNull Collection<Integer> serviceIds)
+            throws IllegalArgumentException {
         final ArrayList<MdnsRecord> answers = new ArrayList<>();
 
-        // Adds all PTR, SRV, TXT, A/AAAA records.
-        for (RecordInfo<MdnsPointerRecord> ptrRecord : registration.ptrRecords) {
-            answers.add(ptrRecord.record);
-        }
-        if (registration.srvRecord != null) {
-            answers.add(registration.srvRecord.record);
-        }
-        if (registration.txtRecord != null) {
-            answers.add(registration.txtRecord.record);
+        // Adds all PTR, SRV, TXT records.
+        for (int serviceId : serviceIds) {
+            final ServiceRegistration registration = mServices.get(serviceId);
+            if (registration == null) throw new IllegalArgumentException(
+                    "Service is not registered: " + serviceId);
+
+            for (RecordInfo<MdnsPointerRecord> ptrRecord : registration.ptrRecords) {
+                answers.add(ptrRecord.record);
+            }
+            if (registration.srvRecord != null) {
+                answers.add(registration.srvRecord.record);
+            }
+            if (registration.txtRecord != null) {
+                answers.add(registration.txtRecord.record);
+            }
         }
         // TODO: Support custom host. It currently only supports default host.
         for (RecordInfo<?> record : mGeneralRecords) {
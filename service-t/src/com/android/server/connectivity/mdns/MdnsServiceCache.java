@@ -21,8 +21,6 @@ import static com.android.server.connectivity.mdns.util.MdnsUtils.ensureRunningO
 import static com.android.server.connectivity.mdns.util.MdnsUtils.equalsIgnoreDnsCase;
 import static com.android.server.connectivity.mdns.util.MdnsUtils.toDnsLowerCase;
 
-import static java.lang.Math.min;
-
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.os.Handler;
@@ -34,9 +32,10 @@ import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.TreeSet;
 
 /**
  * The {@link MdnsServiceCache} manages the service which discovers from each socket and cache these
@@ -72,15 +71,64 @@ public class MdnsServiceCache {
                     && Objects.equals(mSocketKey, ((CacheKey) other).mSocketKey);
         }
     }
+
+    /**
+     * An entry in the expiry index, tracking the absolute time at which a cached response
+     * expires. The sequence number breaks ties between responses expiring at the same time so
+     * that entries can be stored in sorted sets.
+     */
+    private static final class ExpiryEntry implements Comparable<ExpiryEntry> {
+        final long mExpirationTime;
+        final long mSequence;
+        @NonNull final MdnsResponse mResponse;
+
+        ExpiryEntry(long expirationTime, long sequence, @NonNull MdnsResponse response) {
+            mExpirationTime = expirationTime;
+            mSequence = sequence;
+            mResponse = response;
+        }
+
+        @Override
+        public int compareTo(@NonNull ExpiryEntry other) {
+            return (mExpirationTime != other.mExpirationTime)
+                    ? Long.compare(mExpirationTime, other.mExpirationTime)
+                    : Long.compare(mSequence, other.mSequence);
+        }
+    }
+
     /**
-     * A map of cached services. Key is composed of service type and socket. Value is the list of
+     * The services discovered for a given CacheKey.
+     *
+     * <p>Responses are kept in insertion order. When the
+     * MdnsFeatureFlags#NSD_EXPIRED_SERVICES_REMOVAL flag is enabled, each response that has a
+     * service record is also indexed by expiration time, so that finding and removing expired
+     * services does not need to scan all the responses.
+     */
+    private static final class CachedServices {
+        /** Cached responses, mapped to their expiry entry or null if they are not indexed. */
+        @NonNull
+        final LinkedHashMap<MdnsResponse, ExpiryEntry> mResponses = new LinkedHashMap<>();
+        /** Expiry entries of the indexed responses, earliest expiration first. */
+        @NonNull
+        final TreeSet<ExpiryEntry> mExpiryQueue = new TreeSet<>();
+
+        boolean isEmpty() {
+            return mResponses.isEmpty();
+        }
+    }
+
+    /**
+     * A map of cached services. Key is composed of service type and socket. Value is the
      * services which are discovered from the given CacheKey.
-     * When the MdnsFeatureFlags#NSD_EXPIRED_SERVICES_REMOVAL flag is enabled, the lists are sorted
-     * by expiration time, with the earliest entries appearing first. This sorting allows the
-     * removal process to progress through the expiration check efficiently.
      */
     @NonNull
-    private final ArrayMap<CacheKey, List<MdnsResponse>> mCachedServices = new ArrayMap<>();
+    private final ArrayMap<CacheKey, CachedServices> mCachedServices = new ArrayMap<>();
+    /**
+     * The expiry entries of all cached services across all CacheKeys, earliest expiration first.
+     * Only maintained when the MdnsFeatureFlags#NSD_EXPIRED_SERVICES_REMOVAL flag is enabled.
+     */
+    @NonNull
+    private final TreeSet<ExpiryEntry> mExpiryIndex = new TreeSet<>();
     /**
      * A map of service expire callbacks. Key is composed of service type and socket and value is
      * the callback listener.
@@ -94,6 +142,7 @@ public class MdnsServiceCache {
     @NonNull
     private final MdnsUtils.Clock mClock;
     private long mNextExpirationTime = EXPIRATION_NEVER;
+    private long mNextExpirySequence = 0L;
 
     public MdnsServiceCache(@NonNull Looper looper, @NonNull MdnsFeatureFlags mdnsFeatureFlags) {
         this(looper, mdnsFeatureFlags, new MdnsUtils.Clock());
@@ -119,8 +168,9 @@ public class MdnsServiceCache {
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
             maybeRemoveExpiredServices(cacheKey, mClock.elapsedRealtime());
         }
-        return mCachedServices.containsKey(cacheKey)
-                ? Collections.unmodifiableList(new ArrayList<>(mCachedServices.get(cacheKey)))
+        final CachedServices services = mCachedServices.get(cacheKey);
+        return services != null
+                ? Collections.unmodifiableList(new ArrayList<>(services.mResponses.keySet()))
                 : Collections.emptyList();
     }
 
@@ -131,7 +181,7 @@ public class MdnsServiceCache {
      * @param serviceName the target service name
      * @return the response which matches the given service name or null if not found.
      */
-    public static MdnsResponse findMatchedResponse(@NonNull List<MdnsResponse> responses,
+    public static MdnsResponse findMatchedResponse(@NonNull Iterable<MdnsResponse> responses,
             @NonNull String serviceName) {
         for (MdnsResponse response : responses) {
             if (equalsIgnoreDnsCase(serviceName, response.getServiceInstanceName())) {
@@ -154,22 +204,42 @@ public class MdnsServiceCache {
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
             maybeRemoveExpiredServices(cacheKey, mClock.elapsedRealtime());
         }
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
+        final CachedServices services = mCachedServices.get(cacheKey);
+        if (services == null) {
             return null;
         }
-        final MdnsResponse response = findMatchedResponse(responses, serviceName);
+        final MdnsResponse response =
+                findMatchedResponse(services.mResponses.keySet(), serviceName);
         return response != null ? new MdnsResponse(response) : null;
     }
 
-    static void insertResponseAndSortList(
-            List<MdnsResponse> responses, MdnsResponse response, long now) {
-        // binarySearch returns "the index of the search key, if it is contained in the list;
-        // otherwise, (-(insertion point) - 1)"
-        final int searchRes = Collections.binarySearch(responses, response,
-                // Sort the list by ttl.
-                (o1, o2) -> Long.compare(o1.getMinRemainingTtl(now), o2.getMinRemainingTtl(now)));
-        responses.add(searchRes >= 0 ? searchRes : (-searchRes - 1), response);
+    /**
+     * Get the absolute time at which the given response expires, or
+     * {@link MdnsResponse#EXPIRATION_NEVER} if it never expires.
+     */
+    static long getExpirationTime(@NonNull MdnsResponse response, long now) {
+        final long minRemainingTtl = response.getMinRemainingTtl(now);
+        return minRemainingTtl == EXPIRATION_NEVER ? EXPIRATION_NEVER : now + minRemainingTtl;
+    }
+
+    private void indexResponse(@NonNull CachedServices services, @NonNull MdnsResponse response,
+            long now) {
+        final long expirationTime = getExpirationTime(response, now);
+        if (expirationTime == EXPIRATION_NEVER) {
+            // Responses without a service record never expire, so there is nothing to index.
+            services.mResponses.put(response, null);
+            return;
+        }
+        final ExpiryEntry entry = new ExpiryEntry(expirationTime, mNextExpirySequence++, response);
+        services.mResponses.put(response, entry);
+        services.mExpiryQueue.add(entry);
+        mExpiryIndex.add(entry);
+    }
+
+    private void unindexResponse(@NonNull CachedServices services, @Nullable ExpiryEntry entry) {
+        if (entry == null) return;
+        services.mExpiryQueue.remove(entry);
+        mExpiryIndex.remove(entry);
     }
 
     /**
@@ -180,20 +250,21 @@ public class MdnsServiceCache {
      */
     public void addOrUpdateService(@NonNull CacheKey cacheKey, @NonNull MdnsResponse response) {
         ensureRunningOnHandlerThread(mHandler);
-        final List<MdnsResponse> responses = mCachedServices.computeIfAbsent(
-                cacheKey, key -> new ArrayList<>());
+        final CachedServices services = mCachedServices.computeIfAbsent(
+                cacheKey, key -> new CachedServices());
         // Remove existing service if present.
-        final MdnsResponse existing =
-                findMatchedResponse(responses, response.getServiceInstanceName());
-        responses.remove(existing);
+        final MdnsResponse existing = findMatchedResponse(
+                services.mResponses.keySet(), response.getServiceInstanceName());
+        if (existing != null) {
+            unindexResponse(services, services.mResponses.remove(existing));
+        }
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
             final long now = mClock.elapsedRealtime();
-            // Insert and sort service
-            insertResponseAndSortList(responses, response, now);
+            indexResponse(services, response, now);
             // Update the next expiration check time when a new service is added.
-            mNextExpirationTime = getNextExpirationTime(now);
+            mNextExpirationTime = getNextExpirationTime();
         } else {
-            responses.add(response);
+            services.mResponses.put(response, null);
         }
     }
 
@@ -206,28 +277,23 @@ public class MdnsServiceCache {
     @Nullable
     public MdnsResponse removeService(@NonNull String serviceName, @NonNull CacheKey cacheKey) {
         ensureRunningOnHandlerThread(mHandler);
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
+        final CachedServices services = mCachedServices.get(cacheKey);
+        if (services == null) {
             return null;
         }
-        final Iterator<MdnsResponse> iterator = responses.iterator();
-        MdnsResponse removedResponse = null;
-        while (iterator.hasNext()) {
-            final MdnsResponse response = iterator.next();
-            if (equalsIgnoreDnsCase(serviceName, response.getServiceInstanceName())) {
-                iterator.remove();
-                removedResponse = response;
-                break;
-            }
+        final MdnsResponse removedResponse =
+                findMatchedResponse(services.mResponses.keySet(), serviceName);
+        if (removedResponse != null) {
+            unindexResponse(services, services.mResponses.remove(removedResponse));
         }
 
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
             // Remove the serviceType if no response.
-            if (responses.isEmpty()) {
+            if (services.isEmpty()) {
                 mCachedServices.remove(cacheKey);
             }
             // Update the next expiration check time when a service is removed.
-            mNextExpirationTime = getNextExpirationTime(mClock.elapsedRealtime());
+            mNextExpirationTime = getNextExpirationTime();
         }
         return removedResponse;
     }
@@ -267,40 +333,37 @@ public class MdnsServiceCache {
         mHandler.post(()-> callback.onServiceRecordExpired(previousResponse, newResponse));
     }
 
-    static List<MdnsResponse> removeExpiredServices(@NonNull List<MdnsResponse> responses,
+    /**
+     * Remove the expired services of the given CacheKey.
+     *
+     * <p>Only the expired entries at the head of the expiry queue are visited, so this runs in
+     * O(log n) per removed service.
+     */
+    private List<MdnsResponse> removeExpiredServices(@NonNull CachedServices services,
             long now) {
         final List<MdnsResponse> removedResponses = new ArrayList<>();
-        final Iterator<MdnsResponse> iterator = responses.iterator();
-        while (iterator.hasNext()) {
-            final MdnsResponse response = iterator.next();
+        while (!services.mExpiryQueue.isEmpty()
+                && services.mExpiryQueue.first().mExpirationTime <= now) {
+            final ExpiryEntry entry = services.mExpiryQueue.pollFirst();
+            mExpiryIndex.remove(entry);
+            final MdnsResponse response = entry.mResponse;
             // TODO: Check other records (A, AAAA, TXT) ttl time and remove the record if it's
             //  expired. Then send service update notification.
-            if (!response.hasServiceRecord() || response.getMinRemainingTtl(now) > 0) {
-                // The responses are sorted by the service record ttl time. Break out of loop
-                // early if service is not expired or no service record.
-                break;
+            if (response.getMinRemainingTtl(now) > 0) {
+                // The expiration time was computed from a TTL that does not count down (such as
+                // records that were not received from the network): re-index the response.
+                indexResponse(services, response, now);
+                continue;
             }
             // Remove the ttl expired service.
-            iterator.remove();
+            services.mResponses.remove(response);
             removedResponses.add(response);
         }
         return removedResponses;
     }
 
-    private long getNextExpirationTime(long now) {
-        if (mCachedServices.isEmpty()) {
-            return EXPIRATION_NEVER;
-        }
-
-        long minRemainingTtl = EXPIRATION_NEVER;
-        for (int i = 0; i < mCachedServices.size(); i++) {
-            minRemainingTtl = min(minRemainingTtl,
-                    // The empty lists are not kept in the map, so there's always at least one
-                    // element in the list. Therefore, it's fine to get the first element without a
-                    // null check.
-                    mCachedServices.valueAt(i).get(0).getMinRemainingTtl(now));
-        }
-        return minRemainingTtl == EXPIRATION_NEVER ? EXPIRATION_NEVER : now + minRemainingTtl;
+    private long getNextExpirationTime() {
+        return mExpiryIndex.isEmpty() ? EXPIRATION_NEVER : mExpiryIndex.first().mExpirationTime;
     }
 
     /**
@@ -313,13 +376,13 @@ public class MdnsServiceCache {
             return;
         }
 
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
+        final CachedServices services = mCachedServices.get(cacheKey);
+        if (services == null) {
             // No such services.
             return;
         }
 
-        final List<MdnsResponse> removedResponses = removeExpiredServices(responses, now);
+        final List<MdnsResponse> removedResponses = removeExpiredServices(services, now);
         if (removedResponses.isEmpty()) {
             // No expired services.
             return;
@@ -330,12 +393,12 @@ public class MdnsServiceCache {
         }
 
         // Remove the serviceType if no response.
-        if (responses.isEmpty()) {
+        if (services.isEmpty()) {
             mCachedServices.remove(cacheKey);
         }
 
         // Update next expiration time.
-        mNextExpirationTime = getNextExpirationTime(now);
+        mNextExpirationTime = getNextExpirationTime();
     }
 
     /*** Callbacks for listening service expiration */
@@ -52,6 +52,7 @@ import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.net.TrafficStats.UID_TETHERING;
 import static android.net.TrafficStats.UNSUPPORTED;
+import static android.net.connectivity.ConnectivityCompatChanges.ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID_TAG;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_XT;
@@ -84,6 +85,7 @@ import android.annotation.TargetApi;
 import android.app.AlarmManager;
 import android.app.BroadcastOptions;
 import android.app.PendingIntent;
+import android.app.compat.CompatChanges;
 import android.app.usage.NetworkStatsManager;
 import android.content.ApexEnvironment;
 import android.content.BroadcastReceiver;
@@ -139,6 +141,7 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
+import android.os.SharedMemory;
 import android.os.SystemClock;
 import android.os.Trace;
 import android.os.UserHandle;
@@ -293,6 +296,30 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     static final String NETSTATS_IMPORT_FALLBACKS_COUNTER_NAME = "import.fallbacks";
     static final String CONFIG_ENABLE_NETWORK_STATS_EVENT_LOGGER =
             "enable_network_stats_event_logger";
+    /**
+     * DeviceConfig flags for the cache of the values returned by the TrafficStats APIs. A zero
+     * or negative expiry duration disables the cache. The cache is only used for callers with
+     * the ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE compat change enabled, unless
+     * {@link #TRAFFIC_STATS_CACHE_ALWAYS_ENABLED_NAME} is set.
+     */
+    static final String TRAFFIC_STATS_CACHE_EXPIRY_DURATION_NAME =
+            "trafficstats_cache_expiry_duration_ms";
+    static final int DEFAULT_TRAFFIC_STATS_CACHE_EXPIRY_DURATION_MS = 1000;
+    static final String TRAFFIC_STATS_CACHE_MAX_ENTRIES_NAME = "trafficstats_cache_max_entries";
+    static final int DEFAULT_TRAFFIC_STATS_CACHE_MAX_ENTRIES = 400;
+    static final String TRAFFIC_STATS_CACHE_ALWAYS_ENABLED_NAME =
+            "trafficstats_cache_always_enabled";
+    /**
+     * DeviceConfig flags for the shared memory regions through which apps read their
+     * TrafficStats counters without a binder call. A zero or negative update interval disables
+     * the shared memory.
+     */
+    static final String TRAFFIC_STATS_SHARED_MEMORY_UPDATE_INTERVAL_NAME =
+            "trafficstats_shared_memory_update_interval_ms";
+    static final int DEFAULT_TRAFFIC_STATS_SHARED_MEMORY_UPDATE_INTERVAL_MS = 1000;
+    static final String TRAFFIC_STATS_SHARED_MEMORY_MAX_REGIONS_NAME =
+            "trafficstats_shared_memory_max_regions";
+    static final int DEFAULT_TRAFFIC_STATS_SHARED_MEMORY_MAX_REGIONS = 64;
 
     static final String NETSTATS_FASTDATAINPUT_TARGET_ATTEMPTS =
             "netstats_fastdatainput_target_attempts";
@@ -483,6 +510,21 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     private static final int MAX_SOCKET_DESTROY_LISTENER_LOGS = 20;
 
+    // Caches of the values returned by getTotalStats, getIfaceStats and getUidStats, or null if
+    // caching is disabled. These are separate caches since their keys can overlap.
+    @Nullable
+    private final TrafficStatsRateLimitCache mTrafficStatsTotalCache;
+    @Nullable
+    private final TrafficStatsRateLimitCache mTrafficStatsIfaceCache;
+    @Nullable
+    private final TrafficStatsRateLimitCache mTrafficStatsUidCache;
+    private final int mTrafficStatsCacheExpiryDurationMs;
+    private final int mTrafficStatsCacheMaxEntries;
+    private final boolean mAlwaysUseTrafficStatsRateLimitCache;
+    // Publishes the TrafficStats counters in shared memory, or null if disabled.
+    @Nullable
+    private final TrafficStatsSharedMemoryManager mTrafficStatsSharedMemoryManager;
+
     private static @NonNull Clock getDefaultClock() {
         return new BestClock(ZoneOffset.UTC, SystemClock.currentNetworkTimeClock(),
                 Clock.systemUTC());
@@ -650,6 +692,47 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         final BpfNetMaps bpfNetMaps = mDeps.makeBpfNetMaps(mContext);
         mSkDestroyListener = mDeps.makeSkDestroyListener(mCookieTagMap, mHandler);
         mHandler.post(mSkDestroyListener::start);
+
+        mTrafficStatsCacheExpiryDurationMs = mDeps.getTrafficStatsRateLimitCacheExpiryDuration();
+        mTrafficStatsCacheMaxEntries = mDeps.getTrafficStatsRateLimitCacheMaxEntries();
+        mAlwaysUseTrafficStatsRateLimitCache =
+                mDeps.alwaysUseTrafficStatsRateLimitCache(mContext);
+        if (mTrafficStatsCacheExpiryDurationMs > 0 && mTrafficStatsCacheMaxEntries > 0) {
+            // Use the monotonic clock, so that wall clock changes do not affect expiry.
+            final Clock cacheClock = mDeps.getTrafficStatsRateLimitCacheClock();
+            mTrafficStatsTotalCache = new TrafficStatsRateLimitCache(cacheClock,
+                    mTrafficStatsCacheExpiryDurationMs, mTrafficStatsCacheMaxEntries);
+            mTrafficStatsIfaceCache = new TrafficStatsRateLimitCache(cacheClock,
+                    mTrafficStatsCacheExpiryDurationMs, mTrafficStatsCacheMaxEntries);
+            mTrafficStatsUidCache = new TrafficStatsRateLimitCache(cacheClock,
+                    mTrafficStatsCacheExpiryDurationMs, mTrafficStatsCacheMaxEntries);
+        } else {
+            mTrafficStatsTotalCache = null;
+            mTrafficStatsIfaceCache = null;
+            mTrafficStatsUidCache = null;
+        }
+
+        final int sharedMemoryUpdateIntervalMs =
+                mDeps.getTrafficStatsSharedMemoryUpdateInterval();
+        final int sharedMemoryMaxRegions = mDeps.getTrafficStatsSharedMemoryMaxRegions();
+        if (sharedMemoryUpdateIntervalMs > 0 && sharedMemoryMaxRegions > 0) {
+            mTrafficStatsSharedMemoryManager = new TrafficStatsSharedMemoryManager(mHandler,
+                    mDeps.getTrafficStatsRateLimitCacheClock(), sharedMemoryUpdateIntervalMs,
+                    sharedMemoryMaxRegions,
+                    new TrafficStatsSharedMemoryManager.StatsProvider() {
+                        @Override
+                        public NetworkStats.Entry getTotalStats() {
+                            return getTotalStatsInternal();
+                        }
+
+                        @Override
+                        public NetworkStats.Entry getUidStats(int uid) {
+                            return mDeps.nativeGetUidStat(uid);
+                        }
+                    });
+        } else {
+            mTrafficStatsSharedMemoryManager = null;
+        }
     }
 
     /**
@@ -881,6 +964,87 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     cookieTagMap, handler, new SharedLog(MAX_SOCKET_DESTROY_LISTENER_LOGS, TAG));
         }
 
+        /**
+         * Get the expiry duration of the TrafficStats cache, or 0 if the cache is disabled.
+         */
+        public int getTrafficStatsRateLimitCacheExpiryDuration() {
+            return DeviceConfigUtils.getDeviceConfigPropertyInt(
+                    DeviceConfig.NAMESPACE_TETHERING, TRAFFIC_STATS_CACHE_EXPIRY_DURATION_NAME,
+                    DEFAULT_TRAFFIC_STATS_CACHE_EXPIRY_DURATION_MS);
+        }
+
+        /**
+         * Get the maximum number of entries of each TrafficStats cache.
+         */
+        public int getTrafficStatsRateLimitCacheMaxEntries() {
+            return DeviceConfigUtils.getDeviceConfigPropertyInt(
+                    DeviceConfig.NAMESPACE_TETHERING, TRAFFIC_STATS_CACHE_MAX_ENTRIES_NAME,
+                    DEFAULT_TRAFFIC_STATS_CACHE_MAX_ENTRIES);
+        }
+
+        /**
+         * Get whether the TrafficStats cache is used for all callers, regardless of the
+         * ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE compat change.
+         */
+        public boolean alwaysUseTrafficStatsRateLimitCache(Context ctx) {
+            return DeviceConfigUtils.isTetheringFeatureEnabled(
+                    ctx, TRAFFIC_STATS_CACHE_ALWAYS_ENABLED_NAME);
+        }
+
+        /**
+         * Get how often the TrafficStats shared memory regions are updated, or 0 if the shared
+         * memory is disabled.
+         */
+        public int getTrafficStatsSharedMemoryUpdateInterval() {
+            return DeviceConfigUtils.getDeviceConfigPropertyInt(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    TRAFFIC_STATS_SHARED_MEMORY_UPDATE_INTERVAL_NAME,
+                    DEFAULT_TRAFFIC_STATS_SHARED_MEMORY_UPDATE_INTERVAL_MS);
+        }
+
+        /**
+         * Get the maximum number of UIDs that can hold a TrafficStats shared memory region.
+         */
+        public int getTrafficStatsSharedMemoryMaxRegions() {
+            return DeviceConfigUtils.getDeviceConfigPropertyInt(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    TRAFFIC_STATS_SHARED_MEMORY_MAX_REGIONS_NAME,
+                    DEFAULT_TRAFFIC_STATS_SHARED_MEMORY_MAX_REGIONS);
+        }
+
+        /**
+         * Get the clock used to expire the TrafficStats cache entries and to timestamp the
+         * TrafficStats shared memory updates.
+         */
+        public Clock getTrafficStatsRateLimitCacheClock() {
+            return SystemClock.elapsedRealtimeClock();
+        }
+
+        /**
+         * @see android.app.compat.CompatChanges#isChangeEnabled(long, int)
+         */
+        public boolean isChangeEnabled(long changeId, int uid) {
+            return CompatChanges.isChangeEnabled(changeId, uid);
+        }
+
+        /** Get the total stats of all interfaces, as counted by the BPF programs. */
+        @Nullable
+        public NetworkStats.Entry nativeGetTotalStat() {
+            return NetworkStatsService.nativeGetTotalStat();
+        }
+
+        /** Get the stats of the given interface, as counted by the BPF programs. */
+        @Nullable
+        public NetworkStats.Entry nativeGetIfaceStat(String iface) {
+            return NetworkStatsService.nativeGetIfaceStat(iface);
+        }
+
+        /** Get the stats of the given UID, as counted by the BPF programs. */
+        @Nullable
+        public NetworkStats.Entry nativeGetUidStat(int uid) {
+            return NetworkStatsService.nativeGetUidStat(uid);
+        }
+
         /**
          * Get whether event logger feature is supported.
          */
@@ -1980,29 +2144,98 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
     }
 
+    // Returns the cache to use for the calling app, or null if its values must not be cached.
+    @Nullable
+    private TrafficStatsRateLimitCache getTrafficStatsCacheForCaller(
+            @Nullable TrafficStatsRateLimitCache cache) {
+        if (cache == null) return null;
+        return callerAcceptsCachedTrafficStats() ? cache : null;
+    }
+
+    // Returns whether the TrafficStats values returned to the calling app can be cached.
+    private boolean callerAcceptsCachedTrafficStats() {
+        if (mAlwaysUseTrafficStatsRateLimitCache) return true;
+        final int callingUid = Binder.getCallingUid();
+        final long token = Binder.clearCallingIdentity();
+        try {
+            return mDeps.isChangeEnabled(ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE, callingUid);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
     @Override
     public long getUidStats(int uid, int type) {
         final int callingUid = Binder.getCallingUid();
         if (callingUid != android.os.Process.SYSTEM_UID && callingUid != uid) {
             return UNSUPPORTED;
         }
-        return getEntryValueForType(nativeGetUidStat(uid), type);
+        final boolean acceptsCachedValues = callerAcceptsCachedTrafficStats();
+        if (acceptsCachedValues) noteBinderTrafficStatsRequest();
+        final TrafficStatsRateLimitCache cache =
+                acceptsCachedValues ? mTrafficStatsUidCache : null;
+        final NetworkStats.Entry entry = (cache == null) ? mDeps.nativeGetUidStat(uid)
+                : cache.getOrCompute(IFACE_ALL, uid, () -> mDeps.nativeGetUidStat(uid));
+        return getEntryValueForType(entry, type);
+    }
+
+    // Apps that can read their counters in shared memory only make binder calls when the
+    // values there are stale, so keep the shared memory updated.
+    private void noteBinderTrafficStatsRequest() {
+        if (mTrafficStatsSharedMemoryManager != null) {
+            mTrafficStatsSharedMemoryManager.noteBinderStatsRequest();
+        }
+    }
+
+    @Override
+    @Nullable
+    public SharedMemory getTrafficStatsSharedMemory(@NonNull IBinder token) {
+        Objects.requireNonNull(token);
+        if (mTrafficStatsSharedMemoryManager == null) return null;
+        // The values in shared memory are up to one update interval old, so only share it with
+        // the callers that accept cached values.
+        if (!callerAcceptsCachedTrafficStats()) return null;
+        final int callingUid = Binder.getCallingUid();
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            return mTrafficStatsSharedMemoryManager.getSharedMemory(callingUid, token);
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
     }
 
     @Override
     public long getIfaceStats(@NonNull String iface, int type) {
         Objects.requireNonNull(iface);
-        final NetworkStats.Entry entry = nativeGetIfaceStat(iface);
-        final long value = getEntryValueForType(entry, type);
-        if (value == UNSUPPORTED) {
-            return UNSUPPORTED;
-        } else {
-            // When tethering offload is in use, nativeIfaceStats does not contain usage from
-            // offload, add it back here. Note that the included statistics might be stale
-            // since polling newest stats from hardware might impact system health and not
-            // suitable for TrafficStats API use cases.
-            entry.add(getProviderIfaceStats(iface));
-            return getEntryValueForType(entry, type);
+        if (!isSupportedStatsType(type)) return UNSUPPORTED;
+        final TrafficStatsRateLimitCache cache =
+                getTrafficStatsCacheForCaller(mTrafficStatsIfaceCache);
+        final NetworkStats.Entry entry = (cache == null) ? getIfaceStatsInternal(iface)
+                : cache.getOrCompute(iface, UID_ALL, () -> getIfaceStatsInternal(iface));
+        return getEntryValueForType(entry, type);
+    }
+
+    @Nullable
+    private NetworkStats.Entry getIfaceStatsInternal(@NonNull String iface) {
+        final NetworkStats.Entry entry = mDeps.nativeGetIfaceStat(iface);
+        if (entry == null) return null;
+        // When tethering offload is in use, nativeIfaceStats does not contain usage from
+        // offload, add it back here. Note that the included statistics might be stale
+        // since polling newest stats from hardware might impact system health and not
+        // suitable for TrafficStats API use cases.
+        entry.add(getProviderIfaceStats(iface));
+        return entry;
+    }
+
+    private static boolean isSupportedStatsType(int type) {
+        switch (type) {
+            case TrafficStats.TYPE_RX_BYTES:
+            case TrafficStats.TYPE_TX_BYTES:
+            case TrafficStats.TYPE_RX_PACKETS:
+            case TrafficStats.TYPE_TX_PACKETS:
+                return true;
+            default:
+                return false;
         }
     }
 
@@ -2024,15 +2257,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     @Override
     public long getTotalStats(int type) {
-        final NetworkStats.Entry entry = nativeGetTotalStat();
-        final long value = getEntryValueForType(entry, type);
-        if (value == UNSUPPORTED) {
-            return UNSUPPORTED;
-        } else {
-            // Refer to comment in getIfaceStats
-            entry.add(getProviderIfaceStats(IFACE_ALL));
-            return getEntryValueForType(entry, type);
-        }
+        if (!isSupportedStatsType(type)) return UNSUPPORTED;
+        final boolean acceptsCachedValues = callerAcceptsCachedTrafficStats();
+        if (acceptsCachedValues) noteBinderTrafficStatsRequest();
+        final TrafficStatsRateLimitCache cache =
+                acceptsCachedValues ? mTrafficStatsTotalCache : null;
+        final NetworkStats.Entry entry = (cache == null) ? getTotalStatsInternal()
+                : cache.getOrCompute(IFACE_ALL, UID_ALL, this::getTotalStatsInternal);
+        return getEntryValueForType(entry, type);
+    }
+
+    @Nullable
+    private NetworkStats.Entry getTotalStatsInternal() {
+        final NetworkStats.Entry entry = mDeps.nativeGetTotalStat();
+        if (entry == null) return null;
+        // Refer to comment in getIfaceStatsInternal
+        entry.add(getProviderIfaceStats(IFACE_ALL));
+        return entry;
     }
 
     private NetworkStats.Entry getProviderIfaceStats(@Nullable String iface) {
@@ -2773,6 +3014,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
             pw.println(CONFIG_ENABLE_NETWORK_STATS_EVENT_LOGGER + ": " + mSupportEventLogger);
+            pw.print(TRAFFIC_STATS_CACHE_EXPIRY_DURATION_NAME, mTrafficStatsCacheExpiryDurationMs);
+            pw.println();
+            pw.print(TRAFFIC_STATS_CACHE_MAX_ENTRIES_NAME, mTrafficStatsCacheMaxEntries);
+            pw.println();
+            pw.print(TRAFFIC_STATS_CACHE_ALWAYS_ENABLED_NAME, mAlwaysUseTrafficStatsRateLimitCache);
+            pw.println();
+            if (mTrafficStatsSharedMemoryManager != null) {
+                mTrafficStatsSharedMemoryManager.dump(pw);
+            }
             pw.print(NETSTATS_FASTDATAINPUT_TARGET_ATTEMPTS,
                     mDeps.getUseFastDataInputTargetAttempts());
             pw.println();
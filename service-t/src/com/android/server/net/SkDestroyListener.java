@@ -16,11 +16,20 @@
 
 package com.android.server.net;
 
+import static android.system.OsConstants.AF_INET;
+import static android.system.OsConstants.AF_INET6;
+import static android.system.OsConstants.ENOBUFS;
+import static android.system.OsConstants.IPPROTO_TCP;
+import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.NETLINK_INET_DIAG;
 
+import static com.android.net.module.util.netlink.NetlinkConstants.SOCK_DIAG_BY_FAMILY;
+
 import android.os.Handler;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.IBpfMap;
 import com.android.net.module.util.SharedLog;
 import com.android.net.module.util.bpf.CookieTagMapKey;
@@ -28,12 +37,25 @@ import com.android.net.module.util.bpf.CookieTagMapValue;
 import com.android.net.module.util.ip.NetlinkMonitor;
 import com.android.net.module.util.netlink.InetDiagMessage;
 import com.android.net.module.util.netlink.NetlinkMessage;
+import com.android.net.module.util.netlink.NetlinkUtils;
+import com.android.net.module.util.netlink.StructInetDiagMsg;
+import com.android.net.module.util.netlink.StructInetDiagReqV2;
 import com.android.net.module.util.netlink.StructInetDiagSockId;
 
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Monitor socket destroy and delete entry from cookie tag bpf map.
+ *
+ * Destroy notifications can be lost if too many sockets are closed too quickly for the socket
+ * buffer. To free the entries of these sockets, the cookie tag map is periodically compared with
+ * a dump of all live sockets, and entries of sockets that are missing from two dumps in a row are
+ * deleted. This also happens shortly after a notification is lost.
  */
 public class SkDestroyListener extends NetlinkMonitor {
     private static final int SKNLGRP_INET_TCP_DESTROY = 1;
@@ -41,14 +63,29 @@ public class SkDestroyListener extends NetlinkMonitor {
     private static final int SKNLGRP_INET6_TCP_DESTROY = 3;
     private static final int SKNLGRP_INET6_UDP_DESTROY = 4;
 
-    // TODO: if too many sockets are closed too quickly, this can overflow the socket buffer, and
-    // some entries in mCookieTagMap will not be freed. In order to fix this it would be needed to
-    // periodically dump all sockets and remove the tag entries for sockets that have been closed.
-    // For now, set a large-enough buffer that hundreds of sockets can be closed without getting
-    // ENOBUFS and leaking mCookieTagMap entries.
+    // Large enough that hundreds of sockets can be closed without getting ENOBUFS. Lost
+    // notifications are recovered by garbage collecting the cookie tag map.
     private static final int SOCK_RCV_BUF_SIZE = 512 * 1024;
 
+    @VisibleForTesting
+    static final long GC_INTERVAL_MS = 60 * 60 * 1000L;
+    // Delay before garbage collecting after ENOBUFS, so that a burst of socket closes only causes
+    // one garbage collection once it is over.
+    @VisibleForTesting
+    static final long GC_AFTER_ENOBUFS_DELAY_MS = 5_000L;
+
     private final IBpfMap<CookieTagMapKey, CookieTagMapValue> mCookieTagMap;
+    private final Runnable mGcRunnable = this::garbageCollectCookieTagMap;
+    // Cookies of the tagged sockets that were missing from the last dump, only accessed on the
+    // handler thread.
+    private Set<Long> mMissingCookies = new HashSet<>();
+
+    // Garbage collection metrics, only accessed on the handler thread.
+    private int mGcRuns;
+    private int mGcFailures;
+    private int mNotificationLosses;
+    private long mEntriesReclaimed;
+    private long mLastGcDurationMs;
 
     SkDestroyListener(final IBpfMap<CookieTagMapKey, CookieTagMapValue> cookieTagMap,
             final Handler handler, final SharedLog log) {
@@ -61,6 +98,112 @@ public class SkDestroyListener extends NetlinkMonitor {
         mCookieTagMap = cookieTagMap;
     }
 
+    @Override
+    protected void onStart() {
+        scheduleGc(GC_INTERVAL_MS);
+    }
+
+    @Override
+    protected void onStop() {
+        getHandler().removeCallbacks(mGcRunnable);
+    }
+
+    @Override
+    protected boolean handleReadError(ErrnoException e) {
+        if (e.errno != ENOBUFS) return super.handleReadError(e);
+        // Some destroy notifications were lost, keep reading and reclaim the entries later.
+        mNotificationLosses++;
+        mLog.w("Socket destroy notifications lost, scheduling garbage collection");
+        scheduleGc(GC_AFTER_ENOBUFS_DELAY_MS);
+        return false;
+    }
+
+    // Schedules the next garbage collection, unless one is already scheduled earlier.
+    private void scheduleGc(long delayMs) {
+        final Handler handler = getHandler();
+        if (delayMs >= GC_INTERVAL_MS && handler.hasCallbacks(mGcRunnable)) return;
+        handler.removeCallbacks(mGcRunnable);
+        handler.postDelayed(mGcRunnable, delayMs);
+    }
+
+    /**
+     * Returns the cookies of all TCP and UDP sockets.
+     *
+     * @throws IOException or ErrnoException if a dump fails, in which case the returned cookies
+     *         would be incomplete.
+     */
+    @VisibleForTesting
+    Set<Long> getLiveSocketCookies() throws IOException, ErrnoException {
+        final Set<Long> cookies = new HashSet<>();
+        for (int proto : new int[] { IPPROTO_TCP, IPPROTO_UDP }) {
+            for (int family : new int[] { AF_INET, AF_INET6 }) {
+                final byte[] req = InetDiagMessage.inetDiagReqV2Dump(proto, family,
+                        StructInetDiagReqV2.INET_DIAG_REQ_V2_ALL_STATES, null /* filter */);
+                // Only the cookies are needed, so read them without parsing the messages.
+                NetlinkUtils.getAndProcessNetlinkDumpMessages(req, NETLINK_INET_DIAG,
+                        InetDiagMessage.class, (type, payload) -> {
+                            if (type != SOCK_DIAG_BY_FAMILY) return true;
+                            final Long cookie = StructInetDiagMsg.peekCookie(payload);
+                            if (cookie != null) cookies.add(cookie);
+                            return false;
+                        }, msg -> cookies.add(msg.inetDiagMsg.id.cookie));
+            }
+        }
+        return cookies;
+    }
+
+    /**
+     * Deletes the cookie tag map entries of sockets that no longer exist.
+     *
+     * Socket cookies are never reused, so an entry is stale if it existed before the sockets were
+     * dumped and its socket was not in the dump. Entries added during the dump are not considered.
+     * Only TCP and UDP sockets are dumped, like only their destroy notifications are received.
+     *
+     * Some live sockets are not reported by inet_diag, such as TCP sockets that are bound but not
+     * hashed yet and unbound UDP sockets, so an entry is only deleted once its socket was missing
+     * from two garbage collections in a row. Such sockets are usually reported by the next one.
+     */
+    @VisibleForTesting
+    void garbageCollectCookieTagMap() {
+        final long startMs = SystemClock.elapsedRealtime();
+        mGcRuns++;
+        scheduleGc(GC_INTERVAL_MS);
+
+        final List<Long> taggedCookies = new ArrayList<>();
+        final Set<Long> liveCookies;
+        try {
+            mCookieTagMap.forEach((key, value) -> taggedCookies.add(key.socketCookie));
+            liveCookies = getLiveSocketCookies();
+        } catch (IOException | ErrnoException e) {
+            mGcFailures++;
+            mLog.e("Failed to garbage collect cookie tag map: " + e);
+            return;
+        }
+
+        int reclaimed = 0;
+        final Set<Long> missingCookies = new HashSet<>();
+        for (final long cookie : taggedCookies) {
+            if (liveCookies.contains(cookie)) continue;
+            if (!mMissingCookies.contains(cookie)) {
+                missingCookies.add(cookie);
+                continue;
+            }
+            try {
+                // The entry may have been deleted by a destroy notification in the meantime.
+                if (mCookieTagMap.deleteEntry(new CookieTagMapKey(cookie))) reclaimed++;
+            } catch (ErrnoException e) {
+                mLog.e("Failed to delete CookieTagMap entry for " + cookie + ": " + e);
+            }
+        }
+        mMissingCookies = missingCookies;
+        mEntriesReclaimed += reclaimed;
+        mLastGcDurationMs = SystemClock.elapsedRealtime() - startMs;
+        if (reclaimed > 0) {
+            mLog.i("Reclaimed " + reclaimed + " of " + taggedCookies.size()
+                    + " cookie tag map entries in " + mLastGcDurationMs + "ms");
+        }
+    }
+
     @Override
     public void processNetlinkMessage(final NetlinkMessage nlMsg, final long whenMs) {
         if (!(nlMsg instanceof InetDiagMessage)) {
@@ -79,6 +222,12 @@ public class SkDestroyListener extends NetlinkMonitor {
      * Dump the contents of SkDestroyListener log.
      */
     public void dump(PrintWriter pw) {
+        // The metrics are only written on the handler thread, and may be slightly stale here.
+        pw.println("Cookie tag map garbage collection: runs=" + mGcRuns
+                + " failures=" + mGcFailures
+                + " notificationLosses=" + mNotificationLosses
+                + " entriesReclaimed=" + mEntriesReclaimed
+                + " lastDurationMs=" + mLastGcDurationMs);
         mLog.reverseDump(pw);
     }
 }
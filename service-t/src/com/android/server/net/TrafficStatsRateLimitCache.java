@@ -23,26 +23,32 @@ import android.net.NetworkStats;
 import com.android.internal.annotations.GuardedBy;
 
 import java.time.Clock;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * A thread-safe cache for storing and retrieving {@link NetworkStats.Entry} objects,
- * with an adjustable expiry duration to manage data freshness.
+ * with an adjustable expiry duration to manage data freshness, and a maximum number of
+ * entries beyond which the least recently used entries are evicted.
  */
 class TrafficStatsRateLimitCache {
     private final Clock mClock;
     private final long mExpiryDurationMs;
+    private final int mMaxSize;
 
     /**
      * Constructs a new {@link TrafficStatsRateLimitCache} with the specified expiry duration.
      *
      * @param clock The {@link Clock} to use for determining timestamps.
      * @param expiryDurationMs The expiry duration in milliseconds.
+     * @param maxSize The maximum number of entries in the cache.
      */
-    TrafficStatsRateLimitCache(@NonNull Clock clock, long expiryDurationMs) {
+    TrafficStatsRateLimitCache(@NonNull Clock clock, long expiryDurationMs, int maxSize) {
         mClock = clock;
         mExpiryDurationMs = expiryDurationMs;
+        mMaxSize = maxSize;
     }
 
     private static class TrafficStatsCacheKey {
@@ -80,8 +86,17 @@ class TrafficStatsRateLimitCache {
         }
     }
 
+    // Access-ordered, so that the eldest entry is the least recently used one.
     @GuardedBy("mMap")
-    private final HashMap<TrafficStatsCacheKey, TrafficStatsCacheValue> mMap = new HashMap<>();
+    private final LinkedHashMap<TrafficStatsCacheKey, TrafficStatsCacheValue> mMap =
+            new LinkedHashMap<>(16 /* initialCapacity */, 0.75f /* loadFactor */,
+                    true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<TrafficStatsCacheKey, TrafficStatsCacheValue> eldest) {
+                    return size() > mMaxSize;
+                }
+            };
 
     /**
      * Retrieves a {@link NetworkStats.Entry} from the cache, associated with the given key.
@@ -119,6 +134,30 @@ class TrafficStatsRateLimitCache {
         }
     }
 
+    /**
+     * Retrieves a {@link NetworkStats.Entry} from the cache, or computes and caches it if it
+     * is not found or expired.
+     *
+     * The supplier is called without holding the cache lock, so concurrent callers for the same
+     * expired key may all call it. Null values are returned but not cached.
+     *
+     * @param iface The interface name to include in the cache key. Null if not applicable.
+     * @param uid The UID to include in the cache key. {@code UID_ALL} if not applicable.
+     * @param supplier Computes the value if it is not in the cache. The returned entry must not
+     *                 be modified afterwards, since it may be returned to other callers.
+     * @return The cached or computed {@link NetworkStats.Entry}, or null if the supplier
+     *         returned null.
+     */
+    @Nullable
+    NetworkStats.Entry getOrCompute(String iface, int uid,
+            @NonNull Supplier<NetworkStats.Entry> supplier) {
+        final NetworkStats.Entry cached = get(iface, uid);
+        if (cached != null) return cached;
+        final NetworkStats.Entry entry = supplier.get();
+        if (entry != null) put(iface, uid, entry);
+        return entry;
+    }
+
     /**
      * Clear the cache.
      */
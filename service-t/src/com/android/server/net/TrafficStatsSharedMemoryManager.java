@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.system.OsConstants.PROT_READ;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+import android.net.netstats.TrafficStatsSharedMemory;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.util.ArraySet;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Clock;
+
+/**
+ * Publishes the TrafficStats counters of apps in shared memory regions, so that apps can read
+ * their own UID counters and the total counters of the device without a binder call.
+ *
+ * Each UID gets its own region, so an app cannot read the counters of other apps. The regions
+ * are mapped read-only by the apps and are updated at a bounded rate on the handler thread
+ * while at least one process holds a region. A region is freed when all the processes that
+ * requested it have died.
+ *
+ * The reads of the apps cannot be observed, so the updates stop when no app has requested a
+ * region or fallen back to a binder call for a while. Apps fall back to a binder call when the
+ * values in their region are stale, which resumes the updates.
+ */
+class TrafficStatsSharedMemoryManager {
+    private static final String TAG = TrafficStatsSharedMemoryManager.class.getSimpleName();
+    // Number of update intervals without activity after which the updates stop.
+    @VisibleForTesting
+    static final int IDLE_UPDATE_INTERVALS = 30;
+
+    /** Provides the counters published in the regions. */
+    interface StatsProvider {
+        /** Returns the total counters of the device, or null if unavailable. */
+        @Nullable
+        NetworkStats.Entry getTotalStats();
+
+        /** Returns the counters of the given UID, or null if unavailable. */
+        @Nullable
+        NetworkStats.Entry getUidStats(int uid);
+    }
+
+    private static class Region {
+        final SharedMemory memory;
+        final ByteBuffer buffer;
+        // Binder tokens of the processes that hold the region.
+        final ArraySet<IBinder> tokens = new ArraySet<>();
+
+        Region(@NonNull SharedMemory memory, @NonNull ByteBuffer buffer) {
+            this.memory = memory;
+            this.buffer = buffer;
+        }
+
+        void free() {
+            SharedMemory.unmap(buffer);
+            memory.close();
+        }
+    }
+
+    private final Handler mHandler;
+    private final Clock mClock;
+    private final long mUpdateIntervalMs;
+    private final int mMaxRegions;
+    private final StatsProvider mStatsProvider;
+    private final Runnable mUpdateRunnable = this::updateRegions;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<Region> mRegions = new SparseArray<>();
+    // Whether an update is scheduled on the handler.
+    @GuardedBy("mLock")
+    private boolean mUpdating = false;
+    // Last time a region was requested or an app fetched its counters through a binder call.
+    @GuardedBy("mLock")
+    private long mLastActivityMs = 0;
+    @GuardedBy("mLock")
+    private long mUpdateCount = 0;
+    @GuardedBy("mLock")
+    private int mRejectedRequestCount = 0;
+    @GuardedBy("mLock")
+    private int mEvictedRegionCount = 0;
+
+    /**
+     * @param handler the handler on which the regions are updated.
+     * @param clock the {@link android.os.SystemClock#elapsedRealtime} clock.
+     * @param updateIntervalMs how often the regions are updated.
+     * @param maxRegions the maximum number of UIDs that can hold a region at the same time.
+     * @param statsProvider provides the published counters.
+     */
+    TrafficStatsSharedMemoryManager(@NonNull Handler handler, @NonNull Clock clock,
+            long updateIntervalMs, int maxRegions, @NonNull StatsProvider statsProvider) {
+        mHandler = handler;
+        mClock = clock;
+        mUpdateIntervalMs = updateIntervalMs;
+        mMaxRegions = maxRegions;
+        mStatsProvider = statsProvider;
+    }
+
+    /**
+     * Returns the region of the given UID, creating it if necessary.
+     *
+     * @param uid the UID of the caller.
+     * @param token a binder token identifying the calling process. The region is kept until
+     *              the processes of all tokens that requested it have died.
+     * @return the region, or null if it cannot be created.
+     */
+    @Nullable
+    SharedMemory getSharedMemory(int uid, @NonNull IBinder token) {
+        synchronized (mLock) {
+            mLastActivityMs = mClock.millis();
+            final Region region = mRegions.get(uid);
+            if (region != null) return addTokenLocked(uid, region, token);
+            if (!hasCapacityLocked()) {
+                mRejectedRequestCount++;
+                return null;
+            }
+        }
+
+        // Reading the counters can be slow, so the region is created without holding the lock.
+        final Region created = createRegion(uid);
+        if (created == null) return null;
+        synchronized (mLock) {
+            Region region = mRegions.get(uid);
+            if (region != null) {
+                // Another process of the UID created the region in the meantime.
+                created.free();
+            } else if (!hasCapacityLocked()) {
+                created.free();
+                mRejectedRequestCount++;
+                return null;
+            } else {
+                region = created;
+                mRegions.put(uid, region);
+                startUpdatesLocked(mUpdateIntervalMs);
+            }
+            return addTokenLocked(uid, region, token);
+        }
+    }
+
+    /**
+     * Notes that an app fetched its counters through a binder call, which apps do when the
+     * values in their region are stale. Resumes the updates if they were stopped.
+     */
+    void noteBinderStatsRequest() {
+        synchronized (mLock) {
+            mLastActivityMs = mClock.millis();
+            if (mRegions.size() == 0) return;
+            // Update right away, so that the next reads of the apps are served from the regions.
+            startUpdatesLocked(0 /* delayMs */);
+        }
+    }
+
+    @GuardedBy("mLock")
+    @Nullable
+    private SharedMemory addTokenLocked(int uid, @NonNull Region region,
+            @NonNull IBinder token) {
+        if (!region.tokens.contains(token)) {
+            try {
+                token.linkToDeath(() -> onTokenDied(uid, token), 0 /* flags */);
+            } catch (RemoteException e) {
+                // The calling process is already dead.
+                maybeFreeRegion(uid, region);
+                return null;
+            }
+            region.tokens.add(token);
+        }
+        return region.memory;
+    }
+
+    // Returns whether a region can be created, after freeing the regions of dead processes whose
+    // death has not been notified yet if all regions are in use.
+    @GuardedBy("mLock")
+    private boolean hasCapacityLocked() {
+        if (mRegions.size() < mMaxRegions) return true;
+        for (int i = mRegions.size() - 1; i >= 0; i--) {
+            final Region region = mRegions.valueAt(i);
+            region.tokens.removeIf(token -> !token.isBinderAlive());
+            if (region.tokens.isEmpty()) {
+                maybeFreeRegion(mRegions.keyAt(i), region);
+                mEvictedRegionCount++;
+            }
+        }
+        return mRegions.size() < mMaxRegions;
+    }
+
+    @Nullable
+    private Region createRegion(int uid) {
+        SharedMemory memory = null;
+        try {
+            memory = SharedMemory.create("TrafficStats:" + uid, TrafficStatsSharedMemory.SIZE);
+            final ByteBuffer buffer = memory.mapReadWrite().order(ByteOrder.nativeOrder());
+            TrafficStatsSharedMemory.init(buffer, uid, mUpdateIntervalMs);
+            // Publish the counters right away, so that the first read does not need to fall
+            // back to a binder call.
+            TrafficStatsSharedMemory.write(buffer, mStatsProvider.getTotalStats(),
+                    mStatsProvider.getUidStats(uid), mClock.millis());
+            // Mappings created from now on, including the ones of the app, are read-only.
+            if (!memory.setProtect(PROT_READ)) {
+                SharedMemory.unmap(buffer);
+                memory.close();
+                return null;
+            }
+            return new Region(memory, buffer);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to create TrafficStats shared memory for uid " + uid, e);
+            if (memory != null) memory.close();
+            return null;
+        }
+    }
+
+    private void onTokenDied(int uid, @NonNull IBinder token) {
+        synchronized (mLock) {
+            final Region region = mRegions.get(uid);
+            if (region == null) return;
+            region.tokens.remove(token);
+            maybeFreeRegion(uid, region);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void maybeFreeRegion(int uid, @NonNull Region region) {
+        if (!region.tokens.isEmpty()) return;
+        mRegions.remove(uid);
+        region.free();
+    }
+
+    @GuardedBy("mLock")
+    private void startUpdatesLocked(long delayMs) {
+        if (mUpdating) return;
+        mUpdating = true;
+        mHandler.postDelayed(mUpdateRunnable, delayMs);
+    }
+
+    private void updateRegions() {
+        final int[] uids;
+        synchronized (mLock) {
+            // Stop updating when no process holds a region, or when the regions have not been
+            // used for a while.
+            if (mRegions.size() == 0
+                    || mClock.millis() - mLastActivityMs >= mUpdateIntervalMs
+                            * IDLE_UPDATE_INTERVALS) {
+                mUpdating = false;
+                return;
+            }
+            uids = new int[mRegions.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = mRegions.keyAt(i);
+            }
+        }
+
+        // Read the counters without holding the lock, so that binder calls requesting a region
+        // do not wait for the BPF maps to be read.
+        final NetworkStats.Entry total = mStatsProvider.getTotalStats();
+        final NetworkStats.Entry[] uidStats = new NetworkStats.Entry[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            uidStats[i] = mStatsProvider.getUidStats(uids[i]);
+        }
+
+        synchronized (mLock) {
+            final long now = mClock.millis();
+            for (int i = 0; i < uids.length; i++) {
+                // The region may have been freed in the meantime.
+                final Region region = mRegions.get(uids[i]);
+                if (region == null) continue;
+                TrafficStatsSharedMemory.write(region.buffer, total, uidStats[i], now);
+            }
+            mUpdateCount++;
+            mHandler.postDelayed(mUpdateRunnable, mUpdateIntervalMs);
+        }
+    }
+
+    /** Returns the number of UIDs that currently hold a region. */
+    int getRegionCount() {
+        synchronized (mLock) {
+            return mRegions.size();
+        }
+    }
+
+    /** Dumps the state of the manager. */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("TrafficStats shared memory: regions=" + mRegions.size()
+                    + " maxRegions=" + mMaxRegions
+                    + " updateIntervalMs=" + mUpdateIntervalMs
+                    + " updating=" + mUpdating
+                    + " updates=" + mUpdateCount
+                    + " rejectedRequests=" + mRejectedRequestCount
+                    + " evictedRegions=" + mEvictedRegionCount);
+        }
+    }
+}
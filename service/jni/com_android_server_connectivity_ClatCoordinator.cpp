@@ -127,6 +127,7 @@ static void verifyClatPerms() {
     V2("prog_clatd_schedcls_ingress6_clat_ether", S_IFREG|0440, PROG);
     V2("map_clatd_clat_egress4_map",              S_IFREG|0660, MAP_RW);
     V2("map_clatd_clat_ingress6_map",             S_IFREG|0660, MAP_RW);
+    V2("map_clatd_clat_stats_map",                S_IFREG|0660, MAP_RW);
 
 #undef V2
 
@@ -305,8 +306,8 @@ static jint com_android_server_connectivity_ClatCoordinator_openRawSocket6(JNIEn
     return sock;
 }
 
-static void com_android_server_connectivity_ClatCoordinator_addAnycastSetsockopt(
-        JNIEnv* env, jclass clazz, jobject javaFd, jstring addr6, jint ifindex) {
+static void setAnycastSockopt(JNIEnv* env, jobject javaFd, jstring addr6, jint ifindex,
+                              int optname, const char* optstr) {
     int sock = netjniutils::GetNativeFileDescriptor(env, javaFd);
     if (sock < 0) {
         jniThrowExceptionFmt(env, "java/io/IOException", "Invalid file descriptor");
@@ -323,14 +324,24 @@ static void com_android_server_connectivity_ClatCoordinator_addAnycastSetsockopt
     }
 
     struct ipv6_mreq mreq = {addr, ifindex};
-    int ret = setsockopt(sock, SOL_IPV6, IPV6_JOIN_ANYCAST, &mreq, sizeof(mreq));
+    int ret = setsockopt(sock, SOL_IPV6, optname, &mreq, sizeof(mreq));
     if (ret) {
-        jniThrowExceptionFmt(env, "java/io/IOException", "setsockopt IPV6_JOIN_ANYCAST failed: %s",
+        jniThrowExceptionFmt(env, "java/io/IOException", "setsockopt %s failed: %s", optstr,
                              strerror(errno));
         return;
     }
 }
 
+static void com_android_server_connectivity_ClatCoordinator_addAnycastSetsockopt(
+        JNIEnv* env, jclass clazz, jobject javaFd, jstring addr6, jint ifindex) {
+    setAnycastSockopt(env, javaFd, addr6, ifindex, IPV6_JOIN_ANYCAST, "IPV6_JOIN_ANYCAST");
+}
+
+static void com_android_server_connectivity_ClatCoordinator_dropAnycastSetsockopt(
+        JNIEnv* env, jclass clazz, jobject javaFd, jstring addr6, jint ifindex) {
+    setAnycastSockopt(env, javaFd, addr6, ifindex, IPV6_LEAVE_ANYCAST, "IPV6_LEAVE_ANYCAST");
+}
+
 static void com_android_server_connectivity_ClatCoordinator_configurePacketSocket(
         JNIEnv* env, jclass clazz, jobject javaFd, jstring addr6, jint ifindex) {
     ScopedUtfChars addrStr(env, addr6);
@@ -357,7 +368,8 @@ static void com_android_server_connectivity_ClatCoordinator_configurePacketSocke
 
 static jint com_android_server_connectivity_ClatCoordinator_startClatd(
         JNIEnv* env, jclass clazz, jobject tunJavaFd, jobject readSockJavaFd,
-        jobject writeSockJavaFd, jstring iface, jstring pfx96, jstring v4, jstring v6) {
+        jobject writeSockJavaFd, jobject controlJavaFd, jstring iface, jstring pfx96, jstring v4,
+        jstring v6) {
     ScopedUtfChars ifaceStr(env, iface);
     ScopedUtfChars pfx96Str(env, pfx96);
     ScopedUtfChars v4Str(env, v4);
@@ -381,13 +393,21 @@ static jint com_android_server_connectivity_ClatCoordinator_startClatd(
         return -1;
     }
 
+    int controlFd = netjniutils::GetNativeFileDescriptor(env, controlJavaFd);
+    if (controlFd < 0) {
+        jniThrowExceptionFmt(env, "java/io/IOException", "Invalid control pipe");
+        return -1;
+    }
+
     // 1. these are the FD we'll pass to clatd on the cli, so need it as a string
     char tunFdStr[INT32_STRLEN];
     char sockReadStr[INT32_STRLEN];
     char sockWriteStr[INT32_STRLEN];
+    char controlFdStr[INT32_STRLEN];
     snprintf(tunFdStr, sizeof(tunFdStr), "%d", tunFd);
     snprintf(sockReadStr, sizeof(sockReadStr), "%d", readSock);
     snprintf(sockWriteStr, sizeof(sockWriteStr), "%d", writeSock);
+    snprintf(controlFdStr, sizeof(controlFdStr), "%d", controlFd);
 
     // 2. we're going to use this as argv[0] to clatd to make ps output more useful
     std::string progname("clatd-");
@@ -402,6 +422,7 @@ static jint com_android_server_connectivity_ClatCoordinator_startClatd(
                           "-t", tunFdStr,
                           "-r", sockReadStr,
                           "-w", sockWriteStr,
+                          "-c", controlFdStr,
                           nullptr};
     // clang-format on
 
@@ -450,6 +471,12 @@ static jint com_android_server_connectivity_ClatCoordinator_startClatd(
         throwIOException(env, "posix_spawn_file_actions_adddup2 for write socket failed", ret);
         return -1;
     }
+    if (int ret = posix_spawn_file_actions_adddup2(&fa, controlFd, controlFd)) {
+        posix_spawnattr_destroy(&attr);
+        posix_spawn_file_actions_destroy(&fa);
+        throwIOException(env, "posix_spawn_file_actions_adddup2 for control pipe failed", ret);
+        return -1;
+    }
 
     // 5. actually perform vfork/dup2/execve
     pid_t pid;
@@ -547,11 +574,14 @@ static const JNINativeMethod gMethods[] = {
          (void*)com_android_server_connectivity_ClatCoordinator_openRawSocket6},
         {"native_addAnycastSetsockopt", "(Ljava/io/FileDescriptor;Ljava/lang/String;I)V",
          (void*)com_android_server_connectivity_ClatCoordinator_addAnycastSetsockopt},
+        {"native_dropAnycastSetsockopt", "(Ljava/io/FileDescriptor;Ljava/lang/String;I)V",
+         (void*)com_android_server_connectivity_ClatCoordinator_dropAnycastSetsockopt},
         {"native_configurePacketSocket", "(Ljava/io/FileDescriptor;Ljava/lang/String;I)V",
          (void*)com_android_server_connectivity_ClatCoordinator_configurePacketSocket},
         {"native_startClatd",
-         "(Ljava/io/FileDescriptor;Ljava/io/FileDescriptor;Ljava/io/FileDescriptor;Ljava/lang/"
-         "String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I",
+         "(Ljava/io/FileDescriptor;Ljava/io/FileDescriptor;Ljava/io/FileDescriptor;"
+         "Ljava/io/FileDescriptor;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;"
+         "Ljava/lang/String;)I",
          (void*)com_android_server_connectivity_ClatCoordinator_startClatd},
         {"native_stopClatd", "(I)V",
          (void*)com_android_server_connectivity_ClatCoordinator_stopClatd},
@@ -47,6 +47,7 @@ import static android.system.OsConstants.EOPNOTSUPP;
 
 import static com.android.server.ConnectivityStatsLog.NETWORK_BPF_MAP_INFO;
 
+import android.annotation.NonNull;
 import android.app.StatsManager;
 import android.content.Context;
 import android.net.BpfNetMapsReader;
@@ -61,16 +62,21 @@ import android.util.ArraySet;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.StatsEvent;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.modules.utils.BackgroundThread;
 import com.android.modules.utils.build.SdkLevel;
 import com.android.net.module.util.BpfDump;
 import com.android.net.module.util.BpfMap;
+import com.android.net.module.util.CollectionUtils;
 import com.android.net.module.util.IBpfMap;
+import com.android.net.module.util.SortedIntSet;
 import com.android.net.module.util.Struct;
 import com.android.net.module.util.Struct.S32;
 import com.android.net.module.util.Struct.U32;
@@ -83,6 +89,7 @@ import com.android.net.module.util.bpf.IngressDiscardValue;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
@@ -103,6 +110,13 @@ public class BpfNetMaps {
     private static final String TAG = "BpfNetMaps";
     private final INetd mNetd;
     private final Dependencies mDeps;
+
+    // Number of sUidOwnerMap writes done by replaceUidChain, and number of writes skipped because
+    // the entry already had the expected value. Only used for dumpsys.
+    @GuardedBy("sUidOwnerMap")
+    private long mReplaceUidChainWrites = 0;
+    @GuardedBy("sUidOwnerMap")
+    private long mReplaceUidChainWritesSaved = 0;
     // Use legacy netd for releases before T.
     private static boolean sInitialized = false;
 
@@ -116,6 +130,9 @@ public class BpfNetMaps {
     // BpfNetMaps is an only writer of this entry.
     private static final Object sCurrentStatsMapConfigLock = new Object();
 
+    // Lock for sUidPermissionMap and sUidPermissionMapCopy.
+    private static final Object sUidPermissionMapLock = new Object();
+
     private static final long UID_RULES_DEFAULT_CONFIGURATION = 0;
     private static final long STATS_SELECT_MAP_A = 0;
     private static final long STATS_SELECT_MAP_B = 1;
@@ -124,6 +141,12 @@ public class BpfNetMaps {
     // BpfMap for UID_OWNER_MAP_PATH. This map is not accessed by others.
     private static IBpfMap<S32, UidOwnerValue> sUidOwnerMap = null;
     private static IBpfMap<S32, U8> sUidPermissionMap = null;
+    // Copy of the sUidPermissionMap content, read lazily from the map. BpfNetMaps is the only
+    // writer of sUidPermissionMap (netd only reads it), so this is used to skip the writes that
+    // would not change the map. Reset to null if a write fails, so that the copy is read again
+    // from the map on the next update.
+    @GuardedBy("sUidPermissionMapLock")
+    private static SparseIntArray sUidPermissionMapCopy = null;
     private static IBpfMap<CookieTagMapKey, CookieTagMapValue> sCookieTagMap = null;
     // TODO: Add BOOL class and replace U8?
     private static IBpfMap<S32, U8> sDataSaverEnabledMap = null;
@@ -155,7 +178,10 @@ public class BpfNetMaps {
      */
     @VisibleForTesting
     public static void setUidPermissionMapForTest(IBpfMap<S32, U8> uidPermissionMap) {
-        sUidPermissionMap = uidPermissionMap;
+        synchronized (sUidPermissionMapLock) {
+            sUidPermissionMap = uidPermissionMap;
+            sUidPermissionMapCopy = null;
+        }
     }
 
     /**
@@ -545,14 +571,6 @@ public class BpfNetMaps {
         return BpfNetMapsReader.isChainEnabled(sConfigurationMap, childChain);
     }
 
-    private Set<Integer> asSet(final int[] uids) {
-        final Set<Integer> uidSet = new ArraySet<>();
-        for (final int uid : uids) {
-            uidSet.add(uid);
-        }
-        return uidSet;
-    }
-
     /**
      * Replaces the contents of the specified UID-based firewall chain.
      * Enables the chain for specified uids and disables the chain for non-specified uids.
@@ -574,27 +592,61 @@ public class BpfNetMaps {
             // ConnectivityManager#replaceFirewallChain API
             throw new IllegalArgumentException("Invalid firewall chain: " + chain);
         }
-        final Set<Integer> uidSet = asSet(uids);
-        final Set<Integer> uidSetToRemoveRule = new ArraySet<>();
+        // Chains such as standby or low power standby may contain thousands of UIDs, so avoid
+        // boxing each of them.
+        final SortedIntSet uidSet = SortedIntSet.of(uids);
+        // Current entries of the UIDs in uidSet, indexed like uidSet. null if there is no entry.
+        final UidOwnerValue[] currentValues = new UidOwnerValue[uidSet.size()];
+        // Keys and current entries of the UIDs that have the match but are not in uidSet. They are
+        // appended in map order: inserting them in a sorted structure would be quadratic.
+        final ArrayList<S32> uidsToRemoveRule = new ArrayList<>();
+        final ArrayList<UidOwnerValue> valuesToRemoveRule = new ArrayList<>();
         try {
             synchronized (sUidOwnerMap) {
+                // Read the map once and only write the entries whose match bit needs to change,
+                // as most of the chain is usually unchanged between two replacements.
                 sUidOwnerMap.forEach((uid, config) -> {
                     // config could be null if there is a concurrent entry deletion.
                     // http://b/220084230. But sUidOwnerMap update must be done while holding a
                     // lock, so this should not happen.
                     if (config == null) {
                         Log.wtf(TAG, "sUidOwnerMap entry was deleted while holding a lock");
-                    } else if (!uidSet.contains((int) uid.val) && (config.rule & match) != 0) {
-                        uidSetToRemoveRule.add((int) uid.val);
+                        return;
+                    }
+                    final int index = uidSet.indexOf((int) uid.val);
+                    if (index >= 0) {
+                        currentValues[index] = config;
+                    } else if ((config.rule & match) != 0) {
+                        uidsToRemoveRule.add(uid);
+                        valuesToRemoveRule.add(config);
                     }
                 });
 
-                for (final int uid : uidSetToRemoveRule) {
-                    removeRule(uid, match, "replaceUidChain");
+                int writes = 0;
+                for (int i = 0; i < uidsToRemoveRule.size(); i++) {
+                    final S32 key = uidsToRemoveRule.get(i);
+                    final UidOwnerValue oldMatch = valuesToRemoveRule.get(i);
+                    final long newRule = oldMatch.rule & ~match;
+                    if (newRule == 0) {
+                        sUidOwnerMap.deleteEntry(key);
+                    } else {
+                        sUidOwnerMap.updateEntry(key, new UidOwnerValue(oldMatch.iif, newRule));
+                    }
+                    writes++;
                 }
-                for (final int uid : uids) {
-                    addRule(uid, match, "replaceUidChain");
+                for (int i = 0; i < uidSet.size(); i++) {
+                    final UidOwnerValue oldMatch = currentValues[i];
+                    if (oldMatch != null && (oldMatch.rule & match) != 0) continue;
+                    final UidOwnerValue newMatch = (oldMatch == null)
+                            ? new UidOwnerValue(0 /* iif */, match)
+                            : new UidOwnerValue(oldMatch.iif, oldMatch.rule | match);
+                    sUidOwnerMap.updateEntry(new S32(uidSet.valueAt(i)), newMatch);
+                    writes++;
                 }
+                mReplaceUidChainWrites += writes;
+                // Rewriting the chain would take one write per removed UID and per UID in the
+                // new chain.
+                mReplaceUidChainWritesSaved += uidsToRemoveRule.size() + uidSet.size() - writes;
             }
         } catch (ErrnoException | ServiceSpecificException e) {
             Log.e(TAG, "replaceUidChain failed: " + e);
@@ -842,25 +894,91 @@ public class BpfNetMaps {
             return;
         }
 
-        // Remove the entry if package is uninstalled or uid has only INTERNET permission.
-        if (permissions == PERMISSION_UNINSTALLED || permissions == PERMISSION_INTERNET) {
+        synchronized (sUidPermissionMapLock) {
+            maybeReadUidPermissionMapLocked();
             for (final int uid : uids) {
-                try {
-                    sUidPermissionMap.deleteEntry(new S32(uid));
-                } catch (ErrnoException e) {
-                    Log.e(TAG, "Failed to remove uid " + uid + " from permission map: " + e);
+                setNetPermForUidLocked(permissions, uid);
+            }
+        }
+    }
+
+    /**
+     * Assigns the permissions to multiple uids at once, in place of calling
+     * {@link #setNetPermForUids(int, int[])} once per permission.
+     *
+     * The permissions are reconciled against the current content of the uid permission map, and
+     * only the entries that change are written. This avoids a map update or delete for each uid
+     * when large permission tables are pushed, e.g. when a user is added.
+     *
+     * @param uidsPermissions the permissions to grant to each uid. Each permission can be any
+     *                        value accepted by {@link #setNetPermForUids(int, int[])}.
+     * @throws RemoteException when netd has crashed.
+     */
+    public void setNetPermForUids(@NonNull final SparseIntArray uidsPermissions)
+            throws RemoteException {
+        if (!SdkLevel.isAtLeastT()) {
+            final SparseArray<List<Integer>> permissionToUids = new SparseArray<>();
+            for (int i = 0; i < uidsPermissions.size(); i++) {
+                final int permissions = uidsPermissions.valueAt(i);
+                List<Integer> uids = permissionToUids.get(permissions);
+                if (uids == null) {
+                    uids = new ArrayList<>();
+                    permissionToUids.put(permissions, uids);
                 }
+                uids.add(uidsPermissions.keyAt(i));
+            }
+            for (int i = 0; i < permissionToUids.size(); i++) {
+                mNetd.trafficSetNetPermForUids(permissionToUids.keyAt(i),
+                        CollectionUtils.toIntArray(permissionToUids.valueAt(i)));
             }
             return;
         }
 
-        for (final int uid : uids) {
+        synchronized (sUidPermissionMapLock) {
+            maybeReadUidPermissionMapLocked();
+            for (int i = 0; i < uidsPermissions.size(); i++) {
+                setNetPermForUidLocked(uidsPermissions.valueAt(i), uidsPermissions.keyAt(i));
+            }
+        }
+    }
+
+    @GuardedBy("sUidPermissionMapLock")
+    private void maybeReadUidPermissionMapLocked() {
+        if (sUidPermissionMapCopy != null) return;
+        final SparseIntArray copy = new SparseIntArray();
+        try {
+            sUidPermissionMap.forEach((uid, permission) -> copy.put(uid.val, permission.val));
+            sUidPermissionMapCopy = copy;
+        } catch (ErrnoException e) {
+            // Fall back to writing all the entries.
+            Log.e(TAG, "Failed to read uid permission map: " + e);
+        }
+    }
+
+    @GuardedBy("sUidPermissionMapLock")
+    private void setNetPermForUidLocked(final int permissions, final int uid) {
+        final SparseIntArray copy = sUidPermissionMapCopy;
+        // Remove the entry if package is uninstalled or uid has only INTERNET permission.
+        if (permissions == PERMISSION_UNINSTALLED || permissions == PERMISSION_INTERNET) {
+            if (copy != null && copy.indexOfKey(uid) < 0) return;
             try {
-                sUidPermissionMap.updateEntry(new S32(uid), new U8((short) permissions));
+                sUidPermissionMap.deleteEntry(new S32(uid));
+                if (copy != null) copy.delete(uid);
             } catch (ErrnoException e) {
-                Log.e(TAG, "Failed to set permission "
-                        + permissions + " to uid " + uid + ": " + e);
+                Log.e(TAG, "Failed to remove uid " + uid + " from permission map: " + e);
+                sUidPermissionMapCopy = null;
             }
+            return;
+        }
+
+        if (copy != null && copy.get(uid, PERMISSION_UNINSTALLED) == permissions) return;
+        try {
+            sUidPermissionMap.updateEntry(new S32(uid), new U8((short) permissions));
+            if (copy != null) copy.put(uid, permissions);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to set permission "
+                    + permissions + " to uid " + uid + ": " + e);
+            sUidPermissionMapCopy = null;
         }
     }
 
@@ -1034,6 +1152,10 @@ public class BpfNetMaps {
         }
 
         pw.println("TrafficController");  // required by CTS testDumpBpfNetMaps
+        synchronized (sUidOwnerMap) {
+            pw.println("replaceUidChain: " + mReplaceUidChainWrites + " map writes, "
+                    + mReplaceUidChainWritesSaved + " writes saved");
+        }
 
         pw.println();
         if (verbose) {
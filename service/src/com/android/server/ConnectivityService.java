@@ -254,6 +254,11 @@ import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
+import android.service.ConnectivityServiceDumpProto;
+import android.service.ConnectivityServiceNetworkProto;
+import android.service.ConnectivityServiceProviderProto;
+import android.service.ConnectivityServiceRequestProto;
+import android.service.ConnectivityServiceUidProto;
 import android.stats.connectivity.MeteredState;
 import android.stats.connectivity.RequestType;
 import android.stats.connectivity.ValidatedState;
@@ -271,6 +276,7 @@ import android.util.Range;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.StatsEvent;
+import android.util.proto.ProtoOutputStream;
 
 import androidx.annotation.RequiresApi;
 
@@ -316,6 +322,7 @@ import com.android.server.connectivity.AutomaticOnOffKeepaliveTracker;
 import com.android.server.connectivity.AutomaticOnOffKeepaliveTracker.AutomaticOnOffKeepalive;
 import com.android.server.connectivity.CarrierPrivilegeAuthenticator;
 import com.android.server.connectivity.ClatCoordinator;
+import com.android.server.connectivity.ConnectionOwnerUidLookup;
 import com.android.server.connectivity.ConnectivityFlags;
 import com.android.server.connectivity.ConnectivityResources;
 import com.android.server.connectivity.DnsManager;
@@ -352,13 +359,14 @@ import libcore.io.IoUtils;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -366,7 +374,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -380,8 +387,10 @@ import java.util.StringJoiner;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * @hide
@@ -395,6 +404,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private static final String NETWORK_ARG = "networks";
     private static final String REQUEST_ARG = "requests";
     private static final String TRAFFICCONTROLLER_ARG = "trafficcontroller";
+    private static final String PROTO_ARG = "--proto";
 
     private static final boolean DBG = true;
     private static final boolean DDBG = Log.isLoggable(TAG, Log.DEBUG);
@@ -937,6 +947,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private final LocationPermissionChecker mLocationPermissionChecker;
 
     private final AutomaticOnOffKeepaliveTracker mKeepaliveTracker;
+    private final ConnectionOwnerUidLookup mConnectionOwnerUidLookup;
     private final QosCallbackTracker mQosCallbackTracker;
     private final NetworkNotificationManager mNotifier;
     private final LingerMonitor mLingerMonitor;
@@ -1316,19 +1327,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
         LocalPriorityDump() {}
 
         private void dumpHigh(FileDescriptor fd, PrintWriter pw) {
-            if (!HandlerUtils.runWithScissorsForDump(mHandler, () -> {
-                doDump(fd, pw, new String[]{DIAG_ARG});
-                doDump(fd, pw, new String[]{SHORT_ARG});
-            }, DUMPSYS_DEFAULT_TIMEOUT_MS)) {
-                pw.println("dumpHigh timeout");
-            }
+            doDump(fd, pw, new String[]{DIAG_ARG});
+            doDump(fd, pw, new String[]{SHORT_ARG});
         }
 
         private void dumpNormal(FileDescriptor fd, PrintWriter pw, String[] args) {
-            if (!HandlerUtils.runWithScissorsForDump(mHandler, () -> doDump(fd, pw, args),
-                    DUMPSYS_DEFAULT_TIMEOUT_MS)) {
-                pw.println("dumpNormal timeout");
-            }
+            doDump(fd, pw, args);
         }
 
         public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
@@ -1436,12 +1440,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
 
         /**
-         * Gets the UID that owns a socket connection. Needed because opening SOCK_DIAG sockets
-         * requires CAP_NET_ADMIN, which the unit tests do not have.
+         * Creates the object that looks up the UID owning a socket connection. Needed because
+         * opening SOCK_DIAG sockets requires CAP_NET_ADMIN, which the unit tests do not have.
          */
-        public int getConnectionOwnerUid(int protocol, InetSocketAddress local,
-                InetSocketAddress remote) {
-            return InetDiagMessage.getConnectionOwnerUid(protocol, local, remote);
+        public ConnectionOwnerUidLookup makeConnectionOwnerUidLookup() {
+            return new ConnectionOwnerUidLookup();
         }
 
         /**
@@ -1894,6 +1897,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         registerSettingsCallbacks();
 
         mKeepaliveTracker = mDeps.makeAutomaticOnOffKeepaliveTracker(mContext, mHandler);
+        mConnectionOwnerUidLookup = mDeps.makeConnectionOwnerUidLookup();
         mNotifier = new NetworkNotificationManager(mContext, mTelephonyManager);
         mQosCallbackTracker = new QosCallbackTracker(mHandler, mNetworkRequestCounter);
 
@@ -3940,19 +3944,25 @@ public class ConnectivityService extends IConnectivityManager.Stub
         return ret;
     }
 
-    private void dumpNetworkDiagnostics(IndentingPrintWriter pw) {
+    // Starts gathering diagnostic information for all networks. Called on the handler thread.
+    private List<NetworkDiagnostics> startNetworkDiagnostics() {
         final List<NetworkDiagnostics> netDiags = new ArrayList<>();
         final long DIAG_TIME_MS = 5000;
         for (NetworkAgentInfo nai : networksSortedById()) {
             PrivateDnsConfig privateDnsCfg = mDnsManager.getPrivateDnsConfig(nai.network);
-            // Start gathering diagnostic information.
             netDiags.add(new NetworkDiagnostics(
                     nai.network,
                     new LinkProperties(nai.linkProperties),  // Must be a copy.
                     privateDnsCfg,
                     DIAG_TIME_MS));
         }
+        return netDiags;
+    }
 
+    // Waits for the measurements, which takes up to DIAG_TIME_MS, so this must not be called on
+    // the handler thread.
+    private static void dumpNetworkDiagnostics(IndentingPrintWriter pw,
+            List<NetworkDiagnostics> netDiags) {
         for (NetworkDiagnostics netDiag : netDiags) {
             pw.println();
             netDiag.waitForMeasurements();
@@ -3981,104 +3991,105 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
+    /**
+     * Runs the given supplier on the handler thread for a dump, and returns its result.
+     *
+     * @return the result, or null if the handler thread did not run the supplier in time.
+     */
+    @Nullable
+    private <T> T getOnHandlerForDump(@NonNull Supplier<T> supplier) {
+        final AtomicReference<T> result = new AtomicReference<>();
+        if (!HandlerUtils.runWithScissorsForDump(mHandler, () -> result.set(supplier.get()),
+                LocalPriorityDump.DUMPSYS_DEFAULT_TIMEOUT_MS)) {
+            return null;
+        }
+        return result.get();
+    }
+
+    // Called on the dumping thread. The state confined to the handler thread is only copied on
+    // the handler thread (see DumpSnapshot), and the dump is formatted here.
     private void doDump(FileDescriptor fd, PrintWriter writer, String[] args) {
         final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
 
         if (CollectionUtils.contains(args, DIAG_ARG)) {
-            dumpNetworkDiagnostics(pw);
-            return;
-        } else if (CollectionUtils.contains(args, NETWORK_ARG)) {
-            dumpNetworks(pw);
-            return;
-        } else if (CollectionUtils.contains(args, REQUEST_ARG)) {
-            dumpNetworkRequests(pw);
+            final List<NetworkDiagnostics> netDiags =
+                    getOnHandlerForDump(this::startNetworkDiagnostics);
+            if (netDiags == null) {
+                pw.println("dump timeout");
+                return;
+            }
+            dumpNetworkDiagnostics(pw, netDiags);
             return;
         } else if (CollectionUtils.contains(args, TRAFFICCONTROLLER_ARG)) {
+            // The BPF maps can be read from any thread.
             boolean verbose = !CollectionUtils.contains(args, SHORT_ARG);
             dumpTrafficController(pw, fd, verbose);
             return;
         }
 
+        final DumpSnapshot snapshot = getOnHandlerForDump(DumpSnapshot::new);
+        if (snapshot == null) {
+            pw.println("dump timeout");
+            return;
+        }
+
+        if (CollectionUtils.contains(args, PROTO_ARG)) {
+            // In this case ignore all other arguments.
+            snapshot.dumpProto(fd);
+            return;
+        } else if (CollectionUtils.contains(args, NETWORK_ARG)) {
+            snapshot.dumpNetworks(pw);
+            return;
+        } else if (CollectionUtils.contains(args, REQUEST_ARG)) {
+            snapshot.dumpNetworkRequests(pw);
+            return;
+        }
+
         pw.println("NetworkProviders for:");
         pw.increaseIndent();
-        for (NetworkProviderInfo npi : mNetworkProviderInfos.values()) {
+        for (NetworkProviderInfo npi : snapshot.providers) {
             pw.println(npi.providerId + ": " + npi.name);
         }
         pw.decreaseIndent();
         pw.println();
 
-        final NetworkAgentInfo defaultNai = getDefaultNetwork();
         pw.print("Active default network: ");
-        if (defaultNai == null) {
+        if (snapshot.defaultNetwork == null) {
             pw.println("none");
         } else {
-            pw.println(defaultNai.network.getNetId());
+            pw.println(snapshot.defaultNetwork.getNetId());
         }
         pw.println();
 
         pw.println("Current network preferences: ");
         pw.increaseIndent();
-        dumpNetworkPreferences(pw);
+        pw.print(snapshot.networkPreferences);
         pw.decreaseIndent();
         pw.println();
 
         pw.println("Current Networks:");
         pw.increaseIndent();
-        dumpNetworks(pw);
+        snapshot.dumpNetworks(pw);
         pw.decreaseIndent();
         pw.println();
 
         pw.println("Status for known UIDs:");
         pw.increaseIndent();
-        final int size = mUidBlockedReasons.size();
-        for (int i = 0; i < size; i++) {
-            // Don't crash if the array is modified while dumping in bugreports.
-            try {
-                final int uid = mUidBlockedReasons.keyAt(i);
-                final int blockedReasons = mUidBlockedReasons.valueAt(i);
-                pw.println("UID=" + uid + " blockedReasons="
-                        + Integer.toHexString(blockedReasons));
-            } catch (ArrayIndexOutOfBoundsException e) {
-                pw.println("  ArrayIndexOutOfBoundsException");
-            } catch (ConcurrentModificationException e) {
-                pw.println("  ConcurrentModificationException");
-            }
+        final SparseIntArray uidBlockedReasons = snapshot.uidBlockedReasons;
+        for (int i = 0; i < uidBlockedReasons.size(); i++) {
+            pw.println("UID=" + uidBlockedReasons.keyAt(i) + " blockedReasons="
+                    + Integer.toHexString(uidBlockedReasons.valueAt(i)));
         }
         pw.println();
         pw.decreaseIndent();
 
         pw.println("Network Requests:");
         pw.increaseIndent();
-        dumpNetworkRequests(pw);
+        snapshot.dumpNetworkRequests(pw);
         pw.decreaseIndent();
         pw.println();
 
-        pw.println("Network Offers:");
-        pw.increaseIndent();
-        for (final NetworkOfferInfo offerInfo : mNetworkOffers) {
-            pw.println(offerInfo.offer);
-        }
-        pw.decreaseIndent();
-        pw.println();
-
-        mLegacyTypeTracker.dump(pw);
-
-        pw.println();
-        mKeepaliveTracker.dump(pw);
-
-        pw.println();
-        dumpAvoidBadWifiSettings(pw);
-
-        pw.println();
-        dumpCloseFrozenAppSockets(pw);
-
-        pw.println();
-        dumpBpfProgramStatus(pw);
-
-        if (null != mCarrierPrivilegeAuthenticator) {
-            pw.println();
-            mCarrierPrivilegeAuthenticator.dump(pw);
-        }
+        pw.print(snapshot.handlerThreadSections);
 
         pw.println();
 
@@ -4098,12 +4109,13 @@ public class ConnectivityService extends IConnectivityManager.Stub
             pw.println();
             pw.println("NetTransition WakeLock activity (most recent first):");
             pw.increaseIndent();
-            pw.println("total acquisitions: " + mTotalWakelockAcquisitions);
-            pw.println("total releases: " + mTotalWakelockReleases);
-            pw.println("cumulative duration: " + (mTotalWakelockDurationMs / 1000) + "s");
-            pw.println("longest duration: " + (mMaxWakelockDurationMs / 1000) + "s");
-            if (mTotalWakelockAcquisitions > mTotalWakelockReleases) {
-                long duration = SystemClock.elapsedRealtime() - mLastWakeLockAcquireTimestamp;
+            pw.println("total acquisitions: " + snapshot.totalWakelockAcquisitions);
+            pw.println("total releases: " + snapshot.totalWakelockReleases);
+            pw.println("cumulative duration: " + (snapshot.totalWakelockDurationMs / 1000) + "s");
+            pw.println("longest duration: " + (snapshot.maxWakelockDurationMs / 1000) + "s");
+            if (snapshot.totalWakelockAcquisitions > snapshot.totalWakelockReleases) {
+                long duration =
+                        SystemClock.elapsedRealtime() - snapshot.lastWakeLockAcquireTimestamp;
                 pw.println("currently holding WakeLock for: " + (duration / 1000) + "s");
             }
             mWakelockLogs.reverseDump(pw);
@@ -4138,7 +4150,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         pw.println();
         pw.println("Legacy network activity:");
         pw.increaseIndent();
-        mNetworkActivityTracker.dump(pw);
+        pw.print(snapshot.networkActivity);
         pw.decreaseIndent();
 
         pw.println();
@@ -4146,30 +4158,237 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 (mMulticastRoutingCoordinatorService != null));
     }
 
-    private void dumpNetworks(IndentingPrintWriter pw) {
-        for (NetworkAgentInfo nai : networksSortedById()) {
-            pw.println(nai.toString());
-            pw.increaseIndent();
-            pw.println("Nat464Xlat:");
-            pw.increaseIndent();
-            nai.dumpNat464Xlat(pw);
-            pw.decreaseIndent();
-            pw.println(String.format(
-                    "Requests: REQUEST:%d LISTEN:%d BACKGROUND_REQUEST:%d total:%d",
-                    nai.numForegroundNetworkRequests(),
-                    nai.numNetworkRequests() - nai.numRequestNetworkRequests(),
-                    nai.numBackgroundNetworkRequests(),
-                    nai.numNetworkRequests()));
-            pw.increaseIndent();
-            for (int i = 0; i < nai.numNetworkRequests(); i++) {
-                pw.println(nai.requestAt(i).toString());
+    // Returns what the given function dumps, so that it can be printed later on another thread.
+    private static String dumpToString(@NonNull Consumer<IndentingPrintWriter> dumper) {
+        final StringWriter sw = new StringWriter();
+        final IndentingPrintWriter pw = new IndentingPrintWriter(sw, "  ");
+        dumper.accept(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    /**
+     * A copy of the state of ConnectivityService that is confined to the handler thread, for dumps.
+     *
+     * Snapshots are taken on the handler thread in O(number of networks and requests), and
+     * formatted on the dumping thread, so that bug reports on devices with many networks and
+     * requests do not delay the processing of network events while the dump is being formatted.
+     */
+    private final class DumpSnapshot {
+        @NonNull final NetworkProviderInfo[] providers;
+        @Nullable final Network defaultNetwork;
+        @NonNull final NetworkAgentInfo.DumpSnapshot[] networks;
+        @NonNull final SparseIntArray uidBlockedReasons;
+        @NonNull final RequestSnapshot[] requests;
+        final int totalWakelockAcquisitions;
+        final int totalWakelockReleases;
+        final long totalWakelockDurationMs;
+        final long maxWakelockDurationMs;
+        final long lastWakeLockAcquireTimestamp;
+        // The sections dumped by the components confined to the handler thread. These are
+        // formatted when taking the snapshot, as they only print a few lines.
+        @NonNull final String networkPreferences;
+        @NonNull final String handlerThreadSections;
+        @NonNull final String networkActivity;
+
+        // Must be called on the handler thread.
+        DumpSnapshot() {
+            providers = mNetworkProviderInfos.values().toArray(new NetworkProviderInfo[0]);
+            final NetworkAgentInfo defaultNai = getDefaultNetwork();
+            defaultNetwork = (defaultNai == null) ? null : defaultNai.network;
+            final NetworkAgentInfo[] nais = networksSortedById();
+            networks = new NetworkAgentInfo.DumpSnapshot[nais.length];
+            for (int i = 0; i < nais.length; i++) {
+                networks[i] = new NetworkAgentInfo.DumpSnapshot(nais[i], true /* copyState */);
+            }
+            uidBlockedReasons = mUidBlockedReasons.clone();
+            final NetworkRequestInfo[] nris = requestsSortedById();
+            requests = new RequestSnapshot[nris.length];
+            for (int i = 0; i < nris.length; i++) {
+                requests[i] = new RequestSnapshot(nris[i]);
+            }
+            totalWakelockAcquisitions = mTotalWakelockAcquisitions;
+            totalWakelockReleases = mTotalWakelockReleases;
+            totalWakelockDurationMs = mTotalWakelockDurationMs;
+            maxWakelockDurationMs = mMaxWakelockDurationMs;
+            lastWakeLockAcquireTimestamp = mLastWakeLockAcquireTimestamp;
+
+            networkPreferences = dumpToString(ConnectivityService.this::dumpNetworkPreferences);
+            handlerThreadSections = dumpToString(pw -> {
+                pw.println("Network Offers:");
+                pw.increaseIndent();
+                for (final NetworkOfferInfo offerInfo : mNetworkOffers) {
+                    pw.println(offerInfo.offer);
+                }
+                pw.decreaseIndent();
+                pw.println();
+
+                mLegacyTypeTracker.dump(pw);
+
+                pw.println();
+                mKeepaliveTracker.dump(pw);
+
+                pw.println();
+                dumpAvoidBadWifiSettings(pw);
+
+                pw.println();
+                dumpCloseFrozenAppSockets(pw);
+
+                pw.println();
+                dumpBpfProgramStatus(pw);
+
+                pw.println();
+                mConnectionOwnerUidLookup.dump(pw);
+
+                if (null != mCarrierPrivilegeAuthenticator) {
+                    pw.println();
+                    mCarrierPrivilegeAuthenticator.dump(pw);
+                }
+            });
+            // Printed after the permission monitor, which is dumped on the dumping thread.
+            networkActivity = dumpToString(mNetworkActivityTracker::dump);
+        }
+
+        void dumpNetworks(IndentingPrintWriter pw) {
+            for (NetworkAgentInfo.DumpSnapshot nai : networks) {
+                pw.println(nai.toString());
+                pw.increaseIndent();
+                pw.println("Nat464Xlat:");
+                pw.increaseIndent();
+                pw.print(nai.nat464XlatDump);
+                pw.decreaseIndent();
+                pw.println(String.format(
+                        "Requests: REQUEST:%d LISTEN:%d BACKGROUND_REQUEST:%d total:%d",
+                        nai.numForegroundRequests,
+                        nai.requests.length - nai.numRequestRequests,
+                        nai.numBackgroundRequests,
+                        nai.requests.length));
+                pw.increaseIndent();
+                for (NetworkRequest nr : nai.requests) {
+                    pw.println(nr.toString());
+                }
+                pw.decreaseIndent();
+                pw.println("Inactivity Timers:");
+                pw.increaseIndent();
+                for (NetworkAgentInfo.InactivityTimer timer : nai.inactivityTimers) {
+                    pw.println(timer);
+                }
+                pw.decreaseIndent();
+                pw.decreaseIndent();
             }
-            pw.decreaseIndent();
-            pw.println("Inactivity Timers:");
-            pw.increaseIndent();
-            nai.dumpInactivityTimers(pw);
-            pw.decreaseIndent();
-            pw.decreaseIndent();
+        }
+
+        void dumpNetworkRequests(IndentingPrintWriter pw) {
+            for (RequestSnapshot request : requests) {
+                pw.println(request.toString());
+            }
+        }
+
+        void dumpProto(FileDescriptor fd) {
+            final ProtoOutputStream proto = new ProtoOutputStream(new FileOutputStream(fd));
+
+            if (defaultNetwork != null) {
+                proto.write(ConnectivityServiceDumpProto.DEFAULT_NET_ID,
+                        defaultNetwork.getNetId());
+            }
+            for (NetworkProviderInfo npi : providers) {
+                final long start = proto.start(ConnectivityServiceDumpProto.PROVIDERS);
+                proto.write(ConnectivityServiceProviderProto.PROVIDER_ID, npi.providerId);
+                proto.write(ConnectivityServiceProviderProto.NAME, npi.name);
+                proto.end(start);
+            }
+            for (NetworkAgentInfo.DumpSnapshot nai : networks) {
+                dumpNetworkProto(proto, nai);
+            }
+            for (RequestSnapshot request : requests) {
+                request.dumpProto(proto);
+            }
+            for (int i = 0; i < uidBlockedReasons.size(); i++) {
+                final long start = proto.start(ConnectivityServiceDumpProto.UIDS);
+                proto.write(ConnectivityServiceUidProto.UID, uidBlockedReasons.keyAt(i));
+                proto.write(ConnectivityServiceUidProto.BLOCKED_REASONS,
+                        uidBlockedReasons.valueAt(i));
+                proto.end(start);
+            }
+
+            proto.flush();
+        }
+
+        private void dumpNetworkProto(ProtoOutputStream proto, NetworkAgentInfo.DumpSnapshot nai) {
+            final long start = proto.start(ConnectivityServiceDumpProto.NETWORKS);
+            proto.write(ConnectivityServiceNetworkProto.NET_ID, nai.network.getNetId());
+            for (int transport : nai.networkCapabilities.getTransportTypes()) {
+                proto.write(ConnectivityServiceNetworkProto.TRANSPORTS, transport);
+            }
+            for (int capability : nai.networkCapabilities.getCapabilities()) {
+                proto.write(ConnectivityServiceNetworkProto.CAPABILITIES, capability);
+            }
+            proto.write(ConnectivityServiceNetworkProto.INTERFACE,
+                    nai.linkProperties.getInterfaceName());
+            proto.write(ConnectivityServiceNetworkProto.DETAILED_STATE,
+                    nai.networkInfo.getDetailedState().name());
+            proto.write(ConnectivityServiceNetworkProto.CREATION_TIME_MS, nai.creationTime);
+            proto.write(ConnectivityServiceNetworkProto.VALIDATED,
+                    0L != nai.currentValidationTime);
+            proto.write(ConnectivityServiceNetworkProto.PARTIAL_CONNECTIVITY,
+                    0L != nai.partialConnectivityTime);
+            proto.write(ConnectivityServiceNetworkProto.CAPTIVE_PORTAL_DETECTED,
+                    0L != nai.currentCaptivePortalDetectedTime);
+            proto.write(ConnectivityServiceNetworkProto.LINGERING, nai.lingering);
+            proto.write(ConnectivityServiceNetworkProto.CLAT_STARTED, nai.clat != null);
+            for (NetworkRequest nr : nai.requests) {
+                proto.write(ConnectivityServiceNetworkProto.REQUEST_IDS, nr.requestId);
+            }
+            proto.write(ConnectivityServiceNetworkProto.NUM_FOREGROUND_REQUESTS,
+                    nai.numForegroundRequests);
+            proto.write(ConnectivityServiceNetworkProto.NUM_BACKGROUND_REQUESTS,
+                    nai.numBackgroundRequests);
+            proto.end(start);
+        }
+    }
+
+    /**
+     * A NetworkRequestInfo with a copy of its state that is mutated on the handler thread.
+     */
+    private static final class RequestSnapshot {
+        @NonNull final NetworkRequestInfo nri;
+        @Nullable final NetworkRequest activeRequest;
+        @Nullable final Network satisfier;
+
+        // Must be called on the handler thread.
+        RequestSnapshot(@NonNull NetworkRequestInfo nri) {
+            this.nri = nri;
+            activeRequest = nri.getActiveRequest();
+            final NetworkAgentInfo satisfierNai = nri.getSatisfier();
+            satisfier = (satisfierNai == null) ? null : satisfierNai.network;
+        }
+
+        void dumpProto(ProtoOutputStream proto) {
+            final long start = proto.start(ConnectivityServiceDumpProto.REQUESTS);
+            proto.write(ConnectivityServiceRequestProto.UID, nri.mUid);
+            proto.write(ConnectivityServiceRequestProto.PID, nri.mPid);
+            if (nri.mAsUid != nri.mUid) {
+                proto.write(ConnectivityServiceRequestProto.AS_UID, nri.mAsUid);
+            }
+            for (NetworkRequest nr : nri.mRequests) {
+                proto.write(ConnectivityServiceRequestProto.REQUEST_IDS, nr.requestId);
+            }
+            if (activeRequest != null) {
+                proto.write(ConnectivityServiceRequestProto.ACTIVE_REQUEST_ID,
+                        activeRequest.requestId);
+            }
+            if (satisfier != null) {
+                proto.write(ConnectivityServiceRequestProto.SATISFIER_NET_ID,
+                        satisfier.getNetId());
+            }
+            proto.write(ConnectivityServiceRequestProto.PREFERENCE_ORDER, nri.mPreferenceOrder);
+            proto.write(ConnectivityServiceRequestProto.CALLBACK_FLAGS, nri.mCallbackFlags);
+            proto.end(start);
+        }
+
+        @Override
+        public String toString() {
+            return nri.toString(activeRequest);
         }
     }
 
@@ -4225,23 +4444,6 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
-    private void dumpNetworkRequests(IndentingPrintWriter pw) {
-        NetworkRequestInfo[] infos = null;
-        while (infos == null) {
-            try {
-                infos = requestsSortedById();
-            } catch (ConcurrentModificationException e) {
-                // mNetworkRequests should only be accessed from handler thread, except dump().
-                // As dump() is never called in normal usage, it would be needlessly expensive
-                // to lock the collection only for its benefit. Instead, retry getting the
-                // requests if ConcurrentModificationException is thrown during dump().
-            }
-        }
-        for (NetworkRequestInfo nri : infos) {
-            pw.println(nri.toString());
-        }
-    }
-
     private void dumpTrafficController(IndentingPrintWriter pw, final FileDescriptor fd,
             boolean verbose) {
         try {
@@ -7523,9 +7725,15 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
         @Override
         public String toString() {
+            return toString(mActiveRequest);
+        }
+
+        // Formats this NRI as if the given request was its active request. mActiveRequest is
+        // the only mutable member printed, so dumps can format a snapshot of it on any thread.
+        String toString(@Nullable NetworkRequest activeRequest) {
             final String asUidString = (mAsUid == mUid) ? "" : " asUid: " + mAsUid;
             return "uid/pid:" + mUid + "/" + mPid + asUidString + " activeRequest: "
-                    + (mActiveRequest == null ? null : mActiveRequest.requestId)
+                    + (activeRequest == null ? null : activeRequest.requestId)
                     + " callbackRequest: "
                     + mNetworkRequestForCallback.requestId
                     + " " + mRequests
@@ -11599,7 +11807,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             throw new IllegalArgumentException("Unsupported protocol " + connectionInfo.protocol);
         }
 
-        final int uid = mDeps.getConnectionOwnerUid(connectionInfo.protocol,
+        final int uid = mConnectionOwnerUidLookup.getConnectionOwnerUid(connectionInfo.protocol,
                 connectionInfo.local, connectionInfo.remote);
 
         if (uid == INVALID_UID) return uid;  // Not found.
@@ -16,8 +16,10 @@
 
 package com.android.server.connectivity;
 
+import static android.net.SocketKeepalive.ERROR_INVALID_NETWORK;
 import static android.net.SocketKeepalive.ERROR_INVALID_SOCKET;
 import static android.net.SocketKeepalive.MIN_INTERVAL_SEC;
+import static android.net.SocketKeepalive.NO_KEEPALIVE;
 import static android.net.SocketKeepalive.SUCCESS;
 import static android.net.SocketKeepalive.SUCCESS_PAUSED;
 import static android.system.OsConstants.AF_INET;
@@ -47,10 +49,12 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.system.StructTimeval;
+import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
@@ -164,6 +168,23 @@ public class AutomaticOnOffKeepaliveTracker {
      * This should only be accessed in the connectivity service handler thread.
      */
     private final SparseArray<byte[]> mSockDiagMsg = new SparseArray<>();
+    /**
+     * The fwmarks of the networks whose TCP sockets were probed, keyed by netId. The fwmark of
+     * a network only depends on its netId, so entries never need to be refreshed, but they are
+     * removed when the network disconnects so the cache does not grow with every network seen.
+     *
+     * This should only be accessed in the connectivity service handler thread.
+     */
+    private final SparseArray<MarkMaskParcel> mNetworkFwmarks = new SparseArray<>();
+    /**
+     * Results of the last TCP socket probe, keyed by netId. They are reused by the keepalives
+     * monitored before the handler processes the messages queued after the probe, and are
+     * null otherwise.
+     *
+     * This should only be accessed in the connectivity service handler thread.
+     */
+    @Nullable
+    private SparseBooleanArray mTcpSocketProbeResults;
     private final Dependencies mDependencies;
     private final INetd mNetd;
     /**
@@ -204,6 +225,8 @@ public class AutomaticOnOffKeepaliveTracker {
         private final AlarmManager.OnAlarmListener mAlarmListener;
         @AutomaticOnOffState
         private int mAutomaticOnOffState;
+        // The time of the next TCP polling alarm, in elapsed realtime milliseconds.
+        private long mNextTcpPollTimeMs;
         @Nullable
         private final Network mUnderpinnedNetwork;
 
@@ -360,13 +383,34 @@ public class AutomaticOnOffKeepaliveTracker {
     private void startTcpPollingAlarm(@NonNull AutomaticOnOffKeepalive ki) {
         if (ki.mAlarmListener == null) return;
 
+        final long now = mDependencies.getElapsedRealtime();
+        final long intervalMs = getTcpPollingIntervalMs(ki);
         final long triggerAtMillis =
-                mDependencies.getElapsedRealtime() + getTcpPollingIntervalMs(ki);
+                getAlignedTcpPollTimeMs(ki, now + intervalMs / 2, now + intervalMs);
+        ki.mNextTcpPollTimeMs = triggerAtMillis;
         // Setup a non-wake up alarm.
         mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME, triggerAtMillis, null /* tag */,
                 ki.mAlarmListener, mConnectivityServiceHandler);
     }
 
+    /**
+     * Returns the latest time between earliest and latest at which another keepalive polls TCP
+     * sockets, or latest if there is none.
+     *
+     * Polling earlier than needed is harmless, and keepalives polling at the same time share
+     * the same probe of the TCP sockets, so this reduces the number of probes and wakeups.
+     */
+    private long getAlignedTcpPollTimeMs(@NonNull AutomaticOnOffKeepalive ki, long earliest,
+            long latest) {
+        long aligned = -1;
+        for (final AutomaticOnOffKeepalive other : mAutomaticOnOffKeepalives) {
+            if (other == ki || other.mAlarmListener == null) continue;
+            final long time = other.mNextTcpPollTimeMs;
+            if (time >= earliest && time <= latest && time > aligned) aligned = time;
+        }
+        return aligned >= 0 ? aligned : latest;
+    }
+
     /**
      * Determine if any state transition is needed for the specific automatic keepalive.
      */
@@ -390,7 +434,7 @@ public class AutomaticOnOffKeepaliveTracker {
         if (STATE_ALWAYS_ON == ki.mAutomaticOnOffState) {
             throw new IllegalStateException("Should not monitor non-auto keepalive");
         }
-        if (!isAnyTcpSocketConnected(vpnNetId)) {
+        if (!isAnyTcpSocketConnectedOnMonitoredNetwork(vpnNetId)) {
             // No TCP socket exists. Stop keepalive if ENABLED, and remain SUSPENDED if currently
             // SUSPENDED.
             if (ki.mAutomaticOnOffState == STATE_ENABLED) {
@@ -482,6 +526,9 @@ public class AutomaticOnOffKeepaliveTracker {
             }
             cleanupAutoOnOffKeepalive(ki);
         }
+        if (reason == ERROR_INVALID_NETWORK) {
+            mNetworkFwmarks.remove(nai.network().getNetId());
+        }
     }
 
     /**
@@ -517,6 +564,7 @@ public class AutomaticOnOffKeepaliveTracker {
                 autoKi.mKi.getKeepaliveIntervalSec(),
                 autoKi.mKi.getUid(),
                 STATE_ALWAYS_ON != autoKi.mAutomaticOnOffState);
+        maybeReportAlignment(autoKi.mKi);
 
         // Add automatic on/off request into list to track its life cycle.
         try {
@@ -549,12 +597,21 @@ public class AutomaticOnOffKeepaliveTracker {
         }
 
         mKeepaliveStatsTracker.onResumeKeepalive(startedKi.getNai().network(), startedKi.getSlot());
+        maybeReportAlignment(startedKi);
         mEventLog.log("Resumed successfully keepalive " + startedKi.mCallback
                 + " on " + startedKi.mNai);
 
         return SUCCESS;
     }
 
+    private void maybeReportAlignment(@NonNull final KeepaliveTracker.KeepaliveInfo ki) {
+        if (NO_KEEPALIVE == ki.getAlignedSlot()) return;
+        mEventLog.log("Aligned keepalive " + ki.mCallback + " with slot " + ki.getAlignedSlot()
+                + " on " + ki.mNai);
+        mKeepaliveStatsTracker.onAlignKeepalive(ki.getNai().network(), ki.getSlot(),
+                ki.getAlignedSlot(), ki.getOffloadIntervalSec());
+    }
+
     private void handlePauseKeepalive(@NonNull final KeepaliveTracker.KeepaliveInfo ki) {
         mEventLog.log("Suspend keepalive " + ki.mCallback + " on " + ki.mNai);
         mKeepaliveStatsTracker.onPauseKeepalive(ki.getNai().network(), ki.getSlot());
@@ -743,21 +800,71 @@ public class AutomaticOnOffKeepaliveTracker {
 
     @VisibleForTesting
     boolean isAnyTcpSocketConnected(int netId) {
+        return probeTcpSockets(new int[] { netId }).get(netId);
+    }
+
+    /**
+     * Returns whether any TCP socket is connected on the given network.
+     *
+     * The sockets of the underpinned networks of all the automatic keepalives are probed at
+     * once, and the results are reused until the handler processes the messages queued after
+     * the probe. As the polling alarms of the keepalives are aligned, this results in a single
+     * probe when several keepalives poll at the same time.
+     */
+    private boolean isAnyTcpSocketConnectedOnMonitoredNetwork(int netId) {
+        if (mTcpSocketProbeResults == null || mTcpSocketProbeResults.indexOfKey(netId) < 0) {
+            if (mTcpSocketProbeResults == null) {
+                mConnectivityServiceHandler.post(() -> mTcpSocketProbeResults = null);
+            }
+            mTcpSocketProbeResults = probeTcpSockets(getMonitoredNetIds(netId));
+        }
+        return mTcpSocketProbeResults.get(netId);
+    }
+
+    private int[] getMonitoredNetIds(int netId) {
+        final ArraySet<Integer> netIds = new ArraySet<>();
+        netIds.add(netId);
+        for (final AutomaticOnOffKeepalive autoKi : mAutomaticOnOffKeepalives) {
+            final Network underpinnedNetwork = autoKi.getUnderpinnedNetwork();
+            if (autoKi.mAutomaticOnOffState == STATE_ALWAYS_ON || underpinnedNetwork == null) {
+                continue;
+            }
+            netIds.add(underpinnedNetwork.netId);
+        }
+        return CollectionUtils.toIntArray(netIds);
+    }
+
+    /**
+     * Probes the TCP sockets of the given networks with one dump per IP family.
+     *
+     * @return whether any TCP socket is connected, keyed by netId.
+     */
+    private SparseBooleanArray probeTcpSockets(@NonNull int[] netIds) {
+        ensureRunningOnHandlerThread();
+        final SparseBooleanArray results = new SparseBooleanArray(netIds.length);
+        for (final int netId : netIds) {
+            results.put(netId, false);
+        }
         FileDescriptor fd = null;
 
         try {
             fd = mDependencies.createConnectedNetlinkSocket();
 
-            // Get network mask
-            final MarkMaskParcel parcel = mNetd.getFwmarkForNetwork(netId);
-            final int networkMark = (parcel != null) ? parcel.mark : NetlinkUtils.UNKNOWN_MARK;
-            final int networkMask = (parcel != null) ? parcel.mask : NetlinkUtils.NULL_MASK;
+            // Get network masks
+            final int[] networkMarks = new int[netIds.length];
+            final int[] networkMasks = new int[netIds.length];
+            for (int i = 0; i < netIds.length; i++) {
+                final MarkMaskParcel parcel = getNetworkFwmark(netIds[i]);
+                networkMarks[i] = (parcel != null) ? parcel.mark : NetlinkUtils.UNKNOWN_MARK;
+                networkMasks[i] = (parcel != null) ? parcel.mask : NetlinkUtils.NULL_MASK;
+            }
 
             // Send request for each IP family
+            int remaining = netIds.length;
             for (final int family : ADDRESS_FAMILIES) {
-                if (isAnyTcpSocketConnectedForFamily(fd, family, networkMark, networkMask)) {
-                    return true;
-                }
+                remaining = probeTcpSocketsForFamily(fd, family, netIds, networkMarks,
+                        networkMasks, results, remaining);
+                if (remaining == 0) break;
             }
         } catch (ErrnoException | SocketException | InterruptedIOException | RemoteException e) {
             Log.e(TAG, "Fail to get socket info via netlink.", e);
@@ -765,13 +872,28 @@ public class AutomaticOnOffKeepaliveTracker {
             SocketUtils.closeSocketQuietly(fd);
         }
 
-        return false;
+        return results;
+    }
+
+    @Nullable
+    private MarkMaskParcel getNetworkFwmark(int netId) throws RemoteException {
+        MarkMaskParcel parcel = mNetworkFwmarks.get(netId);
+        if (parcel == null) {
+            parcel = mNetd.getFwmarkForNetwork(netId);
+            if (parcel != null) mNetworkFwmarks.put(netId, parcel);
+        }
+        return parcel;
     }
 
-    private boolean isAnyTcpSocketConnectedForFamily(FileDescriptor fd, int family, int networkMark,
-            int networkMask)
+    /**
+     * Reads the dump of the TCP sockets of the given family, and marks the networks that have
+     * a connected socket in results.
+     *
+     * @return the number of networks that are still not known to have a connected socket.
+     */
+    private int probeTcpSocketsForFamily(FileDescriptor fd, int family, int[] netIds,
+            int[] networkMarks, int[] networkMasks, SparseBooleanArray results, int remaining)
             throws ErrnoException, InterruptedIOException {
-        ensureRunningOnHandlerThread();
         // Build SocketDiag messages and cache it.
         if (mSockDiagMsg.get(family) == null) {
             mSockDiagMsg.put(family, InetDiagMessage.buildInetDiagReqForAliveTcpSockets(family));
@@ -794,20 +916,29 @@ public class AutomaticOnOffKeepaliveTracker {
                             bytes, OsConstants.NETLINK_INET_DIAG);
                     if (!(nlMsg instanceof InetDiagMessage)) {
                         if (DBG) Log.e(TAG, "Not a SOCK_DIAG_BY_FAMILY msg");
-                        return false;
+                        return remaining;
                     }
 
                     final InetDiagMessage diagMsg = (InetDiagMessage) nlMsg;
-                    if (isTargetTcpSocket(diagMsg, networkMark, networkMask)) {
+                    final int mark = readSocketDataAndReturnMark(diagMsg);
+                    for (int i = 0; i < netIds.length; i++) {
+                        if (results.get(netIds[i])
+                                || (mark & networkMasks[i]) != networkMarks[i]) {
+                            continue;
+                        }
                         if (DBG) {
-                            Log.d(TAG, String.format("Found open TCP connection by uid %d to %s"
-                                            + " cookie %d",
+                            Log.d(TAG, String.format("Found open TCP connection on netId %d by"
+                                            + " uid %d to %s cookie %d",
+                                    netIds[i],
                                     diagMsg.inetDiagMsg.idiag_uid,
                                     diagMsg.inetDiagMsg.id.remSocketAddress,
                                     diagMsg.inetDiagMsg.id.cookie));
                         }
-                        return true;
+                        results.put(netIds[i], true);
+                        remaining--;
                     }
+                    // No need to read the rest of the dump once all networks have a socket.
+                    if (remaining == 0) return 0;
                 }
             } catch (BufferUnderflowException e) {
                 // The exception happens in random place in either header position or any data
@@ -821,13 +952,7 @@ public class AutomaticOnOffKeepaliveTracker {
 
             parsingIteration++;
         }
-        return false;
-    }
-
-    private boolean isTargetTcpSocket(@NonNull InetDiagMessage diagMsg,
-            int networkMark, int networkMask) {
-        final int mark = readSocketDataAndReturnMark(diagMsg);
-        return (mark & networkMask) == networkMark;
+        return remaining;
     }
 
     private int readSocketDataAndReturnMark(@NonNull InetDiagMessage diagMsg) {
@@ -30,11 +30,14 @@ import android.net.INetd;
 import android.net.InetAddresses;
 import android.net.InterfaceConfigurationParcel;
 import android.net.IpPrefix;
+import android.net.NetworkStats;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
+import android.os.SystemClock;
 import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import androidx.annotation.RequiresApi;
@@ -49,15 +52,19 @@ import com.android.net.module.util.bpf.ClatEgress4Key;
 import com.android.net.module.util.bpf.ClatEgress4Value;
 import com.android.net.module.util.bpf.ClatIngress6Key;
 import com.android.net.module.util.bpf.ClatIngress6Value;
+import com.android.net.module.util.bpf.ClatStatsKey;
+import com.android.net.module.util.bpf.ClatStatsValue;
 import com.android.net.module.util.bpf.CookieTagMapKey;
 import com.android.net.module.util.bpf.CookieTagMapValue;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Objects;
 
 /**
@@ -107,10 +114,19 @@ public class ClatCoordinator {
     @VisibleForTesting
     static final int PRIO_CLAT = 4;
 
+    // Set values splitting the clat stats by translation path. The stats are only dumped and never
+    // reported to NetworkStatsService, which already accounts this traffic on the v4- interface,
+    // so these values do not need to be known by NetworkStats.
+    @VisibleForTesting
+    static final int SET_DBG_CLAT_BPF = 1003;
+    @VisibleForTesting
+    static final int SET_DBG_CLAT_DAEMON = 1004;
+
     private static final String COOKIE_TAG_MAP_PATH =
             "/sys/fs/bpf/netd_shared/map_netd_cookie_tag_map";
     private static final String CLAT_EGRESS4_MAP_PATH = makeMapPath("egress4");
     private static final String CLAT_INGRESS6_MAP_PATH = makeMapPath("ingress6");
+    private static final String CLAT_STATS_MAP_PATH = makeMapPath("stats");
 
     private static String makeMapPath(String which) {
         return "/sys/fs/bpf/net_shared/map_clatd_clat_" + which + "_map";
@@ -133,9 +149,20 @@ public class ClatCoordinator {
     @Nullable
     private final IBpfMap<ClatEgress4Key, ClatEgress4Value> mEgressMap;
     @Nullable
+    private final IBpfMap<ClatStatsKey, ClatStatsValue> mStatsMap;
+    @Nullable
     private final IBpfMap<CookieTagMapKey, CookieTagMapValue> mCookieTagMap;
     @Nullable
     private ClatdTracker mClatdTracker = null;
+    // The sockets shared with clatd, kept to update their filters in #clatReconfigure, and the
+    // write end of the pipe on which clatd reads its new config. The tun fd is not kept, so that
+    // the tun interface is still removed if clatd dies.
+    @Nullable
+    private ParcelFileDescriptor mReadSock6 = null;
+    @Nullable
+    private ParcelFileDescriptor mWriteSock6 = null;
+    @Nullable
+    private ParcelFileDescriptor mControlPipe = null;
 
     /**
      * Dependencies of ClatCoordinator which makes ConnectivityService injection
@@ -220,6 +247,14 @@ public class ClatCoordinator {
             native_addAnycastSetsockopt(sock, v6, ifindex);
         }
 
+        /**
+         * Drop anycast setsockopt.
+         */
+        public void dropAnycastSetsockopt(@NonNull FileDescriptor sock, String v6, int ifindex)
+                throws IOException {
+            native_dropAnycastSetsockopt(sock, v6, ifindex);
+        }
+
         /**
          * Configure packet socket.
          */
@@ -228,13 +263,46 @@ public class ClatCoordinator {
             native_configurePacketSocket(sock, v6, ifindex);
         }
 
+        /**
+         * Create the pipe on which clatd reads config updates.
+         *
+         * @return the read and write ends of the pipe.
+         */
+        @NonNull
+        public ParcelFileDescriptor[] createControlPipe() throws IOException {
+            return ParcelFileDescriptor.createPipe();
+        }
+
         /**
          * Start clatd.
          */
         public int startClatd(@NonNull FileDescriptor tunfd, @NonNull FileDescriptor readsock6,
-                @NonNull FileDescriptor writesock6, @NonNull String iface, @NonNull String pfx96,
-                @NonNull String v4, @NonNull String v6) throws IOException {
-            return native_startClatd(tunfd, readsock6, writesock6, iface, pfx96, v4, v6);
+                @NonNull FileDescriptor writesock6, @NonNull FileDescriptor controlfd,
+                @NonNull String iface, @NonNull String pfx96, @NonNull String v4,
+                @NonNull String v6) throws IOException {
+            return native_startClatd(tunfd, readsock6, writesock6, controlfd, iface, pfx96, v4,
+                    v6);
+        }
+
+        /**
+         * Send a new NAT64 prefix and IPv6 address to clatd on its control pipe.
+         *
+         * See struct clat_config_update in external/android-clat/config.h.
+         */
+        public void writeClatdConfig(@NonNull FileDescriptor controlfd,
+                @NonNull Inet6Address pfx96, @NonNull Inet6Address v6) throws IOException {
+            final byte[] update = ByteBuffer.allocate(32)
+                    .put(pfx96.getAddress())
+                    .put(v6.getAddress())
+                    .array();
+            try {
+                // Writes of up to PIPE_BUF bytes are atomic, so clatd reads the whole update.
+                if (Os.write(controlfd, update, 0, update.length) != update.length) {
+                    throw new IOException("Short write to clatd control pipe");
+                }
+            } catch (ErrnoException | InterruptedIOException e) {
+                throw new IOException("Write to clatd control pipe failed: " + e);
+            }
         }
 
         /**
@@ -275,6 +343,18 @@ public class ClatCoordinator {
             }
         }
 
+        /** Get stats BPF map. */
+        @Nullable
+        public IBpfMap<ClatStatsKey, ClatStatsValue> getBpfStatsMap() {
+            try {
+                return new BpfMap<>(CLAT_STATS_MAP_PATH,
+                       ClatStatsKey.class, ClatStatsValue.class);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create stats map: " + e);
+                return null;
+            }
+        }
+
         /** Get cookie tag map */
         @Nullable
         public IBpfMap<CookieTagMapKey, CookieTagMapValue> getBpfCookieTagMap() {
@@ -396,6 +476,7 @@ public class ClatCoordinator {
         mNetd = mDeps.getNetd();
         mIngressMap = mDeps.getBpfIngress6Map();
         mEgressMap = mDeps.getBpfEgress4Map();
+        mStatsMap = mDeps.getBpfStatsMap();
         mCookieTagMap = mDeps.getBpfCookieTagMap();
     }
 
@@ -520,27 +601,13 @@ public class ClatCoordinator {
         }
     }
 
-    private void maybeCleanUp(ParcelFileDescriptor tunFd, ParcelFileDescriptor readSock6,
-            ParcelFileDescriptor writeSock6) {
-        if (tunFd != null) {
-            try {
-                tunFd.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Fail to close tun file descriptor " + e);
-            }
-        }
-        if (readSock6 != null) {
+    private void maybeCleanUp(ParcelFileDescriptor... fds) {
+        for (ParcelFileDescriptor fd : fds) {
+            if (fd == null) continue;
             try {
-                readSock6.close();
+                fd.close();
             } catch (IOException e) {
-                Log.e(TAG, "Fail to close read socket " + e);
-            }
-        }
-        if (writeSock6 != null) {
-            try {
-                writeSock6.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Fail to close write socket " + e);
+                Log.e(TAG, "Fail to close file descriptor " + fd + ": " + e);
             }
         }
     }
@@ -757,26 +824,45 @@ public class ClatCoordinator {
         }
 
         // [5] Start clatd.
+        final ParcelFileDescriptor[] controlPipe;
+        try {
+            controlPipe = mDeps.createControlPipe();
+        } catch (IOException e) {
+            try {
+                untagSocket(cookie);
+            } catch (IOException e2) {
+                Log.e(TAG, "untagSocket cookie " + cookie + " failed: " + e2);
+            }
+            maybeCleanUp(tunFd, readSock6, writeSock6);
+            throw new IOException("create control pipe failed: " + e);
+        }
+
         final int pid;
         try {
             pid = mDeps.startClatd(tunFd.getFileDescriptor(), readSock6.getFileDescriptor(),
-                    writeSock6.getFileDescriptor(), iface, pfx96Str, v4Str, v6Str);
+                    writeSock6.getFileDescriptor(), controlPipe[0].getFileDescriptor(), iface,
+                    pfx96Str, v4Str, v6Str);
         } catch (IOException e) {
             try {
                 untagSocket(cookie);
             } catch (IOException e2) {
                 Log.e(TAG, "untagSocket cookie " + cookie + " failed: " + e2);
             }
+            maybeCleanUp(readSock6, writeSock6, controlPipe[1]);
             throw new IOException("Error start clatd on " + iface + ": " + e);
         } finally {
             // The file descriptors have been duplicated (dup2) to clatd in native_startClatd().
-            // Close these file descriptor stubs which are unused anymore.
-            maybeCleanUp(tunFd, readSock6, writeSock6);
+            // Close the file descriptor stubs which are unused anymore. The sockets and the write
+            // end of the control pipe are kept for #clatReconfigure.
+            maybeCleanUp(tunFd, controlPipe[0]);
         }
 
         // [6] Initialize and store clatd tracker object.
         mClatdTracker = new ClatdTracker(iface, ifIndex, tunIface, tunIfIndex, v4, v6, pfx96,
                 pid, cookie);
+        mReadSock6 = readSock6;
+        mWriteSock6 = writeSock6;
+        mControlPipe = controlPipe[1];
 
         // [7] Start BPF
         maybeStartBpf(mClatdTracker);
@@ -820,6 +906,24 @@ public class ClatCoordinator {
         }
     }
 
+    // Deletes the stats of the v4- interface, which is about to be removed. No more traffic is
+    // accounted to it once the BPF programs are detached.
+    private void maybeClearStats(final ClatdTracker tracker) {
+        if (mStatsMap == null) return;
+
+        try {
+            final ArrayList<ClatStatsKey> keys = new ArrayList<>();
+            mStatsMap.forEach((k, v) -> {
+                if (k.ifindex == tracker.v4ifIndex) keys.add(k);
+            });
+            for (ClatStatsKey k : keys) {
+                mStatsMap.deleteEntry(k);
+            }
+        } catch (ErrnoException | IllegalStateException e) {
+            Log.e(TAG, "Could not delete stats of " + tracker.v4iface + ": " + e);
+        }
+    }
+
     /**
      * Stop clatd
      */
@@ -830,13 +934,192 @@ public class ClatCoordinator {
         Log.i(TAG, "Stopping clatd pid=" + mClatdTracker.pid + " on " + mClatdTracker.iface);
 
         maybeStopBpf(mClatdTracker);
+        maybeClearStats(mClatdTracker);
         mDeps.stopClatd(mClatdTracker.pid);
+        maybeCleanUp(mReadSock6, mWriteSock6, mControlPipe);
+        mReadSock6 = null;
+        mWriteSock6 = null;
+        mControlPipe = null;
         untagSocket(mClatdTracker.cookie);
 
         Log.i(TAG, "clatd on " + mClatdTracker.iface + " stopped");
         mClatdTracker = null;
     }
 
+    private void maybeUpdateBpf(final ClatdTracker oldTracker, final ClatdTracker newTracker) {
+        if (mIngressMap == null || mEgressMap == null) return;
+
+        // The egress key only depends on the v4- interface and its address, which are kept.
+        final ClatEgress4Key txKey = new ClatEgress4Key(newTracker.v4ifIndex, newTracker.v4);
+        try {
+            final ClatEgress4Value oldTxValue = mEgressMap.getValue(txKey);
+            // BPF offload failed to start, see #maybeStartBpf. Keep translating in clatd only.
+            if (oldTxValue == null) return;
+            mEgressMap.updateEntry(txKey, new ClatEgress4Value(oldTxValue.oif, newTracker.v6,
+                    newTracker.pfx96, oldTxValue.oifIsEthernet));
+        } catch (ErrnoException | IllegalStateException e) {
+            Log.e(TAG, "Could not update entry (" + txKey + ") on egress map: " + e);
+        }
+
+        // Add the new ingress entry before deleting the old one, so that there is no window in
+        // which packets sent to either address are not translated by BPF.
+        final ClatIngress6Key rxKey = new ClatIngress6Key(newTracker.ifIndex, newTracker.pfx96,
+                newTracker.v6);
+        final ClatIngress6Value rxValue = new ClatIngress6Value(newTracker.v4ifIndex,
+                newTracker.v4);
+        try {
+            mIngressMap.insertOrReplaceEntry(rxKey, rxValue);
+        } catch (ErrnoException | IllegalStateException e) {
+            Log.e(TAG, "Could not insert entry (" + rxKey + ", " + rxValue + ") ingress map: "
+                    + e);
+        }
+        final ClatIngress6Key oldRxKey = new ClatIngress6Key(oldTracker.ifIndex,
+                oldTracker.pfx96, oldTracker.v6);
+        if (oldRxKey.equals(rxKey)) return;
+        try {
+            mIngressMap.deleteEntry(oldRxKey);
+        } catch (ErrnoException | IllegalStateException e) {
+            Log.e(TAG, "Could not delete entry (" + oldRxKey + "): " + e);
+        }
+    }
+
+    /**
+     * Switch the running clatd to a new NAT64 prefix.
+     *
+     * Unlike stopping and starting clatd, this keeps the tun interface, its IPv4 address and MTU,
+     * and the tc filters, so that IPv4 connectivity on the stacked interface survives the change.
+     * Only the IPv6 address of clat, the filters of its sockets, the clatd config and the BPF map
+     * entries are updated.
+     *
+     * @return the IPv6 address of clat for the new prefix.
+     * @throws IOException if clatd could not be reconfigured. clatd may then be in an
+     *         inconsistent state, and must be stopped.
+     */
+    public String clatReconfigure(final int netId, @NonNull final IpPrefix nat64Prefix)
+            throws IOException {
+        if (!isStarted()) {
+            throw new IOException("Clatd has not started");
+        }
+        if (nat64Prefix.getPrefixLength() != 96) {
+            throw new IOException("Prefix must be 96 bits long: " + nat64Prefix);
+        }
+        final ClatdTracker tracker = mClatdTracker;
+
+        // The IID must stay checksum-neutral with the new prefix.
+        final Inet6Address pfx96 = (Inet6Address) nat64Prefix.getAddress();
+        final String pfx96Str = pfx96.getHostAddress();
+        final String v6Str;
+        try {
+            v6Str = mDeps.generateIpv6Address(tracker.iface, tracker.v4.getHostAddress(),
+                    pfx96Str, getFwmark(netId));
+        } catch (IOException e) {
+            throw new IOException("no IPv6 addresses were available for clat: " + e);
+        }
+        final Inet6Address v6;
+        try {
+            v6 = (Inet6Address) InetAddresses.parseNumericAddress(v6Str);
+        } catch (ClassCastException | IllegalArgumentException | NullPointerException e) {
+            throw new IOException("Invalid IPv6 address " + v6Str);
+        }
+
+        if (!v6.equals(tracker.v6)) {
+            // Leave the anycast group of the old address first, so that memberships do not pile
+            // up on the interface across reconfigurations. A failure only leaves a stale
+            // membership behind until clatd is stopped, so it is not fatal.
+            try {
+                mDeps.dropAnycastSetsockopt(mWriteSock6.getFileDescriptor(),
+                        tracker.v6.getHostAddress(), tracker.ifIndex);
+            } catch (IOException e) {
+                Log.e(TAG, "drop anycast sockopt failed: " + e);
+            }
+            try {
+                mDeps.addAnycastSetsockopt(mWriteSock6.getFileDescriptor(), v6Str,
+                        tracker.ifIndex);
+            } catch (IOException e) {
+                throw new IOException("add anycast sockopt failed: " + e);
+            }
+            try {
+                mDeps.configurePacketSocket(mReadSock6.getFileDescriptor(), v6Str,
+                        tracker.ifIndex);
+            } catch (IOException e) {
+                throw new IOException("configure packet socket failed: " + e);
+            }
+        }
+        mDeps.writeClatdConfig(mControlPipe.getFileDescriptor(), pfx96, v6);
+
+        mClatdTracker = new ClatdTracker(tracker.iface, tracker.ifIndex, tracker.v4iface,
+                tracker.v4ifIndex, tracker.v4, v6, pfx96, tracker.pid, tracker.cookie);
+        maybeUpdateBpf(tracker, mClatdTracker);
+        Log.i(TAG, "clatd on " + tracker.iface + " reconfigured to " + nat64Prefix + ", " + v6);
+
+        return v6Str;
+    }
+
+    /**
+     * Get the traffic of the running clatd, split by UID and by translation path.
+     *
+     * The traffic translated by the BPF programs is accounted in the {@link #SET_DBG_CLAT_BPF}
+     * set, and the traffic passed to clatd in the {@link #SET_DBG_CLAT_DAEMON} set, on the v4-
+     * interface. Byte counts are those of the IPv4 packets. Ingress traffic is translated before
+     * its socket is known, so it is accounted to {@link NetworkStats#UID_ALL}.
+     *
+     * @return the stats, which are empty if clatd is not running or the stats map is unavailable.
+     * @throws ErrnoException if the stats map cannot be read.
+     */
+    @NonNull
+    public NetworkStats getClatStats() throws ErrnoException {
+        NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 0);
+        if (!isStarted() || mStatsMap == null) return stats;
+
+        final ClatdTracker tracker = mClatdTracker;
+        final ArrayList<NetworkStats.Entry> entries = new ArrayList<>();
+        mStatsMap.forEach((k, v) -> {
+            if (k.ifindex != tracker.v4ifIndex) return;
+            entries.add(newStatsEntry(tracker.v4iface, k.uid, SET_DBG_CLAT_BPF,
+                    v.rxBpfBytes, v.rxBpfPackets, v.txBpfBytes, v.txBpfPackets));
+            entries.add(newStatsEntry(tracker.v4iface, k.uid, SET_DBG_CLAT_DAEMON,
+                    v.rxDaemonBytes, v.rxDaemonPackets, v.txDaemonBytes, v.txDaemonPackets));
+        });
+        for (NetworkStats.Entry entry : entries) {
+            stats = stats.addEntry(entry);
+        }
+        return stats;
+    }
+
+    private static NetworkStats.Entry newStatsEntry(String iface, int uid, int set, long rxBytes,
+            long rxPackets, long txBytes, long txPackets) {
+        return new NetworkStats.Entry(iface, uid, set, NetworkStats.TAG_NONE,
+                NetworkStats.METERED_NO, NetworkStats.ROAMING_NO, NetworkStats.DEFAULT_NETWORK_NO,
+                rxBytes, rxPackets, txBytes, txPackets, 0 /* operations */);
+    }
+
+    private void dumpStats(@NonNull IndentingPrintWriter pw) {
+        if (mStatsMap == null) {
+            pw.println("No BPF stats map");
+            return;
+        }
+
+        final NetworkStats stats;
+        try {
+            stats = getClatStats();
+        } catch (ErrnoException e) {
+            pw.println("Error dumping BPF stats map: " + e);
+            return;
+        }
+        if (!stats.iterator().hasNext()) {
+            pw.println("<empty>");
+            return;
+        }
+        pw.println("Translated traffic: uid path rxPackets rxBytes txPackets txBytes");
+        pw.increaseIndent();
+        for (NetworkStats.Entry entry : stats) {
+            pw.println(String.format("%d %s %d %d %d %d", entry.getUid(),
+                    entry.getSet() == SET_DBG_CLAT_BPF ? "bpf" : "clatd", entry.getRxPackets(),
+                    entry.getRxBytes(), entry.getTxPackets(), entry.getTxBytes()));
+        }
+        pw.decreaseIndent();
+    }
+
     private void dumpBpfIngress(@NonNull IndentingPrintWriter pw) {
         if (mIngressMap == null) {
             pw.println("No BPF ingress6 map");
@@ -898,6 +1181,10 @@ public class ClatCoordinator {
             dumpBpfIngress(pw);
             dumpBpfEgress(pw);
             pw.decreaseIndent();
+            pw.println("Stats:");
+            pw.increaseIndent();
+            dumpStats(pw);
+            pw.decreaseIndent();
         } else {
             pw.println("<not started>");
         }
@@ -924,11 +1211,13 @@ public class ClatCoordinator {
     private static native int native_openRawSocket6(int mark) throws IOException;
     private static native void native_addAnycastSetsockopt(FileDescriptor sock, String v6,
             int ifindex) throws IOException;
+    private static native void native_dropAnycastSetsockopt(FileDescriptor sock, String v6,
+            int ifindex) throws IOException;
     private static native void native_configurePacketSocket(FileDescriptor sock, String v6,
             int ifindex) throws IOException;
     private static native int native_startClatd(FileDescriptor tunfd, FileDescriptor readsock6,
-            FileDescriptor writesock6, String iface, String pfx96, String v4, String v6)
-            throws IOException;
+            FileDescriptor writesock6, FileDescriptor controlfd, String iface, String pfx96,
+            String v4, String v6) throws IOException;
     private static native void native_stopClatd(int pid) throws IOException;
     private static native long native_getSocketCookie(FileDescriptor sock) throws IOException;
 }
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.os.Process.INVALID_UID;
+import static android.system.OsConstants.NETLINK_INET_DIAG;
+
+import static com.android.net.module.util.netlink.NetlinkUtils.SOCKET_RECV_BUFSIZE;
+
+import android.annotation.NonNull;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.SocketUtils;
+import com.android.net.module.util.ip.NetlinkMonitor;
+import com.android.net.module.util.netlink.InetDiagMessage;
+import com.android.net.module.util.netlink.NetlinkMessage;
+import com.android.net.module.util.netlink.NetlinkUtils;
+import com.android.net.module.util.netlink.StructInetDiagSockId;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Looks up the UID owning a connection, for {@link android.net.ConnectivityManager}
+ * getConnectionOwnerUid.
+ *
+ * VPN apps may call getConnectionOwnerUid for every new flow, so instead of opening a new
+ * inet_diag socket for every lookup, this class keeps a small pool of connected inet_diag sockets
+ * and a cache of recent results. Cache entries are invalidated when the kernel reports that a
+ * socket with the same local address and port was destroyed, through the same socket destroy
+ * multicast groups as used by SkDestroyListener.
+ *
+ * This class is thread-safe.
+ */
+public class ConnectionOwnerUidLookup {
+    private static final String TAG = ConnectionOwnerUidLookup.class.getSimpleName();
+
+    private static final int SKNLGRP_INET_TCP_DESTROY = 1;
+    private static final int SKNLGRP_INET_UDP_DESTROY = 2;
+    private static final int SKNLGRP_INET6_TCP_DESTROY = 3;
+    private static final int SKNLGRP_INET6_UDP_DESTROY = 4;
+    private static final int SOCK_RCV_BUF_SIZE = 512 * 1024;
+
+    @VisibleForTesting
+    static final int MAX_IDLE_SOCKETS = 4;
+    @VisibleForTesting
+    static final int MAX_CACHE_ENTRIES = 256;
+    // Destroy notifications can be dropped if the listener socket buffer overflows, so do not
+    // keep entries forever.
+    @VisibleForTesting
+    static final long CACHE_ENTRY_LIFETIME_MS = 10_000;
+
+    // Upper bounds of the latency histogram buckets, in microseconds. The last bucket has no
+    // upper bound.
+    private static final long[] LATENCY_BUCKETS_US = {50, 100, 200, 500, 1_000, 2_000, 5_000};
+
+    private final Dependencies mDeps;
+    private final SharedLog mLog = new SharedLog(30, TAG);
+
+    private final Object mLock = new Object();
+    // Whether the socket destroy listener was started, which is done on the first lookup.
+    @GuardedBy("mLock")
+    private boolean mListenerStarted = false;
+    // Connected inet_diag sockets that are not currently in use.
+    @GuardedBy("mLock")
+    private final ArrayDeque<FileDescriptor> mIdleSockets = new ArrayDeque<>();
+    // Recent lookup results, in access order.
+    @GuardedBy("mLock")
+    private final LinkedHashMap<FlowKey, CacheEntry> mCache =
+            new LinkedHashMap<>(16 /* initialCapacity */, 0.75f /* loadFactor */,
+                    true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<FlowKey, CacheEntry> eldest) {
+                    return size() > MAX_CACHE_ENTRIES;
+                }
+            };
+    // Incremented every time a socket destroy notification is received. A lookup result is only
+    // cached if no socket was destroyed while the lookup was in progress, since the result could
+    // otherwise refer to the destroyed socket.
+    @GuardedBy("mLock")
+    private long mDestroyGeneration = 0;
+    // Whether socket destroy notifications are received. The cache is not used otherwise.
+    @GuardedBy("mLock")
+    private boolean mCacheEnabled = false;
+
+    @GuardedBy("mLock")
+    private final long[] mCacheHitLatency = new long[LATENCY_BUCKETS_US.length + 1];
+    @GuardedBy("mLock")
+    private final long[] mKernelLookupLatency = new long[LATENCY_BUCKETS_US.length + 1];
+    @GuardedBy("mLock")
+    private long mLookupErrors = 0;
+
+    /**
+     * Dependencies of ConnectionOwnerUidLookup, for injection in tests.
+     */
+    @VisibleForTesting
+    public static class Dependencies {
+        /**
+         * Create an inet_diag socket connected to the kernel.
+         */
+        public FileDescriptor createInetDiagSocket() throws ErrnoException, SocketException {
+            final FileDescriptor fd =
+                    NetlinkUtils.netlinkSocketForProto(NETLINK_INET_DIAG, SOCKET_RECV_BUFSIZE);
+            try {
+                NetlinkUtils.connectToKernel(fd);
+            } catch (ErrnoException | SocketException e) {
+                closeSocket(fd);
+                throw e;
+            }
+            return fd;
+        }
+
+        /**
+         * Close a socket created by {@link #createInetDiagSocket}.
+         */
+        public void closeSocket(@NonNull FileDescriptor fd) {
+            SocketUtils.closeSocketQuietly(fd);
+        }
+
+        /**
+         * @see InetDiagMessage#getConnectionOwnerUid(int, InetSocketAddress, InetSocketAddress,
+         *      FileDescriptor)
+         */
+        public int getConnectionOwnerUid(int protocol, InetSocketAddress local,
+                InetSocketAddress remote, @NonNull FileDescriptor fd)
+                throws ErrnoException, SocketException, InterruptedIOException {
+            return InetDiagMessage.getConnectionOwnerUid(protocol, local, remote, fd);
+        }
+
+        /**
+         * Get the looper on which socket destroy notifications are processed. The listener is
+         * not run on the ConnectivityService handler thread, so that bursts of notifications do
+         * not delay it.
+         */
+        public Looper makeListenerLooper() {
+            final HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            return thread.getLooper();
+        }
+
+        /**
+         * Create the listener for socket destroy notifications.
+         */
+        public NetlinkMonitor makeSocketDestroyListener(@NonNull Handler handler,
+                @NonNull SharedLog log, @NonNull ConnectionOwnerUidLookup lookup) {
+            return new SocketDestroyListener(handler, log, lookup);
+        }
+
+        /**
+         * @see SystemClock#elapsedRealtimeNanos
+         */
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    private static final class SocketDestroyListener extends NetlinkMonitor {
+        private final ConnectionOwnerUidLookup mLookup;
+
+        SocketDestroyListener(@NonNull Handler handler, @NonNull SharedLog log,
+                @NonNull ConnectionOwnerUidLookup lookup) {
+            super(handler, log, "ConnectionOwnerUidLookup", NETLINK_INET_DIAG,
+                    1 << (SKNLGRP_INET_TCP_DESTROY - 1)
+                            | 1 << (SKNLGRP_INET_UDP_DESTROY - 1)
+                            | 1 << (SKNLGRP_INET6_TCP_DESTROY - 1)
+                            | 1 << (SKNLGRP_INET6_UDP_DESTROY - 1),
+                    SOCK_RCV_BUF_SIZE);
+            mLookup = lookup;
+        }
+
+        @Override
+        public void processNetlinkMessage(final NetlinkMessage nlMsg, final long whenMs) {
+            if (!(nlMsg instanceof InetDiagMessage)) {
+                mLog.e("Received non InetDiagMessage");
+                return;
+            }
+            mLookup.onSocketDestroyed(((InetDiagMessage) nlMsg).inetDiagMsg.id);
+        }
+    }
+
+    private static final class FlowKey {
+        public final int protocol;
+        @NonNull
+        public final InetSocketAddress local;
+        @NonNull
+        public final InetSocketAddress remote;
+
+        FlowKey(int protocol, @NonNull InetSocketAddress local,
+                @NonNull InetSocketAddress remote) {
+            this.protocol = protocol;
+            this.local = local;
+            this.remote = remote;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof FlowKey)) return false;
+            final FlowKey other = (FlowKey) o;
+            return protocol == other.protocol && local.equals(other.local)
+                    && remote.equals(other.remote);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(protocol, local, remote);
+        }
+    }
+
+    private static final class CacheEntry {
+        public final int uid;
+        public final long expiryNs;
+
+        CacheEntry(int uid, long expiryNs) {
+            this.uid = uid;
+            this.expiryNs = expiryNs;
+        }
+    }
+
+    public ConnectionOwnerUidLookup() {
+        this(new Dependencies());
+    }
+
+    @VisibleForTesting
+    public ConnectionOwnerUidLookup(@NonNull Dependencies deps) {
+        mDeps = deps;
+    }
+
+    /**
+     * Start listening to socket destroy notifications on a dedicated thread if not done yet,
+     * which enables the cache. Lookups work without the cache until then, or if the listener
+     * cannot be started.
+     *
+     * Most devices never look up connection owners, so this is only done on the first lookup.
+     */
+    @VisibleForTesting
+    void maybeStartListener() {
+        synchronized (mLock) {
+            if (mListenerStarted) return;
+            mListenerStarted = true;
+        }
+        final Handler handler = new Handler(mDeps.makeListenerLooper());
+        final NetlinkMonitor listener = mDeps.makeSocketDestroyListener(handler, mLog, this);
+        handler.post(() -> {
+            final boolean started = listener.start();
+            if (!started) mLog.e("Failed to start socket destroy listener, cache disabled");
+            synchronized (mLock) {
+                mCacheEnabled = started;
+            }
+        });
+    }
+
+    @VisibleForTesting
+    void onSocketDestroyed(@NonNull StructInetDiagSockId sockId) {
+        synchronized (mLock) {
+            mDestroyGeneration++;
+            // The cache is small and the flows are not indexed by local address, but a linear
+            // scan is cheap compared to the netlink message processing.
+            final Iterator<FlowKey> it = mCache.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().local.equals(sockId.locSocketAddress)) it.remove();
+            }
+        }
+    }
+
+    /**
+     * Look up the UID associated with the input local and remote address/port and protocol of a
+     * connection.
+     *
+     * @return the UID, or {@link android.os.Process#INVALID_UID} if not found.
+     */
+    public int getConnectionOwnerUid(int protocol, @NonNull InetSocketAddress local,
+            @NonNull InetSocketAddress remote) {
+        maybeStartListener();
+        final long startNs = mDeps.elapsedRealtimeNanos();
+        final FlowKey key = new FlowKey(protocol, local, remote);
+        final long generation;
+        FileDescriptor fd;
+        synchronized (mLock) {
+            if (mCacheEnabled) {
+                final CacheEntry entry = mCache.get(key);
+                if (entry != null && entry.expiryNs > startNs) {
+                    recordLatencyLocked(mCacheHitLatency, startNs);
+                    return entry.uid;
+                }
+                if (entry != null) mCache.remove(key);
+            }
+            generation = mDestroyGeneration;
+            fd = mIdleSockets.pollFirst();
+        }
+
+        int uid = INVALID_UID;
+        try {
+            if (fd == null) fd = mDeps.createInetDiagSocket();
+            uid = mDeps.getConnectionOwnerUid(protocol, local, remote, fd);
+        } catch (ErrnoException | SocketException | IllegalArgumentException
+                | InterruptedIOException e) {
+            Log.e(TAG, "Failed to look up connection owner: " + e);
+            // The socket may have unread replies, do not reuse it.
+            if (fd != null) mDeps.closeSocket(fd);
+            fd = null;
+            synchronized (mLock) {
+                mLookupErrors++;
+            }
+        }
+
+        synchronized (mLock) {
+            if (fd != null) {
+                if (mIdleSockets.size() < MAX_IDLE_SOCKETS) {
+                    mIdleSockets.addFirst(fd);
+                    fd = null;
+                }
+            }
+            // Do not cache failed lookups: the socket may be about to be created.
+            if (uid != INVALID_UID && mCacheEnabled && generation == mDestroyGeneration) {
+                mCache.put(key, new CacheEntry(uid,
+                        startNs + CACHE_ENTRY_LIFETIME_MS * 1_000_000L));
+            }
+            recordLatencyLocked(mKernelLookupLatency, startNs);
+        }
+        if (fd != null) mDeps.closeSocket(fd);
+        return uid;
+    }
+
+    @GuardedBy("mLock")
+    private void recordLatencyLocked(@NonNull long[] histogram, long startNs) {
+        final long latencyUs = (mDeps.elapsedRealtimeNanos() - startNs) / 1000;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_US.length && latencyUs >= LATENCY_BUCKETS_US[bucket]) {
+            bucket++;
+        }
+        histogram[bucket]++;
+    }
+
+    private static void dumpHistogram(@NonNull IndentingPrintWriter pw, @NonNull String name,
+            @NonNull long[] histogram) {
+        final StringBuilder sb = new StringBuilder(name).append(':');
+        for (int i = 0; i < histogram.length; i++) {
+            sb.append(' ');
+            sb.append(i < LATENCY_BUCKETS_US.length
+                    ? "<" + LATENCY_BUCKETS_US[i] + "us" : ">=" + LATENCY_BUCKETS_US[i - 1] + "us");
+            sb.append('=').append(histogram[i]);
+        }
+        pw.println(sb);
+    }
+
+    /**
+     * Dump the lookup statistics and logs.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("ConnectionOwnerUidLookup:");
+        pw.increaseIndent();
+        synchronized (mLock) {
+            pw.println("Listener started: " + mListenerStarted
+                    + ", cache enabled: " + mCacheEnabled + ", entries: " + mCache.size()
+                    + ", idle sockets: " + mIdleSockets.size() + ", errors: " + mLookupErrors);
+            pw.println("Latency histograms:");
+            pw.increaseIndent();
+            dumpHistogram(pw, "Cache hits", mCacheHitLatency);
+            dumpHistogram(pw, "Kernel lookups", mKernelLookupLatency);
+            pw.decreaseIndent();
+        }
+        mLog.reverseDump(pw);
+        pw.decreaseIndent();
+    }
+}
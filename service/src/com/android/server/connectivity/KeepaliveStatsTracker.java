@@ -130,6 +130,14 @@ public class KeepaliveStatsTracker {
         // A flag to indicate if the keepalive is active.
         private boolean mKeepaliveActive = true;
 
+        // The id of the keepalive this keepalive sends its packets together with, or
+        // INVALID_KEEPALIVE_ID if it is not aligned with another keepalive.
+        private int mAnchorId = INVALID_KEEPALIVE_ID;
+        // The interval the packets are sent at while aligned, in millis.
+        private int mAlignedIntervalMs;
+        // A timestamp of the time the keepalive was aligned.
+        private long mAlignedTimestamp;
+
         /**
          * Gets the lifetime stats for the keepalive, updated to timeNow, and then resets it.
          *
@@ -190,6 +198,46 @@ public class KeepaliveStatsTracker {
             mActiveLifetimeMs = 0;
             mLastUpdateLifetimeTimestamp = timeNow;
         }
+
+        public int getAnchorId() {
+            return mAnchorId;
+        }
+
+        /**
+         * Records that the packets of the keepalive go out together with those of the given
+         * keepalive from now on.
+         *
+         * @param timeNow a timestamp obtained using Dependencies.getElapsedRealtime
+         */
+        public void setAligned(int anchorId, int alignedIntervalSeconds, long timeNow) {
+            mAnchorId = anchorId;
+            mAlignedIntervalMs = alignedIntervalSeconds * 1000;
+            mAlignedTimestamp = timeNow;
+        }
+
+        /**
+         * Returns the number of packets sent together with those of the anchor since the
+         * keepalive was aligned, i.e. the number of radio wakeups the alignment avoided.
+         *
+         * @param timeNow a timestamp obtained using Dependencies.getElapsedRealtime
+         */
+        public long getAvoidedWakeups(long timeNow) {
+            if (mAnchorId == INVALID_KEEPALIVE_ID) return 0;
+            return (timeNow - mAlignedTimestamp) / mAlignedIntervalMs;
+        }
+
+        /**
+         * Ends the alignment of the keepalive, e.g. because it or its anchor stopped sending
+         * packets.
+         *
+         * @param timeNow a timestamp obtained using Dependencies.getElapsedRealtime
+         * @return the number of radio wakeups the alignment avoided.
+         */
+        public long clearAligned(long timeNow) {
+            final long avoidedWakeups = getAvoidedWakeups(timeNow);
+            mAnchorId = INVALID_KEEPALIVE_ID;
+            return avoidedWakeups;
+        }
     }
 
     // List of duration stats metric where the index is the number of concurrent keepalives.
@@ -202,6 +250,10 @@ public class KeepaliveStatsTracker {
     // Map of keepalives identified by the id from getKeepaliveId to their stats information.
     private final SparseArray<KeepaliveStats> mKeepaliveStatsPerId = new SparseArray<>();
 
+    // The number of radio wakeups avoided by keepalive alignments that have ended. This is not
+    // part of the DailykeepaliveInfoReported metrics and is not reset when they are written.
+    private long mNumAvoidedWakeups = 0;
+
     // Generate and return a unique integer using a given network's netId and the slot number.
     // This is possible because netId is a 16 bit integer, so an integer with the first 16 bits as
     // the netId and the last 16 bits as the slot number can be created. This allows slot numbers to
@@ -528,6 +580,8 @@ public class KeepaliveStatsTracker {
         if (keepaliveActive != keepaliveStats.isKeepaliveActive()) {
             mNumActiveKeepalive += keepaliveActive ? 1 : -1;
         }
+        // A keepalive that does not send packets is no longer aligned with any other keepalive.
+        if (!keepaliveActive) endAlignments(keepaliveId, timeNow);
 
         keepaliveStats.updateLifetimeStatsAndSetActive(timeNow, keepaliveActive);
     }
@@ -546,6 +600,61 @@ public class KeepaliveStatsTracker {
         onKeepaliveActive(network, slot, /* keepaliveActive= */ true);
     }
 
+    /**
+     * Inform the KeepaliveStatsTracker a keepalive has just been aligned with another keepalive
+     * on the same network, so that their packets go out in the same radio wake window.
+     *
+     * @param network the network of the keepalives
+     * @param slot the slot number of the aligned keepalive
+     * @param anchorSlot the slot number of the keepalive it is aligned with
+     * @param alignedIntervalSeconds the interval the aligned keepalive sends packets at
+     */
+    public void onAlignKeepalive(@NonNull Network network, int slot, int anchorSlot,
+            int alignedIntervalSeconds) {
+        ensureRunningOnHandlerThread();
+        if (!isEnabled()) return;
+        final int keepaliveId = getKeepaliveId(network, slot);
+        final int anchorId = getKeepaliveId(network, anchorSlot);
+        if (keepaliveId == INVALID_KEEPALIVE_ID || anchorId == INVALID_KEEPALIVE_ID) return;
+
+        final KeepaliveStats keepaliveStats = mKeepaliveStatsPerId.get(keepaliveId, null);
+        if (keepaliveStats == null) {
+            disableTracker("Attempt to align keepalive on an unknown network, slot pair");
+            return;
+        }
+        // The anchor may have been paused since the alignment was computed.
+        final KeepaliveStats anchorStats = mKeepaliveStatsPerId.get(anchorId, null);
+        if (anchorStats == null || !anchorStats.isKeepaliveActive()) return;
+        keepaliveStats.setAligned(anchorId, alignedIntervalSeconds,
+                mDependencies.getElapsedRealtime());
+    }
+
+    // Ends the alignment of the given keepalive and of the keepalives aligned with it.
+    private void endAlignments(int keepaliveId, long timeNow) {
+        for (int i = 0; i < mKeepaliveStatsPerId.size(); i++) {
+            final KeepaliveStats keepaliveStats = mKeepaliveStatsPerId.valueAt(i);
+            if (mKeepaliveStatsPerId.keyAt(i) == keepaliveId
+                    || keepaliveStats.getAnchorId() == keepaliveId) {
+                mNumAvoidedWakeups += keepaliveStats.clearAligned(timeNow);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of radio wakeups avoided since boot by sending the packets of keepalives
+     * together with those of other keepalives.
+     */
+    @VisibleForTesting
+    public long getNumAvoidedWakeups() {
+        ensureRunningOnHandlerThread();
+        final long timeNow = mDependencies.getElapsedRealtime();
+        long numAvoidedWakeups = mNumAvoidedWakeups;
+        for (int i = 0; i < mKeepaliveStatsPerId.size(); i++) {
+            numAvoidedWakeups += mKeepaliveStatsPerId.valueAt(i).getAvoidedWakeups(timeNow);
+        }
+        return numAvoidedWakeups;
+    }
+
     /** Inform the KeepaliveStatsTracker a keepalive has just been stopped. */
     public void onStopKeepalive(@NonNull Network network, int slot) {
         ensureRunningOnHandlerThread();
@@ -771,6 +880,7 @@ public class KeepaliveStatsTracker {
         pw.println("KeepaliveStatsTracker enabled: " + isEnabled());
         pw.increaseIndent();
         pw.println(buildKeepaliveMetrics().toString());
+        pw.println("Wakeups avoided by keepalive alignment: " + getNumAvoidedWakeups());
         pw.decreaseIndent();
     }
 
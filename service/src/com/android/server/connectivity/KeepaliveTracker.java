@@ -53,6 +53,8 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.DeviceConfig;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.util.Log;
@@ -92,12 +94,29 @@ public class KeepaliveTracker {
     private static final String CONFIG_DISABLE_CLAT_ADDRESS_TRANSLATE =
             "disable_clat_address_translate";
 
+    /**
+     * How much later than requested, as a percentage of its interval, a NAT-T keepalive may send
+     * its packets so that they go out together with the packets of another keepalive on the same
+     * network. 0 disables the alignment.
+     */
+    private static final String CONFIG_KEEPALIVE_ALIGNMENT_TOLERANCE_PERCENT =
+            "keepalive_alignment_tolerance_percent";
+    private static final int MAX_ALIGNMENT_TOLERANCE_PERCENT = 50;
+    /**
+     * How long an aligned keepalive may wait for the next packet of its anchor before being
+     * started in hardware. The app is only notified that the keepalive started once it is, so
+     * this bounds how much later than usual onStarted is called, whatever the intervals.
+     */
+    private static final long MAX_ALIGNMENT_DELAY_MS = 5_000L;
+
     /** Keeps track of keepalive requests. */
     private final HashMap <NetworkAgentInfo, HashMap<Integer, KeepaliveInfo>> mKeepalives =
             new HashMap<> ();
     @NonNull
     private final TcpKeepaliveController mTcpController;
     @NonNull
+    private final Handler mConnectivityServiceHandler;
+    @NonNull
     private final Context mContext;
 
     // Supported keepalive count for each transport type, can be configured through
@@ -122,6 +141,7 @@ public class KeepaliveTracker {
     public KeepaliveTracker(Context context, Handler handler, TcpKeepaliveController tcpController,
             Dependencies deps) {
         mTcpController = tcpController;
+        mConnectivityServiceHandler = handler;
         mContext = context;
         mDependencies = deps;
 
@@ -175,6 +195,17 @@ public class KeepaliveTracker {
         private int mStartedState = NOT_STARTED;
         private int mStopReason = ERROR_STOP_REASON_UNINITIALIZED;
 
+        // When the hardware was asked to start sending packets, and the interval it was given.
+        // The interval differs from mInterval if the keepalive is aligned with another one.
+        private long mOffloadStartMs;
+        private int mOffloadInterval;
+        // Starts the keepalive in hardware, while it waits for the packets of the keepalive it is
+        // aligned with. Null if the hardware was already asked to start, or will not be.
+        @Nullable
+        private Runnable mPendingStart;
+        // The slot of the keepalive this keepalive is aligned with, or NO_KEEPALIVE.
+        private int mAlignedSlot = NO_KEEPALIVE;
+
         KeepaliveInfo(@NonNull ISocketKeepaliveCallback callback,
                 @NonNull NetworkAgentInfo nai,
                 @NonNull KeepalivePacketData packet,
@@ -203,6 +234,7 @@ public class KeepaliveTracker {
             mNai = nai;
             mPacket = packet;
             mInterval = interval;
+            mOffloadInterval = interval;
             mType = type;
             mSlot = slot;
             mResumed = resumed;
@@ -262,6 +294,9 @@ public class KeepaliveTracker {
                     + "->"
                     + IpUtils.addressAndPortToString(mPacket.getDstAddress(), mPacket.getDstPort())
                     + " interval=" + mInterval
+                    + (mAlignedSlot != NO_KEEPALIVE ? " alignedWith=" + mAlignedSlot
+                            + " offloadInterval=" + mOffloadInterval : "")
+                    + (mPendingStart != null ? " pendingStart" : "")
                     + " uid=" + mUid + " pid=" + mPid + " privileged=" + mPrivileged
                     + " packetData=" + HexDump.toHexString(mPacket.getPacket())
                     + " ]";
@@ -288,6 +323,19 @@ public class KeepaliveTracker {
             return mInterval;
         }
 
+        /** Returns the interval the hardware sends packets at, in seconds. */
+        int getOffloadIntervalSec() {
+            return mOffloadInterval;
+        }
+
+        /**
+         * Returns the slot of the keepalive this keepalive sends its packets together with, or
+         * NO_KEEPALIVE if it is not aligned with another keepalive.
+         */
+        int getAlignedSlot() {
+            return mAlignedSlot;
+        }
+
         public int getUid() {
             return mUid;
         }
@@ -401,7 +449,23 @@ public class KeepaliveTracker {
                     case TYPE_NATT:
                         final NattKeepalivePacketData nattData = (NattKeepalivePacketData) mPacket;
                         mNai.onAddNattKeepalivePacketFilter(slot, nattData);
-                        mNai.onStartNattSocketKeepalive(slot, mInterval, nattData);
+                        final Alignment alignment = findAlignment(this);
+                        if (alignment == null) {
+                            startNattOffload(nattData);
+                        } else {
+                            Log.d(TAG, "Aligning keepalive " + mSlot + " with keepalive "
+                                    + alignment.anchorSlot + " on " + mNai.toShortString()
+                                    + ": interval " + alignment.intervalSec + " in "
+                                    + alignment.delayMs + "ms");
+                            mAlignedSlot = alignment.anchorSlot;
+                            mOffloadInterval = alignment.intervalSec;
+                            mPendingStart = () -> {
+                                mPendingStart = null;
+                                startNattOffload(nattData);
+                            };
+                            mDependencies.postDelayed(mConnectivityServiceHandler, mPendingStart,
+                                    alignment.delayMs);
+                        }
                         break;
                     case TYPE_TCP:
                         try {
@@ -413,6 +477,7 @@ public class KeepaliveTracker {
                         final TcpKeepalivePacketData tcpData = (TcpKeepalivePacketData) mPacket;
                         mNai.onAddTcpKeepalivePacketFilter(slot, tcpData);
                         // TODO: check result from apf and notify of failure as needed.
+                        mOffloadStartMs = mDependencies.getElapsedRealtime();
                         mNai.onStartTcpSocketKeepalive(slot, mInterval, tcpData);
                         break;
                     default:
@@ -428,6 +493,18 @@ public class KeepaliveTracker {
             }
         }
 
+        private void startNattOffload(@NonNull NattKeepalivePacketData nattData) {
+            mOffloadStartMs = mDependencies.getElapsedRealtime();
+            mNai.onStartNattSocketKeepalive(mSlot, mOffloadInterval, nattData);
+        }
+
+        // Whether the hardware sends the packets of this keepalive, or was asked to. Keepalives
+        // that are being stopped or paused are excluded.
+        private boolean isOffloadRunning() {
+            return (mStartedState == STARTING || mStartedState == STARTED)
+                    && mPendingStart == null && mStopReason == ERROR_STOP_REASON_UNINITIALIZED;
+        }
+
         void stop(int reason) {
             int uid = Binder.getCallingUid();
             if (uid != mUid && uid != Process.SYSTEM_UID) {
@@ -458,6 +535,18 @@ public class KeepaliveTracker {
                     if (BINDER_DIED == reason) mStartedState = BINDER_DIED;
                     break;
                 default:
+                    if (mPendingStart != null) {
+                        // The hardware was never asked to start sending packets, so there is no
+                        // result of stopping to wait for.
+                        mDependencies.removeCallbacks(mConnectivityServiceHandler,
+                                mPendingStart);
+                        mPendingStart = null;
+                        mNai.onRemoveKeepalivePacketFilter(mSlot);
+                        mStartedState = NOT_STARTED;
+                        cleanupStoppedKeepalive(mNai, mSlot);
+                        if (BINDER_DIED == reason) mStartedState = BINDER_DIED;
+                        break;
+                    }
                     mStartedState = STOPPING;
                     switch (mType) {
                         case TYPE_TCP:
@@ -503,6 +592,85 @@ public class KeepaliveTracker {
         }
     }
 
+    /** How a keepalive is aligned with another keepalive on the same network. */
+    private static final class Alignment {
+        // The slot of the keepalive to send packets together with.
+        public final int anchorSlot;
+        // How long to wait before starting the keepalive in hardware.
+        public final long delayMs;
+        // The interval to start the keepalive with, a multiple of the interval of the anchor.
+        public final int intervalSec;
+
+        Alignment(int anchorSlot, long delayMs, int intervalSec) {
+            this.anchorSlot = anchorSlot;
+            this.delayMs = delayMs;
+            this.intervalSec = intervalSec;
+        }
+    }
+
+    /**
+     * Computes how to align a keepalive with an anchor keepalive running in hardware.
+     *
+     * The keepalive is started in hardware when the anchor next sends a packet, with the largest
+     * multiple of the interval of the anchor that is not larger than its own interval. Its
+     * packets then always go out together with packets of the anchor, and the radio does not
+     * wake up for it alone. This is only possible if the packets are not sent more often nor
+     * later than the tolerance allows, and if the anchor sends its next packet within
+     * {@link #MAX_ALIGNMENT_DELAY_MS}.
+     *
+     * @param intervalSec the interval requested for the keepalive.
+     * @param anchorSlot the slot of the anchor.
+     * @param anchorIntervalSec the interval the hardware sends the packets of the anchor at.
+     * @param anchorStartMs when the hardware was asked to start the anchor.
+     * @param timeNow a timestamp obtained using Dependencies.getElapsedRealtime.
+     * @param tolerancePercent the tolerance, as a percentage of intervalSec.
+     * @return the alignment, or null if the keepalive cannot be aligned with the anchor.
+     */
+    @Nullable
+    private static Alignment computeAlignment(int intervalSec, int anchorSlot, int anchorIntervalSec,
+            long anchorStartMs, long timeNow, int tolerancePercent) {
+        if (anchorIntervalSec <= 0 || anchorIntervalSec > intervalSec) return null;
+        final int alignedIntervalSec = (intervalSec / anchorIntervalSec) * anchorIntervalSec;
+        if (alignedIntervalSec * 100L < intervalSec * (100L - tolerancePercent)) return null;
+
+        final long anchorIntervalMs = anchorIntervalSec * 1000L;
+        final long delayMs = (anchorIntervalMs - (timeNow - anchorStartMs) % anchorIntervalMs)
+                % anchorIntervalMs;
+        if (delayMs > MAX_ALIGNMENT_DELAY_MS) return null;
+        final long latenessMs = delayMs + alignedIntervalSec * 1000L - intervalSec * 1000L;
+        if (latenessMs * 100 > intervalSec * 1000L * tolerancePercent) return null;
+        return new Alignment(anchorSlot, delayMs, alignedIntervalSec);
+    }
+
+    /**
+     * Finds the keepalive on the same network that a NAT-T keepalive should be aligned with,
+     * preferring the alignment with the fewest packets, then the one starting the soonest.
+     *
+     * @return the alignment, or null if the keepalive should be started immediately.
+     */
+    @Nullable
+    private Alignment findAlignment(@NonNull KeepaliveInfo ki) {
+        final int tolerancePercent = mDependencies.getAlignmentTolerancePercent();
+        if (tolerancePercent == 0) return null;
+        final HashMap<Integer, KeepaliveInfo> networkKeepalives = mKeepalives.get(ki.mNai);
+        if (networkKeepalives == null) return null;
+
+        final long timeNow = mDependencies.getElapsedRealtime();
+        Alignment best = null;
+        for (final KeepaliveInfo anchor : networkKeepalives.values()) {
+            if (anchor == ki || !anchor.isOffloadRunning()) continue;
+            final Alignment alignment = computeAlignment(ki.mInterval, anchor.mSlot,
+                    anchor.mOffloadInterval, anchor.mOffloadStartMs, timeNow, tolerancePercent);
+            if (alignment == null) continue;
+            if (best == null || alignment.intervalSec > best.intervalSec
+                    || (alignment.intervalSec == best.intervalSec
+                            && alignment.delayMs < best.delayMs)) {
+                best = alignment;
+            }
+        }
+        return best;
+    }
+
     void notifyErrorCallback(ISocketKeepaliveCallback cb, int error) {
         if (DBG) Log.w(TAG, "Sending onError(" + error + ") callback");
         try {
@@ -996,5 +1164,36 @@ public class KeepaliveTracker {
                     && DeviceConfigUtils.isTetheringFeatureNotChickenedOut(context,
                             CONFIG_DISABLE_CLAT_ADDRESS_TRANSLATE);
         }
+
+        /**
+         * Get the tolerance for aligning NAT-T keepalives with other keepalives, as a percentage
+         * of their interval, or 0 if they must not be aligned.
+         */
+        public int getAlignmentTolerancePercent() {
+            return DeviceConfigUtils.getDeviceConfigPropertyInt(DeviceConfig.NAMESPACE_TETHERING,
+                    CONFIG_KEEPALIVE_ALIGNMENT_TOLERANCE_PERCENT, 0 /* minimumValue */,
+                    MAX_ALIGNMENT_TOLERANCE_PERCENT, 0 /* defaultValue */);
+        }
+
+        /**
+         * Get the elapsed real time since boot, in milliseconds.
+         */
+        public long getElapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Run a runnable on the handler after the given delay, in milliseconds.
+         */
+        public void postDelayed(@NonNull Handler handler, @NonNull Runnable r, long delayMs) {
+            handler.postDelayed(r, delayMs);
+        }
+
+        /**
+         * Remove a runnable posted with {@link #postDelayed} that has not run yet.
+         */
+        public void removeCallbacks(@NonNull Handler handler, @NonNull Runnable r) {
+            handler.removeCallbacks(r);
+        }
     }
 }
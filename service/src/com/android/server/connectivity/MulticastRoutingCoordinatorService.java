@@ -38,6 +38,7 @@ import android.system.Os;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.Pair;
 import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -61,8 +62,8 @@ import java.nio.ByteBuffer;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -122,9 +123,12 @@ public class MulticastRoutingCoordinatorService {
     }
 
     /** Tracks the MFCs added to kernel. Using LinkedHashMap to keep the added order, so
-    // when the number of MFCs reaches the max limit then the earliest added one is removed. */
+    // when several MFCs were last used at the same time the earliest added one is removed. */
     private LinkedHashMap<MfcKey, MfcValue> mMfcs = new LinkedHashMap<>();
 
+    /** When the last used timestamps of the MFCs were last read from the kernel, if ever. */
+    @Nullable private Instant mMfcsRefreshedAt = null;
+
     public MulticastRoutingCoordinatorService(Handler h) {
         this(h, new Dependencies());
     }
@@ -219,7 +223,7 @@ public class MulticastRoutingCoordinatorService {
                         + newConfig);
 
         // Update existing MFCs to make sure they align with the updated configuration
-        updateMfcs();
+        reconcileMfcs();
 
         if (newConfig.getForwardingMode() == FORWARD_NONE) {
             if (!hasActiveMulticastConfig(iifName)) {
@@ -245,7 +249,7 @@ public class MulticastRoutingCoordinatorService {
         final Integer virtualIndex = getVirtualInterfaceIndex(ifName);
         if (virtualIndex == null) return;
 
-        updateMfcs();
+        reconcileMfcs();
         mInterfaces.removeAt(mInterfaces.indexOfValue(ifName));
         mVirtualInterfaces.remove(virtualIndex);
         try {
@@ -415,10 +419,6 @@ public class MulticastRoutingCoordinatorService {
             mLastUsedAt = timestamp;
         }
 
-        public boolean hasSameOifsAs(MfcValue other) {
-            return this.mOifVirtualIndices.equals(other.mOifVirtualIndices);
-        }
-
         public boolean equals(Object other) {
             if (other == this) {
                 return true;
@@ -457,10 +457,11 @@ public class MulticastRoutingCoordinatorService {
     }
 
     /**
-     * Returns the MFC value for the given MFC key according to current multicast routing config. If
-     * the MFC should be removed return null.
+     * Returns the oifs of the MFC for the given iif and destination according to current multicast
+     * routing config. If the MFC should be removed return null.
      */
-    private MfcValue computeMfcValue(int iif, Inet6Address dst) {
+    @Nullable
+    private Set<Integer> computeMfcOifs(int iif, Inet6Address dst) {
         final int dstScope = getGroupAddressScope(dst);
         Set<Integer> forwardingOifs = new ArraySet<>();
 
@@ -482,7 +483,7 @@ public class MulticastRoutingCoordinatorService {
             }
         }
 
-        return new MfcValue(forwardingOifs, Instant.now(mDependencies.getClock()));
+        return forwardingOifs;
     }
 
     /**
@@ -506,25 +507,25 @@ public class MulticastRoutingCoordinatorService {
         checkOnHandlerThread();
         final MfcKey key = new MfcKey(vif, src, dst);
         final MfcValue value = mMfcs.get(key);
-        final MfcValue updatedValue = computeMfcValue(vif, dst);
+        final Set<Integer> oifs = computeMfcOifs(vif, dst);
 
-        if (updatedValue == null) {
+        if (oifs == null) {
             return false;
         }
 
-        if (value != null && value.hasSameOifsAs(updatedValue)) {
+        if (value != null && value.getOifIndices().equals(oifs)) {
             // no updates to make
             return true;
         }
 
-        final StructMf6cctl mf6cctl =
-                new StructMf6cctl(src, dst, vif, updatedValue.getOifIndices());
+        final StructMf6cctl mf6cctl = new StructMf6cctl(src, dst, vif, oifs);
         try {
             mDependencies.setsockoptMrt6AddMfc(mMulticastRoutingFd, mf6cctl);
         } catch (ErrnoException e) {
             Log.e(TAG, "failed to add MFC: " + e);
             return false;
         }
+        final MfcValue updatedValue = new MfcValue(oifs, Instant.now(mDependencies.getClock()));
         mMfcs.put(key, updatedValue);
         String operation = (value == null ? "Added" : "Updated");
         Log.d(TAG, operation + " MFC key: " + key + " value: " + updatedValue);
@@ -537,24 +538,70 @@ public class MulticastRoutingCoordinatorService {
         refreshMfcInactiveDuration();
         maybeExpireMfcs();
         if (mMfcs.size() > 0) {
-            mHandler.postDelayed(() -> checkMfcsExpiration(), MFC_INACTIVE_CHECK_INTERVAL_MS);
-            mMfcPollingScheduled = true;
+            scheduleMfcsExpirationCheck();
         } else {
             mMfcPollingScheduled = false;
         }
     }
 
+    /**
+     * Schedules the next check for inactive MFCs when the least recently used MFC may expire.
+     *
+     * <p>The last used timestamps only move forward, so no MFC can expire before the least
+     * recently used one, and there is no need to read the MFCs from the kernel before then. The
+     * kernel does not notify when an MFC is used, so this still needs to poll, but only once per
+     * {@code MFC_INACTIVE_TIMEOUT_MS} while MFCs are in use, instead of once per
+     * {@code MFC_INACTIVE_CHECK_INTERVAL_MS}, which is now the minimum delay between checks.
+     */
+    private void scheduleMfcsExpirationCheck() {
+        final MfcKey lruKey = getLeastRecentlyUsedMfc();
+        final Instant expiry =
+                mMfcs.get(lruKey).getLastUsedAt().plusMillis(MFC_INACTIVE_TIMEOUT_MS);
+        final long delayMs = Math.max(
+                expiry.toEpochMilli() - Instant.now(mDependencies.getClock()).toEpochMilli(),
+                MFC_INACTIVE_CHECK_INTERVAL_MS);
+        mHandler.postDelayed(() -> checkMfcsExpiration(), delayMs);
+        mMfcPollingScheduled = true;
+    }
+
+    /**
+     * Returns the key of the MFC with the oldest last used timestamp, or the earliest added one if
+     * there are several. mMfcs must not be empty.
+     */
+    private MfcKey getLeastRecentlyUsedMfc() {
+        MfcKey lruKey = null;
+        Instant lruLastUsedAt = null;
+        for (var entry : mMfcs.entrySet()) {
+            final Instant lastUsedAt = entry.getValue().getLastUsedAt();
+            if (lruLastUsedAt == null || lastUsedAt.isBefore(lruLastUsedAt)) {
+                lruKey = entry.getKey();
+                lruLastUsedAt = lastUsedAt;
+            }
+        }
+        return lruKey;
+    }
+
     private void checkMfcEntriesLimit() {
         checkOnHandlerThread();
-        // If the max number of MFC entries is reached, remove the first MFC entry. This can be
-        // any entry, as if this entry is needed again there will be a NOCACHE upcall to add it
-        // back.
-        if (mMfcs.size() == MFC_MAX_NUMBER_OF_ENTRIES) {
+        if (mMfcs.size() < MFC_MAX_NUMBER_OF_ENTRIES) return;
+
+        // If the max number of MFC entries is reached, first remove the inactive MFCs, using
+        // last used timestamps that are at most MFC_INACTIVE_CHECK_INTERVAL_MS old so that
+        // bursts of new MFCs do not all read the MFCs from the kernel.
+        final Instant now = Instant.now(mDependencies.getClock());
+        if (mMfcsRefreshedAt == null
+                || mMfcsRefreshedAt.plusMillis(MFC_INACTIVE_CHECK_INTERVAL_MS).isBefore(now)) {
+            refreshMfcInactiveDuration();
+        }
+        maybeExpireMfcs();
+
+        // If all the MFCs are active, remove the least recently used one. If it is needed again
+        // there will be a NOCACHE upcall to add it back.
+        if (mMfcs.size() >= MFC_MAX_NUMBER_OF_ENTRIES) {
             Log.w(TAG, "Reached max number of MFC entries " + MFC_MAX_NUMBER_OF_ENTRIES);
-            var iter = mMfcs.entrySet().iterator();
-            MfcKey firstMfcKey = iter.next().getKey();
-            removeMfcFromKernel(firstMfcKey);
-            iter.remove();
+            final MfcKey lruKey = getLeastRecentlyUsedMfc();
+            removeMfcFromKernel(lruKey);
+            mMfcs.remove(lruKey);
         }
     }
 
@@ -564,7 +611,9 @@ public class MulticastRoutingCoordinatorService {
      */
     private void refreshMfcInactiveDuration() {
         checkOnHandlerThread();
-        final List<RtNetlinkRouteMessage> multicastRoutes = NetlinkUtils.getIpv6MulticastRoutes();
+        final List<RtNetlinkRouteMessage> multicastRoutes =
+                mDependencies.getIpv6MulticastRoutes();
+        mMfcsRefreshedAt = Instant.now(mDependencies.getClock());
 
         for (var route : multicastRoutes) {
             if (!route.isResolved()) {
@@ -573,7 +622,7 @@ public class MulticastRoutingCoordinatorService {
             Integer iif = getVirtualInterfaceIndex(route.getIifIndex());
             if (iif == null) {
                 Log.e(TAG, "Can't find kernel returned IIF " + route.getIifIndex());
-                return;
+                continue;
             }
             final MfcKey key =
                     new MfcKey(
@@ -609,8 +658,9 @@ public class MulticastRoutingCoordinatorService {
     }
 
     /**
-     * This is called every MFC_INACTIVE_CHECK_INTERVAL_MS milliseconds to remove any MFC that is
-     * inactive for more than MFC_INACTIVE_TIMEOUT_MS milliseconds.
+     * This is called when the least recently used MFC may have expired, or when the max number of
+     * MFCs is reached, to remove any MFC that is inactive for more than MFC_INACTIVE_TIMEOUT_MS
+     * milliseconds.
      */
     private void maybeExpireMfcs() {
         checkOnHandlerThread();
@@ -627,19 +677,63 @@ public class MulticastRoutingCoordinatorService {
         }
     }
 
-    private void updateMfcs() {
+    /**
+     * Reconciles the MFCs in the kernel with the current multicast routing configs.
+     *
+     * <p>The desired oifs of all the MFCs are computed first, once per iif and group as they do
+     * not depend on the source, and only the MFCs whose oifs differ are then written to the
+     * kernel or removed. Writing an MFC resets its last used time in the kernel, and the other
+     * MFCs keep theirs, so this does not need to read the MFCs back from the kernel.
+     */
+    private void reconcileMfcs() {
         checkOnHandlerThread();
 
-        for (Iterator<Map.Entry<MfcKey, MfcValue>> it = mMfcs.entrySet().iterator();
-                it.hasNext(); ) {
-            MfcKey key = it.next().getKey();
-            if (!addOrUpdateMfc(key.mIifVirtualIdx, key.mSrcAddr, key.mDstAddr)) {
-                removeMfcFromKernel(key);
-                it.remove();
+        final ArrayMap<Pair<Integer, Inet6Address>, Set<Integer>> desiredOifs = new ArrayMap<>();
+        final ArrayMap<MfcKey, Set<Integer>> updatedMfcs = new ArrayMap<>();
+        final ArrayList<MfcKey> removedMfcs = new ArrayList<>();
+        for (var entry : mMfcs.entrySet()) {
+            final MfcKey key = entry.getKey();
+            final Pair<Integer, Inet6Address> group =
+                    new Pair<>(key.mIifVirtualIdx, key.mDstAddr);
+            final int index = desiredOifs.indexOfKey(group);
+            final Set<Integer> oifs;
+            if (index >= 0) {
+                oifs = desiredOifs.valueAt(index);
+            } else {
+                oifs = computeMfcOifs(key.mIifVirtualIdx, key.mDstAddr);
+                desiredOifs.put(group, oifs);
+            }
+            if (oifs == null) {
+                removedMfcs.add(key);
+            } else if (!oifs.equals(entry.getValue().getOifIndices())) {
+                updatedMfcs.put(key, oifs);
             }
         }
 
-        refreshMfcInactiveDuration();
+        final Instant now = Instant.now(mDependencies.getClock());
+        for (int i = 0; i < updatedMfcs.size(); i++) {
+            final MfcKey key = updatedMfcs.keyAt(i);
+            final Set<Integer> oifs = updatedMfcs.valueAt(i);
+            final StructMf6cctl mf6cctl =
+                    new StructMf6cctl(key.mSrcAddr, key.mDstAddr, key.mIifVirtualIdx, oifs);
+            try {
+                mDependencies.setsockoptMrt6AddMfc(mMulticastRoutingFd, mf6cctl);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "failed to update MFC: " + e);
+                removedMfcs.add(key);
+                continue;
+            }
+            mMfcs.put(key, new MfcValue(oifs, now));
+        }
+        for (MfcKey key : removedMfcs) {
+            removeMfcFromKernel(key);
+            mMfcs.remove(key);
+        }
+
+        if (!updatedMfcs.isEmpty() || !removedMfcs.isEmpty()) {
+            Log.d(TAG, "Reconciled MFCs: " + updatedMfcs.size() + " updated, "
+                    + removedMfcs.size() + " removed, " + mMfcs.size() + " remaining");
+        }
     }
 
     private void joinGroups(int ifIndex, List<Inet6Address> addresses) {
@@ -699,8 +793,7 @@ public class MulticastRoutingCoordinatorService {
         // If the list of MFCs is not empty and there is no MFC check scheduled,
         // schedule one now
         if (!mMfcPollingScheduled) {
-            mHandler.postDelayed(() -> checkMfcsExpiration(), MFC_INACTIVE_CHECK_INTERVAL_MS);
-            mMfcPollingScheduled = true;
+            scheduleMfcsExpirationCheck();
         }
 
         checkMfcEntriesLimit();
@@ -816,5 +909,10 @@ public class MulticastRoutingCoordinatorService {
         public Clock getClock() {
             return mClock;
         }
+
+        /** Dumps the IPv6 multicast routes from the kernel. */
+        public List<RtNetlinkRouteMessage> getIpv6MulticastRoutes() {
+            return NetlinkUtils.getIpv6MulticastRoutes();
+        }
     }
 }
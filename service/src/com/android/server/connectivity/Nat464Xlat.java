@@ -348,11 +348,45 @@ public class Nat464Xlat {
         }
     }
 
+    /**
+     * Switches the running clatd to a new NAT64 prefix without stopping it, so that the stacked
+     * interface, its IPv4 address and the connections using it are kept.
+     *
+     * @return true if clatd was reconfigured, false if it must be restarted instead.
+     */
+    private boolean reconfigure(@NonNull IpPrefix nat64Prefix) {
+        // Before T, clatd is managed by netd, which can only start and stop it.
+        if (!SdkLevel.isAtLeastT()) return false;
+
+        final String addrStr;
+        try {
+            addrStr = mClatCoordinator.clatReconfigure(getNetId(), nat64Prefix);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reconfiguring clatd on " + mBaseIface + ": " + e);
+            return false;
+        }
+        mNat64PrefixInUse = nat64Prefix;
+        mIPv6Address = null;
+        try {
+            mIPv6Address = (Inet6Address) InetAddresses.parseNumericAddress(addrStr);
+        } catch (ClassCastException | IllegalArgumentException | NullPointerException e) {
+            Log.e(TAG, "Invalid IPv6 address " + addrStr);
+        }
+        if (mPrefixDiscoveryRunning && !isPrefixDiscoveryNeeded()) {
+            stopPrefixDiscovery();
+        }
+        if (!mPrefixDiscoveryRunning) {
+            setPrefix64(mNat64PrefixInUse);
+        }
+        return true;
+    }
+
     private void maybeHandleNat64PrefixChange() {
         final IpPrefix newPrefix = selectNat64Prefix();
         if (!Objects.equals(mNat64PrefixInUse, newPrefix)) {
             Log.d(TAG, "NAT64 prefix changed from " + mNat64PrefixInUse + " to "
                     + newPrefix);
+            if (newPrefix != null && reconfigure(newPrefix)) return;
             stop();
             // It's safe to call update here, even though this method is called from update, because
             // stop() is guaranteed to have moved out of STARTING and RUNNING, which are the only
@@ -70,7 +70,7 @@ import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.WakeupMessage;
 import com.android.server.ConnectivityService;
 
-import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.time.Instant;
@@ -1504,12 +1504,6 @@ public class NetworkAgentInfo implements NetworkRanker.Scoreable {
         mInactive = false;
     }
 
-    public void dumpInactivityTimers(PrintWriter pw) {
-        for (InactivityTimer timer : mInactivityTimers) {
-            pw.println(timer);
-        }
-    }
-
     /**
      * Dump the NAT64 xlat information.
      *
@@ -1606,35 +1600,140 @@ public class NetworkAgentInfo implements NetworkRanker.Scoreable {
         return false;
     }
 
-    // TODO: Print shorter members first and only print the boolean variable which value is true
-    // to improve readability.
+    /**
+     * An immutable copy of the state of a NetworkAgentInfo, for dumps.
+     *
+     * Snapshots are taken on the ConnectivityService thread, which only costs copying the state,
+     * and can then be formatted on any thread while the NetworkAgentInfo keeps changing.
+     */
+    public static final class DumpSnapshot {
+        @NonNull public final Network network;
+        @NonNull public final NetworkInfo networkInfo;
+        @NonNull public final LinkProperties linkProperties;
+        @NonNull public final NetworkCapabilities networkCapabilities;
+        public final long creationTime;
+        @NonNull public final FullScore score;
+        public final long createdTime;
+        public final long destroyedTime;
+        public final boolean nascent;
+        public final boolean lingering;
+        public final long firstValidationTime;
+        public final long currentValidationTime;
+        public final long partialConnectivityTime;
+        public final long firstCaptivePortalDetectedTime;
+        public final long currentCaptivePortalDetectedTime;
+        public final boolean explicitlySelected;
+        public final boolean acceptUnvalidated;
+        public final boolean acceptPartialConnectivity;
+        // The clatd state if it is started, or null otherwise.
+        @Nullable public final String clat;
+        @Nullable public final Network[] declaredUnderlyingNetworks;
+        public final int factorySerialNumber;
+
+        // The following are only filled in by snapshots taken with copied state, see below.
+        @Nullable public final String nat464XlatDump;
+        @Nullable public final NetworkRequest[] requests;
+        public final int numForegroundRequests;
+        public final int numRequestRequests;
+        public final int numBackgroundRequests;
+        @Nullable public final InactivityTimer[] inactivityTimers;
+
+        /**
+         * Takes a snapshot of the given network.
+         *
+         * This must be called on the ConnectivityService thread if copyState is true. Otherwise,
+         * the mutable objects of the network are referenced instead of copied, so the snapshot
+         * must be used immediately, as {@link NetworkAgentInfo#toString} does.
+         */
+        public DumpSnapshot(@NonNull NetworkAgentInfo nai, boolean copyState) {
+            network = nai.network;
+            networkInfo = copyState ? new NetworkInfo(nai.networkInfo) : nai.networkInfo;
+            linkProperties = copyState
+                    ? new LinkProperties(nai.linkProperties) : nai.linkProperties;
+            networkCapabilities = copyState
+                    ? new NetworkCapabilities(nai.networkCapabilities) : nai.networkCapabilities;
+            creationTime = nai.mCreationTime;
+            score = nai.mScore;
+            createdTime = nai.mCreatedTime;
+            destroyedTime = nai.mDestroyedTime;
+            nascent = nai.isNascent();
+            lingering = nai.isLingering();
+            firstValidationTime = nai.mFirstValidationTime;
+            currentValidationTime = nai.mCurrentValidationTime;
+            partialConnectivityTime = nai.mPartialConnectivityTime;
+            firstCaptivePortalDetectedTime = nai.mFirstCaptivePortalDetectedTime;
+            currentCaptivePortalDetectedTime = nai.mCurrentCaptivePortalDetectedTime;
+            explicitlySelected = nai.networkAgentConfig.explicitlySelected;
+            acceptUnvalidated = nai.networkAgentConfig.acceptUnvalidated;
+            acceptPartialConnectivity = nai.networkAgentConfig.acceptPartialConnectivity;
+            clat = nai.clatd.isStarted() ? nai.clatd.toString() : null;
+            final Network[] underlying = nai.declaredUnderlyingNetworks;
+            declaredUnderlyingNetworks =
+                    (copyState && underlying != null) ? underlying.clone() : underlying;
+            factorySerialNumber = nai.factorySerialNumber;
+
+            if (!copyState) {
+                nat464XlatDump = null;
+                requests = null;
+                numForegroundRequests = 0;
+                numRequestRequests = 0;
+                numBackgroundRequests = 0;
+                inactivityTimers = null;
+                return;
+            }
+            final StringWriter sw = new StringWriter();
+            final IndentingPrintWriter pw = new IndentingPrintWriter(sw, "  ");
+            nai.dumpNat464Xlat(pw);
+            pw.flush();
+            nat464XlatDump = sw.toString();
+            requests = new NetworkRequest[nai.numNetworkRequests()];
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = nai.requestAt(i);
+            }
+            numForegroundRequests = nai.numForegroundNetworkRequests();
+            numRequestRequests = nai.numRequestNetworkRequests();
+            numBackgroundRequests = nai.numBackgroundNetworkRequests();
+            inactivityTimers = nai.mInactivityTimers.toArray(new InactivityTimer[0]);
+        }
+
+        // TODO: Print shorter members first and only print the boolean variable which value is
+        // true to improve readability.
+        @Override
+        public String toString() {
+            return "NetworkAgentInfo{"
+                    + "network{" + network + "}  handle{" + network.getNetworkHandle() + "}  ni{"
+                    + networkInfo.toShortString() + "} "
+                    + "created=" + Instant.ofEpochMilli(creationTime) + " "
+                    + score + " "
+                    + (0L != createdTime ? " created " + createdTime : "")
+                    + (0L != destroyedTime ? " destroyed " + destroyedTime : "")
+                    + (nascent ? " nascent" : (lingering ? " lingering" : ""))
+                    + (0L != firstValidationTime ? " firstValidated " + firstValidationTime : "")
+                    + (0L != currentValidationTime
+                            ? " lastValidated " + currentValidationTime : "")
+                    + (0L != partialConnectivityTime
+                            ? " partialConnectivity " + partialConnectivityTime : "")
+                    + (0L != firstCaptivePortalDetectedTime
+                            ? " firstCaptivePortalDetected " + firstCaptivePortalDetectedTime : "")
+                    + (0L != currentCaptivePortalDetectedTime
+                            ? " currentCaptivePortalDetected " + currentCaptivePortalDetectedTime
+                            : "")
+                    + (explicitlySelected ? " explicitlySelected" : "")
+                    + (acceptUnvalidated ? " acceptUnvalidated" : "")
+                    + (acceptPartialConnectivity ? " acceptPartialConnectivity" : "")
+                    + (clat != null ? " clat{" + clat + "} " : "")
+                    + (declaredUnderlyingNetworks != null
+                            ? " underlying{" + Arrays.toString(declaredUnderlyingNetworks) + "}"
+                            : "")
+                    + "  lp{" + linkProperties + "}"
+                    + "  nc{" + networkCapabilities + "}"
+                    + "  factorySerialNumber=" + factorySerialNumber
+                    + "}";
+        }
+    }
+
     public String toString() {
-        return "NetworkAgentInfo{"
-                + "network{" + network + "}  handle{" + network.getNetworkHandle() + "}  ni{"
-                + networkInfo.toShortString() + "} "
-                + "created=" + Instant.ofEpochMilli(mCreationTime) + " "
-                + mScore + " "
-                + (isCreated() ? " created " + getCreatedTime() : "")
-                + (isDestroyed() ? " destroyed " + mDestroyedTime : "")
-                + (isNascent() ? " nascent" : (isLingering() ? " lingering" : ""))
-                + (everValidated() ? " firstValidated " + getFirstValidationTime() : "")
-                + (isValidated() ? " lastValidated " + getCurrentValidationTime() : "")
-                + (partialConnectivity()
-                        ? " partialConnectivity " + mPartialConnectivityTime : "")
-                + (everCaptivePortalDetected()
-                        ? " firstCaptivePortalDetected " + mFirstCaptivePortalDetectedTime : "")
-                + (captivePortalDetected()
-                        ? " currentCaptivePortalDetected " + mCurrentCaptivePortalDetectedTime : "")
-                + (networkAgentConfig.explicitlySelected ? " explicitlySelected" : "")
-                + (networkAgentConfig.acceptUnvalidated ? " acceptUnvalidated" : "")
-                + (networkAgentConfig.acceptPartialConnectivity ? " acceptPartialConnectivity" : "")
-                + (clatd.isStarted() ? " clat{" + clatd + "} " : "")
-                + (declaredUnderlyingNetworks != null
-                        ? " underlying{" + Arrays.toString(declaredUnderlyingNetworks) + "}" : "")
-                + "  lp{" + linkProperties + "}"
-                + "  nc{" + networkCapabilities + "}"
-                + "  factorySerialNumber=" + factorySerialNumber
-                + "}";
+        return new DumpSnapshot(this, false /* copyState */).toString();
     }
 
     /**
@@ -43,11 +43,13 @@ import android.os.Build;
 import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.system.StructPollfd;
 import android.system.StructTimeval;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.net.module.util.NetworkStackConstants;
 
@@ -67,12 +69,13 @@ import java.net.NetworkInterface;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
@@ -105,6 +108,10 @@ import javax.net.ssl.SSLSocketFactory;
  * check class must implement this upper bound on measurements in whichever
  * manner is most appropriate and effective.
  *
+ * The ICMP and DNS UDP checks are run by a single thread that polls all their
+ * sockets, and each of them measures the RTT of several probes.  The DNS TLS
+ * checks use blocking sockets, so each of them runs on its own thread.
+ *
  * @hide
  */
 public class NetworkDiagnostics {
@@ -123,6 +130,7 @@ public class NetworkDiagnostics {
     // Should be a member of DnsUdpCheck, but "compiler says no".
     public static enum DnsResponseCode { NOERROR, FORMERR, SERVFAIL, NXDOMAIN, NOTIMP, REFUSED };
 
+    private final Dependencies mDeps;
     private final Network mNetwork;
     private final LinkProperties mLinkProperties;
     private final PrivateDnsConfig mPrivateDnsCfg;
@@ -190,11 +198,48 @@ public class NetworkDiagnostics {
             new HashMap<>();
     private final Map<InetAddress, Measurement> mDnsUdpChecks = new HashMap<>();
     private final Map<InetAddress, Measurement> mDnsTlsChecks = new HashMap<>();
+    // The checks run by the thread polling datagram sockets, see runDatagramChecks.
+    private final List<DatagramCheck> mDatagramChecks = new ArrayList<>();
     private final String mDescription;
 
 
+    /**
+     * Dependencies of NetworkDiagnostics, for injection in tests.
+     */
+    @VisibleForTesting
+    public static class Dependencies {
+        /**
+         * Create the socket of an ICMP or DNS UDP check.
+         */
+        public FileDescriptor createSocket(int family, int type, int protocol)
+                throws ErrnoException {
+            return Os.socket(family, type, protocol);
+        }
+
+        /**
+         * Bind the socket of a check to the network and to the source address if any, and
+         * connect it to the target.
+         */
+        public void connectSocket(@NonNull Network network, @NonNull FileDescriptor fd,
+                @Nullable InetAddress source, @NonNull InetAddress target, int port)
+                throws ErrnoException, IOException {
+            network.bindSocket(fd);
+            if (source != null) {
+                Os.bind(fd, source, 0);
+            }
+            Os.connect(fd, target, port);
+        }
+    }
+
     public NetworkDiagnostics(Network network, LinkProperties lp,
             @NonNull PrivateDnsConfig privateDnsCfg, long timeoutMs) {
+        this(network, lp, privateDnsCfg, timeoutMs, new Dependencies());
+    }
+
+    @VisibleForTesting
+    NetworkDiagnostics(Network network, LinkProperties lp,
+            @NonNull PrivateDnsConfig privateDnsCfg, long timeoutMs, @NonNull Dependencies deps) {
+        mDeps = deps;
         mNetwork = network;
         mLinkProperties = lp;
         mPrivateDnsCfg = privateDnsCfg;
@@ -322,7 +367,7 @@ public class NetworkDiagnostics {
                 new Pair<>(target, Integer.valueOf(payloadLen));
         if (!mIcmpChecks.containsKey(lenTarget)) {
             final Measurement measurement = new Measurement();
-            measurement.thread = new Thread(new IcmpCheck(target, payloadLen, measurement));
+            mDatagramChecks.add(new IcmpCheck(target, payloadLen, measurement));
             mIcmpChecks.put(lenTarget, measurement);
         }
     }
@@ -366,7 +411,7 @@ public class NetworkDiagnostics {
                 Pair<InetAddress, InetAddress> srcTarget = new Pair<>(source, target);
                 if (!mExplicitSourceIcmpChecks.containsKey(srcTarget)) {
                     Measurement measurement = new Measurement();
-                    measurement.thread = new Thread(new IcmpCheck(source, target, 0, measurement));
+                    mDatagramChecks.add(new IcmpCheck(source, target, 0, measurement));
                     mExplicitSourceIcmpChecks.put(srcTarget, measurement);
                 }
             }
@@ -376,7 +421,7 @@ public class NetworkDiagnostics {
     private void prepareDnsMeasurement(InetAddress target) {
         if (!mDnsUdpChecks.containsKey(target)) {
             Measurement measurement = new Measurement();
-            measurement.thread = new Thread(new DnsUdpCheck(target, measurement));
+            mDatagramChecks.add(new DnsUdpCheck(target, measurement));
             mDnsUdpChecks.put(target, measurement);
         }
     }
@@ -397,17 +442,51 @@ public class NetworkDiagnostics {
     }
 
     private void startMeasurements() {
-        for (Measurement measurement : mIcmpChecks.values()) {
-            measurement.thread.start();
+        if (!mDatagramChecks.isEmpty()) {
+            new Thread(this::runDatagramChecks, TAG).start();
         }
-        for (Measurement measurement : mExplicitSourceIcmpChecks.values()) {
+        for (Measurement measurement : mDnsTlsChecks.values()) {
             measurement.thread.start();
         }
-        for (Measurement measurement : mDnsUdpChecks.values()) {
-            measurement.thread.start();
+    }
+
+    // Runs all the datagram checks until they are finished, polling their sockets instead of
+    // blocking on each of them in turn.
+    private void runDatagramChecks() {
+        final ArrayList<DatagramCheck> active = new ArrayList<>();
+        for (DatagramCheck check : mDatagramChecks) {
+            if (check.start()) active.add(check);
         }
-        for (Measurement measurement : mDnsTlsChecks.values()) {
-            measurement.thread.start();
+        while (!active.isEmpty()) {
+            final long now = now();
+            long wakeupTime = Long.MAX_VALUE;
+            for (int i = active.size() - 1; i >= 0; i--) {
+                final long checkWakeupTime = active.get(i).onTimer(now);
+                if (checkWakeupTime == 0) {
+                    active.remove(i);
+                } else {
+                    wakeupTime = Math.min(wakeupTime, checkWakeupTime);
+                }
+            }
+            if (active.isEmpty()) break;
+
+            final StructPollfd[] fds = new StructPollfd[active.size()];
+            for (int i = 0; i < fds.length; i++) {
+                fds[i] = new StructPollfd();
+                fds[i].fd = active.get(i).mFileDescriptor;
+                fds[i].events = (short) POLLIN;
+            }
+            try {
+                Os.poll(fds, (int) Math.max(0, wakeupTime - now()));
+            } catch (ErrnoException e) {
+                // Only EINTR is expected. The timers of the checks bound the loop in any case.
+                continue;
+            }
+            for (int i = fds.length - 1; i >= 0; i--) {
+                if (fds[i].revents != 0 && !active.get(i).onReadable()) {
+                    active.remove(i);
+                }
+            }
         }
     }
 
@@ -528,17 +607,13 @@ public class NetworkDiagnostics {
             mSource = source;
         }
 
-        protected SimpleSocketCheck(InetAddress target, Measurement measurement) {
-            this(null, target, measurement);
-        }
-
         protected void setupSocket(
                 int sockType, int protocol, long writeTimeout, long readTimeout, int dstPort)
                 throws ErrnoException, IOException {
             final int oldTag = TrafficStats.getAndSetThreadStatsTag(
                     NetworkStackConstants.TAG_SYSTEM_PROBE);
             try {
-                mFileDescriptor = Os.socket(mAddressFamily, sockType, protocol);
+                mFileDescriptor = mDeps.createSocket(mAddressFamily, sockType, protocol);
             } finally {
                 // TODO: The tag should remain set until all traffic is sent and received.
                 // Consider tagging the socket after the measurement thread is started.
@@ -550,11 +625,7 @@ public class NetworkDiagnostics {
             Os.setsockoptTimeval(mFileDescriptor,
                     SOL_SOCKET, SO_RCVTIMEO, StructTimeval.fromMillis(readTimeout));
             // TODO: Use IP_RECVERR/IPV6_RECVERR, pending OsContants availability.
-            mNetwork.bindSocket(mFileDescriptor);
-            if (mSource != null) {
-                Os.bind(mFileDescriptor, mSource, 0);
-            }
-            Os.connect(mFileDescriptor, mTarget, dstPort);
+            mDeps.connectSocket(mNetwork, mFileDescriptor, mSource, mTarget, dstPort);
             mSocketAddress = Os.getsockname(mFileDescriptor);
         }
 
@@ -573,10 +644,138 @@ public class NetworkDiagnostics {
     }
 
 
-    private class IcmpCheck extends SimpleSocketCheck implements Runnable {
+    // A check that sends probes on a non-blocking datagram socket and measures the RTT of the
+    // replies. A probe is sent each time the previous one is answered or times out, until enough
+    // replies were received or no more probes can be sent before the deadline.
+    private abstract class DatagramCheck extends SimpleSocketCheck {
+        private static final int MAX_REPLIES = 5;
+        private static final int PACKET_BUFSIZE = 512;
+
+        private final long mProbeTimeoutMs;
+        private final long mSendDeadlineTime;
+        // Send times of the probes, indexed by sequence number - 1. Set to null when answered.
+        private final ArrayList<Long> mSendTimesNs = new ArrayList<>();
+        private final ArrayList<Long> mRttsNs = new ArrayList<>();
+        private final byte[] mReply = new byte[PACKET_BUFSIZE];
+        private long mNextSendTime;
+        private String mReplyDetails = "";
+
+        protected DatagramCheck(InetAddress source, InetAddress target, Measurement measurement,
+                long probeTimeoutMs, long sendDeadlineTime) {
+            super(source, target, measurement);
+            mProbeTimeoutMs = probeTimeoutMs;
+            mSendDeadlineTime = sendDeadlineTime;
+        }
+
+        // Creates the socket. Records a failure and returns false if it can't be created.
+        protected abstract boolean setup();
+
+        protected abstract byte[] buildProbe(int seq);
+
+        // Returns the sequence number of the probe answered by the reply, or -1.
+        protected abstract int getReplySeq(byte[] reply, int len);
+
+        protected String getReplyDetails(byte[] reply, int len) {
+            return "";
+        }
+
+        // Returns false if there is nothing to measure.
+        boolean start() {
+            if (ensureMeasurementNecessary()) return false;
+            if (!setup()) {
+                close();
+                return false;
+            }
+            mMeasurement.startTime = now();
+            mNextSendTime = mMeasurement.startTime;
+            return true;
+        }
+
+        // Sends a probe if one is due. Returns the next time at which this must be called, or 0
+        // if the check is finished.
+        long onTimer(long now) {
+            if (now < mNextSendTime) return mNextSendTime;
+            if (now >= mSendDeadlineTime) {
+                finish(null);
+                return 0;
+            }
+            final byte[] probe = buildProbe(mSendTimesNs.size() + 1);
+            try {
+                Os.write(mFileDescriptor, probe, 0, probe.length);
+            } catch (ErrnoException | InterruptedIOException e) {
+                finish(e.toString());
+                return 0;
+            }
+            mSendTimesNs.add(SystemClock.elapsedRealtimeNanos());
+            mNextSendTime = now + mProbeTimeoutMs;
+            return mNextSendTime;
+        }
+
+        // Reads all the available replies. Returns false if the check is finished.
+        boolean onReadable() {
+            while (true) {
+                final int len;
+                try {
+                    len = Os.read(mFileDescriptor, mReply, 0, mReply.length);
+                } catch (ErrnoException | InterruptedIOException e) {
+                    // EAGAIN once all replies were read. Errors such as ICMP unreachable
+                    // messages are not fatal: the probe just times out.
+                    return true;
+                }
+                final long receiveTimeNs = SystemClock.elapsedRealtimeNanos();
+                final int seq = getReplySeq(mReply, len);
+                if (seq < 1 || seq > mSendTimesNs.size()) continue;
+                final Long sendTimeNs = mSendTimesNs.get(seq - 1);
+                if (sendTimeNs == null) continue;  // Duplicate reply.
+                mSendTimesNs.set(seq - 1, null);
+                mRttsNs.add(receiveTimeNs - sendTimeNs);
+                mReplyDetails = getReplyDetails(mReply, len);
+                if (mRttsNs.size() >= MAX_REPLIES) {
+                    finish(null);
+                    return false;
+                }
+                // Send the next probe right away if this one answers the last one sent.
+                if (seq == mSendTimesNs.size()) mNextSendTime = now();
+            }
+        }
+
+        private void finish(@Nullable String error) {
+            close();
+            final String counts = mRttsNs.size() + "/" + mSendTimesNs.size();
+            if (error != null) {
+                mMeasurement.recordFailure(error);
+            } else if (mRttsNs.isEmpty()) {
+                mMeasurement.recordFailure(counts);
+            } else {
+                mMeasurement.recordSuccess(counts + mReplyDetails + " " + rttToString());
+            }
+        }
+
+        private String rttToString() {
+            final long[] rtts = new long[mRttsNs.size()];
+            for (int i = 0; i < rtts.length; i++) rtts[i] = mRttsNs.get(i);
+            Arrays.sort(rtts);
+            return "rtt{min=" + nsToMsString(rtts[0])
+                    + " p50=" + nsToMsString(percentile(rtts, 50))
+                    + " p90=" + nsToMsString(percentile(rtts, 90))
+                    + " max=" + nsToMsString(rtts[rtts.length - 1]) + "}";
+        }
+
+        // Nearest-rank percentile of sorted values.
+        private long percentile(long[] sorted, int percent) {
+            final int rank = (sorted.length * percent + 99) / 100;
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        private String nsToMsString(long ns) {
+            return String.format(Locale.ROOT, "%.1fms", ns / 1e6);
+        }
+    }
+
+
+    private class IcmpCheck extends DatagramCheck {
         private static final int TIMEOUT_SEND = 100;
         private static final int TIMEOUT_RECV = 300;
-        private static final int PACKET_BUFSIZE = 512;
         private final int mProtocol;
         private final int mIcmpType;
         private final int mPayloadSize;
@@ -584,7 +783,8 @@ public class NetworkDiagnostics {
         // data bytes to be sent.
         IcmpCheck(InetAddress source, InetAddress target, int length, Measurement measurement) {
 
-            super(source, target, measurement);
+            super(source, target, measurement, TIMEOUT_RECV,
+                    mDeadlineTime - (TIMEOUT_SEND + TIMEOUT_RECV));
 
             if (mAddressFamily == AF_INET6) {
                 mProtocol = IPPROTO_ICMPV6;
@@ -605,61 +805,46 @@ public class NetworkDiagnostics {
         }
 
         @Override
-        public void run() {
-            if (ensureMeasurementNecessary()) return;
-
+        protected boolean setup() {
             try {
-                setupSocket(SOCK_DGRAM, mProtocol, TIMEOUT_SEND, TIMEOUT_RECV, 0);
+                setupSocket(SOCK_DGRAM | SOCK_NONBLOCK, mProtocol, TIMEOUT_SEND, TIMEOUT_RECV, 0);
             } catch (ErrnoException | IOException e) {
                 mMeasurement.recordFailure(e.toString());
-                return;
+                return false;
             }
             mMeasurement.description += " src{" + socketAddressToString(mSocketAddress) + "}";
+            return true;
+        }
 
+        @Override
+        protected byte[] buildProbe(int seq) {
             // Build a trivial ICMP packet.
             // The v4 ICMP header ICMP_HEADER_LEN (which is 8) and v6 is only 4 bytes (4 bytes
             // message body followed by header before the payload).
             // Use 8 bytes for both v4 and v6 for simplicity.
             final byte[] icmpPacket = new byte[ICMP_HEADER_LEN + mPayloadSize];
             icmpPacket[0] = (byte) mIcmpType;
+            // The kernel sets the echo identifier of ping sockets, but keeps the sequence number.
+            icmpPacket[6] = (byte) (seq >> 8);
+            icmpPacket[7] = (byte) seq;
+            icmpPacket[icmpPacket.length - 1] = (byte) seq;
+            return icmpPacket;
+        }
 
-            int count = 0;
-            mMeasurement.startTime = now();
-            while (now() < mDeadlineTime - (TIMEOUT_SEND + TIMEOUT_RECV)) {
-                count++;
-                icmpPacket[icmpPacket.length - 1] = (byte) count;
-                try {
-                    Os.write(mFileDescriptor, icmpPacket, 0, icmpPacket.length);
-                } catch (ErrnoException | InterruptedIOException e) {
-                    mMeasurement.recordFailure(e.toString());
-                    break;
-                }
-
-                try {
-                    ByteBuffer reply = ByteBuffer.allocate(PACKET_BUFSIZE);
-                    Os.read(mFileDescriptor, reply);
-                    // TODO: send a few pings back to back to guesstimate packet loss.
-                    mMeasurement.recordSuccess("1/" + count);
-                    break;
-                } catch (ErrnoException | InterruptedIOException e) {
-                    continue;
-                }
-            }
-            if (mMeasurement.finishTime == 0) {
-                mMeasurement.recordFailure("0/" + count);
-            }
-
-            close();
+        @Override
+        protected int getReplySeq(byte[] reply, int len) {
+            if (len < ICMP_HEADER_LEN) return -1;
+            return ((reply[6] & 0xff) << 8) | (reply[7] & 0xff);
         }
     }
 
 
-    private class DnsUdpCheck extends SimpleSocketCheck implements Runnable {
+    private class DnsUdpCheck extends DatagramCheck {
         private static final int TIMEOUT_SEND = 100;
         private static final int TIMEOUT_RECV = 500;
         private static final int RR_TYPE_A = 1;
         private static final int RR_TYPE_AAAA = 28;
-        private static final int PACKET_BUFSIZE = 512;
+        private static final int DNS_HEADER_SIZE = 12;
 
         protected final Random mRandom = new Random();
 
@@ -673,9 +858,13 @@ public class NetworkDiagnostics {
         }
 
         protected final int mQueryType;
+        // Query ID of the probe with sequence number 0. Each probe uses its own ID.
+        private final int mQueryIdBase = mRandom.nextInt();
+        private byte[] mDnsPacket;
 
         public DnsUdpCheck(InetAddress target, Measurement measurement) {
-            super(target, measurement);
+            super(null, target, measurement, TIMEOUT_RECV,
+                    mDeadlineTime - (TIMEOUT_RECV + TIMEOUT_RECV));
 
             // TODO: Ideally, query the target for both types regardless of address family.
             if (mAddressFamily == AF_INET6) {
@@ -688,53 +877,43 @@ public class NetworkDiagnostics {
         }
 
         @Override
-        public void run() {
-            if (ensureMeasurementNecessary()) return;
-
+        protected boolean setup() {
             try {
-                setupSocket(SOCK_DGRAM, IPPROTO_UDP, TIMEOUT_SEND, TIMEOUT_RECV,
+                setupSocket(SOCK_DGRAM | SOCK_NONBLOCK, IPPROTO_UDP, TIMEOUT_SEND, TIMEOUT_RECV,
                         NetworkConstants.DNS_SERVER_PORT);
             } catch (ErrnoException | IOException e) {
                 mMeasurement.recordFailure(e.toString());
-                return;
+                return false;
             }
 
             // This needs to be fixed length so it can be dropped into the pre-canned packet.
             final String sixRandomDigits = String.valueOf(mRandom.nextInt(900000) + 100000);
             // Build a trivial DNS packet.
-            final byte[] dnsPacket = getDnsQueryPacket(sixRandomDigits);
+            mDnsPacket = getDnsQueryPacket(sixRandomDigits);
             appendDnsToMeasurementDescription(sixRandomDigits, mSocketAddress);
+            return true;
+        }
 
-            int count = 0;
-            mMeasurement.startTime = now();
-            while (now() < mDeadlineTime - (TIMEOUT_RECV + TIMEOUT_RECV)) {
-                count++;
-                try {
-                    Os.write(mFileDescriptor, dnsPacket, 0, dnsPacket.length);
-                } catch (ErrnoException | InterruptedIOException e) {
-                    mMeasurement.recordFailure(e.toString());
-                    break;
-                }
+        @Override
+        protected byte[] buildProbe(int seq) {
+            final int id = mQueryIdBase + seq;
+            mDnsPacket[0] = (byte) (id >> 8);
+            mDnsPacket[1] = (byte) id;
+            return mDnsPacket;
+        }
 
-                try {
-                    ByteBuffer reply = ByteBuffer.allocate(PACKET_BUFSIZE);
-                    Os.read(mFileDescriptor, reply);
-                    // TODO: more correct and detailed evaluation of the response,
-                    // possibly adding the returned IP address(es) to the output.
-                    final String rcodeStr = (reply.limit() > 3)
-                            ? " " + responseCodeStr((int) (reply.get(3)) & 0x0f)
-                            : "";
-                    mMeasurement.recordSuccess("1/" + count + rcodeStr);
-                    break;
-                } catch (ErrnoException | InterruptedIOException e) {
-                    continue;
-                }
-            }
-            if (mMeasurement.finishTime == 0) {
-                mMeasurement.recordFailure("0/" + count);
-            }
+        @Override
+        protected int getReplySeq(byte[] reply, int len) {
+            if (len < DNS_HEADER_SIZE) return -1;
+            final int id = ((reply[0] & 0xff) << 8) | (reply[1] & 0xff);
+            return (id - mQueryIdBase) & 0xffff;
+        }
 
-            close();
+        @Override
+        protected String getReplyDetails(byte[] reply, int len) {
+            // TODO: more correct and detailed evaluation of the response,
+            // possibly adding the returned IP address(es) to the output.
+            return " " + responseCodeStr((int) (reply[3]) & 0x0f);
         }
 
         private String qnameEnding;
@@ -830,10 +1009,9 @@ public class NetworkDiagnostics {
 
     // TODO: Have it inherited from SimpleSocketCheck, and separate common DNS helpers out of
     // DnsUdpCheck.
-    private class DnsTlsCheck extends DnsUdpCheck {
+    private class DnsTlsCheck extends DnsUdpCheck implements Runnable {
         private static final int TCP_CONNECT_TIMEOUT_MS = 2500;
         private static final int TCP_TIMEOUT_MS = 2000;
-        private static final int DNS_HEADER_SIZE = 12;
 
         private final String mHostname;
 
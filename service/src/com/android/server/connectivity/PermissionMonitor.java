@@ -57,12 +57,12 @@ import android.os.HandlerThread;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
+import android.os.SystemClock;
 import android.os.SystemConfigManager;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.util.ArrayMap;
-import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseIntArray;
 
@@ -72,11 +72,13 @@ import com.android.internal.util.IndentingPrintWriter;
 import com.android.modules.utils.build.SdkLevel;
 import com.android.net.module.util.CollectionUtils;
 import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.SortedIntSet;
 import com.android.networkstack.apishim.ProcessShimImpl;
 import com.android.networkstack.apishim.common.ProcessShim;
 import com.android.server.BpfNetMaps;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -129,7 +131,7 @@ public class PermissionMonitor {
     // directly to reduce its size and also eliminate the need to update this set when user is
     // added/removed.
     @GuardedBy("this")
-    private final Set<Integer> mAllApps = new HashSet<>();
+    private final SortedIntSet mAllApps = new SortedIntSet();
 
     // A set of uids which are allowed to use restricted networks. The packages of these uids can't
     // hold the CONNECTIVITY_USE_RESTRICTED_NETWORKS permission because they can't be
@@ -137,7 +139,7 @@ public class PermissionMonitor {
     // networks under certain conditions (e.g. government app using emergency services). So grant
     // netd system permission to these uids which is listed in UIDS_ALLOWED_ON_RESTRICTED_NETWORKS.
     @GuardedBy("this")
-    private final Set<Integer> mUidsAllowedOnRestrictedNetworks = new ArraySet<>();
+    private final SortedIntSet mUidsAllowedOnRestrictedNetworks = new SortedIntSet();
 
     // Store PackageManager for each user.
     // Keys are users, Values are PackageManagers which get from each user.
@@ -310,14 +312,19 @@ public class PermissionMonitor {
     }
 
     private synchronized void updateAllApps(final List<PackageInfo> apps) {
+        // Collect the appIds first and merge them in one pass, instead of inserting them one by
+        // one into the sorted set.
+        final int[] appIds = new int[apps.size()];
+        int count = 0;
         for (PackageInfo app : apps) {
             final int appId = app.applicationInfo != null
                     ? UserHandle.getAppId(app.applicationInfo.uid) : INVALID_UID;
             if (appId < 0) {
                 continue;
             }
-            mAllApps.add(appId);
+            appIds[count++] = appId;
         }
+        mAllApps.addAll(SortedIntSet.of(Arrays.copyOf(appIds, count)));
     }
 
     private static boolean hasSdkSandbox(final int uid) {
@@ -469,10 +476,14 @@ public class PermissionMonitor {
 
         final List<UserHandle> usrs = mUserManager.getUserHandles(true /* excludeDying */);
         // Update netd permissions for all users.
+        final long startTimeMs = SystemClock.elapsedRealtime();
         for (UserHandle user : usrs) {
             onUserAdded(user);
         }
+        final long durationMs = SystemClock.elapsedRealtime() - startTimeMs;
         log("Users: " + mUsers.size() + ", UidToNetworkPerm: " + mUidToNetworkPerm.size());
+        mPermissionUpdateLogs.log("Initial permissions of " + usrs.size() + " users sent in "
+                + durationMs + "ms");
     }
 
     @VisibleForTesting
@@ -1073,11 +1084,12 @@ public class PermissionMonitor {
      *   1. falls into one of the UidRange
      *   2. matches one of the appIds
      */
-    private Set<Integer> intersectUids(Set<UidRange> ranges, Set<Integer> appIds) {
+    private Set<Integer> intersectUids(Set<UidRange> ranges, SortedIntSet appIds) {
         Set<Integer> result = new HashSet<>();
         for (UidRange range : ranges) {
             for (int userId = range.getStartUser(); userId <= range.getEndUser(); userId++) {
-                for (int appId : appIds) {
+                for (int i = 0; i < appIds.size(); i++) {
+                    final int appId = appIds.valueAt(i);
                     final UserHandle handle = UserHandle.of(userId);
                     if (handle == null) continue;
 
@@ -1173,78 +1185,38 @@ public class PermissionMonitor {
     @VisibleForTesting
     void sendUidsTrafficPermission(final int userId, SparseIntArray netdPermissionsAppIds) {
         ensureRunningOnHandlerThread();
-        final ArrayList<Integer> allPermissionAppIds = new ArrayList<>();
-        final ArrayList<Integer> internetPermissionAppIds = new ArrayList<>();
-        final ArrayList<Integer> updateStatsPermissionAppIds = new ArrayList<>();
-        final ArrayList<Integer> noPermissionAppIds = new ArrayList<>();
-        final ArrayList<Integer> uninstalledAppIds = new ArrayList<>();
+        final SparseIntArray netdPermissionsUids = new SparseIntArray();
         for (int i = 0; i < netdPermissionsAppIds.size(); i++) {
-            int permissions = netdPermissionsAppIds.valueAt(i);
+            final int permissions = netdPermissionsAppIds.valueAt(i);
             switch(permissions) {
                 case (PERMISSION_INTERNET | PERMISSION_UPDATE_DEVICE_STATS):
-                    allPermissionAppIds.add(netdPermissionsAppIds.keyAt(i));
-                    break;
                 case PERMISSION_INTERNET:
-                    internetPermissionAppIds.add(netdPermissionsAppIds.keyAt(i));
-                    break;
                 case PERMISSION_UPDATE_DEVICE_STATS:
-                    updateStatsPermissionAppIds.add(netdPermissionsAppIds.keyAt(i));
-                    break;
                 case PERMISSION_NONE:
-                    noPermissionAppIds.add(netdPermissionsAppIds.keyAt(i));
-                    break;
                 case PERMISSION_UNINSTALLED:
-                    uninstalledAppIds.add(netdPermissionsAppIds.keyAt(i));
+                    netdPermissionsUids.put(
+                            UserHandle.getUid(userId, netdPermissionsAppIds.keyAt(i)),
+                            permissions);
                     break;
                 default:
                     Log.e(TAG, "unknown permission type: " + permissions + "for uid: "
                             + netdPermissionsAppIds.keyAt(i));
             }
         }
+        if (netdPermissionsUids.size() == 0) return;
         try {
             // TODO: add a lock inside netd to protect IPC trafficSetNetPermForUids()
-            if (allPermissionAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(
-                        PERMISSION_INTERNET | PERMISSION_UPDATE_DEVICE_STATS,
-                        appIdListToUidArray(userId, allPermissionAppIds));
-            }
-            if (internetPermissionAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(PERMISSION_INTERNET,
-                        appIdListToUidArray(userId, internetPermissionAppIds));
-            }
-            if (updateStatsPermissionAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(PERMISSION_UPDATE_DEVICE_STATS,
-                        appIdListToUidArray(userId, updateStatsPermissionAppIds));
-            }
-            if (noPermissionAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(PERMISSION_NONE,
-                        appIdListToUidArray(userId, noPermissionAppIds));
-            }
-            if (uninstalledAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(PERMISSION_UNINSTALLED,
-                        appIdListToUidArray(userId, uninstalledAppIds));
-            }
+            mBpfNetMaps.setNetPermForUids(netdPermissionsUids);
         } catch (RemoteException | ServiceSpecificException e) {
             Log.e(TAG, "Pass appId list of special permission failed." + e);
         }
     }
 
-    private static int[] appIdListToUidArray(int userId, ArrayList<Integer> appIds) {
-        final int cnt = appIds.size();
-        int[] array = new int[cnt];
-
-        for (int i = 0; i < cnt; ++i) {
-            int appId = appIds.get(i).intValue();
-            array[i] = UserHandle.getUid(userId, appId);
-        }
-
-        return array;
-    }
-
     private synchronized void onSettingChanged() {
         // Step1. Update uids allowed to use restricted networks and compute the set of uids to
         // update.
-        final Set<Integer> uidsToUpdate = new ArraySet<>(mUidsAllowedOnRestrictedNetworks);
+        final SortedIntSet uidsToUpdate = new SortedIntSet();
+        uidsToUpdate.addAll(mUidsAllowedOnRestrictedNetworks);
         updateUidsAllowedOnRestrictedNetworks(mDeps.getUidsAllowedOnRestrictedNetworks(mContext));
         uidsToUpdate.addAll(mUidsAllowedOnRestrictedNetworks);
 
@@ -1252,7 +1224,8 @@ public class PermissionMonitor {
         final SparseIntArray removedUids = new SparseIntArray();
 
         // Step2. For each uid to update, find out its new permission.
-        for (Integer uid : uidsToUpdate) {
+        for (int i = 0; i < uidsToUpdate.size(); i++) {
+            final int uid = uidsToUpdate.valueAt(i);
             final int permission = highestUidNetworkPermission(uid);
 
             if (PERMISSION_NONE == permission) {
@@ -1303,10 +1276,12 @@ public class PermissionMonitor {
     public void dump(IndentingPrintWriter pw) {
         pw.println("Interface filtering rules:");
         pw.increaseIndent();
-        for (Map.Entry<String, Set<UidRange>> vpn : mVpnInterfaceUidRanges.entrySet()) {
-            pw.println("Interface: " + vpn.getKey());
-            pw.println("UIDs: " + vpn.getValue().toString());
-            pw.println();
+        synchronized (this) {
+            for (Map.Entry<String, Set<UidRange>> vpn : mVpnInterfaceUidRanges.entrySet()) {
+                pw.println("Interface: " + vpn.getKey());
+                pw.println("UIDs: " + vpn.getValue().toString());
+                pw.println();
+            }
         }
         pw.decreaseIndent();
 
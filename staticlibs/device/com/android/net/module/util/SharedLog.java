@@ -23,10 +23,10 @@ import android.util.Log;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.time.ZoneId;
+import java.util.IllegalFormatException;
 import java.util.StringJoiner;
 
 
@@ -35,11 +35,16 @@ import java.util.StringJoiner;
  *
  * All access to class methods other than dump() must be on the same thread.
  *
+ * Records are stored in a ring buffer that is allocated when the log is created, and are only
+ * formatted when the log is dumped. Logging a message built by the caller does not allocate
+ * beyond the message itself, and the log(String, long...) overloads do not allocate at all.
+ *
  * @hide
  */
 public class SharedLog {
     private static final int DEFAULT_MAX_RECORDS = 500;
     private static final String COMPONENT_DELIMITER = ".";
+    private static final int MAX_ARGS = 3;
 
     private enum Category {
         NONE,
@@ -50,28 +55,32 @@ public class SharedLog {
         TERRIBLE,
     }
 
-    private final LocalLog mLocalLog;
+    private final LogBuffer mLogBuffer;
     // The tag to use for output to the system log. This is not output to the
-    // LocalLog because that would be redundant.
+    // LogBuffer because that would be redundant.
     private final String mTag;
     // The component (or subcomponent) of a system that is sharing this log.
     // This can grow in depth if components call forSubComponent() to obtain
     // their SharedLog instance. The tag is not included in the component for
     // brevity.
     private final String mComponent;
+    // The component to store with each record, or null if this is the root log instance.
+    @Nullable
+    private final String mRecordComponent;
 
     public SharedLog(String tag) {
         this(DEFAULT_MAX_RECORDS, tag);
     }
 
     public SharedLog(int maxRecords, String tag) {
-        this(new LocalLog(maxRecords), tag, tag);
+        this(new LogBuffer(maxRecords), tag, tag);
     }
 
-    private SharedLog(LocalLog localLog, String tag, String component) {
-        mLocalLog = localLog;
+    private SharedLog(LogBuffer logBuffer, String tag, String component) {
+        mLogBuffer = logBuffer;
         mTag = tag;
         mComponent = component;
+        mRecordComponent = isRootLogInstance() ? null : component;
     }
 
     public String getTag() {
@@ -85,7 +94,7 @@ public class SharedLog {
         if (!isRootLogInstance()) {
             component = mComponent + COMPONENT_DELIMITER + component;
         }
-        return new SharedLog(mLocalLog, mTag, component);
+        return new SharedLog(mLogBuffer, mTag, component);
     }
 
     /**
@@ -94,7 +103,7 @@ public class SharedLog {
      * <p>This method may be called on any thread.
      */
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
-        mLocalLog.dump(writer);
+        mLogBuffer.dump(writer);
     }
 
     /**
@@ -103,7 +112,7 @@ public class SharedLog {
      * <p>This method may be called on any thread.
      */
     public void reverseDump(PrintWriter writer) {
-        mLocalLog.reverseDump(writer);
+        mLogBuffer.reverseDump(writer);
     }
 
     //////
@@ -117,7 +126,9 @@ public class SharedLog {
      * @see #e(String, Throwable)
      */
     public void e(Exception e) {
-        Log.e(mTag, record(Category.ERROR, e.toString()));
+        final String message = e.toString();
+        record(Category.ERROR, message);
+        Log.e(mTag, logLine(mRecordComponent, Category.ERROR, message));
     }
 
     /**
@@ -126,7 +137,8 @@ public class SharedLog {
      * <p>The log entry will be also added to the system log.
      */
     public void e(String msg) {
-        Log.e(mTag, record(Category.ERROR, msg));
+        record(Category.ERROR, msg);
+        Log.e(mTag, logLine(mRecordComponent, Category.ERROR, msg));
     }
 
     /**
@@ -140,7 +152,9 @@ public class SharedLog {
             e(msg);
             return;
         }
-        Log.e(mTag, record(Category.ERROR, msg + ": " + exception.getMessage()), exception);
+        final String message = msg + ": " + exception.getMessage();
+        record(Category.ERROR, message);
+        Log.e(mTag, logLine(mRecordComponent, Category.ERROR, message), exception);
     }
 
     /**
@@ -149,7 +163,8 @@ public class SharedLog {
      * <p>The log entry will be also added to the system log.
      */
     public void i(String msg) {
-        Log.i(mTag, record(Category.NONE, msg));
+        record(Category.NONE, msg);
+        Log.i(mTag, logLine(mRecordComponent, Category.NONE, msg));
     }
 
     /**
@@ -158,7 +173,8 @@ public class SharedLog {
      * <p>The log entry will be also added to the system log.
      */
     public void w(String msg) {
-        Log.w(mTag, record(Category.WARN, msg));
+        record(Category.WARN, msg);
+        Log.w(mTag, logLine(mRecordComponent, Category.WARN, msg));
     }
 
     /**
@@ -167,7 +183,8 @@ public class SharedLog {
      * <p>The log entry will be also added to the system log.
      */
     public void v(String msg) {
-        Log.v(mTag, record(Category.VERBOSE, msg));
+        record(Category.VERBOSE, msg);
+        Log.v(mTag, logLine(mRecordComponent, Category.VERBOSE, msg));
     }
 
     /**
@@ -177,7 +194,8 @@ public class SharedLog {
      * for terrible failures.
      */
     public void wtf(String msg) {
-        Log.wtf(mTag, record(Category.TERRIBLE, msg));
+        record(Category.TERRIBLE, msg);
+        Log.wtf(mTag, logLine(mRecordComponent, Category.TERRIBLE, msg));
     }
 
     /**
@@ -192,7 +210,9 @@ public class SharedLog {
             e(msg);
             return;
         }
-        Log.wtf(mTag, record(Category.TERRIBLE, msg + ": " + exception.getMessage()), exception);
+        final String message = msg + ": " + exception.getMessage();
+        record(Category.TERRIBLE, message);
+        Log.wtf(mTag, logLine(mRecordComponent, Category.TERRIBLE, message), exception);
     }
 
 
@@ -219,6 +239,41 @@ public class SharedLog {
         log(String.format(fmt, args));
     }
 
+    /**
+     * Log a general message with one primitive argument, to be only included in the in-memory
+     * log.
+     *
+     * <p>Unlike {@link #logf(String, Object...)}, this does not allocate: the format and the
+     * argument are stored as is, and only formatted with {@link String#format} when the log is
+     * dumped. The format should be a constant, and may use conversions for long arguments
+     * such as %d or %x.
+     *
+     * <p>The log entry will *not* be added to the system log.
+     */
+    public void log(@NonNull String fmt, long arg0) {
+        mLogBuffer.append(Category.NONE, mRecordComponent, fmt, 1, arg0, 0, 0);
+    }
+
+    /**
+     * Log a general message with two primitive arguments, to be only included in the in-memory
+     * log.
+     *
+     * @see #log(String, long)
+     */
+    public void log(@NonNull String fmt, long arg0, long arg1) {
+        mLogBuffer.append(Category.NONE, mRecordComponent, fmt, 2, arg0, arg1, 0);
+    }
+
+    /**
+     * Log a general message with three primitive arguments, to be only included in the
+     * in-memory log.
+     *
+     * @see #log(String, long)
+     */
+    public void log(@NonNull String fmt, long arg0, long arg1, long arg2) {
+        mLogBuffer.append(Category.NONE, mRecordComponent, fmt, 3, arg0, arg1, arg2);
+    }
+
     /**
      * Log a message with MARK level.
      *
@@ -228,15 +283,14 @@ public class SharedLog {
         record(Category.MARK, msg);
     }
 
-    private String record(Category category, String msg) {
-        final String entry = logLine(category, msg);
-        mLocalLog.append(entry);
-        return entry;
+    // Records a message. The line for the system log is only built by the callers that need it.
+    private void record(Category category, String msg) {
+        mLogBuffer.append(category, mRecordComponent, msg, LogBuffer.NOT_FORMATTED, 0, 0, 0);
     }
 
-    private String logLine(Category category, String msg) {
+    private static String logLine(@Nullable String component, Category category, String msg) {
         final StringJoiner sj = new StringJoiner(" ");
-        if (!isRootLogInstance()) sj.add("[" + mComponent + "]");
+        if (component != null) sj.add("[" + component + "]");
         if (category != Category.NONE) sj.add(category.toString());
         return sj.add(msg).toString();
     }
@@ -248,38 +302,100 @@ public class SharedLog {
         return TextUtils.isEmpty(mComponent) || mComponent.equals(mTag);
     }
 
-    private static final class LocalLog {
-        private final Deque<String> mLog;
-        private final int mMaxLines;
+    /**
+     * A fixed-size ring buffer of log records.
+     *
+     * Each record is stored at the same index in a set of arrays allocated at construction, so
+     * appending a record does not allocate. Records are formatted into lines when dumped.
+     */
+    private static final class LogBuffer {
+        // The argument count of records whose message is output as is instead of formatted.
+        static final int NOT_FORMATTED = -1;
+
+        private final int mMaxRecords;
+        // Wall clock time of each record, in milliseconds since the epoch.
+        private final long[] mTimestamps;
+        private final Category[] mCategories;
+        private final String[] mComponents;
+        // The message of each record, or its format if it has arguments.
+        private final String[] mMessages;
+        private final int[] mArgCounts;
+        // The arguments of the record at index i are at [i * MAX_ARGS, (i + 1) * MAX_ARGS).
+        private final long[] mArgs;
+        // Index of the oldest record, and number of records.
+        private int mStart;
+        private int mSize;
+
+        LogBuffer(int maxRecords) {
+            mMaxRecords = Math.max(0, maxRecords);
+            mTimestamps = new long[mMaxRecords];
+            mCategories = new Category[mMaxRecords];
+            mComponents = new String[mMaxRecords];
+            mMessages = new String[mMaxRecords];
+            mArgCounts = new int[mMaxRecords];
+            mArgs = new long[mMaxRecords * MAX_ARGS];
+        }
+
+        synchronized void append(Category category, @Nullable String component, String message,
+                int argCount, long arg0, long arg1, long arg2) {
+            if (mMaxRecords <= 0) return;
+            final int index;
+            if (mSize < mMaxRecords) {
+                index = (mStart + mSize) % mMaxRecords;
+                mSize++;
+            } else {
+                // Overwrite the oldest record.
+                index = mStart;
+                mStart = (mStart + 1) % mMaxRecords;
+            }
+            mTimestamps[index] = System.currentTimeMillis();
+            mCategories[index] = category;
+            mComponents[index] = component;
+            mMessages[index] = message;
+            mArgCounts[index] = argCount;
+            mArgs[index * MAX_ARGS] = arg0;
+            mArgs[index * MAX_ARGS + 1] = arg1;
+            mArgs[index * MAX_ARGS + 2] = arg2;
+        }
 
-        LocalLog(int maxLines) {
-            mMaxLines = Math.max(0, maxLines);
-            mLog = new ArrayDeque<>(mMaxLines);
+        private String formatRecord(int index) {
+            final LocalDateTime time = LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(mTimestamps[index]), ZoneId.systemDefault());
+            return time + " - " + logLine(mComponents[index], mCategories[index],
+                    formatMessage(index));
         }
 
-        synchronized void append(String logLine) {
-            if (mMaxLines <= 0) return;
-            while (mLog.size() >= mMaxLines) {
-                mLog.remove();
+        private String formatMessage(int index) {
+            final int argCount = mArgCounts[index];
+            if (argCount == NOT_FORMATTED) return mMessages[index];
+            final Object[] args = new Object[argCount];
+            for (int i = 0; i < argCount; i++) {
+                args[i] = mArgs[index * MAX_ARGS + i];
+            }
+            try {
+                return String.format(mMessages[index], args);
+            } catch (IllegalFormatException e) {
+                // The record was logged long before, so only report the problem in the dump.
+                final StringJoiner sj = new StringJoiner(", ", mMessages[index] + " [", "]");
+                for (Object arg : args) sj.add(arg.toString());
+                return sj + " (" + e + ")";
             }
-            mLog.add(LocalDateTime.now() + " - " + logLine);
         }
 
         /**
-         * Dumps the content of local log to print writer with each log entry
+         * Dumps the records to print writer, one line per record from the oldest to the newest.
          *
          * @param pw printer writer to write into
          */
         synchronized void dump(PrintWriter pw) {
-            for (final String s : mLog) {
-                pw.println(s);
+            for (int i = 0; i < mSize; i++) {
+                pw.println(formatRecord((mStart + i) % mMaxRecords));
             }
         }
 
         synchronized void reverseDump(PrintWriter pw) {
-            final Iterator<String> itr = mLog.descendingIterator();
-            while (itr.hasNext()) {
-                pw.println(itr.next());
+            for (int i = mSize - 1; i >= 0; i--) {
+                pw.println(formatRecord((mStart + i) % mMaxRecords));
             }
         }
     }
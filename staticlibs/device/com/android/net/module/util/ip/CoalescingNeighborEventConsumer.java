@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.ip;
+
+import static com.android.net.module.util.netlink.NetlinkConstants.RTM_DELNEIGH;
+
+import android.annotation.NonNull;
+import android.os.Handler;
+import android.util.ArrayMap;
+import android.util.Pair;
+
+import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEvent;
+import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEventConsumer;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.function.BiPredicate;
+
+/**
+ * A {@link NeighborEventConsumer} that removes redundant events before passing them to another
+ * consumer.
+ *
+ * The kernel sends a notification for every NUD state transition of a neighbor, most of which
+ * (e.g. REACHABLE -> STALE -> DELAY -> REACHABLE) are irrelevant to consumers that only care
+ * about whether the neighbor is usable and its MAC address. This class remembers the last event
+ * delivered for each (ifindex, IP address) pair, and drops events that the given predicate
+ * considers to be in the same state.
+ *
+ * If the window is positive, events are also batched: only the last event received for each
+ * neighbor within the window is considered for delivery when the window ends, so that a burst of
+ * transitions results in at most one event per neighbor.
+ *
+ * This class must only be used on the thread of the given handler, which is the thread the
+ * events are delivered on by {@link IpNeighborMonitor}.
+ *
+ * @hide
+ */
+public class CoalescingNeighborEventConsumer implements NeighborEventConsumer {
+    /**
+     * Considers events to be in the same state if they are both valid with the same MAC address,
+     * or both invalid.
+     */
+    public static final BiPredicate<NeighborEvent, NeighborEvent> SAME_VALIDITY_AND_MAC =
+            (last, event) -> last.isValid() == event.isValid()
+                    && (!event.isValid() || last.macAddr.equals(event.macAddr));
+
+    @NonNull
+    private final Handler mHandler;
+    private final long mWindowMs;
+    @NonNull
+    private final BiPredicate<NeighborEvent, NeighborEvent> mIsSameState;
+    @NonNull
+    private final NeighborEventConsumer mConsumer;
+
+    // Last event delivered for each neighbor. Neighbors are removed when they are deleted, so
+    // this never grows larger than the kernel neighbor table.
+    private final ArrayMap<Pair<Integer, InetAddress>, NeighborEvent> mDeliveredEvents =
+            new ArrayMap<>();
+    // Last event received for each neighbor in the current window, in the order in which the
+    // neighbors first appeared in the window.
+    private final LinkedHashMap<Pair<Integer, InetAddress>, NeighborEvent> mPendingEvents =
+            new LinkedHashMap<>();
+    private final Runnable mFlushRunnable = this::flush;
+
+    private long mReceivedCount;
+    private long mDeliveredCount;
+    private long mSuppressedCount;
+
+    /**
+     * Creates a CoalescingNeighborEventConsumer.
+     *
+     * @param handler the handler on which the events are received.
+     * @param windowMs how long to batch events for, or 0 to only remove redundant events.
+     * @param isSameState returns true if the second event does not need to be delivered after
+     *                    the first one, e.g. {@link #SAME_VALIDITY_AND_MAC}.
+     * @param consumer the consumer to deliver the events to.
+     */
+    public CoalescingNeighborEventConsumer(@NonNull Handler handler, long windowMs,
+            @NonNull BiPredicate<NeighborEvent, NeighborEvent> isSameState,
+            @NonNull NeighborEventConsumer consumer) {
+        if (windowMs < 0) {
+            throw new IllegalArgumentException("Invalid window: " + windowMs);
+        }
+        mHandler = handler;
+        mWindowMs = windowMs;
+        mIsSameState = isSameState;
+        mConsumer = consumer;
+    }
+
+    @Override
+    public void accept(NeighborEvent event) {
+        mReceivedCount++;
+        final Pair<Integer, InetAddress> key = new Pair<>(event.ifindex, event.ip);
+        if (mWindowMs == 0) {
+            maybeDeliver(key, event);
+            return;
+        }
+
+        if (mPendingEvents.isEmpty()) {
+            mHandler.postDelayed(mFlushRunnable, mWindowMs);
+        }
+        // Only the last state of the neighbor in the window matters.
+        if (mPendingEvents.put(key, event) != null) mSuppressedCount++;
+    }
+
+    private void flush() {
+        final ArrayList<NeighborEvent> events = new ArrayList<>(mPendingEvents.values());
+        mPendingEvents.clear();
+        for (NeighborEvent event : events) {
+            maybeDeliver(new Pair<>(event.ifindex, event.ip), event);
+        }
+    }
+
+    private void maybeDeliver(@NonNull Pair<Integer, InetAddress> key,
+            @NonNull NeighborEvent event) {
+        // Forget deleted neighbors even if the deletion is not delivered, e.g. because it follows
+        // an invalid state.
+        final NeighborEvent last = event.msgType == RTM_DELNEIGH
+                ? mDeliveredEvents.remove(key) : mDeliveredEvents.get(key);
+        if (last != null && mIsSameState.test(last, event)) {
+            mSuppressedCount++;
+            return;
+        }
+        if (event.msgType != RTM_DELNEIGH) {
+            mDeliveredEvents.put(key, event);
+        }
+        mDeliveredCount++;
+        mConsumer.accept(event);
+    }
+
+    /**
+     * Drops the pending events and forgets the delivered ones, so that the next event for each
+     * neighbor is delivered even if it is in the same state as a previous one.
+     *
+     * This must be called when the consumer stops tracking the state of the neighbors, e.g.
+     * because it ignores events until it is configured.
+     */
+    public void clear() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mPendingEvents.clear();
+        mDeliveredEvents.clear();
+    }
+
+    /** Returns the number of events received. */
+    public long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /** Returns the number of events passed to the consumer. */
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /** Returns the number of neighbors whose last delivered event is remembered. */
+    public int getNeighborCount() {
+        return mDeliveredEvents.size();
+    }
+
+    /**
+     * Returns the number of events that were not passed to the consumer, because they were
+     * superseded within the window or did not change the state of the neighbor.
+     */
+    public long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingNeighborEventConsumer{window=" + mWindowMs + "ms"
+                + ", received=" + mReceivedCount
+                + ", delivered=" + mDeliveredCount
+                + ", suppressed=" + mSuppressedCount
+                + ", neighbors=" + getNeighborCount() + "}";
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.netlink;
+
+import static android.system.OsConstants.AF_INET;
+import static android.system.OsConstants.AF_INET6;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.HexDump;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An inet_diag bytecode filter, sent as the INET_DIAG_REQ_BYTECODE attribute of an inet_diag
+ * dump request so that the kernel only returns the sockets matching the filter.
+ *
+ * The program is a sequence of operations:
+ *
+ *      struct inet_diag_bc_op {
+ *          unsigned char   code;
+ *          unsigned char   yes;
+ *          unsigned short  no;
+ *      };
+ *
+ * where yes and no are relative jumps taken when the condition matches or not. A socket is
+ * accepted if the program jumps exactly to its end, and rejected if it jumps 4 bytes past it.
+ * Filters are composed like ss(8) does: every fragment built here accepts by falling off its end
+ * and rejects by jumping 4 bytes past it, so fragments can be concatenated by relocating the
+ * reject jumps of the first one.
+ *
+ * Note that the kernel cannot filter on the socket owner UID; callers still need to check the
+ * returned sockets, the filter only reduces the number of sockets dumped. The UID can be checked
+ * before parsing each returned socket with {@link StructInetDiagMsg#peekUid}.
+ *
+ * see &lt;linux_src&gt;/include/uapi/linux/inet_diag.h and &lt;linux_src&gt;/net/ipv4/inet_diag.c
+ *
+ * @hide
+ */
+public final class InetDiagBytecode {
+    // enum inet_diag_req_attrs
+    public static final short INET_DIAG_REQ_BYTECODE = 1;
+
+    // enum inet_diag_bytecode_op
+    static final byte INET_DIAG_BC_NOP = 0;
+    static final byte INET_DIAG_BC_JMP = 1;
+    static final byte INET_DIAG_BC_S_GE = 2;
+    static final byte INET_DIAG_BC_S_LE = 3;
+    static final byte INET_DIAG_BC_D_GE = 4;
+    static final byte INET_DIAG_BC_D_LE = 5;
+    static final byte INET_DIAG_BC_AUTO = 6;
+    static final byte INET_DIAG_BC_S_COND = 7;
+    static final byte INET_DIAG_BC_D_COND = 8;
+    static final byte INET_DIAG_BC_DEV_COND = 9;
+    static final byte INET_DIAG_BC_MARK_COND = 10;
+    static final byte INET_DIAG_BC_S_EQ = 11;
+    static final byte INET_DIAG_BC_D_EQ = 12;
+    static final byte INET_DIAG_BC_CGROUP_COND = 13;
+
+    private static final int OP_SIZE = 4;
+    // struct inet_diag_hostcond without the address.
+    private static final int HOSTCOND_SIZE = 8;
+    // The port field of inet_diag_hostcond, -1 matches any port.
+    private static final int ANY_PORT = -1;
+
+    @NonNull
+    private final byte[] mBytecode;
+
+    private InetDiagBytecode(@NonNull byte[] bytecode) {
+        mBytecode = bytecode;
+    }
+
+    /** Returns the length of the bytecode in bytes. */
+    public int length() {
+        return mBytecode.length;
+    }
+
+    /** Returns a copy of the bytecode. */
+    @NonNull
+    public byte[] getBytes() {
+        return mBytecode.clone();
+    }
+
+    /** Returns the bytecode as the INET_DIAG_REQ_BYTECODE netlink attribute. */
+    @NonNull
+    public StructNlAttr toNlAttr() {
+        return new StructNlAttr(INET_DIAG_REQ_BYTECODE, mBytecode);
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+    }
+
+    private static void putOp(ByteBuffer buf, byte code, int yes, int no) {
+        buf.put(code);
+        buf.put((byte) yes);
+        buf.putShort((short) no);
+    }
+
+    // A condition followed by its argument: jump to the end of the fragment if the condition
+    // matches, and to the reject target otherwise.
+    private static InetDiagBytecode condition(byte code, int argSize, @NonNull ByteBuffer arg) {
+        final int len = OP_SIZE + argSize;
+        final ByteBuffer buf = allocate(len);
+        putOp(buf, code, len, len + OP_SIZE);
+        buf.put(arg.array(), 0, argSize);
+        return new InetDiagBytecode(buf.array());
+    }
+
+    // Port comparisons take their argument in the "no" field of a second operation.
+    private static InetDiagBytecode portCondition(byte code, int port) {
+        final ByteBuffer arg = allocate(OP_SIZE);
+        putOp(arg, INET_DIAG_BC_NOP, 0, port);
+        return condition(code, OP_SIZE, arg);
+    }
+
+    private static InetDiagBytecode hostCondition(byte code, @NonNull InetAddress prefix,
+            int prefixLength) {
+        final byte[] addr = prefix.getAddress();
+        if (prefixLength < 0 || prefixLength > addr.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLength);
+        }
+        final ByteBuffer arg = allocate(HOSTCOND_SIZE + addr.length);
+        arg.put((byte) (prefix instanceof Inet4Address ? AF_INET : AF_INET6));
+        arg.put((byte) prefixLength);
+        arg.putShort((short) 0 /* padding */);
+        arg.putInt(ANY_PORT);
+        arg.put(addr);
+        return condition(code, arg.capacity(), arg);
+    }
+
+    /**
+     * Matches sockets whose local port is the given port. Older kernels reject this condition
+     * with EINVAL.
+     */
+    @NonNull
+    public static InetDiagBytecode localPortEquals(int port) {
+        return portCondition(INET_DIAG_BC_S_EQ, port);
+    }
+
+    /**
+     * Matches sockets whose remote port is the given port. Older kernels reject this condition
+     * with EINVAL.
+     */
+    @NonNull
+    public static InetDiagBytecode remotePortEquals(int port) {
+        return portCondition(INET_DIAG_BC_D_EQ, port);
+    }
+
+    /** Matches sockets whose local port is in the given inclusive range. */
+    @NonNull
+    public static InetDiagBytecode localPortInRange(int min, int max) {
+        return and(portCondition(INET_DIAG_BC_S_GE, min), portCondition(INET_DIAG_BC_S_LE, max));
+    }
+
+    /** Matches sockets whose remote port is in the given inclusive range. */
+    @NonNull
+    public static InetDiagBytecode remotePortInRange(int min, int max) {
+        return and(portCondition(INET_DIAG_BC_D_GE, min), portCondition(INET_DIAG_BC_D_LE, max));
+    }
+
+    /**
+     * Matches sockets whose local address is in the given prefix. IPv4 prefixes also match
+     * v4-mapped addresses of IPv6 sockets.
+     */
+    @NonNull
+    public static InetDiagBytecode localAddressInPrefix(@NonNull InetAddress prefix,
+            int prefixLength) {
+        return hostCondition(INET_DIAG_BC_S_COND, prefix, prefixLength);
+    }
+
+    /**
+     * Matches sockets whose remote address is in the given prefix. IPv4 prefixes also match
+     * v4-mapped addresses of IPv6 sockets.
+     */
+    @NonNull
+    public static InetDiagBytecode remoteAddressInPrefix(@NonNull InetAddress prefix,
+            int prefixLength) {
+        return hostCondition(INET_DIAG_BC_D_COND, prefix, prefixLength);
+    }
+
+    /**
+     * Matches sockets whose mark satisfies (sk_mark & mask) == mark. The kernel only accepts
+     * this condition from callers with CAP_NET_ADMIN.
+     */
+    @NonNull
+    public static InetDiagBytecode markMatches(int mark, int mask) {
+        final ByteBuffer arg = allocate(2 * Integer.BYTES);
+        arg.putInt(mark);
+        arg.putInt(mask);
+        return condition(INET_DIAG_BC_MARK_COND, arg.capacity(), arg);
+    }
+
+    /** Matches sockets in the given cgroup v2. Older kernels reject it with EINVAL. */
+    @NonNull
+    public static InetDiagBytecode cgroupIdEquals(long cgroupId) {
+        final ByteBuffer arg = allocate(Long.BYTES);
+        arg.putLong(cgroupId);
+        return condition(INET_DIAG_BC_CGROUP_COND, arg.capacity(), arg);
+    }
+
+    // Returns the size of the operation at the given offset, including its arguments.
+    private static int opSize(@NonNull byte[] bytecode, int offset) {
+        switch (bytecode[offset]) {
+            case INET_DIAG_BC_S_GE:
+            case INET_DIAG_BC_S_LE:
+            case INET_DIAG_BC_D_GE:
+            case INET_DIAG_BC_D_LE:
+            case INET_DIAG_BC_S_EQ:
+            case INET_DIAG_BC_D_EQ:
+            case INET_DIAG_BC_DEV_COND:
+                return 2 * OP_SIZE;
+            case INET_DIAG_BC_MARK_COND:
+            case INET_DIAG_BC_CGROUP_COND:
+                return OP_SIZE + 8;
+            case INET_DIAG_BC_S_COND:
+            case INET_DIAG_BC_D_COND:
+                final int family = bytecode[offset + OP_SIZE];
+                return OP_SIZE + HOSTCOND_SIZE + (family == AF_INET ? 4 : 16);
+            default:
+                return OP_SIZE;
+        }
+    }
+
+    // Copies the bytecode into buf, adding delta to the "no" jumps that target the reject
+    // position of the bytecode.
+    private static void putRelocated(@NonNull ByteBuffer buf, @NonNull byte[] bytecode,
+            int delta) {
+        final int start = buf.position();
+        buf.put(bytecode);
+        final int reject = bytecode.length + OP_SIZE;
+        int offset = 0;
+        while (offset < bytecode.length) {
+            final int noPos = start + offset + 2;
+            final int no = buf.getShort(noPos) & 0xffff;
+            if (offset + no == reject) {
+                buf.putShort(noPos, (short) (no + delta));
+            }
+            offset += opSize(bytecode, offset);
+        }
+    }
+
+    private static InetDiagBytecode checkLength(@NonNull ByteBuffer buf) {
+        // Jump offsets are 16 bits.
+        if (buf.capacity() > 0xffff - OP_SIZE) {
+            throw new IllegalArgumentException("Bytecode too long: " + buf.capacity());
+        }
+        return new InetDiagBytecode(buf.array());
+    }
+
+    /** Matches sockets matched by all the given filters. */
+    @NonNull
+    public static InetDiagBytecode and(@NonNull InetDiagBytecode first,
+            @NonNull InetDiagBytecode... others) {
+        InetDiagBytecode result = first;
+        for (InetDiagBytecode other : others) {
+            final ByteBuffer buf = allocate(result.length() + other.length());
+            // A socket rejected by the first filter is also rejected by the combined filter.
+            putRelocated(buf, result.mBytecode, other.length());
+            buf.put(other.mBytecode);
+            result = checkLength(buf);
+        }
+        return result;
+    }
+
+    /** Matches sockets matched by any of the given filters. */
+    @NonNull
+    public static InetDiagBytecode or(@NonNull InetDiagBytecode first,
+            @NonNull InetDiagBytecode... others) {
+        InetDiagBytecode result = first;
+        for (InetDiagBytecode other : others) {
+            final ByteBuffer buf = allocate(result.length() + OP_SIZE + other.length());
+            // A socket rejected by the first filter falls through to the second one, and a socket
+            // accepted by the first filter jumps over the second one.
+            buf.put(result.mBytecode);
+            putOp(buf, INET_DIAG_BC_JMP, OP_SIZE, OP_SIZE + other.length());
+            buf.put(other.mBytecode);
+            result = checkLength(buf);
+        }
+        return result;
+    }
+
+    /** Matches sockets not matched by the given filter. */
+    @NonNull
+    public static InetDiagBytecode not(@NonNull InetDiagBytecode filter) {
+        final ByteBuffer buf = allocate(filter.length() + OP_SIZE);
+        // A socket accepted by the filter reaches this jump and is rejected, a socket rejected by
+        // the filter jumps to the end and is accepted.
+        buf.put(filter.mBytecode);
+        putOp(buf, INET_DIAG_BC_JMP, OP_SIZE, 2 * OP_SIZE);
+        return checkLength(buf);
+    }
+
+    @Override
+    public String toString() {
+        return "InetDiagBytecode{ " + HexDump.toHexString(mBytecode) + " }";
+    }
+}
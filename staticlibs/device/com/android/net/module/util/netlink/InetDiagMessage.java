@@ -19,7 +19,9 @@ package com.android.net.module.util.netlink;
 import static android.os.Process.INVALID_UID;
 import static android.system.OsConstants.AF_INET;
 import static android.system.OsConstants.AF_INET6;
+import static android.system.OsConstants.EINVAL;
 import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.EPERM;
 import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.NETLINK_INET_DIAG;
@@ -34,6 +36,7 @@ import static com.android.net.module.util.netlink.NetlinkUtils.IO_TIMEOUT_MS;
 import static com.android.net.module.util.netlink.NetlinkUtils.SOCKET_RECV_BUFSIZE;
 import static com.android.net.module.util.netlink.NetlinkUtils.TCP_ALIVE_STATE_FILTER;
 import static com.android.net.module.util.netlink.NetlinkUtils.connectToKernel;
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_ACK;
 import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_DUMP;
 import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_REQUEST;
 
@@ -64,6 +67,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 
 /**
@@ -76,6 +80,12 @@ import java.util.function.Predicate;
 public class InetDiagMessage extends NetlinkMessage {
     public static final String TAG = "InetDiagMessage";
     private static final int TIMEOUT_MS = 500;
+    // Maximum number of SOCK_DESTROY requests sent in a single write. The kernel processes them
+    // synchronously, and queues an error message for each failure plus an ack for the last one,
+    // so this must be small enough for these messages to fit in the socket receive buffer.
+    private static final int DESTROY_BATCH_SIZE = 64;
+    // Offset of nlmsg_seq in struct nlmsghdr.
+    private static final int NLMSG_SEQ_OFFSET = 8;
 
     /**
      * Construct an inet_diag_req_v2 message. This method will throw
@@ -223,8 +233,8 @@ public class InetDiagMessage extends NetlinkMessage {
 
     private static final int[] FAMILY = {AF_INET6, AF_INET};
 
-    private static int lookupUid(int protocol, InetSocketAddress local,
-                                 InetSocketAddress remote, FileDescriptor fd)
+    private static int lookupUidExactMatch(int protocol, InetSocketAddress local,
+                                           InetSocketAddress remote, FileDescriptor fd)
             throws ErrnoException, InterruptedIOException {
         int uid;
 
@@ -243,36 +253,50 @@ public class InetDiagMessage extends NetlinkMessage {
                 return uid;
             }
         }
+        return INVALID_UID;
+    }
 
-        /**
-         * For UDP it's possible for a socket to send packets to arbitrary destinations, even if the
-         * socket is not connected (and even if the socket is connected to a different destination).
-         * If we want this API to work for such packets, then on miss we need to do a second lookup
-         * with only the local address and port filled in.
-         * Always use flags == NLM_F_REQUEST | NLM_F_DUMP for wildcard.
-         */
-        if (protocol == IPPROTO_UDP) {
-            try {
-                InetSocketAddress wildcard = new InetSocketAddress(
-                        Inet6Address.getByName("::"), 0);
-                uid = lookupUidByFamily(protocol, local, wildcard, AF_INET6,
-                        (short) (NLM_F_REQUEST | NLM_F_DUMP), fd);
-                if (uid != INVALID_UID) {
-                    return uid;
-                }
-                wildcard = new InetSocketAddress(Inet4Address.getByName("0.0.0.0"), 0);
-                uid = lookupUidByFamily(protocol, local, wildcard, AF_INET,
-                        (short) (NLM_F_REQUEST | NLM_F_DUMP), fd);
-                if (uid != INVALID_UID) {
-                    return uid;
-                }
-            } catch (UnknownHostException e) {
-                Log.e(TAG, e.toString());
+    /**
+     * For UDP it's possible for a socket to send packets to arbitrary destinations, even if the
+     * socket is not connected (and even if the socket is connected to a different destination).
+     * If we want this API to work for such packets, then on miss we need to do a second lookup
+     * with only the local address and port filled in.
+     * Always use flags == NLM_F_REQUEST | NLM_F_DUMP for wildcard.
+     */
+    private static int lookupUidWildcard(int protocol, InetSocketAddress local,
+                                         FileDescriptor fd)
+            throws ErrnoException, InterruptedIOException {
+        int uid;
+        try {
+            InetSocketAddress wildcard = new InetSocketAddress(
+                    Inet6Address.getByName("::"), 0);
+            uid = lookupUidByFamily(protocol, local, wildcard, AF_INET6,
+                    (short) (NLM_F_REQUEST | NLM_F_DUMP), fd);
+            if (uid != INVALID_UID) {
+                return uid;
+            }
+            wildcard = new InetSocketAddress(Inet4Address.getByName("0.0.0.0"), 0);
+            uid = lookupUidByFamily(protocol, local, wildcard, AF_INET,
+                    (short) (NLM_F_REQUEST | NLM_F_DUMP), fd);
+            if (uid != INVALID_UID) {
+                return uid;
             }
+        } catch (UnknownHostException e) {
+            Log.e(TAG, e.toString());
         }
         return INVALID_UID;
     }
 
+    private static int lookupUid(int protocol, InetSocketAddress local,
+                                 InetSocketAddress remote, FileDescriptor fd)
+            throws ErrnoException, InterruptedIOException {
+        final int uid = lookupUidExactMatch(protocol, local, remote, fd);
+        if (uid != INVALID_UID || protocol != IPPROTO_UDP) {
+            return uid;
+        }
+        return lookupUidWildcard(protocol, local, fd);
+    }
+
     /**
      * Use an inet_diag socket to look up the UID associated with the input local and remote
      * address/port and protocol of a connection.
@@ -294,6 +318,33 @@ public class InetDiagMessage extends NetlinkMessage {
         return uid;
     }
 
+    /**
+     * Same as {@link #getConnectionOwnerUid(int, InetSocketAddress, InetSocketAddress)}, but sends
+     * the exact match requests on the given inet_diag socket, which must already be connected to
+     * the kernel. This allows callers to reuse the socket across lookups.
+     *
+     * Each exact match request gets exactly one reply, so the socket can be reused after this
+     * method returns normally. The wildcard lookups done for UDP are dumps whose replies might
+     * not be fully read, so they are sent on a separate, temporary socket.
+     * If this method throws, the state of the socket is unknown and it should be closed.
+     */
+    public static int getConnectionOwnerUid(int protocol, InetSocketAddress local,
+            InetSocketAddress remote, @NonNull FileDescriptor fd)
+            throws ErrnoException, SocketException, InterruptedIOException {
+        final int uid = lookupUidExactMatch(protocol, local, remote, fd);
+        if (uid != INVALID_UID || protocol != IPPROTO_UDP) {
+            return uid;
+        }
+        FileDescriptor dumpFd = null;
+        try {
+            dumpFd = NetlinkUtils.netlinkSocketForProto(NETLINK_INET_DIAG, SOCKET_RECV_BUFSIZE);
+            connectToKernel(dumpFd);
+            return lookupUidWildcard(protocol, local, dumpFd);
+        } finally {
+            closeSocketQuietly(dumpFd);
+        }
+    }
+
     /**
      * Construct an inet_diag_req_v2 message for querying alive TCP sockets from kernel.
      */
@@ -308,24 +359,88 @@ public class InetDiagMessage extends NetlinkMessage {
                 TCP_ALIVE_STATE_FILTER);
     }
 
-    private static void sendNetlinkDestroyRequest(FileDescriptor fd, int proto,
-            InetDiagMessage diagMsg) throws InterruptedIOException, ErrnoException {
-        final byte[] destroyMsg = InetDiagMessage.inetDiagReqV2(
-                proto,
-                diagMsg.inetDiagMsg.id,
-                diagMsg.inetDiagMsg.idiag_family,
-                SOCK_DESTROY,
-                (short) (StructNlMsgHdr.NLM_F_REQUEST | StructNlMsgHdr.NLM_F_ACK),
-                0 /* pad */,
-                0 /* idiagExt */,
-                1 << diagMsg.inetDiagMsg.idiag_state
-        );
-        NetlinkUtils.sendMessage(fd, destroyMsg, 0, destroyMsg.length, IO_TIMEOUT_MS);
-        NetlinkUtils.receiveNetlinkAck(fd);
+    /**
+     * Construct SOCK_DESTROY requests for the given sockets, concatenated so that they can be
+     * sent in a single write. Requests are numbered from 1 in nlmsg_seq, and only the last one
+     * requests an ack.
+     */
+    @VisibleForTesting
+    public static byte[] buildSockDestroyRequests(int proto,
+            @NonNull List<InetDiagMessage> diagMsgs) {
+        final int reqLen = StructNlMsgHdr.STRUCT_SIZE + StructInetDiagReqV2.STRUCT_SIZE;
+        final byte[] bytes = new byte[reqLen * diagMsgs.size()];
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < diagMsgs.size(); i++) {
+            final InetDiagMessage diagMsg = diagMsgs.get(i);
+            final boolean last = (i == diagMsgs.size() - 1);
+            final byte[] destroyMsg = InetDiagMessage.inetDiagReqV2(
+                    proto,
+                    diagMsg.inetDiagMsg.id,
+                    diagMsg.inetDiagMsg.idiag_family,
+                    SOCK_DESTROY,
+                    (short) (NLM_F_REQUEST | (last ? NLM_F_ACK : 0)),
+                    0 /* pad */,
+                    0 /* idiagExt */,
+                    1 << diagMsg.inetDiagMsg.idiag_state
+            );
+            byteBuffer.put(destroyMsg);
+            byteBuffer.putInt(i * reqLen + NLMSG_SEQ_OFFSET, i + 1);
+        }
+        return bytes;
     }
 
-    private static byte [] makeNetlinkDumpRequest(int proto, int states, int family) {
-        return InetDiagMessage.inetDiagReqV2(
+    /**
+     * Sends SOCK_DESTROY requests for the given sockets in a single write, and reads the replies.
+     * The kernel only replies to the requests without NLM_F_ACK if they fail, and processes the
+     * requests in order, so all the errors have been received once the ack for the last request
+     * is received.
+     *
+     * @return the number of sockets that were destroyed.
+     */
+    private static int sendNetlinkDestroyRequests(FileDescriptor fd, int proto,
+            List<InetDiagMessage> diagMsgs) throws InterruptedIOException, ErrnoException {
+        final byte[] destroyMsgs = buildSockDestroyRequests(proto, diagMsgs);
+        NetlinkUtils.sendMessage(fd, destroyMsgs, 0, destroyMsgs.length, IO_TIMEOUT_MS);
+
+        int failures = 0;
+        while (true) {
+            final ByteBuffer buf = NetlinkUtils.recvMessage(fd, DEFAULT_RECV_BUFSIZE,
+                    IO_TIMEOUT_MS);
+            while (buf.remaining() > 0) {
+                final NetlinkMessage nlMsg = NetlinkMessage.parse(buf, NETLINK_INET_DIAG);
+                if (!(nlMsg instanceof NetlinkErrorMessage)
+                        || ((NetlinkErrorMessage) nlMsg).getNlMsgError() == null) {
+                    Log.e(TAG, "Unexpected reply to destroy request: " + nlMsg);
+                    break;
+                }
+                final int seq = nlMsg.getHeader().nlmsg_seq;
+                // Note: convert kernel errnos (negative) into userspace errnos (positive).
+                final int errno = Math.abs(((NetlinkErrorMessage) nlMsg).getNlMsgError().error);
+                if (errno != 0) {
+                    failures++;
+                    if (errno != ENOENT && seq >= 1 && seq <= diagMsgs.size()) {
+                        Log.e(TAG, "Failed to destroy socket: diagMsg=" + diagMsgs.get(seq - 1)
+                                + ", errno=" + errno);
+                    }
+                }
+                if (seq == diagMsgs.size()) {
+                    return diagMsgs.size() - failures;
+                }
+            }
+        }
+    }
+
+    /**
+     * Construct an inet_diag_req_v2 message for dumping the sockets of the given protocol, family
+     * and states.
+     *
+     * @param filter optional bytecode filter. If non-null, the kernel only returns the sockets
+     *               matching the filter, or fails the dump with EINVAL if it does not support it.
+     */
+    public static byte[] inetDiagReqV2Dump(int proto, int family, int states,
+            @Nullable InetDiagBytecode filter) {
+        final byte[] req = InetDiagMessage.inetDiagReqV2(
                 proto,
                 null /* id */,
                 family,
@@ -334,28 +449,52 @@ public class InetDiagMessage extends NetlinkMessage {
                 0 /* pad */,
                 0 /* idiagExt */,
                 states);
+        if (filter == null) return req;
+
+        final StructNlAttr bytecode = filter.toNlAttr();
+        final byte[] bytes = new byte[req.length + bytecode.getAlignedLength()];
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        byteBuffer.put(req);
+        bytecode.pack(byteBuffer);
+        // nlmsg_len is the first field of the header.
+        byteBuffer.putInt(0, bytes.length);
+        return bytes;
     }
 
     private static int processNetlinkDumpAndDestroySockets(byte[] dumpReq,
-            FileDescriptor destroyFd, int proto, Predicate<InetDiagMessage> filter)
+            FileDescriptor destroyFd, int proto, IntPredicate uidFilter,
+            Predicate<InetDiagMessage> filter)
             throws SocketException, InterruptedIOException, ErrnoException {
-        AtomicInteger destroyedSockets = new AtomicInteger(0);
+        final AtomicInteger destroyedSockets = new AtomicInteger(0);
+        final List<InetDiagMessage> pending = new ArrayList<>(DESTROY_BATCH_SIZE);
+        final Runnable flush = () -> {
+            if (pending.isEmpty()) return;
+            try {
+                destroyedSockets.getAndAdd(sendNetlinkDestroyRequests(destroyFd, proto, pending));
+            } catch (InterruptedIOException | ErrnoException e) {
+                Log.e(TAG, "Failed to destroy " + pending.size() + " sockets: " + e);
+            }
+            pending.clear();
+        };
         Consumer<InetDiagMessage> handleNlDumpMsg = (diagMsg) -> {
             if (filter.test(diagMsg)) {
-                try {
-                    sendNetlinkDestroyRequest(destroyFd, proto, diagMsg);
-                    destroyedSockets.getAndIncrement();
-                } catch (InterruptedIOException | ErrnoException e) {
-                    if (!(e instanceof ErrnoException
-                            && ((ErrnoException) e).errno == ENOENT)) {
-                        Log.e(TAG, "Failed to destroy socket: diagMsg=" + diagMsg + ", " + e);
-                    }
-                }
+                pending.add(diagMsg);
+                if (pending.size() >= DESTROY_BATCH_SIZE) flush.run();
             }
         };
 
+        // The kernel cannot filter on the owner UID, so check it before parsing the messages:
+        // most dumped sockets usually belong to other UIDs.
+        final NetlinkUtils.NetlinkMessageFilter handleNlDumpPayload = (type, payload) -> {
+            if (type != SOCK_DIAG_BY_FAMILY) return true;
+            final Integer uid = StructInetDiagMsg.peekUid(payload);
+            return uid != null && uidFilter.test(uid);
+        };
+
         NetlinkUtils.<InetDiagMessage>getAndProcessNetlinkDumpMessages(dumpReq,
-                NETLINK_INET_DIAG, InetDiagMessage.class, handleNlDumpMsg);
+                NETLINK_INET_DIAG, InetDiagMessage.class, handleNlDumpPayload, handleNlDumpMsg);
+        flush.run();
         return destroyedSockets.get();
     }
 
@@ -377,8 +516,12 @@ public class InetDiagMessage extends NetlinkMessage {
      */
     @VisibleForTesting
     public static boolean containsUid(InetDiagMessage msg, Set<Range<Integer>> ranges) {
+        return containsUid(msg.inetDiagMsg.idiag_uid, ranges);
+    }
+
+    private static boolean containsUid(int uid, Set<Range<Integer>> ranges) {
         for (final Range<Integer> range: ranges) {
-            if (range.contains(msg.inetDiagMsg.idiag_uid)) {
+            if (range.contains(uid)) {
                 return true;
             }
         }
@@ -412,7 +555,65 @@ public class InetDiagMessage extends NetlinkMessage {
                 || srcAddr.equals(dstAddr);
     }
 
-    private static void destroySockets(int proto, int states, Predicate<InetDiagMessage> filter)
+    /**
+     * Returns a bytecode filter that rejects the sockets with a loopback local or remote address,
+     * including v4-mapped loopback addresses of IPv6 sockets.
+     */
+    @VisibleForTesting
+    public static InetDiagBytecode makeNonLoopbackFilter() {
+        final InetAddress v4Loopback = getByAddress(127, 0, 0, 1);
+        final InetAddress v6Loopback = getByAddress(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1);
+        return InetDiagBytecode.not(InetDiagBytecode.or(
+                InetDiagBytecode.localAddressInPrefix(v4Loopback, 8),
+                InetDiagBytecode.localAddressInPrefix(v6Loopback, 128),
+                InetDiagBytecode.remoteAddressInPrefix(v4Loopback, 8),
+                InetDiagBytecode.remoteAddressInPrefix(v6Loopback, 128)));
+    }
+
+    private static InetAddress getByAddress(int... addr) {
+        final byte[] bytes = new byte[addr.length];
+        for (int i = 0; i < addr.length; i++) bytes[i] = (byte) addr[i];
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Cannot happen, the address length is valid.
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static int dumpAndDestroySockets(int proto, int states, int family,
+            @Nullable InetDiagBytecode prefilter, FileDescriptor destroyFd,
+            IntPredicate uidFilter, Predicate<InetDiagMessage> filter)
+            throws SocketException, InterruptedIOException, ErrnoException {
+        if (prefilter != null) {
+            try {
+                return processNetlinkDumpAndDestroySockets(
+                        inetDiagReqV2Dump(proto, family, states, prefilter), destroyFd, proto,
+                        uidFilter, filter);
+            } catch (ErrnoException e) {
+                if (e.errno != EINVAL && e.errno != EPERM) throw e;
+                // The kernel does not support the filter; nothing was destroyed since the dump
+                // failed before returning any socket, so retry without it.
+                Log.w(TAG, "Kernel rejected " + prefilter + ", dumping all sockets: " + e);
+            }
+        }
+        return processNetlinkDumpAndDestroySockets(
+                inetDiagReqV2Dump(proto, family, states, null /* filter */), destroyFd, proto,
+                uidFilter, filter);
+    }
+
+    /**
+     * Destroys the sockets matching the UID filter and the filter.
+     *
+     * @param prefilter optional bytecode filter applied by the kernel before the sockets are
+     *                  dumped, to reduce the number of sockets that need to be parsed. It must
+     *                  not match fewer sockets than filter, which is always applied.
+     * @param uidFilter applied to the owner UID of the sockets before they are parsed.
+     * @param filter applied to the parsed sockets whose owner UID matches uidFilter.
+     */
+    private static void destroySockets(int proto, int states,
+            @Nullable InetDiagBytecode prefilter, IntPredicate uidFilter,
+            Predicate<InetDiagMessage> filter)
             throws ErrnoException, SocketException, InterruptedIOException {
         FileDescriptor destroyFd = null;
 
@@ -421,11 +622,9 @@ public class InetDiagMessage extends NetlinkMessage {
             connectToKernel(destroyFd);
 
             for (int family : List.of(AF_INET, AF_INET6)) {
-                byte[] req = makeNetlinkDumpRequest(proto, states, family);
-
                 try {
-                    final int destroyedSockets = processNetlinkDumpAndDestroySockets(
-                            req, destroyFd, proto, filter);
+                    final int destroyedSockets = dumpAndDestroySockets(
+                            proto, states, family, prefilter, destroyFd, uidFilter, filter);
                     Log.d(TAG, "Destroyed " + destroyedSockets + " sockets"
                         + ", proto=" + stringForProtocol(proto)
                         + ", family=" + stringForAddressFamily(family)
@@ -454,11 +653,9 @@ public class InetDiagMessage extends NetlinkMessage {
     public static void destroyLiveTcpSockets(Set<Range<Integer>> ranges, Set<Integer> exemptUids)
             throws SocketException, InterruptedIOException, ErrnoException {
         final long startTimeMs = SystemClock.elapsedRealtime();
-        destroySockets(IPPROTO_TCP, TCP_ALIVE_STATE_FILTER,
-                (diagMsg) -> !exemptUids.contains(diagMsg.inetDiagMsg.idiag_uid)
-                        && containsUid(diagMsg, ranges)
-                        && !isLoopback(diagMsg)
-                        && !isAdbSocket(diagMsg));
+        destroySockets(IPPROTO_TCP, TCP_ALIVE_STATE_FILTER, makeNonLoopbackFilter(),
+                (uid) -> !exemptUids.contains(uid) && containsUid(uid, ranges),
+                (diagMsg) -> !isLoopback(diagMsg) && !isAdbSocket(diagMsg));
         final long durationMs = SystemClock.elapsedRealtime() - startTimeMs;
         Log.d(TAG, "Destroyed live tcp sockets for uids=" + ranges + " exemptUids=" + exemptUids
                 + " in " + durationMs + "ms");
@@ -476,10 +673,9 @@ public class InetDiagMessage extends NetlinkMessage {
     public static void destroyLiveTcpSocketsByOwnerUids(Set<Integer> ownerUids)
             throws SocketException, InterruptedIOException, ErrnoException {
         final long startTimeMs = SystemClock.elapsedRealtime();
-        destroySockets(IPPROTO_TCP, TCP_ALIVE_STATE_FILTER,
-                (diagMsg) -> ownerUids.contains(diagMsg.inetDiagMsg.idiag_uid)
-                        && !isLoopback(diagMsg)
-                        && !isAdbSocket(diagMsg));
+        destroySockets(IPPROTO_TCP, TCP_ALIVE_STATE_FILTER, makeNonLoopbackFilter(),
+                ownerUids::contains,
+                (diagMsg) -> !isLoopback(diagMsg) && !isAdbSocket(diagMsg));
         final long durationMs = SystemClock.elapsedRealtime() - startTimeMs;
         Log.d(TAG, "Destroyed live tcp sockets for uids=" + ownerUids + " in " + durationMs + "ms");
     }
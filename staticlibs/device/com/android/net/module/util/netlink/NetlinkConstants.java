@@ -96,8 +96,14 @@ public class NetlinkConstants {
      */
     public static String hexify(ByteBuffer buffer) {
         if (buffer == null) return "(null)";
+        if (!buffer.hasArray()) {
+            // Direct buffers, such as the receive buffer of netlink dumps.
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return hexify(bytes);
+        }
         return toHexString(
-                buffer.array(), buffer.position(), buffer.remaining());
+                buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
     }
 
     // Known values for struct nlmsghdr nlm_type.
@@ -32,6 +32,7 @@ import static android.system.OsConstants.SO_SNDTIMEO;
 
 import static com.android.net.module.util.netlink.NetlinkConstants.hexify;
 import static com.android.net.module.util.netlink.NetlinkConstants.NLMSG_DONE;
+import static com.android.net.module.util.netlink.NetlinkConstants.NLMSG_ERROR;
 import static com.android.net.module.util.netlink.NetlinkConstants.RTNL_FAMILY_IP6MR;
 import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_DUMP;
 import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_REQUEST;
@@ -45,6 +46,7 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
@@ -57,6 +59,7 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 /**
@@ -335,9 +338,36 @@ public class NetlinkUtils {
 
     private NetlinkUtils() {}
 
+    /**
+     * Decides whether a dump message is parsed, by peeking at its raw bytes.
+     *
+     * This allows consumers to skip messages they are not interested in without creating
+     * objects for them.
+     */
+    @FunctionalInterface
+    public interface NetlinkMessageFilter {
+        /**
+         * Returns whether the message should be parsed and passed to the consumer.
+         *
+         * @param nlmsgType the type in the netlink header of the message.
+         * @param payload the receive buffer, in native byte order, with its position at the end
+         *                of the netlink header and its limit at the end of the message. The filter
+         *                may change the position of the buffer, but not its content.
+         */
+        boolean test(short nlmsgType, @NonNull ByteBuffer payload);
+    }
+
+    // The kernel fills each dump reply up to the size of the largest read so far, capped at
+    // 32KiB, so reading with a larger buffer makes it batch more messages per read.
+    private static final int DUMP_RECV_BUFSIZE = 32 * 1024;
+
+    // A direct receive buffer reused by dumps, so that dumps do not allocate a buffer for each
+    // read, and reads do not copy from a temporary buffer. Concurrent dumps allocate their own.
+    private static final AtomicReference<ByteBuffer> sDumpRecvBuffer = new AtomicReference<>();
+
     private static <T extends NetlinkMessage> void getAndProcessNetlinkDumpMessagesWithFd(
             FileDescriptor fd, byte[] dumpRequestMessage, int nlFamily, Class<T> msgClass,
-            Consumer<T> func)
+            @Nullable NetlinkMessageFilter filter, Consumer<T> func)
             throws SocketException, InterruptedIOException, ErrnoException {
         // connecToKernel throws ErrnoException and SocketException, should be handled by caller
         connectToKernel(fd);
@@ -346,36 +376,111 @@ public class NetlinkUtils {
         // should be handled by caller
         sendMessage(fd, dumpRequestMessage, 0, dumpRequestMessage.length, IO_TIMEOUT_MS);
 
-        while (true) {
-            // recvMessage throws ErrnoException, InterruptedIOException
-            // should be handled by caller
-            final ByteBuffer buf = recvMessage(
-                    fd, NetlinkUtils.DEFAULT_RECV_BUFSIZE, IO_TIMEOUT_MS);
-
-            while (buf.remaining() > 0) {
-                final int position = buf.position();
-                final NetlinkMessage nlMsg = NetlinkMessage.parse(buf, nlFamily);
-                if (nlMsg == null) {
-                    // Move to the position where parse started for error log.
-                    buf.position(position);
-                    Log.e(TAG, "Failed to parse netlink message: " + hexify(buf));
-                    break;
+        processNetlinkDumpMessages(fd, nlFamily, msgClass, filter, func);
+    }
+
+    /**
+     * Receives and processes dump messages from a socket until NLMSG_DONE is received.
+     *
+     * Messages for which the filter returns false are skipped without being parsed, except
+     * NLMSG_DONE and NLMSG_ERROR messages, which are always handled.
+     *
+     * @throws InterruptedIOException when fails to read the fd
+     * @throws ErrnoException when fails to receive messages, or the kernel replies with an error
+     */
+    @VisibleForTesting
+    public static <T extends NetlinkMessage> void processNetlinkDumpMessages(
+            FileDescriptor fd, int nlFamily, Class<T> msgClass,
+            @Nullable NetlinkMessageFilter filter, Consumer<T> func)
+            throws InterruptedIOException, ErrnoException {
+        checkTimeout(IO_TIMEOUT_MS);
+        Os.setsockoptTimeval(fd, SOL_SOCKET, SO_RCVTIMEO, StructTimeval.fromMillis(IO_TIMEOUT_MS));
+
+        ByteBuffer buf = sDumpRecvBuffer.getAndSet(null);
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(DUMP_RECV_BUFSIZE).order(ByteOrder.nativeOrder());
+        }
+        try {
+            while (true) {
+                buf.clear();
+                // Os.read throws ErrnoException, InterruptedIOException
+                // should be handled by caller
+                final int length = Os.read(fd, buf);
+                if (length == buf.capacity()) {
+                    Log.w(TAG, "maximum read");
                 }
+                buf.flip();
+                if (processDumpMessages(buf, nlFamily, msgClass, filter, func)) return;
+            }
+        } finally {
+            sDumpRecvBuffer.set(buf);
+        }
+    }
 
-                if (nlMsg.getHeader().nlmsg_type == NLMSG_DONE) {
-                    return;
+    // Processes the messages between the position and the limit of the buffer. Returns true if
+    // NLMSG_DONE was received.
+    private static <T extends NetlinkMessage> boolean processDumpMessages(ByteBuffer buf,
+            int nlFamily, Class<T> msgClass, @Nullable NetlinkMessageFilter filter,
+            Consumer<T> func) throws ErrnoException {
+        final int limit = buf.limit();
+        while (buf.remaining() > 0) {
+            final int position = buf.position();
+            if (buf.remaining() >= StructNlMsgHdr.STRUCT_SIZE) {
+                // Peek at the header without parsing the message. Malformed headers are left
+                // to NetlinkMessage#parse.
+                final int nlmsgLen = buf.getInt(position);
+                final short nlmsgType = buf.getShort(position + 4);
+                if (nlmsgType == NLMSG_DONE) return true;
+
+                if (filter != null && nlmsgType != NLMSG_ERROR
+                        && nlmsgLen >= StructNlMsgHdr.STRUCT_SIZE
+                        && nlmsgLen <= buf.remaining()) {
+                    buf.position(position + StructNlMsgHdr.STRUCT_SIZE);
+                    buf.limit(position + nlmsgLen);
+                    final boolean accepted = filter.test(nlmsgType, buf);
+                    buf.limit(limit);
+                    if (!accepted) {
+                        buf.position(Math.min(limit,
+                                position + NetlinkConstants.alignedLengthOf(nlmsgLen)));
+                        continue;
+                    }
+                    buf.position(position);
                 }
+            }
 
-                if (!msgClass.isInstance(nlMsg)) {
-                    Log.wtf(TAG, "Received unexpected netlink message: " + nlMsg);
-                    continue;
+            final NetlinkMessage nlMsg = NetlinkMessage.parse(buf, nlFamily);
+            if (nlMsg == null) {
+                // Move to the position where parse started for error log.
+                buf.position(position);
+                Log.e(TAG, "Failed to parse netlink message: " + hexify(buf));
+                break;
+            }
+
+            if (nlMsg.getHeader().nlmsg_type == NLMSG_DONE) {
+                return true;
+            }
+
+            // The kernel replies with an error instead of NLMSG_DONE if it rejects the dump
+            // request, e.g. because of an invalid filter; there will be no more messages.
+            if (nlMsg instanceof NetlinkErrorMessage) {
+                final StructNlMsgErr err = ((NetlinkErrorMessage) nlMsg).getNlMsgError();
+                if (err != null && err.error != 0) {
+                    // Note: convert kernel errnos (negative) into userspace errnos (positive).
+                    throw new ErrnoException(nlMsg.toString(), Math.abs(err.error));
                 }
+            }
 
-                final T msg = (T) nlMsg;
-                func.accept(msg);
+            if (!msgClass.isInstance(nlMsg)) {
+                Log.wtf(TAG, "Received unexpected netlink message: " + nlMsg);
+                continue;
             }
+
+            final T msg = (T) nlMsg;
+            func.accept(msg);
         }
+        return false;
     }
+
     /**
      * Sends a netlink dump request and processes the returned dump messages
      *
@@ -393,11 +498,35 @@ public class NetlinkUtils {
             byte[] dumpRequestMessage, int nlFamily, Class<T> msgClass,
             Consumer<T> func)
             throws SocketException, InterruptedIOException, ErrnoException {
+        getAndProcessNetlinkDumpMessages(dumpRequestMessage, nlFamily, msgClass,
+                null /* filter */, func);
+    }
+
+    /**
+     * Sends a netlink dump request and processes the returned dump messages that are accepted
+     * by the filter.
+     *
+     * @param <T> extends NetlinkMessage
+     * @param dumpRequestMessage netlink dump request message to be sent
+     * @param nlFamily netlink family
+     * @param msgClass expected class of the netlink message
+     * @param filter decides which messages are parsed and passed to func, or null to process
+     *               all messages
+     * @param func function defined by caller to handle the dump messages
+     * @throws SocketException when fails to connect socket to kernel
+     * @throws InterruptedIOException when fails to read the dumpFd
+     * @throws ErrnoException when fails to create dump fd, send dump request
+     *                        or receive messages
+     */
+    public static <T extends NetlinkMessage> void getAndProcessNetlinkDumpMessages(
+            byte[] dumpRequestMessage, int nlFamily, Class<T> msgClass,
+            @Nullable NetlinkMessageFilter filter, Consumer<T> func)
+            throws SocketException, InterruptedIOException, ErrnoException {
         // Create socket
         final FileDescriptor fd = netlinkSocketForProto(nlFamily, SOCKET_DUMP_RECV_BUFSIZE);
         try {
             getAndProcessNetlinkDumpMessagesWithFd(fd, dumpRequestMessage, nlFamily,
-                    msgClass, func);
+                    msgClass, filter, func);
         } finally {
             closeSocketQuietly(fd);
         }
@@ -20,6 +20,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * struct inet_diag_msg
@@ -60,6 +61,44 @@ public class StructInetDiagMsg {
         return (short) (b & 0xFF);
     }
 
+    // idiag_cookie is the last field of the socket ID, which follows 4 one-byte fields.
+    private static final int COOKIE_OFFSET = 4 + StructInetDiagSockId.STRUCT_SIZE - 8;
+
+    /**
+     * Reads the socket cookie of the inet diag message at the position of the buffer, without
+     * parsing the message or changing the position of the buffer.
+     *
+     * @return the cookie, or null if the buffer is too short.
+     */
+    @Nullable
+    public static Long peekCookie(@NonNull ByteBuffer byteBuffer) {
+        if (byteBuffer.remaining() < STRUCT_SIZE) {
+            return null;
+        }
+        // The cookie is in host byte order, see StructInetDiagSockId#parse.
+        return byteBuffer.duplicate().order(ByteOrder.nativeOrder())
+                .getLong(byteBuffer.position() + COOKIE_OFFSET);
+    }
+
+    // idiag_uid follows the socket ID and the idiag_expires, idiag_rqueue and idiag_wqueue fields.
+    private static final int UID_OFFSET = 4 + StructInetDiagSockId.STRUCT_SIZE + 12;
+
+    /**
+     * Reads the owner UID of the inet diag message at the position of the buffer, without
+     * parsing the message or changing the position of the buffer.
+     *
+     * @return the UID, or null if the buffer is too short.
+     */
+    @Nullable
+    public static Integer peekUid(@NonNull ByteBuffer byteBuffer) {
+        if (byteBuffer.remaining() < STRUCT_SIZE) {
+            return null;
+        }
+        // The UID is in host byte order, like the other fields read by parse.
+        return byteBuffer.duplicate().order(ByteOrder.nativeOrder())
+                .getInt(byteBuffer.position() + UID_OFFSET);
+    }
+
     /**
      * Parse inet diag netlink message from buffer.
      */
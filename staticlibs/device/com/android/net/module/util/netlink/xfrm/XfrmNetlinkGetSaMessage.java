@@ -16,6 +16,7 @@
 
 package com.android.net.module.util.netlink.xfrm;
 
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_DUMP;
 import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_REQUEST;
 import static com.android.net.module.util.netlink.xfrm.XfrmNetlinkMessage.XFRM_MSG_GETSA;
 
@@ -110,6 +111,20 @@ public class XfrmNetlinkGetSaMessage extends XfrmNetlinkMessage {
         return byteBuffer.array();
     }
 
+    /**
+     * A convenient method to create a XFRM_MSG_GETSA message that dumps all the SAs.
+     *
+     * <p>The kernel replies with one XFRM_MSG_NEWSA message per SA, followed by NLMSG_DONE.
+     */
+    public static byte[] newXfrmNetlinkDumpSaMessage() {
+        final StructNlMsgHdr nlmsghdr = new StructNlMsgHdr(0 /* payloadLen */, XFRM_MSG_GETSA,
+                (short) (NLM_F_REQUEST | NLM_F_DUMP), 0);
+        final ByteBuffer byteBuffer = newNlMsgByteBuffer(0 /* payloadLen */);
+        nlmsghdr.pack(byteBuffer);
+
+        return byteBuffer.array();
+    }
+
     public StructXfrmUsersaId getStructXfrmUsersaId() {
         return mXfrmUsersaId;
     }
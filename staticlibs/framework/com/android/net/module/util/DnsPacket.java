@@ -317,13 +317,14 @@ public abstract class DnsPacket {
         public static DnsRecord parse(@RecordType int rType, @NonNull ByteBuffer buf)
                 throws BufferUnderflowException, ParseException {
             Objects.requireNonNull(buf);
-            final int oldPos = buf.position();
-            // Parsed name not used, just for jumping to nsType position.
-            DnsRecordParser.parseName(buf, 0 /* Parse depth */,
-                    true /* isNameCompressionSupported */);
-            // Peek the nsType.
-            final int nsType = Short.toUnsignedInt(buf.getShort());
-            buf.position(oldPos);
+            // Peek the nsType, skipping the name without decoding it.
+            final int nsType;
+            try {
+                nsType = Short.toUnsignedInt(
+                        buf.getShort(DnsPacketReader.skipName(buf, buf.position())));
+            } catch (IndexOutOfBoundsException e) {
+                throw new BufferUnderflowException();
+            }
             // Return a DnsRecord instance by default for backward compatibility, this is useful
             // when a partner supports new type of DnsRecord but does not inherit DnsRecord.
             switch (nsType) {
@@ -529,16 +530,22 @@ public abstract class DnsPacket {
         }
 
         mRecords = new ArrayList[NUM_SECTIONS];
-
         for (int i = 0; i < NUM_SECTIONS; ++i) {
-            final int count = mHeader.getRecordCount(i);
-            mRecords[i] = new ArrayList(count);
-            for (int j = 0; j < count; ++j) {
-                try {
-                    mRecords[i].add(DnsRecord.parse(i, buffer));
-                } catch (BufferUnderflowException e) {
-                    throw new ParseException("Parse record fail", e);
-                }
+            mRecords[i] = new ArrayList(mHeader.getRecordCount(i));
+        }
+
+        // Use the reader to find the type of each record without decoding its name.
+        final DnsPacketReader reader = new DnsPacketReader(data);
+        while (reader.next()) {
+            final int section = reader.getSection();
+            buffer.position(reader.getRecordOffset());
+            try {
+                // Return a DnsRecord instance by default for backward compatibility, as in
+                // DnsRecord#parse.
+                mRecords[section].add(reader.getType() == TYPE_SVCB
+                        ? new DnsSvcbRecord(section, buffer) : new DnsRecord(section, buffer));
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("Parse record fail", e);
             }
         }
     }
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util;
+
+import static com.android.net.module.util.DnsPacket.DnsRecord.MAXNAMESIZE;
+import static com.android.net.module.util.DnsPacket.DnsRecord.NAME_COMPRESSION;
+import static com.android.net.module.util.DnsPacket.DnsRecord.NAME_NORMAL;
+import static com.android.net.module.util.DnsPacket.NUM_SECTIONS;
+import static com.android.net.module.util.DnsPacket.QDSECTION;
+
+import android.annotation.NonNull;
+
+import com.android.net.module.util.DnsPacket.ParseException;
+import com.android.net.module.util.DnsPacketUtils.DnsRecordParser;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A cursor over the records of a wire-format DNS packet, based on RFC 1035.
+ *
+ * Unlike {@link DnsPacket}, this class does not create objects for the records, copy their
+ * RDATA or decode their names unless asked to: each call to {@link #next} only reads the fixed
+ * fields of the next record and skips over its name and RDATA. Names can be compared to a
+ * String without being decoded with {@link #nameEquals}.
+ *
+ * Typical usage:
+ * <pre>
+ *     final DnsPacketReader reader = new DnsPacketReader(data);
+ *     while (reader.next()) {
+ *         if (reader.getSection() != ANSECTION || reader.getType() != TYPE_A) continue;
+ *         // Read the address at reader.getRdataOffset() in reader.getBuffer().
+ *     }
+ * </pre>
+ *
+ * The values returned by the record getters are only defined after {@link #next} has returned
+ * true. This class is not thread-safe.
+ *
+ * @hide
+ */
+public final class DnsPacketReader {
+    private static final int HEADER_SIZE = 12;
+    private static final int FLAGS_SECTION_QR_BIT = 15;
+    // Refer to RFC 1035 section 2.3.4: names are at most 255 bytes, so they have at most 128
+    // labels including the root label.
+    private static final int MAXLABELCOUNT = 128;
+
+    // Read-only view of the packet, starting at the beginning of the header. Only absolute reads
+    // are used, so that callers can use the position of the buffer returned by getBuffer.
+    private final ByteBuffer mBuf;
+    private final int mId;
+    private final int mFlags;
+    private final int[] mRecordCount = new int[NUM_SECTIONS];
+
+    private int mSection = QDSECTION;
+    private int mIndexInSection = -1;
+    private int mNextRecordOffset = HEADER_SIZE;
+
+    private int mRecordOffset;
+    private int mType;
+    private int mClass;
+    private long mTtl;
+    private int mRdataOffset;
+    private int mRdataLength;
+
+    /**
+     * Creates a reader for the packet in the given array.
+     */
+    public DnsPacketReader(@NonNull byte[] data) throws ParseException {
+        this(wrap(data));
+    }
+
+    private static ByteBuffer wrap(byte[] data) throws ParseException {
+        if (data == null) {
+            throw new ParseException("Parse header failed, null input data");
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Creates a reader for the packet between the position and the limit of the given buffer.
+     *
+     * The position of the given buffer is not modified, and the reader will see any change made
+     * to its content.
+     */
+    public DnsPacketReader(@NonNull ByteBuffer buf) throws ParseException {
+        // slice() always returns a buffer in network byte order.
+        mBuf = buf.slice().asReadOnlyBuffer();
+        if (mBuf.limit() < HEADER_SIZE) {
+            throw new ParseException("Parse header failed, packet too short: " + mBuf.limit());
+        }
+        mId = Short.toUnsignedInt(mBuf.getShort(0));
+        mFlags = Short.toUnsignedInt(mBuf.getShort(2));
+        for (int i = 0; i < NUM_SECTIONS; i++) {
+            mRecordCount[i] = Short.toUnsignedInt(mBuf.getShort(4 + 2 * i));
+        }
+    }
+
+    /** Returns the ID in the header. */
+    public int getId() {
+        return mId;
+    }
+
+    /** Returns the flags in the header. */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /** Returns whether the packet is a response, as defined in RFC 1035 Section 4.1.1. */
+    public boolean isResponse() {
+        return (mFlags & (1 << FLAGS_SECTION_QR_BIT)) != 0;
+    }
+
+    /** Returns the number of records in the given section, as declared in the header. */
+    public int getRecordCount(@DnsPacket.RecordType int section) {
+        return mRecordCount[section];
+    }
+
+    /**
+     * Returns a read-only view of the whole packet, in which the offsets returned by this class
+     * are valid. Callers may change the position and the limit of the returned buffer.
+     */
+    @NonNull
+    public ByteBuffer getBuffer() {
+        return mBuf;
+    }
+
+    /**
+     * Advances to the next record, in the question, answer, authority and additional sections
+     * in order.
+     *
+     * @return false if there are no more records.
+     * @throws ParseException if the record is truncated or its name is malformed.
+     */
+    public boolean next() throws ParseException {
+        mIndexInSection++;
+        while (mSection < NUM_SECTIONS && mIndexInSection >= mRecordCount[mSection]) {
+            mSection++;
+            mIndexInSection = 0;
+        }
+        if (mSection >= NUM_SECTIONS) return false;
+
+        try {
+            int pos = mNextRecordOffset;
+            mRecordOffset = pos;
+            pos = skipName(mBuf, pos);
+            mType = Short.toUnsignedInt(mBuf.getShort(pos));
+            mClass = Short.toUnsignedInt(mBuf.getShort(pos + 2));
+            pos += 4;
+            if (mSection == QDSECTION) {
+                mTtl = 0;
+                mRdataLength = 0;
+                mRdataOffset = pos;
+            } else {
+                mTtl = Integer.toUnsignedLong(mBuf.getInt(pos));
+                mRdataLength = Short.toUnsignedInt(mBuf.getShort(pos + 4));
+                mRdataOffset = pos + 6;
+                pos = mRdataOffset + mRdataLength;
+                if (pos > mBuf.limit()) {
+                    throw new ParseException("Parse record fail, RDATA exceeds packet length");
+                }
+            }
+            mNextRecordOffset = pos;
+        } catch (IndexOutOfBoundsException e) {
+            throw new ParseException("Parse record fail", e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the offset after the name starting at the given offset, without decoding it.
+     *
+     * @throws IndexOutOfBoundsException if the name is truncated.
+     */
+    static int skipName(@NonNull ByteBuffer buf, int offset) throws ParseException {
+        int pos = offset;
+        while (true) {
+            final int len = Byte.toUnsignedInt(buf.get(pos));
+            final int mask = len & NAME_COMPRESSION;
+            if (len == 0) {
+                return pos + 1;
+            } else if (mask == NAME_COMPRESSION) {
+                // A pointer always ends the name. Refer to RFC 1035 - 4.1.4.
+                return pos + 2;
+            } else if (mask != NAME_NORMAL) {
+                throw new ParseException("Parse name fail, bad label type: " + mask);
+            }
+            pos += 1 + len;
+        }
+    }
+
+    /** Returns the section of the current record, one of the DnsPacket *SECTION constants. */
+    @DnsPacket.RecordType
+    public int getSection() {
+        return mSection;
+    }
+
+    /** Returns the offset of the current record, which is also the offset of its name. */
+    public int getRecordOffset() {
+        return mRecordOffset;
+    }
+
+    /** Returns the TYPE of the current record. */
+    public int getType() {
+        return mType;
+    }
+
+    /** Returns the CLASS of the current record. */
+    public int getNsClass() {
+        return mClass;
+    }
+
+    /** Returns the TTL of the current record, or 0 for questions. */
+    public long getTtl() {
+        return mTtl;
+    }
+
+    /** Returns the offset of the RDATA of the current record. */
+    public int getRdataOffset() {
+        return mRdataOffset;
+    }
+
+    /** Returns the length of the RDATA of the current record, or 0 for questions. */
+    public int getRdataLength() {
+        return mRdataLength;
+    }
+
+    /** Returns a copy of the RDATA of the current record. */
+    @NonNull
+    public byte[] getRdata() {
+        final byte[] rdata = new byte[mRdataLength];
+        final ByteBuffer buf = mBuf.duplicate();
+        buf.position(mRdataOffset);
+        buf.get(rdata);
+        return rdata;
+    }
+
+    /** Decodes the name of the current record. */
+    @NonNull
+    public String getName() throws ParseException {
+        return readName(mRecordOffset, true /* isNameCompressionSupported */);
+    }
+
+    /**
+     * Decodes the name at the given offset, e.g. a name in the RDATA of the current record.
+     */
+    @NonNull
+    public String readName(int offset, boolean isNameCompressionSupported)
+            throws ParseException {
+        final ByteBuffer buf = mBuf.duplicate();
+        final String name;
+        try {
+            buf.position(offset);
+            name = DnsRecordParser.parseName(buf, 0 /* Parse depth */,
+                    isNameCompressionSupported);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new ParseException("Parse name fail", e);
+        }
+        if (name.length() > MAXNAMESIZE) {
+            throw new ParseException("Parse name fail, name size is too long: " + name.length());
+        }
+        return name;
+    }
+
+    /**
+     * Returns whether the name of the current record is equal to the given name, without
+     * decoding it.
+     *
+     * @see #nameEquals(int, String)
+     */
+    public boolean nameEquals(@NonNull String name) throws ParseException {
+        return nameEquals(mRecordOffset, name);
+    }
+
+    /**
+     * Returns whether the name at the given offset is equal to the given name, without decoding
+     * it.
+     *
+     * As per RFC 4343, ASCII letters are compared case-insensitively. The given name must be in
+     * the format returned by {@link #getName}, without a trailing dot. Names with labels that
+     * would be escaped by {@link #getName}, such as labels containing a dot, never match.
+     */
+    public boolean nameEquals(int offset, @NonNull String name) throws ParseException {
+        final int nameLength = name.length();
+        int pos = offset;
+        int namePos = 0;
+        try {
+            for (int i = 0; i < MAXLABELCOUNT; i++) {
+                final int len = Byte.toUnsignedInt(mBuf.get(pos));
+                final int mask = len & NAME_COMPRESSION;
+                if (len == 0) {
+                    return namePos == nameLength;
+                } else if (mask == NAME_COMPRESSION) {
+                    final int target = ((len & ~NAME_COMPRESSION) << 8)
+                            + Byte.toUnsignedInt(mBuf.get(pos + 1));
+                    // Only allow pointers to earlier offsets, so that loops are impossible.
+                    if (target >= pos) {
+                        throw new ParseException(
+                                "Parse compression name fail, invalid compression");
+                    }
+                    pos = target;
+                    continue;
+                } else if (mask != NAME_NORMAL) {
+                    throw new ParseException("Parse name fail, bad label type: " + mask);
+                }
+                // Labels after the first one are preceded by a dot.
+                if (namePos != 0) {
+                    if (namePos >= nameLength || name.charAt(namePos) != '.') return false;
+                    namePos++;
+                }
+                if (namePos + len > nameLength) return false;
+                for (int j = 0; j < len; j++) {
+                    final int b = Byte.toUnsignedInt(mBuf.get(pos + 1 + j));
+                    if (!isUnescapedLabelByte(b)
+                            || toLowerAscii(b) != toLowerAscii(name.charAt(namePos + j))) {
+                        return false;
+                    }
+                }
+                namePos += len;
+                pos += 1 + len;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new ParseException("Parse name fail", e);
+        }
+        throw new ParseException("Failed to parse name, too many labels");
+    }
+
+    // Returns whether DnsRecordParser#labelToString outputs the byte as is.
+    private static boolean isUnescapedLabelByte(int b) {
+        if (b <= 0x20 || b >= 0x7f) return false;
+        switch (b) {
+            case '"':
+            case '.':
+            case ';':
+            case '\\':
+            case '(':
+            case ')':
+            case '@':
+            case '$':
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static int toLowerAscii(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+}
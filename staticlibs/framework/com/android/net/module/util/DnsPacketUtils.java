@@ -23,7 +23,6 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.net.InetAddresses;
 import android.net.ParseException;
-import android.text.TextUtils;
 import android.util.Patterns;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -33,8 +32,6 @@ import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.text.DecimalFormat;
-import java.text.FieldPosition;
 
 /**
  * Utilities for decoding the contents of a DnsPacket.
@@ -50,9 +47,6 @@ public final class DnsPacketUtils {
         private static final int MAXNAMESIZE = 255;
         private static final int MAXLABELCOUNT = 128;
 
-        private static final DecimalFormat sByteFormat = new DecimalFormat();
-        private static final FieldPosition sPos = new FieldPosition(0);
-
         /**
          * Convert label from {@code byte[]} to {@code String}
          *
@@ -60,28 +54,30 @@ public final class DnsPacketUtils {
          */
         @VisibleForTesting
         static String labelToString(@NonNull byte[] label) {
-            final StringBuffer sb = new StringBuffer();
-
+            final StringBuilder sb = new StringBuilder();
             for (int i = 0; i < label.length; ++i) {
-                int b = Byte.toUnsignedInt(label[i]);
-                // Control characters and non-ASCII characters.
-                if (b <= 0x20 || b >= 0x7f) {
-                    // Append the byte as an escaped decimal number, e.g., "\19" for 0x13.
-                    sb.append('\\');
-                    sByteFormat.format(b, sb, sPos);
-                } else if (b == '"' || b == '.' || b == ';' || b == '\\' || b == '(' || b == ')'
-                        || b == '@' || b == '$') {
-                    // Append the byte as an escaped character, e.g., "\:" for 0x3a.
-                    sb.append('\\');
-                    sb.append((char) b);
-                } else {
-                    // Append the byte as a character, e.g., "a" for 0x61.
-                    sb.append((char) b);
-                }
+                appendLabelByte(Byte.toUnsignedInt(label[i]), sb);
             }
             return sb.toString();
         }
 
+        private static void appendLabelByte(int b, @NonNull StringBuilder sb) {
+            // Control characters and non-ASCII characters.
+            if (b <= 0x20 || b >= 0x7f) {
+                // Append the byte as an escaped decimal number, e.g., "\19" for 0x13.
+                sb.append('\\');
+                sb.append(b);
+            } else if (b == '"' || b == '.' || b == ';' || b == '\\' || b == '(' || b == ')'
+                    || b == '@' || b == '$') {
+                // Append the byte as an escaped character, e.g., "\:" for 0x3a.
+                sb.append('\\');
+                sb.append((char) b);
+            } else {
+                // Append the byte as a character, e.g., "a" for 0x61.
+                sb.append((char) b);
+            }
+        }
+
         /**
          * Converts domain name to labels according to RFC 1035.
          *
@@ -148,13 +144,23 @@ public final class DnsPacketUtils {
         public static String parseName(final ByteBuffer buf, int depth, int maxLabelCount,
                 boolean isNameCompressionSupported) throws
                 BufferUnderflowException, DnsPacket.ParseException {
+            // Append all labels to the same builder instead of concatenating Strings, which
+            // would be quadratic in the number of labels.
+            final StringBuilder sb = new StringBuilder();
+            appendName(buf, depth, maxLabelCount, isNameCompressionSupported, sb);
+            return sb.toString();
+        }
+
+        private static void appendName(final ByteBuffer buf, int depth, int maxLabelCount,
+                boolean isNameCompressionSupported, @NonNull StringBuilder sb) throws
+                BufferUnderflowException, DnsPacket.ParseException {
             if (depth > maxLabelCount) {
                 throw new DnsPacket.ParseException("Failed to parse name, too many labels");
             }
             final int len = Byte.toUnsignedInt(buf.get());
             final int mask = len & NAME_COMPRESSION;
             if (0 == len) {
-                return "";
+                return;
             } else if (mask != NAME_NORMAL && mask != NAME_COMPRESSION
                     || (!isNameCompressionSupported && mask == NAME_COMPRESSION)) {
                 throw new DnsPacket.ParseException("Parse name fail, bad label type: " + mask);
@@ -167,20 +173,19 @@ public final class DnsPacketUtils {
                             "Parse compression name fail, invalid compression");
                 }
                 buf.position(offset);
-                final String pointed = parseName(buf, depth + 1, maxLabelCount,
-                        isNameCompressionSupported);
+                appendName(buf, depth + 1, maxLabelCount, isNameCompressionSupported, sb);
                 buf.position(oldPos);
-                return pointed;
             } else {
-                final byte[] label = new byte[len];
-                buf.get(label);
-                final String head = labelToString(label);
-                if (head.length() > MAXLABELSIZE) {
+                if (buf.remaining() < len) throw new BufferUnderflowException();
+                if (sb.length() > 0) sb.append('.');
+                final int labelStart = sb.length();
+                for (int i = 0; i < len; ++i) {
+                    appendLabelByte(Byte.toUnsignedInt(buf.get()), sb);
+                }
+                if (sb.length() - labelStart > MAXLABELSIZE) {
                     throw new DnsPacket.ParseException("Parse name fail, invalid label length");
                 }
-                final String tail = parseName(buf, depth + 1, maxLabelCount,
-                        isNameCompressionSupported);
-                return TextUtils.isEmpty(tail) ? head : head + "." + tail;
+                appendName(buf, depth + 1, maxLabelCount, isNameCompressionSupported, sb);
             }
         }
 
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util;
+
+import android.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A set of ints backed by a sorted primitive array.
+ *
+ * This is meant for sets of UIDs or app IDs that are built in bulk and then mostly queried, where
+ * a {@code Set<Integer>} would box every element. Lookups are a binary search; single-element
+ * insertions and removals shift the backing array, so callers that build large sets should use
+ * {@link #of(int[])} or {@link #addAll} instead of repeated calls to {@link #add}.
+ *
+ * This class is not thread-safe.
+ *
+ * @hide
+ */
+public final class SortedIntSet {
+    private static final int[] EMPTY = new int[0];
+
+    @NonNull
+    private int[] mValues;
+    private int mSize;
+
+    /** Creates an empty set. */
+    public SortedIntSet() {
+        mValues = EMPTY;
+        mSize = 0;
+    }
+
+    private SortedIntSet(@NonNull final int[] sortedUniqueValues, final int size) {
+        mValues = sortedUniqueValues;
+        mSize = size;
+    }
+
+    /**
+     * Creates a set containing the given values. Duplicates are allowed and ignored.
+     * The passed array is not modified.
+     */
+    @NonNull
+    public static SortedIntSet of(@NonNull final int... values) {
+        final int[] copy = values.clone();
+        Arrays.sort(copy);
+        return new SortedIntSet(copy, dedupSorted(copy, copy.length));
+    }
+
+    /**
+     * Creates a set containing the given values. Duplicates are allowed and ignored.
+     */
+    @NonNull
+    public static SortedIntSet of(@NonNull final Collection<Integer> values) {
+        return of(CollectionUtils.toIntArray(values));
+    }
+
+    /** Removes duplicates in place from the first {@code size} sorted values, returns new size. */
+    private static int dedupSorted(@NonNull final int[] values, final int size) {
+        if (size == 0) return 0;
+        int out = 1;
+        for (int i = 1; i < size; i++) {
+            if (values[i] != values[out - 1]) {
+                values[out++] = values[i];
+            }
+        }
+        return out;
+    }
+
+    /** Returns the number of values in this set. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns whether this set is empty. */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Returns the value at the given index. Values are ordered from the smallest to the largest,
+     * so this can be used to iterate over the set without allocating.
+     */
+    public int valueAt(final int index) {
+        if (index < 0 || index >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    /**
+     * Returns the index of the given value, suitable for {@link #valueAt}, or -1 if the
+     * value is not in this set.
+     */
+    public int indexOf(final int value) {
+        final int index = Arrays.binarySearch(mValues, 0, mSize, value);
+        return index >= 0 ? index : -1;
+    }
+
+    /** Returns whether this set contains the given value. */
+    public boolean contains(final int value) {
+        return Arrays.binarySearch(mValues, 0, mSize, value) >= 0;
+    }
+
+    /**
+     * Adds the given value to this set.
+     *
+     * @return true if the value was added, false if it was already present.
+     */
+    public boolean add(final int value) {
+        final int index = Arrays.binarySearch(mValues, 0, mSize, value);
+        if (index >= 0) return false;
+        final int insertAt = ~index;
+        if (mSize == mValues.length) {
+            final int[] newValues = new int[Math.max(4, mSize + (mSize >> 1))];
+            System.arraycopy(mValues, 0, newValues, 0, insertAt);
+            System.arraycopy(mValues, insertAt, newValues, insertAt + 1, mSize - insertAt);
+            mValues = newValues;
+        } else {
+            System.arraycopy(mValues, insertAt, mValues, insertAt + 1, mSize - insertAt);
+        }
+        mValues[insertAt] = value;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Adds all values of the given set to this set, in linear time.
+     */
+    public void addAll(@NonNull final SortedIntSet other) {
+        if (other.mSize == 0) return;
+        if (mSize == 0) {
+            mValues = Arrays.copyOf(other.mValues, other.mSize);
+            mSize = other.mSize;
+            return;
+        }
+        final int[] merged = new int[mSize + other.mSize];
+        int i = 0;
+        int j = 0;
+        int out = 0;
+        while (i < mSize && j < other.mSize) {
+            final int a = mValues[i];
+            final int b = other.mValues[j];
+            if (a < b) {
+                merged[out++] = a;
+                i++;
+            } else if (a > b) {
+                merged[out++] = b;
+                j++;
+            } else {
+                merged[out++] = a;
+                i++;
+                j++;
+            }
+        }
+        while (i < mSize) merged[out++] = mValues[i++];
+        while (j < other.mSize) merged[out++] = other.mValues[j++];
+        mValues = merged;
+        mSize = out;
+    }
+
+    /**
+     * Adds all the given values to this set.
+     */
+    public void addAll(@NonNull final Collection<Integer> values) {
+        addAll(of(values));
+    }
+
+    /**
+     * Removes the given value from this set.
+     *
+     * @return true if the value was present.
+     */
+    public boolean remove(final int value) {
+        final int index = Arrays.binarySearch(mValues, 0, mSize, value);
+        if (index < 0) return false;
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+        return true;
+    }
+
+    /** Removes all values from this set. */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /** Returns a new array containing the values of this set in ascending order. */
+    @NonNull
+    public int[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SortedIntSet)) return false;
+        final SortedIntSet other = (SortedIntSet) o;
+        if (mSize != other.mSize) return false;
+        for (int i = 0; i < mSize; i++) {
+            if (mValues[i] != other.mValues[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < mSize; i++) {
+            result = 31 * result + mValues[i];
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(mValues[i]);
+        }
+        return sb.append("}").toString();
+    }
+}
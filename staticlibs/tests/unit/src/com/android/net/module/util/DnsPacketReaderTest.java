@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util;
+
+import static android.net.DnsResolver.CLASS_IN;
+import static android.net.DnsResolver.TYPE_A;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DnsPacketReaderTest {
+    private static final int TYPE_CNAME = 5;
+
+    // Response to an A query for www.google.com, with a CNAME and two addresses.
+    private static final byte[] RESPONSE = new byte[] {
+        /* Header */
+        0x55, 0x66, /* Transaction ID */
+        (byte) 0x81, (byte) 0x80, /* Flags */
+        0x00, 0x01, /* Questions */
+        0x00, 0x03, /* Answer RRs */
+        0x00, 0x00, /* Authority RRs */
+        0x00, 0x00, /* Additional RRs */
+        /* Queries */
+        0x03, 0x77, 0x77, 0x77, 0x06, 0x67, 0x6F, 0x6F, 0x67, 0x6c, 0x65,
+        0x03, 0x63, 0x6f, 0x6d, 0x00, /* Name: www.google.com at offset 12 */
+        0x00, 0x01, /* Type */
+        0x00, 0x01, /* Class */
+        /* Answers */
+        (byte) 0xc0, 0x0c, /* Name: pointer to www.google.com */
+        0x00, 0x05, /* Type */
+        0x00, 0x01, /* Class */
+        0x00, 0x00, 0x00, 0x10, /* TTL */
+        0x00, 0x06, /* Data length */
+        0x03, 0x57, 0x65, 0x42, (byte) 0xc0, 0x10, /* Name: WeB.google.com */
+        (byte) 0xc0, 0x2c, /* Name: pointer to WeB.google.com */
+        0x00, 0x01, /* Type */
+        0x00, 0x01, /* Class */
+        0x00, 0x00, 0x01, 0x2b, /* TTL */
+        0x00, 0x04, /* Data length */
+        (byte) 0xac, (byte) 0xd9, (byte) 0xa1, (byte) 0x84, /* Address */
+        (byte) 0xc0, 0x2c, /* Name: pointer to WeB.google.com */
+        0x00, 0x01, /* Type */
+        0x00, 0x01, /* Class */
+        0x00, 0x00, 0x01, 0x2b, /* TTL */
+        0x00, 0x04, /* Data length */
+        (byte) 0xac, (byte) 0xd9, (byte) 0xa1, (byte) 0x85, /* Address */
+    };
+
+    @Test
+    public void testReadRecords() throws Exception {
+        final DnsPacketReader reader = new DnsPacketReader(RESPONSE);
+        assertEquals(0x5566, reader.getId());
+        assertEquals(0x8180, reader.getFlags());
+        assertTrue(reader.isResponse());
+        assertEquals(1, reader.getRecordCount(DnsPacket.QDSECTION));
+        assertEquals(3, reader.getRecordCount(DnsPacket.ANSECTION));
+
+        assertTrue(reader.next());
+        assertEquals(DnsPacket.QDSECTION, reader.getSection());
+        assertEquals(TYPE_A, reader.getType());
+        assertEquals(CLASS_IN, reader.getNsClass());
+        assertEquals("www.google.com", reader.getName());
+
+        assertTrue(reader.next());
+        assertEquals(DnsPacket.ANSECTION, reader.getSection());
+        assertEquals(TYPE_CNAME, reader.getType());
+        assertEquals(0x10, reader.getTtl());
+        assertEquals("www.google.com", reader.getName());
+        assertEquals("WeB.google.com", reader.readName(reader.getRdataOffset(),
+                true /* isNameCompressionSupported */));
+
+        assertTrue(reader.next());
+        assertEquals(TYPE_A, reader.getType());
+        assertEquals(0x12b, reader.getTtl());
+        assertEquals(4, reader.getRdataLength());
+        assertArrayEquals(new byte[] { (byte) 0xac, (byte) 0xd9, (byte) 0xa1, (byte) 0x84 },
+                reader.getRdata());
+
+        assertTrue(reader.next());
+        assertEquals((byte) 0x85,
+                reader.getBuffer().get(reader.getRdataOffset() + reader.getRdataLength() - 1));
+
+        assertFalse(reader.next());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testNameEquals() throws Exception {
+        final DnsPacketReader reader = new DnsPacketReader(RESPONSE);
+        reader.next();
+        assertTrue(reader.nameEquals("www.google.com"));
+        assertTrue(reader.nameEquals("WWW.Google.COM"));
+        assertFalse(reader.nameEquals("www.google.co"));
+        assertFalse(reader.nameEquals("www.google.com.au"));
+        assertFalse(reader.nameEquals("www.google"));
+        assertFalse(reader.nameEquals("wwwgoogle.com"));
+        assertFalse(reader.nameEquals(""));
+
+        reader.next();
+        // Names in the RDATA can be compared as well.
+        assertTrue(reader.nameEquals(reader.getRdataOffset(), "web.google.com"));
+
+        reader.next();
+        // Compressed names are followed.
+        assertTrue(reader.nameEquals("web.google.com"));
+        assertFalse(reader.nameEquals("www.google.com"));
+    }
+
+    @Test
+    public void testNameEquals_escapedLabel() throws Exception {
+        final byte[] packet = Arrays.copyOf(RESPONSE, RESPONSE.length);
+        // Replace "www" with "w.w", which is decoded as "w\.w".
+        packet[14] = '.';
+        final DnsPacketReader reader = new DnsPacketReader(packet);
+        reader.next();
+        assertEquals("w\\.w.google.com", reader.getName());
+        assertFalse(reader.nameEquals("w.w.google.com"));
+        assertFalse(reader.nameEquals("w\\.w.google.com"));
+    }
+
+    @Test
+    public void testReadFromBufferPosition() throws Exception {
+        final ByteBuffer buf = ByteBuffer.allocate(RESPONSE.length + 3);
+        buf.put(new byte[3]);
+        buf.put(RESPONSE);
+        buf.position(3);
+        final DnsPacketReader reader = new DnsPacketReader(buf);
+        assertEquals(3, buf.position());
+        reader.next();
+        reader.next();
+        // Compression offsets are relative to the start of the packet.
+        assertEquals("WeB.google.com", reader.readName(reader.getRdataOffset(),
+                true /* isNameCompressionSupported */));
+    }
+
+    @Test
+    public void testMalformedPackets() throws Exception {
+        assertThrows(DnsPacket.ParseException.class, () -> new DnsPacketReader((byte[]) null));
+        assertThrows(DnsPacket.ParseException.class,
+                () -> new DnsPacketReader(Arrays.copyOf(RESPONSE, 11)));
+
+        // Truncated RDATA.
+        final DnsPacketReader truncated =
+                new DnsPacketReader(Arrays.copyOf(RESPONSE, RESPONSE.length - 1));
+        for (int i = 0; i < 3; i++) assertTrue(truncated.next());
+        assertThrows(DnsPacket.ParseException.class, truncated::next);
+
+        // Bad label type.
+        final byte[] badLabel = Arrays.copyOf(RESPONSE, RESPONSE.length);
+        badLabel[12] = 0x40;
+        assertThrows(DnsPacket.ParseException.class, () -> new DnsPacketReader(badLabel).next());
+
+        // Compression pointer to itself.
+        final byte[] loop = Arrays.copyOf(RESPONSE, RESPONSE.length);
+        loop[33] = 0x20;
+        final DnsPacketReader loopReader = new DnsPacketReader(loop);
+        loopReader.next();
+        loopReader.next();
+        assertThrows(DnsPacket.ParseException.class, loopReader::getName);
+        assertThrows(DnsPacket.ParseException.class, () -> loopReader.nameEquals("a"));
+    }
+}
@@ -86,6 +86,54 @@ public class SharedLogTest {
         assertDumpLogs(expected, logLevel3);
     }
 
+    @Test
+    public void testLogWithPrimitiveArgs() {
+        final SharedLog logTop = new SharedLog(TAG);
+        final SharedLog logSub = logTop.forSubComponent("sub");
+        logTop.log("one arg: %d", 42);
+        logSub.log("two args: %d, 0x%x", -1, 255);
+        logSub.log("three args: %d %d %d", Long.MAX_VALUE, 0, Long.MIN_VALUE);
+        logTop.log("bad format: %s %d", 1, 2, 3);
+        logTop.log("missing arg: %d %d", 7);
+
+        final String[] expected = {
+            " - one arg: 42",
+            " - [sub] two args: -1, 0xff",
+            " - [sub] three args: 9223372036854775807 0 -9223372036854775808",
+            // Extra arguments are ignored by String#format.
+            " - bad format: 1 2",
+            " - missing arg: %d %d [7] (java.util.MissingFormatArgumentException: "
+                    + "Format specifier '%d')",
+        };
+        assertDumpLogs(expected, logTop);
+    }
+
+    @Test
+    public void testMaxRecords() {
+        final SharedLog log = new SharedLog(3 /* maxRecords */, TAG);
+        for (int i = 0; i < 5; i++) {
+            log.log("record %d", i);
+        }
+        log.mark("last");
+
+        // Only the newest records are kept.
+        final String[] expected = {
+            " - record 3",
+            " - record 4",
+            " - MARK last",
+        };
+        assertDumpLogs(expected, log);
+    }
+
+    @Test
+    public void testNoRecords() {
+        final SharedLog log = new SharedLog(0 /* maxRecords */, TAG);
+        log.log("dropped");
+        log.log("dropped %d", 1);
+        assertEquals("", getSharedLogStringAllowEmpty(
+                pw -> log.dump(null /* fd */, pw, null /* args */)));
+    }
+
     private static void assertDumpLogs(String[] expected, SharedLog log) {
         verifyLogLines(expected, dump(log));
         verifyLogLines(reverse(expected), reverseDump(log));
@@ -106,13 +154,18 @@ public class SharedLogTest {
     }
 
     private static String getSharedLogString(Consumer<PrintWriter> functor) {
+        final String dumpOutput = getSharedLogStringAllowEmpty(functor);
+        assertFalse("".equals(dumpOutput));
+        return dumpOutput;
+    }
+
+    private static String getSharedLogStringAllowEmpty(Consumer<PrintWriter> functor) {
         final ByteArrayOutputStream ostream = new ByteArrayOutputStream();
         final PrintWriter pw = new PrintWriter(ostream, true);
         functor.accept(pw);
 
         final String dumpOutput = ostream.toString();
         assertNotNull(dumpOutput);
-        assertFalse("".equals(dumpOutput));
         return dumpOutput;
     }
 
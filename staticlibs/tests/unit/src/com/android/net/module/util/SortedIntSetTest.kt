@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util
+
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class SortedIntSetTest {
+    @Test
+    fun testOf() {
+        val input = intArrayOf(10005, 1000, 10005, 2000, -1, 1000)
+        val set = SortedIntSet.of(*input)
+        assertEquals(4, set.size())
+        assertContentEquals(intArrayOf(-1, 1000, 2000, 10005), set.toArray())
+        // The input array must not be modified.
+        assertContentEquals(intArrayOf(10005, 1000, 10005, 2000, -1, 1000), input)
+
+        assertEquals(set, SortedIntSet.of(setOf(2000, 10005, -1, 1000)))
+        assertTrue(SortedIntSet.of().isEmpty())
+    }
+
+    @Test
+    fun testAddRemoveContains() {
+        val set = SortedIntSet()
+        assertTrue(set.isEmpty())
+        assertFalse(set.contains(1000))
+
+        assertTrue(set.add(1000))
+        assertTrue(set.add(10))
+        assertTrue(set.add(5000))
+        assertTrue(set.add(2000))
+        assertFalse(set.add(1000))
+        assertEquals(4, set.size())
+        assertContentEquals(intArrayOf(10, 1000, 2000, 5000), set.toArray())
+        assertTrue(set.contains(2000))
+        assertFalse(set.contains(3000))
+        assertEquals(2, set.indexOf(2000))
+        assertEquals(-1, set.indexOf(3000))
+        assertEquals(-1, set.indexOf(0))
+
+        assertTrue(set.remove(1000))
+        assertFalse(set.remove(1000))
+        assertFalse(set.contains(1000))
+        assertContentEquals(intArrayOf(10, 2000, 5000), set.toArray())
+
+        set.clear()
+        assertTrue(set.isEmpty())
+        assertFalse(set.contains(10))
+        assertTrue(set.add(10))
+        assertEquals(1, set.size())
+    }
+
+    @Test
+    fun testAddMany() {
+        val set = SortedIntSet()
+        for (i in 999 downTo 0) {
+            set.add(i * 2)
+        }
+        assertEquals(1000, set.size())
+        for (i in 0 until 1000) {
+            assertEquals(i * 2, set.valueAt(i))
+            assertTrue(set.contains(i * 2))
+            assertFalse(set.contains(i * 2 + 1))
+        }
+    }
+
+    @Test
+    fun testAddAll() {
+        val set = SortedIntSet.of(1, 3, 5, 7)
+        set.addAll(SortedIntSet.of(0, 3, 4, 7, 9))
+        assertContentEquals(intArrayOf(0, 1, 3, 4, 5, 7, 9), set.toArray())
+
+        set.addAll(listOf(2, 2, 8))
+        assertContentEquals(intArrayOf(0, 1, 2, 3, 4, 5, 7, 8, 9), set.toArray())
+
+        val empty = SortedIntSet()
+        empty.addAll(set)
+        assertEquals(set, empty)
+        // Modifying the copy must not affect the source set.
+        empty.remove(0)
+        assertTrue(set.contains(0))
+
+        set.addAll(SortedIntSet())
+        assertEquals(9, set.size())
+    }
+
+    @Test
+    fun testValueAtOutOfBounds() {
+        val set = SortedIntSet.of(1, 2)
+        set.remove(2)
+        assertFailsWith<ArrayIndexOutOfBoundsException> { set.valueAt(1) }
+        assertFailsWith<ArrayIndexOutOfBoundsException> { set.valueAt(-1) }
+    }
+
+    @Test
+    fun testEqualsHashCodeToString() {
+        val a = SortedIntSet.of(3, 1, 2)
+        val b = SortedIntSet()
+        b.add(1)
+        b.add(2)
+        b.add(3)
+        b.add(4)
+        b.remove(4)
+        assertEquals(a, b)
+        assertEquals(a.hashCode(), b.hashCode())
+        assertNotEquals(a, SortedIntSet.of(1, 2))
+        assertEquals("{1, 2, 3}", a.toString())
+        assertEquals("{}", SortedIntSet().toString())
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.ip;
+
+import static com.android.net.module.util.ip.CoalescingNeighborEventConsumer.SAME_VALIDITY_AND_MAC;
+import static com.android.net.module.util.netlink.NetlinkConstants.RTM_DELNEIGH;
+import static com.android.net.module.util.netlink.NetlinkConstants.RTM_NEWNEIGH;
+import static com.android.net.module.util.netlink.StructNdMsg.NUD_FAILED;
+import static com.android.net.module.util.netlink.StructNdMsg.NUD_INCOMPLETE;
+import static com.android.net.module.util.netlink.StructNdMsg.NUD_REACHABLE;
+import static com.android.net.module.util.netlink.StructNdMsg.NUD_STALE;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import android.net.InetAddresses;
+import android.net.MacAddress;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEvent;
+import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEventConsumer;
+import com.android.testutils.HandlerUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.net.InetAddress;
+
+/**
+ * Tests for CoalescingNeighborEventConsumer.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CoalescingNeighborEventConsumerTest {
+    private static final long TIMEOUT_MS = 10_000L;
+    private static final long WINDOW_MS = 50L;
+    private static final int IFINDEX = 42;
+    private static final int OTHER_IFINDEX = 43;
+    private static final InetAddress IP = InetAddresses.parseNumericAddress("2001:db8::1");
+    private static final InetAddress OTHER_IP = InetAddresses.parseNumericAddress("192.0.2.1");
+    private static final MacAddress MAC = MacAddress.fromString("02:00:00:00:00:01");
+    private static final MacAddress OTHER_MAC = MacAddress.fromString("02:00:00:00:00:02");
+
+    @Mock private NeighborEventConsumer mConsumer;
+
+    private final HandlerThread mHandlerThread = new HandlerThread(
+            CoalescingNeighborEventConsumerTest.class.getSimpleName());
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        mHandlerThread.join();
+    }
+
+    private static NeighborEvent newEvent(short msgType, int ifindex, InetAddress ip,
+            short nudState, MacAddress mac) {
+        return new NeighborEvent(0 /* elapsedMs */, msgType, ifindex, ip, nudState, mac);
+    }
+
+    private static NeighborEvent newEvent(short nudState, MacAddress mac) {
+        return newEvent(RTM_NEWNEIGH, IFINDEX, IP, nudState, mac);
+    }
+
+    @Test
+    public void testSuppressesSameState() {
+        final CoalescingNeighborEventConsumer coalescer = new CoalescingNeighborEventConsumer(
+                mHandler, 0 /* windowMs */, SAME_VALIDITY_AND_MAC, mConsumer);
+        final NeighborEvent reachable = newEvent(NUD_REACHABLE, MAC);
+        final NeighborEvent stale = newEvent(NUD_STALE, MAC);
+        final NeighborEvent otherMac = newEvent(NUD_REACHABLE, OTHER_MAC);
+        final NeighborEvent failed = newEvent(NUD_FAILED, OTHER_MAC);
+        final NeighborEvent incomplete = newEvent(NUD_INCOMPLETE, MAC);
+        coalescer.accept(reachable);
+        coalescer.accept(stale);
+        coalescer.accept(otherMac);
+        coalescer.accept(failed);
+        coalescer.accept(incomplete);
+
+        final InOrder inOrder = inOrder(mConsumer);
+        inOrder.verify(mConsumer).accept(reachable);
+        inOrder.verify(mConsumer).accept(otherMac);
+        inOrder.verify(mConsumer).accept(failed);
+        verifyNoMoreInteractions(mConsumer);
+        assertEquals(5, coalescer.getReceivedCount());
+        assertEquals(3, coalescer.getDeliveredCount());
+        assertEquals(2, coalescer.getSuppressedCount());
+    }
+
+    @Test
+    public void testNeighborsAreIndependent() {
+        final CoalescingNeighborEventConsumer coalescer = new CoalescingNeighborEventConsumer(
+                mHandler, 0 /* windowMs */, SAME_VALIDITY_AND_MAC, mConsumer);
+        final NeighborEvent event = newEvent(NUD_REACHABLE, MAC);
+        final NeighborEvent otherIfindex =
+                newEvent(RTM_NEWNEIGH, OTHER_IFINDEX, IP, NUD_REACHABLE, MAC);
+        final NeighborEvent otherIp = newEvent(RTM_NEWNEIGH, IFINDEX, OTHER_IP, NUD_REACHABLE, MAC);
+        coalescer.accept(event);
+        coalescer.accept(otherIfindex);
+        coalescer.accept(otherIp);
+
+        verify(mConsumer).accept(event);
+        verify(mConsumer).accept(otherIfindex);
+        verify(mConsumer).accept(otherIp);
+        assertEquals(0, coalescer.getSuppressedCount());
+    }
+
+    @Test
+    public void testDeletedNeighborIsForgotten() {
+        final CoalescingNeighborEventConsumer coalescer = new CoalescingNeighborEventConsumer(
+                mHandler, 0 /* windowMs */, SAME_VALIDITY_AND_MAC, mConsumer);
+        final NeighborEvent reachable = newEvent(NUD_REACHABLE, MAC);
+        final NeighborEvent deleted = newEvent(RTM_DELNEIGH, IFINDEX, IP, NUD_STALE, MAC);
+        coalescer.accept(reachable);
+        coalescer.accept(deleted);
+        coalescer.accept(reachable);
+
+        final InOrder inOrder = inOrder(mConsumer);
+        inOrder.verify(mConsumer).accept(reachable);
+        inOrder.verify(mConsumer).accept(deleted);
+        inOrder.verify(mConsumer).accept(reachable);
+        assertEquals(0, coalescer.getSuppressedCount());
+    }
+
+    @Test
+    public void testSuppressedDeletionIsForgotten() {
+        final CoalescingNeighborEventConsumer coalescer = new CoalescingNeighborEventConsumer(
+                mHandler, 0 /* windowMs */, SAME_VALIDITY_AND_MAC, mConsumer);
+        final NeighborEvent failed = newEvent(NUD_FAILED, MAC);
+        final NeighborEvent otherFailed =
+                newEvent(RTM_NEWNEIGH, IFINDEX, OTHER_IP, NUD_FAILED, MAC);
+        final NeighborEvent deleted = newEvent(RTM_DELNEIGH, IFINDEX, IP, NUD_FAILED, MAC);
+        coalescer.accept(failed);
+        coalescer.accept(otherFailed);
+        assertEquals(2, coalescer.getNeighborCount());
+
+        // The deletion is in the same invalid state, but the neighbor must still be forgotten.
+        coalescer.accept(deleted);
+        verify(mConsumer).accept(failed);
+        verify(mConsumer).accept(otherFailed);
+        verifyNoMoreInteractions(mConsumer);
+        assertEquals(1, coalescer.getSuppressedCount());
+        assertEquals(1, coalescer.getNeighborCount());
+    }
+
+    @Test
+    public void testClear() {
+        final CoalescingNeighborEventConsumer coalescer = new CoalescingNeighborEventConsumer(
+                mHandler, 0 /* windowMs */, SAME_VALIDITY_AND_MAC, mConsumer);
+        final NeighborEvent reachable = newEvent(NUD_REACHABLE, MAC);
+        coalescer.accept(reachable);
+        coalescer.clear();
+        coalescer.accept(reachable);
+
+        verify(mConsumer, times(2)).accept(reachable);
+        assertEquals(0, coalescer.getSuppressedCount());
+    }
+
+    @Test
+    public void testWindow() {
+        final CoalescingNeighborEventConsumer coalescer = new CoalescingNeighborEventConsumer(
+                mHandler, WINDOW_MS, SAME_VALIDITY_AND_MAC, mConsumer);
+        final NeighborEvent reachable = newEvent(NUD_REACHABLE, MAC);
+        final NeighborEvent stale = newEvent(NUD_STALE, MAC);
+        final NeighborEvent failed = newEvent(NUD_FAILED, MAC);
+        final NeighborEvent other = newEvent(RTM_NEWNEIGH, IFINDEX, OTHER_IP, NUD_REACHABLE, MAC);
+        // Send all the events in the same message, so that they are all in the same window.
+        mHandler.post(() -> {
+            coalescer.accept(reachable);
+            coalescer.accept(other);
+            coalescer.accept(stale);
+            coalescer.accept(failed);
+        });
+
+        // Only the last state of each neighbor is delivered, in order of first appearance.
+        final InOrder inOrder = inOrder(mConsumer);
+        inOrder.verify(mConsumer, timeout(TIMEOUT_MS)).accept(failed);
+        inOrder.verify(mConsumer, timeout(TIMEOUT_MS)).accept(other);
+        HandlerUtils.waitForIdle(mHandler, TIMEOUT_MS);
+        verifyNoMoreInteractions(mConsumer);
+
+        // A later window only delivers the neighbors whose state changed.
+        final NeighborEvent incomplete = newEvent(NUD_INCOMPLETE, MAC);
+        final NeighborEvent otherStale =
+                newEvent(RTM_NEWNEIGH, IFINDEX, OTHER_IP, NUD_STALE, OTHER_MAC);
+        mHandler.post(() -> {
+            coalescer.accept(incomplete);
+            coalescer.accept(otherStale);
+        });
+        verify(mConsumer, timeout(TIMEOUT_MS)).accept(otherStale);
+        HandlerUtils.waitForIdle(mHandler, TIMEOUT_MS);
+        verifyNoMoreInteractions(mConsumer);
+
+        assertEquals(6, coalescer.getReceivedCount());
+        assertEquals(3, coalescer.getDeliveredCount());
+        assertEquals(3, coalescer.getSuppressedCount());
+    }
+}
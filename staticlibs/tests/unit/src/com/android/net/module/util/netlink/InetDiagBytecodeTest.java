@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.net.module.util.netlink;
+
+import static android.system.OsConstants.AF_INET;
+
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_CGROUP_COND;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_D_COND;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_D_EQ;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_D_GE;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_D_LE;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_JMP;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_MARK_COND;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_NOP;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_S_COND;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_S_EQ;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_S_GE;
+import static com.android.net.module.util.netlink.InetDiagBytecode.INET_DIAG_BC_S_LE;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.net.InetAddresses;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import libcore.util.HexEncoding;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class InetDiagBytecodeTest {
+    private static final InetAddress V4_ADDR = InetAddresses.parseNumericAddress("192.0.2.1");
+    private static final InetAddress V4_LOOPBACK = InetAddresses.parseNumericAddress("127.0.0.1");
+    private static final InetAddress V6_ADDR = InetAddresses.parseNumericAddress("2001:db8::1");
+    private static final InetAddress V6_LOOPBACK = InetAddresses.parseNumericAddress("::1");
+
+    /** A socket as seen by the kernel filter. */
+    private static class Entry {
+        final InetAddress src;
+        final InetAddress dst;
+        final int sport;
+        final int dport;
+        final int mark;
+        final long cgroupId;
+
+        Entry(InetAddress src, int sport, InetAddress dst, int dport, int mark) {
+            this(src, sport, dst, dport, mark, 0 /* cgroupId */);
+        }
+
+        Entry(InetAddress src, int sport, InetAddress dst, int dport, int mark, long cgroupId) {
+            this.src = src;
+            this.sport = sport;
+            this.dst = dst;
+            this.dport = dport;
+            this.mark = mark;
+            this.cgroupId = cgroupId;
+        }
+    }
+
+    private static Entry entry(InetAddress src, int sport, InetAddress dst, int dport) {
+        return new Entry(src, sport, dst, dport, 0 /* mark */);
+    }
+
+    private static ByteBuffer wrap(byte[] bytecode) {
+        return ByteBuffer.wrap(bytecode).order(ByteOrder.nativeOrder());
+    }
+
+    // Same checks as inet_diag_bc_audit() in the kernel, for the operations used by the builder.
+    private static void audit(byte[] bytecode) {
+        final ByteBuffer buf = wrap(bytecode);
+        int pos = 0;
+        while (pos < bytecode.length) {
+            final int len = bytecode.length - pos;
+            final int yes = buf.get(pos + 1) & 0xff;
+            final int no = buf.getShort(pos + 2) & 0xffff;
+            final byte code = buf.get(pos);
+            if (code != INET_DIAG_BC_NOP) {
+                assertTrue("Invalid no=" + no + " at " + pos,
+                        no >= 4 && no <= len + 4 && (no & 3) == 0);
+                if (no < len) assertOnYesChain(bytecode, pos + no);
+            }
+            assertTrue("Invalid yes=" + yes + " at " + pos,
+                    yes >= 4 && yes <= len + 4 && (yes & 3) == 0);
+            pos += yes;
+        }
+    }
+
+    private static void assertOnYesChain(byte[] bytecode, int target) {
+        int pos = 0;
+        while (pos < target) pos += bytecode[pos + 1] & 0xff;
+        assertEquals("Jump into the middle of an operation", target, pos);
+    }
+
+    private static boolean hostMatches(ByteBuffer buf, int pos, InetAddress addr, int port) {
+        final int family = buf.get(pos);
+        final int prefixLen = buf.get(pos + 1) & 0xff;
+        final int condPort = buf.getInt(pos + 4);
+        if (condPort != -1 && condPort != port) return false;
+        if (prefixLen == 0) return true;
+
+        byte[] entryAddr = addr.getAddress();
+        final boolean condV4 = (family == AF_INET);
+        if (condV4 != (addr instanceof Inet4Address)) {
+            // IPv4 conditions match v4-mapped addresses of IPv6 sockets.
+            if (!condV4 || !isV4Mapped(entryAddr)) return false;
+            final byte[] v4 = new byte[4];
+            System.arraycopy(entryAddr, 12, v4, 0, 4);
+            entryAddr = v4;
+        }
+        for (int i = 0; i < prefixLen; i++) {
+            final int byteIndex = i / 8;
+            final int mask = 0x80 >> (i % 8);
+            if ((entryAddr[byteIndex] & mask) != (buf.get(pos + 8 + byteIndex) & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isV4Mapped(byte[] addr) {
+        for (int i = 0; i < 10; i++) {
+            if (addr[i] != 0) return false;
+        }
+        return addr[10] == (byte) 0xff && addr[11] == (byte) 0xff;
+    }
+
+    // Port comparisons take their argument in the "no" field of the next operation.
+    private static int portArg(ByteBuffer buf, int pos) {
+        return buf.getShort(pos + 6) & 0xffff;
+    }
+
+    // Same logic as inet_diag_bc_run() in the kernel, for the operations used by the builder.
+    private static boolean run(InetDiagBytecode filter, Entry e) {
+        final byte[] bytecode = filter.getBytes();
+        audit(bytecode);
+        final ByteBuffer buf = wrap(bytecode);
+        int pos = 0;
+        int len = bytecode.length;
+        while (len > 0) {
+            final boolean yes;
+            switch (buf.get(pos)) {
+                case INET_DIAG_BC_NOP: yes = true; break;
+                case INET_DIAG_BC_JMP: yes = false; break;
+                case INET_DIAG_BC_S_EQ: yes = e.sport == portArg(buf, pos); break;
+                case INET_DIAG_BC_S_GE: yes = e.sport >= portArg(buf, pos); break;
+                case INET_DIAG_BC_S_LE: yes = e.sport <= portArg(buf, pos); break;
+                case INET_DIAG_BC_D_EQ: yes = e.dport == portArg(buf, pos); break;
+                case INET_DIAG_BC_D_GE: yes = e.dport >= portArg(buf, pos); break;
+                case INET_DIAG_BC_D_LE: yes = e.dport <= portArg(buf, pos); break;
+                case INET_DIAG_BC_S_COND: yes = hostMatches(buf, pos + 4, e.src, e.sport); break;
+                case INET_DIAG_BC_D_COND: yes = hostMatches(buf, pos + 4, e.dst, e.dport); break;
+                case INET_DIAG_BC_MARK_COND:
+                    yes = (e.mark & buf.getInt(pos + 8)) == buf.getInt(pos + 4);
+                    break;
+                case INET_DIAG_BC_CGROUP_COND: yes = e.cgroupId == buf.getLong(pos + 4); break;
+                default:
+                    fail("Unexpected operation " + buf.get(pos));
+                    return false;
+            }
+            final int jump = yes ? (buf.get(pos + 1) & 0xff) : (buf.getShort(pos + 2) & 0xffff);
+            pos += jump;
+            len -= jump;
+        }
+        return len == 0;
+    }
+
+    @Test
+    public void testLocalPortEquals() {
+        final InetDiagBytecode filter = InetDiagBytecode.localPortEquals(443);
+        final String expected =
+                "0b" +   // code = INET_DIAG_BC_S_EQ
+                "08" +   // yes = 8
+                "0c00" + // no = 12
+                "00" +   // code = INET_DIAG_BC_NOP
+                "00" +   // yes
+                "bb01";  // no = port 443
+        assertArrayEquals(HexEncoding.decode(expected.toCharArray(), false), filter.getBytes());
+        assertTrue(run(filter, entry(V4_ADDR, 443, V4_ADDR, 1000)));
+        assertFalse(run(filter, entry(V4_ADDR, 444, V4_ADDR, 443)));
+    }
+
+    @Test
+    public void testLocalAddressInPrefix() {
+        final InetDiagBytecode filter = InetDiagBytecode.localAddressInPrefix(V4_LOOPBACK, 8);
+        final String expected =
+                "07" +       // code = INET_DIAG_BC_S_COND
+                "10" +       // yes = 16
+                "1400" +     // no = 20
+                "02" +       // family = AF_INET
+                "08" +       // prefix_len = 8
+                "0000" +     // padding
+                "ffffffff" + // port = -1
+                "7f000001";  // addr = 127.0.0.1
+        assertArrayEquals(HexEncoding.decode(expected.toCharArray(), false), filter.getBytes());
+        assertTrue(run(filter, entry(V4_LOOPBACK, 1000, V4_ADDR, 443)));
+        assertFalse(run(filter, entry(V4_ADDR, 1000, V4_LOOPBACK, 443)));
+    }
+
+    @Test
+    public void testRemoteAddressInPrefix() {
+        final InetDiagBytecode filter = InetDiagBytecode.remoteAddressInPrefix(V6_ADDR, 32);
+        final String expected =
+                "08" +       // code = INET_DIAG_BC_D_COND
+                "1c" +       // yes = 28
+                "2000" +     // no = 32
+                "0a" +       // family = AF_INET6
+                "20" +       // prefix_len = 32
+                "0000" +     // padding
+                "ffffffff" + // port = -1
+                "20010db8000000000000000000000001"; // addr = 2001:db8::1
+        assertArrayEquals(HexEncoding.decode(expected.toCharArray(), false), filter.getBytes());
+        assertTrue(run(filter, entry(V6_LOOPBACK, 1000,
+                InetAddresses.parseNumericAddress("2001:db8:1::2"), 443)));
+        assertFalse(run(filter, entry(V6_ADDR, 1000, V6_LOOPBACK, 443)));
+    }
+
+    @Test
+    public void testMarkMatches() {
+        final InetDiagBytecode filter = InetDiagBytecode.markMatches(0x10000, 0x1ffff);
+        final String expected =
+                "0a" +       // code = INET_DIAG_BC_MARK_COND
+                "0c" +       // yes = 12
+                "1000" +     // no = 16
+                "00000100" + // mark = 0x10000
+                "ffff0100";  // mask = 0x1ffff
+        assertArrayEquals(HexEncoding.decode(expected.toCharArray(), false), filter.getBytes());
+        assertTrue(run(filter, new Entry(V4_ADDR, 1000, V4_ADDR, 443, 0x10000)));
+        assertTrue(run(filter, new Entry(V4_ADDR, 1000, V4_ADDR, 443, 0x30000)));
+        assertFalse(run(filter, new Entry(V4_ADDR, 1000, V4_ADDR, 443, 0x10064)));
+        assertFalse(run(filter, new Entry(V4_ADDR, 1000, V4_ADDR, 443, 0)));
+    }
+
+    @Test
+    public void testCgroupIdEquals() {
+        final InetDiagBytecode filter = InetDiagBytecode.cgroupIdEquals(0x123456789aL);
+        final String expected =
+                "0d" +               // code = INET_DIAG_BC_CGROUP_COND
+                "0c" +               // yes = 12
+                "1000" +             // no = 16
+                "9a78563412000000";  // cgroup_id = 0x123456789a
+        assertArrayEquals(HexEncoding.decode(expected.toCharArray(), false), filter.getBytes());
+        assertTrue(run(filter, new Entry(V4_ADDR, 1000, V4_ADDR, 443, 0, 0x123456789aL)));
+        assertFalse(run(filter, new Entry(V4_ADDR, 1000, V4_ADDR, 443, 0, 0x12345678L)));
+
+        // Operations with 8 bytes of arguments are relocated correctly when combined.
+        final InetDiagBytecode combined = InetDiagBytecode.and(
+                InetDiagBytecode.or(filter, InetDiagBytecode.markMatches(1, 1)),
+                InetDiagBytecode.localPortEquals(443));
+        assertTrue(run(combined, new Entry(V4_ADDR, 443, V4_ADDR, 1, 0, 0x123456789aL)));
+        assertTrue(run(combined, new Entry(V4_ADDR, 443, V4_ADDR, 1, 1, 0)));
+        assertFalse(run(combined, new Entry(V4_ADDR, 443, V4_ADDR, 1, 0, 0)));
+        assertFalse(run(combined, new Entry(V4_ADDR, 444, V4_ADDR, 1, 1, 0x123456789aL)));
+    }
+
+    @Test
+    public void testPortRanges() {
+        final InetDiagBytecode local = InetDiagBytecode.localPortInRange(1000, 2000);
+        assertFalse(run(local, entry(V6_ADDR, 999, V6_ADDR, 1500)));
+        assertTrue(run(local, entry(V6_ADDR, 1000, V6_ADDR, 1)));
+        assertTrue(run(local, entry(V6_ADDR, 2000, V6_ADDR, 1)));
+        assertFalse(run(local, entry(V6_ADDR, 2001, V6_ADDR, 1500)));
+
+        final InetDiagBytecode remote = InetDiagBytecode.remotePortInRange(1000, 2000);
+        assertTrue(run(remote, entry(V6_ADDR, 1, V6_ADDR, 1500)));
+        assertFalse(run(remote, entry(V6_ADDR, 1500, V6_ADDR, 2001)));
+    }
+
+    @Test
+    public void testAndOrNot() {
+        final InetDiagBytecode a = InetDiagBytecode.localPortEquals(1);
+        final InetDiagBytecode b = InetDiagBytecode.remotePortEquals(2);
+        final InetDiagBytecode c = InetDiagBytecode.markMatches(0x10000, 0x10000);
+        final InetDiagBytecode[] filters = {
+                InetDiagBytecode.and(a, b, c),
+                InetDiagBytecode.or(a, b, c),
+                InetDiagBytecode.not(a),
+                InetDiagBytecode.and(InetDiagBytecode.not(a), InetDiagBytecode.or(b, c)),
+                InetDiagBytecode.or(InetDiagBytecode.and(a, b), InetDiagBytecode.not(c)),
+                InetDiagBytecode.not(InetDiagBytecode.or(InetDiagBytecode.not(a), b)),
+        };
+        for (int i = 0; i < 8; i++) {
+            final boolean matchA = (i & 1) != 0;
+            final boolean matchB = (i & 2) != 0;
+            final boolean matchC = (i & 4) != 0;
+            final Entry e = new Entry(V4_ADDR, matchA ? 1 : 3, V4_ADDR, matchB ? 2 : 3,
+                    matchC ? 0x10123 : 0x123);
+            final boolean[] expected = {
+                    matchA && matchB && matchC,
+                    matchA || matchB || matchC,
+                    !matchA,
+                    !matchA && (matchB || matchC),
+                    (matchA && matchB) || !matchC,
+                    !(!matchA || matchB),
+            };
+            for (int j = 0; j < filters.length; j++) {
+                assertEquals("Filter " + j + " a=" + matchA + " b=" + matchB + " c=" + matchC,
+                        expected[j], run(filters[j], e));
+            }
+        }
+    }
+
+    @Test
+    public void testNonLoopbackFilter() throws UnknownHostException {
+        final InetDiagBytecode filter = InetDiagMessage.makeNonLoopbackFilter();
+        // ::ffff:127.1.2.3
+        final InetAddress v4MappedLoopback = Inet6Address.getByAddress(null, new byte[] {
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, 127, 1, 2, 3}, -1);
+        // ::ffff:192.0.2.1
+        final InetAddress v4Mapped = Inet6Address.getByAddress(null, new byte[] {
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 192, 0, 2, 1}, -1);
+
+        assertTrue(run(filter, entry(V4_ADDR, 1000, V4_ADDR, 443)));
+        assertTrue(run(filter, entry(V6_ADDR, 1000, V6_ADDR, 443)));
+        assertTrue(run(filter, entry(v4Mapped, 1000, V6_ADDR, 443)));
+        assertFalse(run(filter, entry(V4_LOOPBACK, 1000, V4_ADDR, 443)));
+        assertFalse(run(filter, entry(V4_ADDR, 1000, V4_LOOPBACK, 443)));
+        assertFalse(run(filter, entry(V6_LOOPBACK, 1000, V6_ADDR, 443)));
+        assertFalse(run(filter, entry(V6_ADDR, 1000, V6_LOOPBACK, 443)));
+        assertFalse(run(filter, entry(V6_ADDR, 1000, v4MappedLoopback, 443)));
+    }
+
+    @Test
+    public void testInvalidPrefixLength() {
+        try {
+            InetDiagBytecode.localAddressInPrefix(V4_ADDR, 33);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) { }
+    }
+}
@@ -662,6 +662,21 @@ public class InetDiagSocketTest {
                 88 /* cookie */);
     }
 
+    @Test
+    public void testPeekInetDiagMsgFields() {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(INET_DIAG_MSG_V4_MAPPED_V6_BYTES);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        byteBuffer.position(StructNlMsgHdr.STRUCT_SIZE);
+
+        assertEquals(Integer.valueOf(10147), StructInetDiagMsg.peekUid(byteBuffer));
+        assertEquals(Long.valueOf(88), StructInetDiagMsg.peekCookie(byteBuffer));
+        assertEquals(StructNlMsgHdr.STRUCT_SIZE, byteBuffer.position());
+
+        byteBuffer.limit(byteBuffer.limit() - 1);
+        assertNull(StructInetDiagMsg.peekUid(byteBuffer));
+        assertNull(StructInetDiagMsg.peekCookie(byteBuffer));
+    }
+
     private void doTestIsLoopback(InetAddress srcAddr, InetAddress dstAddr, boolean expected) {
         final InetDiagMessage inetDiagMsg = new InetDiagMessage(new StructNlMsgHdr());
         inetDiagMsg.inetDiagMsg.id = new StructInetDiagSockId(
@@ -783,6 +798,99 @@ public class InetDiagSocketTest {
                 false /* expected */);
     }
 
+    // Hexadecimal representation of a TCP dump request with a bytecode filter.
+    private static final String INET_DIAG_REQ_V2_DUMP_WITH_FILTER_HEX =
+            // struct nlmsghdr
+            "5c000000" +     // length = 92
+            "1400" +         // type = SOCK_DIAG_BY_FAMILY
+            "0103" +         // flags = NLM_F_REQUEST | NLM_F_DUMP
+            "00000000" +     // seqno
+            "00000000" +     // pid (0 == kernel)
+            // struct inet_diag_req_v2
+            "0a" +           // family = AF_INET6
+            "06" +           // protcol = IPPROTO_TCP
+            "00" +           // idiag_ext
+            "00" +           // pad
+            "0e000000" +     // idiag_states = TCP_ESTABLISHED | TCP_SYN_SENT | TCP_SYN_RECV
+            // inet_diag_sockid, all zeroes for a dump
+            "00000000000000000000000000000000" +
+            "00000000000000000000000000000000" +
+            "00000000000000000000000000000000" +
+            // struct nlattr
+            "1400" +         // len = 20
+            "0100" +         // type = INET_DIAG_REQ_BYTECODE
+            // struct inet_diag_bc_op
+            "08101400" +     // code = INET_DIAG_BC_D_COND, yes = 16, no = 20
+            // struct inet_diag_hostcond
+            "02" +           // family = AF_INET
+            "18" +           // prefix_len = 24
+            "0000" +         // padding
+            "ffffffff" +     // port = -1
+            "c0000200";      // addr = 192.0.2.0
+    private static final byte[] INET_DIAG_REQ_V2_DUMP_WITH_FILTER_BYTES =
+            HexEncoding.decode(INET_DIAG_REQ_V2_DUMP_WITH_FILTER_HEX.toCharArray(), false);
+
+    @Test
+    public void testInetDiagReqV2DumpWithFilter() {
+        final byte[] msg = InetDiagMessage.inetDiagReqV2Dump(IPPROTO_TCP, AF_INET6,
+                NetlinkUtils.TCP_ALIVE_STATE_FILTER, InetDiagBytecode.remoteAddressInPrefix(
+                        InetAddresses.parseNumericAddress("192.0.2.0"), 24));
+        assertArrayEquals(INET_DIAG_REQ_V2_DUMP_WITH_FILTER_BYTES, msg);
+
+        final byte[] unfiltered = InetDiagMessage.inetDiagReqV2Dump(IPPROTO_TCP, AF_INET6,
+                NetlinkUtils.TCP_ALIVE_STATE_FILTER, null /* filter */);
+        assertEquals(StructNlMsgHdr.STRUCT_SIZE + StructInetDiagReqV2.STRUCT_SIZE,
+                unfiltered.length);
+    }
+
+    private static InetDiagMessage makeDiagMsg(int family, int state, String src, String dst) {
+        final InetDiagMessage inetDiagMsg = new InetDiagMessage(new StructNlMsgHdr());
+        inetDiagMsg.inetDiagMsg.idiag_family = (short) family;
+        inetDiagMsg.inetDiagMsg.idiag_state = (short) state;
+        inetDiagMsg.inetDiagMsg.id = new StructInetDiagSockId(
+                new InetSocketAddress(InetAddresses.parseNumericAddress(src), 38417),
+                new InetSocketAddress(InetAddresses.parseNumericAddress(dst), 443));
+        return inetDiagMsg;
+    }
+
+    @Test
+    public void testBuildSockDestroyRequests() {
+        final List<InetDiagMessage> diagMsgs = List.of(
+                makeDiagMsg(AF_INET6, 1 /* TCP_ESTABLISHED */, "2001:db8::1", "2001:db8::2"),
+                makeDiagMsg(AF_INET, 2 /* TCP_SYN_SENT */, "192.0.2.1", "192.0.2.2"),
+                makeDiagMsg(AF_INET, 1 /* TCP_ESTABLISHED */, "192.0.2.1", "192.0.2.3"));
+        final byte[] msg = InetDiagMessage.buildSockDestroyRequests(IPPROTO_TCP, diagMsgs);
+
+        final ByteBuffer buf = ByteBuffer.wrap(msg);
+        buf.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < diagMsgs.size(); i++) {
+            final int start = buf.position();
+            final StructNlMsgHdr hdr = StructNlMsgHdr.parse(buf);
+            assertNotNull(hdr);
+            assertEquals(StructNlMsgHdr.STRUCT_SIZE + StructInetDiagReqV2.STRUCT_SIZE,
+                    hdr.nlmsg_len);
+            assertEquals(SOCK_DESTROY, hdr.nlmsg_type);
+            assertEquals(i + 1, hdr.nlmsg_seq);
+            // Only the last request is acked.
+            final short expectedFlags = (short) (i == diagMsgs.size() - 1
+                    ? NLM_F_REQUEST | NLM_F_ACK : NLM_F_REQUEST);
+            assertEquals(expectedFlags, hdr.nlmsg_flags);
+
+            final InetDiagMessage expected = diagMsgs.get(i);
+            assertEquals(expected.inetDiagMsg.idiag_family, buf.get());
+            assertEquals(IPPROTO_TCP, buf.get());
+            buf.getShort(); // idiag_ext and pad
+            assertEquals(1 << expected.inetDiagMsg.idiag_state, buf.getInt());
+            final StructInetDiagSockId id = StructInetDiagSockId.parse(buf,
+                    expected.inetDiagMsg.idiag_family);
+            assertEquals(expected.inetDiagMsg.id.locSocketAddress, id.locSocketAddress);
+            assertEquals(expected.inetDiagMsg.id.remSocketAddress, id.remSocketAddress);
+            buf.order(ByteOrder.nativeOrder());
+            assertEquals(start + hdr.nlmsg_len, buf.position());
+        }
+        assertEquals(0, buf.remaining());
+    }
+
     private void doTestIsAdbSocket(final int uid, final boolean expected) {
         final InetDiagMessage inetDiagMsg = new InetDiagMessage(new StructNlMsgHdr());
         inetDiagMsg.inetDiagMsg.idiag_uid = uid;
@@ -18,9 +18,14 @@ package com.android.net.module.util.netlink;
 
 import static android.system.OsConstants.AF_INET;
 import static android.system.OsConstants.AF_INET6;
+import static android.system.OsConstants.AF_UNIX;
 import static android.system.OsConstants.AF_UNSPEC;
 import static android.system.OsConstants.EACCES;
+import static android.system.OsConstants.EINTR;
+import static android.system.OsConstants.EINVAL;
+import static android.system.OsConstants.NETLINK_INET_DIAG;
 import static android.system.OsConstants.NETLINK_ROUTE;
+import static android.system.OsConstants.SOCK_DGRAM;
 import static android.system.OsConstants.SOL_SOCKET;
 import static android.system.OsConstants.SO_RCVBUF;
 import static com.android.net.module.util.netlink.NetlinkConstants.RTNL_FAMILY_IP6MR;
@@ -210,6 +215,127 @@ public class NetlinkUtilsTest {
         }
     }
 
+    /** Returns an NLMSG_DONE message, which ends a dump. */
+    private static byte[] newDoneMessage() {
+        final int length = StructNlMsgHdr.STRUCT_SIZE + 4;
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        final StructNlMsgHdr nlmsghdr = new StructNlMsgHdr();
+        nlmsghdr.nlmsg_len = length;
+        nlmsghdr.nlmsg_type = NetlinkConstants.NLMSG_DONE;
+        nlmsghdr.nlmsg_flags = StructNlMsgHdr.NLM_F_MULTI;
+        nlmsghdr.nlmsg_seq = TEST_SEQNO;
+        nlmsghdr.pack(byteBuffer);
+        byteBuffer.putInt(0);
+        return byteBuffer.array();
+    }
+
+    /** Returns an NLMSG_ERROR message, which the kernel sends instead of a dump it rejects. */
+    private static byte[] newErrorMessage(int errno) {
+        final int length = StructNlMsgHdr.STRUCT_SIZE + StructNlMsgErr.STRUCT_SIZE;
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+        byteBuffer.order(ByteOrder.nativeOrder());
+        final StructNlMsgHdr nlmsghdr = new StructNlMsgHdr();
+        nlmsghdr.nlmsg_len = length;
+        nlmsghdr.nlmsg_type = NetlinkConstants.NLMSG_ERROR;
+        nlmsghdr.nlmsg_seq = TEST_SEQNO;
+        nlmsghdr.pack(byteBuffer);
+        final StructNlMsgErr err = new StructNlMsgErr();
+        // The kernel sends negative errnos.
+        err.error = -errno;
+        err.msg = new StructNlMsgHdr();
+        err.msg.nlmsg_flags = NLM_F_REQUEST | NLM_F_DUMP;
+        err.msg.nlmsg_seq = TEST_SEQNO;
+        err.pack(byteBuffer);
+        return byteBuffer.array();
+    }
+
+    // Replays dump replies through a socket pair, and processes them with the given filter.
+    private static <T extends NetlinkMessage> void processDump(int nlFamily, Class<T> msgClass,
+            NetlinkUtils.NetlinkMessageFilter filter, Consumer<T> func, byte[]... replies)
+            throws Exception {
+        final FileDescriptor readFd = new FileDescriptor();
+        final FileDescriptor writeFd = new FileDescriptor();
+        Os.socketpair(AF_UNIX, SOCK_DGRAM, 0, readFd, writeFd);
+        try {
+            for (byte[] reply : replies) {
+                Os.write(writeFd, reply, 0, reply.length);
+            }
+            NetlinkUtils.processNetlinkDumpMessages(readFd, nlFamily, msgClass, filter, func);
+        } finally {
+            IoUtils.closeQuietly(readFd);
+            IoUtils.closeQuietly(writeFd);
+        }
+    }
+
+    // Replays a neighbor dump through a socket pair, and processes it with the given filter.
+    private List<RtNetlinkNeighborMessage> processNeighborDump(
+            NetlinkUtils.NetlinkMessageFilter filter) throws Exception {
+        final List<RtNetlinkNeighborMessage> msgs = new ArrayList<>();
+        processDump(NETLINK_ROUTE, RtNetlinkNeighborMessage.class, filter, msgs::add,
+                RtNetlinkNeighborMessageTest.RTM_GETNEIGH_RESPONSE, newDoneMessage());
+        return msgs;
+    }
+
+    @Test
+    public void testProcessNetlinkDumpMessages() throws Exception {
+        final List<RtNetlinkNeighborMessage> msgs = processNeighborDump(null /* filter */);
+        assertEquals(14, msgs.size());
+    }
+
+    @Test
+    public void testProcessNetlinkDumpMessages_filter() throws Exception {
+        final List<Short> filteredTypes = new ArrayList<>();
+        // Only accept IPv4 neighbors, by peeking at ndm_family.
+        final List<RtNetlinkNeighborMessage> msgs = processNeighborDump((type, payload) -> {
+            filteredTypes.add(type);
+            assertEquals(ByteOrder.nativeOrder(), payload.order());
+            return payload.get(payload.position()) == AF_INET;
+        });
+
+        // The NLMSG_DONE message is not passed to the filter.
+        assertEquals(14, filteredTypes.size());
+        for (short type : filteredTypes) {
+            assertEquals(NetlinkConstants.RTM_NEWNEIGH, type);
+        }
+        assertEquals(1, msgs.size());
+        assertEquals(AF_INET, msgs.get(0).getNdHeader().ndm_family);
+    }
+
+    @Test
+    public void testProcessNetlinkDumpMessages_errorAfterMessages() throws Exception {
+        // Messages received before the error are still processed, e.g. if the dump of routes
+        // done by getIpv6MulticastRoutes fails halfway.
+        final List<RtNetlinkNeighborMessage> msgs = new ArrayList<>();
+        try {
+            processDump(NETLINK_ROUTE, RtNetlinkNeighborMessage.class, null /* filter */,
+                    msgs::add, RtNetlinkNeighborMessageTest.RTM_GETNEIGH_RESPONSE,
+                    newErrorMessage(EINTR));
+            fail("Expected ErrnoException");
+        } catch (ErrnoException e) {
+            assertEquals(EINTR, e.errno);
+        }
+        assertEquals(14, msgs.size());
+    }
+
+    @Test
+    public void testProcessNetlinkDumpMessages_inetDiagErrorWithFilter() throws Exception {
+        // Socket dumps done by InetDiagMessage and SkDestroyListener fail immediately when the
+        // kernel rejects them, instead of waiting for the read to time out. The message filter
+        // is not applied to errors.
+        final List<InetDiagMessage> msgs = new ArrayList<>();
+        try {
+            processDump(NETLINK_INET_DIAG, InetDiagMessage.class, (type, payload) -> {
+                fail("Unexpected message type " + type);
+                return false;
+            }, msgs::add, newErrorMessage(EINVAL));
+            fail("Expected ErrnoException");
+        } catch (ErrnoException e) {
+            assertEquals(EINVAL, e.errno);
+        }
+        assertEquals(0, msgs.size());
+    }
+
     @Test @IgnoreUpTo(Build.VERSION_CODES.R) // getsockoptInt requires > R
     public void testNetlinkSocketForProto_defaultBufferSize() throws Exception {
         final FileDescriptor fd = NetlinkUtils.netlinkSocketForProto(NETLINK_ROUTE);
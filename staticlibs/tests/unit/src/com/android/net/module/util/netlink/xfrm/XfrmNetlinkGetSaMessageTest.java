@@ -58,6 +58,13 @@ public class XfrmNetlinkGetSaMessageTest {
         assertArrayEquals(EXPECTED_HEX, result);
     }
 
+    @Test
+    public void testEncodeDump() throws Exception {
+        // XFRM_MSG_GETSA with NLM_F_REQUEST | NLM_F_DUMP, and no payload.
+        final byte[] expected = HexDump.hexStringToByteArray("10000000120001030000000000000000");
+        assertArrayEquals(expected, XfrmNetlinkGetSaMessage.newXfrmNetlinkDumpSaMessage());
+    }
+
     @Test
     public void testDecode() throws Exception {
         final ByteBuffer buffer = ByteBuffer.wrap(EXPECTED_HEX);
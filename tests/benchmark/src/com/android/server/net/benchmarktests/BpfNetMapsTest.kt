@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.net.BpfNetMapsConstants.CURRENT_STATS_MAP_CONFIGURATION_KEY
+import android.net.BpfNetMapsConstants.DATA_SAVER_DISABLED
+import android.net.BpfNetMapsConstants.DATA_SAVER_ENABLED_KEY
+import android.net.BpfNetMapsConstants.STANDBY_MATCH
+import android.net.BpfNetMapsConstants.UID_RULES_CONFIGURATION_KEY
+import android.net.ConnectivityManager.FIREWALL_CHAIN_STANDBY
+import android.net.INetd
+import android.net.UidOwnerValue
+import android.os.Build
+import android.util.Log
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.net.module.util.Struct.S32
+import com.android.net.module.util.Struct.U32
+import com.android.net.module.util.Struct.U8
+import com.android.net.module.util.bpf.CookieTagMapKey
+import com.android.net.module.util.bpf.CookieTagMapValue
+import com.android.net.module.util.bpf.IngressDiscardKey
+import com.android.net.module.util.bpf.IngressDiscardValue
+import com.android.server.BpfNetMaps
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.TestBpfMap
+import kotlin.test.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import org.mockito.Mockito.mock
+
+// Process.FIRST_APPLICATION_UID
+private const val FIRST_UID = 10000
+private const val REPEAT_COUNT = 20
+private val TAG = BpfNetMapsTest::class.simpleName
+
+@RunWith(JUnit4::class)
+class BpfNetMapsTest {
+    @get:Rule
+    val ignoreRule = DevSdkIgnoreRule()
+
+    private val uidOwnerMap = TestBpfMap(S32::class.java, UidOwnerValue::class.java)
+    private lateinit var bpfNetMaps: BpfNetMaps
+
+    @Before
+    fun setUp() {
+        val configurationMap = TestBpfMap(S32::class.java, U32::class.java)
+        configurationMap.updateEntry(UID_RULES_CONFIGURATION_KEY, U32(0))
+        configurationMap.updateEntry(CURRENT_STATS_MAP_CONFIGURATION_KEY, U32(0))
+        val dataSaverEnabledMap = TestBpfMap(S32::class.java, U8::class.java)
+        dataSaverEnabledMap.updateEntry(DATA_SAVER_ENABLED_KEY, U8(DATA_SAVER_DISABLED))
+        BpfNetMaps.setConfigurationMapForTest(configurationMap)
+        BpfNetMaps.setUidOwnerMapForTest(uidOwnerMap)
+        BpfNetMaps.setUidPermissionMapForTest(TestBpfMap(S32::class.java, U8::class.java))
+        BpfNetMaps.setCookieTagMapForTest(
+            TestBpfMap(CookieTagMapKey::class.java, CookieTagMapValue::class.java))
+        BpfNetMaps.setDataSaverEnabledMapForTest(dataSaverEnabledMap)
+        BpfNetMaps.setIngressDiscardMapForTest(
+            TestBpfMap(IngressDiscardKey::class.java, IngressDiscardValue::class.java))
+        val context = InstrumentationRegistry.getInstrumentation().context
+        bpfNetMaps = BpfNetMaps(context, mock(INetd::class.java), BpfNetMaps.Dependencies())
+    }
+
+    private fun uidList(start: Int, count: Int) = IntArray(count) { FIRST_UID + start + it }
+
+    // Alternates between two overlapping lists of UIDs, so each replacement removes and adds
+    // count / 10 UIDs and rewrites the others, as happens when apps change standby buckets.
+    private fun doTestReplaceUidChain(count: Int) {
+        val listA = uidList(0, count)
+        val listB = uidList(count / 10, count).apply { shuffle() }
+        bpfNetMaps.replaceUidChain(FIREWALL_CHAIN_STANDBY, listA)
+
+        val start = System.nanoTime()
+        repeat(REPEAT_COUNT) {
+            bpfNetMaps.replaceUidChain(FIREWALL_CHAIN_STANDBY, listB)
+            bpfNetMaps.replaceUidChain(FIREWALL_CHAIN_STANDBY, listA)
+        }
+        val durationUs = (System.nanoTime() - start) / 1000 / (REPEAT_COUNT * 2)
+        Log.i(TAG, "replaceUidChain with $count uids: ${durationUs}us per call")
+
+        var matched = 0
+        uidOwnerMap.forEach { _, value -> if ((value.rule and STANDBY_MATCH) != 0L) matched++ }
+        assertEquals(count, matched)
+    }
+
+    @Test @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    fun testReplaceUidChain_1000Uids() {
+        doTestReplaceUidChain(1000)
+    }
+
+    @Test @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    fun testReplaceUidChain_10000Uids() {
+        doTestReplaceUidChain(10000)
+    }
+}
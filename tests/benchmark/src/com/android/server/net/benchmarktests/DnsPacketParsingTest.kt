@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.net.DnsResolver.TYPE_A
+import android.net.DnsResolver.TYPE_AAAA
+import android.util.Log
+import com.android.net.module.util.DnsPacket
+import com.android.net.module.util.DnsPacketReader
+import com.android.net.module.util.DnsSvcbPacket
+import com.android.net.module.util.HexDump
+import java.net.InetAddress
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+private const val REPEAT_COUNT = 20000
+private val TAG = DnsPacketParsingTest::class.simpleName
+
+// Responses with the same layout as captured answers from public resolvers: an A answer with a
+// CNAME, 12 addresses and an EDNS0 OPT record, an AAAA answer, and a DDR SVCB answer
+// (RFC 9462) with address hints and A/AAAA records in the additional section.
+private val A_RESPONSE = HexDump.hexStringToByteArray(
+        "1a2b81800001000d000000010377777707796f757475626503636f6d0000010001c00c0005000100000e03" +
+        "00160a796f75747562652d7569016c06676f6f676c65c018c02d000100010000012c00048efa480ec02d00" +
+        "0100010000012c00048efa482ec02d000100010000012c00048efa446ec02d000100010000012c00048efb" +
+        "200ec02d000100010000012c0004acd90e4ec02d000100010000012c00048efad94ec02d00010001000001" +
+        "2c00048efab00ec02d000100010000012c00048efabceec02d000100010000012c0004acd90c8ec02d0001" +
+        "00010000012c00048efabf4ec02d000100010000012c00048efabdcec02d000100010000012c00048efa48" +
+        "8e00002904d0000000000000")
+private val AAAA_RESPONSE = HexDump.hexStringToByteArray(
+        "3c4d818000010001000000010377777706676f6f676c6503636f6d00001c0001c00c001c00010000012c00" +
+        "102607f8b040050810000000000000200400002904d0000000000000")
+private val SVCB_RESPONSE = HexDump.hexStringToByteArray(
+        "5e6f81800001000200000004045f646e73087265736f6c76657204617270610000400001c00c0040000100" +
+        "015180004c000103646e7306676f6f676c65000001000403646f7400030002035500040008080808080808" +
+        "0404000600202001486048600000000000000000888820014860486000000000000000008844c00c004000" +
+        "01000151800062000203646e7306676f6f676c6500000100060268320268330003000201bb000400080808" +
+        "0808080804040006002020014860486000000000000000008888200148604860000000000000000088440007" +
+        "00102f646e732d71756572797b3f646e737d03646e7306676f6f676c650000010001000151800004080808" +
+        "0803646e7306676f6f676c6500000100010001518000040808040403646e7306676f6f676c6500001c0001" +
+        "0001518000102001486048600000000000000000888803646e7306676f6f676c6500001c00010001518000" +
+        "1020014860486000000000000000008844")
+
+// Extracts addresses the way DnsResolver did before it used DnsPacketReader.
+private class LegacyAddressAnswer(data: ByteArray) : DnsPacket(data) {
+    fun getAddresses(): List<InetAddress> {
+        val queryType = mRecords[DnsPacket.QDSECTION][0].nsType
+        return mRecords[DnsPacket.ANSECTION].filter {
+            it.nsType == queryType && (it.nsType == TYPE_A || it.nsType == TYPE_AAAA)
+        }.map { InetAddress.getByAddress(it.rr) }
+    }
+}
+
+private fun readAddresses(data: ByteArray): List<InetAddress> {
+    val reader = DnsPacketReader(data)
+    reader.next()
+    val queryType = reader.type
+    val addresses = ArrayList<InetAddress>()
+    while (reader.next()) {
+        if (reader.section != DnsPacket.ANSECTION) continue
+        if (reader.type != queryType) continue
+        addresses.add(InetAddress.getByAddress(reader.rdata))
+    }
+    return addresses
+}
+
+@RunWith(JUnit4::class)
+class DnsPacketParsingTest {
+    // Returns the average duration of the given block in nanoseconds.
+    private fun measureNs(block: () -> Unit): Long {
+        // Warm up, so that the first iterations do not run in the interpreter.
+        repeat(REPEAT_COUNT / 10) { block() }
+        val start = System.nanoTime()
+        repeat(REPEAT_COUNT) { block() }
+        return (System.nanoTime() - start) / REPEAT_COUNT
+    }
+
+    private fun compareAddressParsing(name: String, data: ByteArray, expectedCount: Int) {
+        assertEquals(expectedCount, LegacyAddressAnswer(data).getAddresses().size)
+        assertEquals(expectedCount, readAddresses(data).size)
+        val legacyNs = measureNs { LegacyAddressAnswer(data).getAddresses() }
+        val readerNs = measureNs { readAddresses(data) }
+        Log.i(TAG, "$name: DnsPacket ${legacyNs}ns, DnsPacketReader ${readerNs}ns")
+    }
+
+    @Test
+    fun testParseAResponse() {
+        compareAddressParsing("A response", A_RESPONSE, 12)
+    }
+
+    @Test
+    fun testParseAaaaResponse() {
+        compareAddressParsing("AAAA response", AAAA_RESPONSE, 1)
+    }
+
+    @Test
+    fun testParseSvcbResponse() {
+        assertEquals(853, DnsSvcbPacket.fromResponse(SVCB_RESPONSE).getPort("dot"))
+        val svcbNs = measureNs { DnsSvcbPacket.fromResponse(SVCB_RESPONSE).getPort("dot") }
+        // Only reads the fixed fields of the records, as a lower bound of the parsing cost.
+        val readerNs = measureNs {
+            val reader = DnsPacketReader(SVCB_RESPONSE)
+            while (reader.next()) {
+                if (reader.type == DnsPacket.TYPE_SVCB) reader.nameEquals("_dns.resolver.arpa")
+            }
+        }
+        Log.i(TAG, "SVCB response: DnsSvcbPacket ${svcbNs}ns, DnsPacketReader ${readerNs}ns")
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.os.Build
+import android.os.Process
+import android.system.ErrnoException
+import android.system.OsConstants.AF_INET
+import android.system.OsConstants.IPPROTO_TCP
+import android.system.OsConstants.NETLINK_INET_DIAG
+import android.util.Log
+import com.android.net.module.util.netlink.InetDiagBytecode
+import com.android.net.module.util.netlink.InetDiagMessage
+import com.android.net.module.util.netlink.NetlinkUtils
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import java.io.Closeable
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Assume.assumeTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+private const val SOCKET_COUNT = 10000
+// Each connection uses two sockets.
+private const val CONNECTION_COUNT = 2000
+private const val REPEAT_COUNT = 20
+// TCP_ESTABLISHED and TCP_LISTEN in include/net/tcp_states.h
+private const val TCP_ESTABLISHED = 1
+private const val TCP_LISTEN = 10
+private val TAG = InetDiagDumpTest::class.simpleName
+
+@RunWith(JUnit4::class)
+class InetDiagDumpTest {
+    @get:Rule
+    val ignoreRule = DevSdkIgnoreRule()
+
+    private val sockets = ArrayList<Closeable>()
+    private val loopback = InetAddress.getByName("127.0.0.1")
+
+    @After
+    fun tearDown() {
+        sockets.forEach { it.close() }
+    }
+
+    // Returns the number of sockets dumped and the average dump duration.
+    private fun dump(states: Int, filter: InetDiagBytecode?): Pair<Int, Long> {
+        val req = InetDiagMessage.inetDiagReqV2Dump(IPPROTO_TCP, AF_INET, states, filter)
+        var count = 0
+        val start = System.nanoTime()
+        repeat(REPEAT_COUNT) {
+            count = 0
+            NetlinkUtils.getAndProcessNetlinkDumpMessages(req, NETLINK_INET_DIAG,
+                    InetDiagMessage::class.java) { count++ }
+        }
+        return count to (System.nanoTime() - start) / 1000 / REPEAT_COUNT
+    }
+
+    private fun assumeCanDump() {
+        try {
+            dump(1 shl TCP_LISTEN, InetDiagMessage.makeNonLoopbackFilter())
+        } catch (e: ErrnoException) {
+            // Apps may not be allowed to use inet_diag sockets.
+            assumeTrue("Cannot dump with a filter: $e", false)
+        }
+    }
+
+    @Test @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    fun testDumpListeningSockets_filteredByAddress() {
+        assumeCanDump()
+
+        repeat(SOCKET_COUNT) { sockets.add(ServerSocket(0, 1, loopback)) }
+        // All of 127.0.0.0/8 is assigned to the loopback interface.
+        val target = InetAddress.getByName("127.0.0.2")
+        sockets.add(ServerSocket(0, 1, target))
+
+        val (unfilteredCount, unfilteredUs) = dump(1 shl TCP_LISTEN, null)
+        val (filteredCount, filteredUs) = dump(1 shl TCP_LISTEN,
+                InetDiagBytecode.localAddressInPrefix(target, 32))
+        Log.i(TAG, "Dumped $unfilteredCount listening sockets in ${unfilteredUs}us, " +
+                "$filteredCount with an address filter in ${filteredUs}us")
+        assertEquals(1, filteredCount)
+        assertTrue(unfilteredCount > SOCKET_COUNT)
+    }
+
+    @Test @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    fun testDestroyLiveTcpSockets_loopbackConnections() {
+        assumeCanDump()
+
+        val server = ServerSocket(0, CONNECTION_COUNT, loopback)
+        sockets.add(server)
+        repeat(CONNECTION_COUNT) {
+            sockets.add(Socket(loopback, server.localPort))
+            sockets.add(server.accept())
+        }
+
+        // The kernel filter drops the loopback connections from the dump, so none of them is
+        // parsed or destroyed. No SOCK_DESTROY request is sent, so the test does not need
+        // CAP_NET_ADMIN.
+        val start = System.nanoTime()
+        repeat(REPEAT_COUNT) {
+            InetDiagMessage.destroyLiveTcpSocketsByOwnerUids(setOf(Process.myUid()))
+        }
+        val destroyUs = (System.nanoTime() - start) / 1000 / REPEAT_COUNT
+
+        val (establishedCount, dumpUs) = dump(1 shl TCP_ESTABLISHED, null)
+        Log.i(TAG, "Destroy pass over $establishedCount established sockets took " +
+                "${destroyUs}us, dumping them all took ${dumpUs}us")
+        assertTrue(establishedCount >= 2 * CONNECTION_COUNT)
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.content.Context
+import android.net.INetd
+import android.net.IpSecAlgorithm
+import android.net.IpSecConfig
+import android.net.IpSecManager
+import android.net.IpSecTransform
+import android.os.Binder
+import android.util.Log
+import com.android.server.IpSecService
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import org.mockito.Answers.RETURNS_DEFAULTS
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.withSettings
+
+private const val THREAD_COUNT = 8
+private const val ITERATION_COUNT = 50
+// Typical duration of a netd call that modifies the kernel IPsec state.
+private const val NETD_LATENCY_MS = 1L
+private const val FIRST_APP_UID = 10000
+private const val LOCAL_ADDRESS = "192.0.2.1"
+private const val REMOTE_ADDRESS = "192.0.2.2"
+private val TAG = IpSecServiceConcurrencyTest::class.simpleName
+
+private val AUTH_ALGO = IpSecAlgorithm(IpSecAlgorithm.AUTH_HMAC_SHA256, ByteArray(32), 128)
+private val CRYPT_ALGO = IpSecAlgorithm(IpSecAlgorithm.CRYPT_AES_CBC, ByteArray(16))
+
+@RunWith(JUnit4::class)
+class IpSecServiceConcurrencyTest {
+    private val nextSpi = AtomicInteger(256)
+    private val deletedSaCount = AtomicInteger()
+
+    // A netd that takes some time to process each call, like the real one.
+    private val netd = mock(INetd::class.java, withSettings().stubOnly().defaultAnswer {
+        Thread.sleep(NETD_LATENCY_MS)
+        when (it.method.name) {
+            "ipSecAllocateSpi" -> nextSpi.getAndIncrement()
+            "ipSecDeleteSecurityAssociation" -> {
+                deletedSaCount.incrementAndGet()
+                null
+            }
+            else -> RETURNS_DEFAULTS.answer(it)
+        }
+    })
+
+    private fun newIpSecService(): IpSecService {
+        val deps = mock(IpSecService.Dependencies::class.java)
+        doReturn(netd).`when`(deps).getNetdInstance(any(Context::class.java))
+        return IpSecService(mock(Context::class.java), deps)
+    }
+
+    // Sets up and tears down transport mode SAs, like an IKE client rekeying.
+    private fun runSessions(service: IpSecService) {
+        repeat(ITERATION_COUNT) {
+            val binder = Binder()
+            val spi = service.allocateSecurityParameterIndex(REMOTE_ADDRESS, 0, binder)
+            assertEquals(IpSecManager.Status.OK, spi.status)
+            val config = IpSecConfig().apply {
+                mode = IpSecTransform.MODE_TRANSPORT
+                spiResourceId = spi.resourceId
+                sourceAddress = LOCAL_ADDRESS
+                destinationAddress = REMOTE_ADDRESS
+                authentication = AUTH_ALGO
+                encryption = CRYPT_ALGO
+            }
+            val transform = service.createTransform(config, binder, "com.android.test")
+            assertEquals(IpSecManager.Status.OK, transform.status)
+            service.deleteTransform(transform.resourceId)
+            service.releaseSecurityParameterIndex(spi.resourceId)
+        }
+    }
+
+    // Returns the duration of running the sessions of all threads in parallel, in milliseconds.
+    private fun measureMs(uidOfThread: (Int) -> Int): Long {
+        val service = newIpSecService()
+        val start = CountDownLatch(1)
+        val errors = ConcurrentLinkedQueue<Throwable>()
+        val threads = (0 until THREAD_COUNT).map { i ->
+            Thread {
+                // Binder.getCallingUid() returns the UID set here for the rest of the thread.
+                Binder.restoreCallingIdentity(
+                        (uidOfThread(i).toLong() shl 32) or Binder.getCallingPid().toLong())
+                start.await()
+                try {
+                    runSessions(service)
+                } catch (e: Throwable) {
+                    errors.add(e)
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        val startNs = System.nanoTime()
+        start.countDown()
+        threads.forEach { it.join() }
+        val durationMs = (System.nanoTime() - startNs) / 1_000_000
+        assertTrue(errors.isEmpty(), "Sessions failed: $errors")
+        return durationMs
+    }
+
+    @Test
+    fun testParallelSessions() {
+        // All threads use the same UID, so they are serialized on its lock like they were on
+        // the service-wide lock.
+        val sameUidMs = measureMs { FIRST_APP_UID }
+        val separateUidsMs = measureMs { FIRST_APP_UID + it }
+        Log.i(TAG, "$THREAD_COUNT threads x $ITERATION_COUNT sessions: " +
+                "same UID ${sameUidMs}ms, separate UIDs ${separateUidsMs}ms")
+        // Every SA was deleted exactly once, when its transform was deleted.
+        assertEquals(2 * THREAD_COUNT * ITERATION_COUNT, deletedSaCount.get())
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.net.MulticastRoutingConfig
+import android.net.MulticastRoutingConfig.FORWARD_WITH_MIN_SCOPE
+import android.os.Handler
+import android.os.HandlerThread
+import android.system.Os
+import android.system.OsConstants.AF_UNIX
+import android.system.OsConstants.SOCK_DGRAM
+import android.util.Log
+import com.android.net.module.util.netlink.RtNetlinkRouteMessage
+import com.android.net.module.util.structs.StructMf6cctl
+import com.android.net.module.util.structs.StructMif6ctl
+import com.android.net.module.util.structs.StructMrt6Msg
+import com.android.server.connectivity.MulticastRoutingCoordinatorService
+import com.android.testutils.visibleOnHandlerThread
+import java.io.FileDescriptor
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.net.MulticastSocket
+import kotlin.test.assertEquals
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+private const val UPSTREAM = "wlan0"
+private const val DOWNSTREAM = "eth0"
+private const val OTHER_DOWNSTREAM = "eth1"
+private const val SOURCE_COUNT = 200
+private const val GROUP_COUNT = 4
+private const val MFC_COUNT = SOURCE_COUNT * GROUP_COUNT
+private const val REPEAT_COUNT = 100
+private val TAG = MulticastRoutingReconcileTest::class.simpleName
+
+private fun minScopeConfig(minScope: Int) =
+        MulticastRoutingConfig.Builder(FORWARD_WITH_MIN_SCOPE, minScope).build()
+
+// Site-local (scope 5) groups, forwarded with a min scope of 4 but not with 6.
+private val FORWARDED = minScopeConfig(4)
+private val BLOCKED = minScopeConfig(6)
+
+// Counts the MRT6 socket operations instead of issuing them.
+private class FakeDependencies : MulticastRoutingCoordinatorService.Dependencies() {
+    private val readFd = FileDescriptor()
+    private val writeFd = FileDescriptor()
+    var mfcWriteCount = 0
+
+    init {
+        // The service reads upcalls from this socket, which never receives any.
+        Os.socketpair(AF_UNIX, SOCK_DGRAM, 0, readFd, writeFd)
+    }
+
+    override fun createMulticastRoutingSocket() = readFd
+    override fun createMulticastSocket() = MulticastSocket()
+    override fun setsockoptMrt6AddMif(fd: FileDescriptor, mif6ctl: StructMif6ctl) {}
+    override fun setsockoptMrt6DelMif(fd: FileDescriptor, virtualIfIndex: Int) {}
+    override fun setsockoptMrt6AddMfc(fd: FileDescriptor, mf6cctl: StructMf6cctl) {
+        mfcWriteCount++
+    }
+    override fun setsockoptMrt6DelMfc(fd: FileDescriptor, mf6cctl: StructMf6cctl) {
+        mfcWriteCount++
+    }
+    override fun getInterfaceIndex(ifName: String) =
+            listOf(UPSTREAM, DOWNSTREAM, OTHER_DOWNSTREAM).indexOf(ifName) + 1
+    override fun getIpv6MulticastRoutes() = emptyList<RtNetlinkRouteMessage>()
+
+    fun close() {
+        Os.close(readFd)
+        Os.close(writeFd)
+    }
+}
+
+@RunWith(JUnit4::class)
+class MulticastRoutingReconcileTest {
+    private val handlerThread = HandlerThread(TAG).apply { start() }
+    private val handler = Handler(handlerThread.looper)
+    private val deps = FakeDependencies()
+    private val service = MulticastRoutingCoordinatorService(handler, deps)
+
+    @After
+    fun tearDown() {
+        handlerThread.quitSafely()
+        handlerThread.join()
+        deps.close()
+    }
+
+    // Adds the MFCs of SOURCE_COUNT sources sending to GROUP_COUNT groups on the upstream.
+    private fun addMfcs() {
+        val vif = service.getVirtualInterfaceIndex(UPSTREAM)
+        for (s in 0 until SOURCE_COUNT) {
+            val src = InetAddress.getByName("2001:db8::" + Integer.toHexString(s + 1))
+            for (g in 0 until GROUP_COUNT) {
+                val dst = InetAddress.getByName("ff05::" + Integer.toHexString(g + 1))
+                service.handleMulticastNocacheUpcall(StructMrt6Msg(0 /* mbz */,
+                        StructMrt6Msg.MRT6MSG_NOCACHE, vif, src as Inet6Address,
+                        dst as Inet6Address))
+            }
+        }
+    }
+
+    // Returns the average duration of applying the configs alternately in microseconds, and the
+    // average number of MFC writes per config change.
+    private fun measureUs(iif: String, oif: String, first: MulticastRoutingConfig,
+            second: MulticastRoutingConfig): Pair<Long, Int> {
+        // Warm up, so that the first iterations do not run in the interpreter.
+        repeat(REPEAT_COUNT / 10) {
+            service.applyMulticastRoutingConfig(iif, oif, second)
+            service.applyMulticastRoutingConfig(iif, oif, first)
+        }
+        deps.mfcWriteCount = 0
+        val start = System.nanoTime()
+        repeat(REPEAT_COUNT) {
+            service.applyMulticastRoutingConfig(iif, oif, second)
+            service.applyMulticastRoutingConfig(iif, oif, first)
+        }
+        val durationUs = (System.nanoTime() - start) / 1000 / (2 * REPEAT_COUNT)
+        return durationUs to deps.mfcWriteCount / (2 * REPEAT_COUNT)
+    }
+
+    @Test
+    fun testApplyConfigWithManyMfcs() {
+        visibleOnHandlerThread(handler) {
+            service.applyMulticastRoutingConfig(UPSTREAM, DOWNSTREAM, FORWARDED)
+            addMfcs()
+            assertEquals(MFC_COUNT, deps.mfcWriteCount)
+
+            // Every MFC changes its outgoing interfaces.
+            val (changedUs, changedWrites) =
+                    measureUs(UPSTREAM, DOWNSTREAM, FORWARDED, BLOCKED)
+            // No MFC has the downstream as incoming interface.
+            val (unchangedUs, unchangedWrites) =
+                    measureUs(DOWNSTREAM, OTHER_DOWNSTREAM, FORWARDED, BLOCKED)
+            Log.i(TAG, "Applied config with $MFC_COUNT MFCs: all changed ${changedUs}us, " +
+                    "none changed ${unchangedUs}us")
+            assertEquals(MFC_COUNT, changedWrites)
+            assertEquals(0, unchangedWrites)
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.net.InetAddresses
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants.AF_UNIX
+import android.system.OsConstants.NETLINK_ROUTE
+import android.system.OsConstants.SOCK_DGRAM
+import android.util.Log
+import com.android.net.module.util.netlink.NetlinkConstants.NLMSG_DONE
+import com.android.net.module.util.netlink.NetlinkMessage
+import com.android.net.module.util.netlink.NetlinkUtils
+import com.android.net.module.util.netlink.RtNetlinkNeighborMessage
+import com.android.net.module.util.netlink.StructNdMsg
+import com.android.net.module.util.netlink.StructNlMsgHdr
+import java.io.FileDescriptor
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+private const val NEIGHBOR_COUNT = 10000
+private const val INTERFACE_COUNT = 100
+private const val TARGET_IFINDEX = 42
+// Size of the first replies of the kernel to a dump request.
+private const val DATAGRAM_SIZE = 8 * 1024
+private const val REPEAT_COUNT = 20
+private val TAG = NetlinkDumpTest::class.simpleName
+
+// Builds the replies to a neighbor dump request, split in datagrams like the kernel does.
+private fun buildNeighborDump(): List<ByteArray> {
+    val datagrams = ArrayList<ByteArray>()
+    var current = ByteBuffer.allocate(DATAGRAM_SIZE)
+    fun add(msg: ByteArray) {
+        if (current.remaining() < msg.size) {
+            datagrams.add(current.array().copyOf(current.position()))
+            current = ByteBuffer.allocate(DATAGRAM_SIZE)
+        }
+        current.put(msg)
+    }
+    for (i in 0 until NEIGHBOR_COUNT) {
+        val ip = InetAddresses.parseNumericAddress("2001:db8::" + Integer.toHexString(i + 1))
+        val mac = byteArrayOf(2, 0, 0, 0, (i shr 8).toByte(), i.toByte())
+        add(RtNetlinkNeighborMessage.newNewNeighborMessage(1 /* seqNo */, ip,
+                StructNdMsg.NUD_REACHABLE, 1 + i % INTERFACE_COUNT, mac))
+    }
+    val done = ByteBuffer.allocate(StructNlMsgHdr.STRUCT_SIZE + 4).order(ByteOrder.nativeOrder())
+    done.putInt(done.capacity())
+    done.putShort(NLMSG_DONE)
+    done.putShort(StructNlMsgHdr.NLM_F_MULTI)
+    done.putInt(1 /* seq */).putInt(0 /* pid */).putInt(0 /* error */)
+    add(done.array())
+    datagrams.add(current.array().copyOf(current.position()))
+    return datagrams
+}
+
+// Processes a dump the way NetlinkUtils did before it used a reusable direct buffer and
+// filters: a new buffer for each read, and every message parsed.
+private fun processLegacy(fd: FileDescriptor, consumer: (NetlinkMessage) -> Unit) {
+    while (true) {
+        val buf = NetlinkUtils.recvMessage(fd, NetlinkUtils.DEFAULT_RECV_BUFSIZE,
+                NetlinkUtils.IO_TIMEOUT_MS)
+        while (buf.remaining() > 0) {
+            val msg = NetlinkMessage.parse(buf, NETLINK_ROUTE) ?: return
+            if (msg.header.nlmsg_type == NLMSG_DONE) return
+            consumer(msg)
+        }
+    }
+}
+
+@RunWith(JUnit4::class)
+class NetlinkDumpTest {
+    private val dump = buildNeighborDump()
+
+    // Replays the dump through a socket pair, and returns the result of processing it.
+    private fun replay(process: (FileDescriptor) -> Int): Int {
+        val readFd = FileDescriptor()
+        val writeFd = FileDescriptor()
+        Os.socketpair(AF_UNIX, SOCK_DGRAM, 0, readFd, writeFd)
+        val writer = Thread {
+            try {
+                dump.forEach { Os.write(writeFd, it, 0, it.size) }
+            } catch (e: ErrnoException) {
+                // The reader failed and closed its socket.
+            }
+        }
+        try {
+            writer.start()
+            return process(readFd)
+        } finally {
+            Os.close(readFd)
+            writer.join()
+            Os.close(writeFd)
+        }
+    }
+
+    // Returns the number of processed messages and the average duration of a dump.
+    private fun measureUs(process: (FileDescriptor) -> Int): Pair<Int, Long> {
+        // Warm up, so that the first iterations do not run in the interpreter.
+        replay(process)
+        var count = 0
+        val start = System.nanoTime()
+        repeat(REPEAT_COUNT) { count = replay(process) }
+        return count to (System.nanoTime() - start) / 1000 / REPEAT_COUNT
+    }
+
+    @Test
+    fun testProcessNeighborDump() {
+        val (legacyCount, legacyUs) = measureUs { fd ->
+            var count = 0
+            processLegacy(fd) { count++ }
+            count
+        }
+        val (count, us) = measureUs { fd ->
+            var count = 0
+            NetlinkUtils.processNetlinkDumpMessages(fd, NETLINK_ROUTE,
+                    RtNetlinkNeighborMessage::class.java, null /* filter */) { count++ }
+            count
+        }
+        // Only parse the neighbors of one interface, by peeking at ndm_ifindex.
+        val filter = NetlinkUtils.NetlinkMessageFilter { _, payload ->
+            payload.getInt(payload.position() + 4) == TARGET_IFINDEX
+        }
+        val (filteredCount, filteredUs) = measureUs { fd ->
+            var count = 0
+            NetlinkUtils.processNetlinkDumpMessages(fd, NETLINK_ROUTE,
+                    RtNetlinkNeighborMessage::class.java, filter) { count++ }
+            count
+        }
+        Log.i(TAG, "Processed $NEIGHBOR_COUNT neighbors: legacy ${legacyUs}us, " +
+                "reused buffer ${us}us, filtered to $filteredCount in ${filteredUs}us")
+        assertEquals(NEIGHBOR_COUNT, legacyCount)
+        assertEquals(NEIGHBOR_COUNT, count)
+        assertEquals(NEIGHBOR_COUNT / INTERFACE_COUNT, filteredCount)
+    }
+}
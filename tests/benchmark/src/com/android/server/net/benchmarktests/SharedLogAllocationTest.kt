@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("DEPRECATION")
+
+package com.android.server.net.benchmarktests
+
+import android.os.Debug
+import android.util.Log
+import com.android.net.module.util.SharedLog
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.time.LocalDateTime
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+private const val MAX_RECORDS = 500
+private const val RECORD_COUNT = 10_000
+// Allocations per record tolerated for the overloads with primitive arguments, which do not
+// allocate: this only absorbs allocations that the runtime may make while counting.
+private const val MAX_LAZY_BYTES_PER_RECORD = 1L
+private val TAG = SharedLogAllocationTest::class.simpleName
+
+// Stores formatted lines with a timestamp, like SharedLog did before it used a ring buffer.
+private class LegacyLog(private val maxRecords: Int) {
+    private val log = ArrayDeque<String>(maxRecords)
+
+    @Synchronized
+    fun log(msg: String) {
+        if (log.size >= maxRecords) log.removeFirst()
+        log.addLast("${LocalDateTime.now()} - $msg")
+    }
+}
+
+@RunWith(JUnit4::class)
+class SharedLogAllocationTest {
+    // Returns the number of bytes allocated on this thread per call to the function, and the
+    // average duration of a call in nanoseconds. This is inline so that the argument of the
+    // function is not boxed.
+    private inline fun measure(function: (Int) -> Unit): Pair<Long, Long> {
+        // Warm up, so that the calls do not run in the interpreter and the buffers are full.
+        repeat(RECORD_COUNT) { function(it) }
+        Debug.resetThreadAllocSize()
+        Debug.startAllocCounting()
+        val start = System.nanoTime()
+        repeat(RECORD_COUNT) { function(it) }
+        val durationNs = (System.nanoTime() - start) / RECORD_COUNT
+        Debug.stopAllocCounting()
+        return Debug.getThreadAllocSize().toLong() / RECORD_COUNT to durationNs
+    }
+
+    @Test
+    fun testLogAllocations() {
+        val legacyLog = LegacyLog(MAX_RECORDS)
+        val sharedLog = SharedLog(MAX_RECORDS, TAG)
+        val (legacyBytes, legacyNs) = measure { legacyLog.log("Event $it on slot ${it % 4}") }
+        val (stringBytes, stringNs) = measure { sharedLog.log("Event $it on slot ${it % 4}") }
+        val (lazyBytes, lazyNs) = measure {
+            sharedLog.log("Event %d on slot %d", it.toLong(), it % 4L)
+        }
+        Log.i(TAG, "Logged $RECORD_COUNT records: legacy ${legacyBytes}B ${legacyNs}ns, " +
+                "message ${stringBytes}B ${stringNs}ns, lazy ${lazyBytes}B ${lazyNs}ns per record")
+        // Only the message is allocated when it is built by the caller, and nothing when the
+        // arguments are primitives.
+        assertTrue(stringBytes < legacyBytes, "$stringBytes >= $legacyBytes")
+        assertTrue(lazyBytes <= MAX_LAZY_BYTES_PER_RECORD,
+                "$lazyBytes > $MAX_LAZY_BYTES_PER_RECORD bytes per record")
+
+        // The records are only formatted on dump.
+        val sw = StringWriter()
+        PrintWriter(sw).use { sharedLog.dump(null /* fd */, it, null /* args */) }
+        val lines = sw.toString().lines().filter { it.isNotEmpty() }
+        assertEquals(MAX_RECORDS, lines.size)
+        val last = RECORD_COUNT - 1
+        assertTrue(lines.last().endsWith(" - Event $last on slot ${last % 4}"), lines.last())
+    }
+}
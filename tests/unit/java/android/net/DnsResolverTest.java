@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.DnsResolver.CLASS_IN;
+import static android.net.DnsResolver.ERROR_SYSTEM;
+import static android.net.DnsResolver.FLAG_EMPTY;
+import static android.net.DnsResolver.TYPE_A;
+import static android.net.DnsResolver.TYPE_AAAA;
+import static android.system.OsConstants.EBADMSG;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileDescriptor;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+public class DnsResolverTest {
+    private static final int TIMEOUT_MS = 1_000;
+    private static final int NO_CALLBACK_TIMEOUT_MS = 100;
+    private static final Network TEST_NETWORK = new Network(123);
+    private static final String TEST_DOMAIN = "www.example.com";
+    private static final byte[] TEST_ANSWER = new byte[] { 1, 2, 3, 4 };
+
+    private final DnsResolver.Dependencies mDeps = mock(DnsResolver.Dependencies.class);
+    private final DnsResolver mResolver = new DnsResolver(mDeps);
+    // Write ends of the pipes returned as query fds, in the order of the queries.
+    private final ArrayList<FileDescriptor> mWriteFds = new ArrayList<>();
+    private final ArrayList<HandlerThread> mThreads = new ArrayList<>();
+
+    private static class Result {
+        final byte[] mAnswer;
+        final DnsResolver.DnsException mError;
+        final Looper mLooper;
+
+        Result(byte[] answer, DnsResolver.DnsException error) {
+            mAnswer = answer;
+            mError = error;
+            mLooper = Looper.myLooper();
+        }
+    }
+
+    private static class TestCallback implements DnsResolver.Callback<byte[]> {
+        private final LinkedBlockingQueue<Result> mResults = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onAnswer(byte[] answer, int rcode) {
+            mResults.add(new Result(answer, null));
+        }
+
+        @Override
+        public void onError(DnsResolver.DnsException error) {
+            mResults.add(new Result(null, error));
+        }
+
+        Result expectResult() throws InterruptedException {
+            final Result result = mResults.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("No callback received", result);
+            return result;
+        }
+
+        byte[] expectAnswer() throws InterruptedException {
+            final Result result = expectResult();
+            assertNull(result.mError);
+            return result.mAnswer;
+        }
+
+        void assertNoCallback() throws InterruptedException {
+            assertNull(mResults.poll(NO_CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        doAnswer(inv -> {
+            final FileDescriptor[] pipe = Os.pipe();
+            mWriteFds.add(pipe[1]);
+            return pipe[0];
+        }).when(mDeps).resNetworkQuery(anyInt(), any(), anyInt(), anyInt(), anyInt());
+        doAnswer(inv -> {
+            Os.close(inv.getArgument(0));
+            return new DnsResolver.DnsResponse(TEST_ANSWER.clone(), 0);
+        }).when(mDeps).resNetworkResult(any());
+        doAnswer(inv -> {
+            Os.close(inv.getArgument(0));
+            return null;
+        }).when(mDeps).resNetworkCancel(any());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (FileDescriptor fd : mWriteFds) Os.close(fd);
+        for (HandlerThread thread : mThreads) {
+            thread.quitSafely();
+            thread.join();
+        }
+    }
+
+    private Handler startHandler(String name) {
+        final HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        mThreads.add(thread);
+        return new Handler(thread.getLooper());
+    }
+
+    private void sendAnswer(int queryIndex) throws ErrnoException {
+        Os.write(mWriteFds.get(queryIndex), new byte[] { 1 }, 0, 1);
+    }
+
+    private void rawQuery(Executor executor, CancellationSignal signal, TestCallback cb) {
+        mResolver.rawQuery(TEST_NETWORK, TEST_DOMAIN, CLASS_IN, TYPE_AAAA, FLAG_EMPTY, executor,
+                signal, cb);
+    }
+
+    @Test
+    public void testIdenticalQueriesMerged() throws Exception {
+        final Handler handler = startHandler("DnsResolverTest");
+        final TestCallback cb1 = new TestCallback();
+        final TestCallback cb2 = new TestCallback();
+        final TestCallback otherTypeCb = new TestCallback();
+        rawQuery(handler::post, null, cb1);
+        rawQuery(handler::post, null, cb2);
+        verify(mDeps).resNetworkQuery(TEST_NETWORK.getNetIdForResolv(), TEST_DOMAIN, CLASS_IN,
+                TYPE_AAAA, FLAG_EMPTY);
+
+        // A query of another type is not merged.
+        mResolver.rawQuery(TEST_NETWORK, TEST_DOMAIN, CLASS_IN, TYPE_A, FLAG_EMPTY,
+                handler::post, null, otherTypeCb);
+        verify(mDeps, times(2)).resNetworkQuery(anyInt(), any(), anyInt(), anyInt(), anyInt());
+
+        sendAnswer(0);
+        final byte[] answer1 = cb1.expectAnswer();
+        final byte[] answer2 = cb2.expectAnswer();
+        assertArrayEquals(TEST_ANSWER, answer1);
+        assertArrayEquals(TEST_ANSWER, answer2);
+        // Each caller gets its own copy of the answer.
+        assertNotSame(answer1, answer2);
+        verify(mDeps).resNetworkResult(any());
+        otherTypeCb.assertNoCallback();
+
+        // The query is no longer in flight, so an identical query is sent again.
+        final TestCallback cb3 = new TestCallback();
+        rawQuery(handler::post, null, cb3);
+        verify(mDeps, times(3)).resNetworkQuery(anyInt(), any(), anyInt(), anyInt(), anyInt());
+        sendAnswer(2);
+        assertArrayEquals(TEST_ANSWER, cb3.expectAnswer());
+        cb1.assertNoCallback();
+    }
+
+    @Test
+    public void testCancelOneWaiter() throws Exception {
+        final Handler handler = startHandler("DnsResolverTest");
+        final CancellationSignal signal1 = new CancellationSignal();
+        final CancellationSignal signal2 = new CancellationSignal();
+        final TestCallback cb1 = new TestCallback();
+        final TestCallback cb2 = new TestCallback();
+        rawQuery(handler::post, signal1, cb1);
+        rawQuery(handler::post, signal2, cb2);
+
+        signal1.cancel();
+        verify(mDeps, never()).resNetworkCancel(any());
+
+        sendAnswer(0);
+        assertArrayEquals(TEST_ANSWER, cb2.expectAnswer());
+        cb1.assertNoCallback();
+        verify(mDeps).resNetworkQuery(anyInt(), any(), anyInt(), anyInt(), anyInt());
+        verify(mDeps).resNetworkResult(any());
+        verify(mDeps, never()).resNetworkCancel(any());
+    }
+
+    @Test
+    public void testCancelAllWaiters() throws Exception {
+        final Handler handler = startHandler("DnsResolverTest");
+        final CancellationSignal signal1 = new CancellationSignal();
+        final CancellationSignal signal2 = new CancellationSignal();
+        final TestCallback cb1 = new TestCallback();
+        final TestCallback cb2 = new TestCallback();
+        rawQuery(handler::post, signal1, cb1);
+        rawQuery(handler::post, signal2, cb2);
+
+        signal1.cancel();
+        signal2.cancel();
+        verify(mDeps).resNetworkCancel(any());
+        cb1.assertNoCallback();
+        cb2.assertNoCallback();
+        verify(mDeps, never()).resNetworkResult(any());
+
+        // The cancelled query is no longer in flight, so an identical query is sent again.
+        final TestCallback cb3 = new TestCallback();
+        rawQuery(handler::post, null, cb3);
+        verify(mDeps, times(2)).resNetworkQuery(anyInt(), any(), anyInt(), anyInt(), anyInt());
+        sendAnswer(1);
+        assertArrayEquals(TEST_ANSWER, cb3.expectAnswer());
+    }
+
+    @Test
+    public void testErrorDeliveredToAllWaiters() throws Exception {
+        final ErrnoException error = new ErrnoException("resNetworkResult", EBADMSG);
+        doAnswer(inv -> {
+            Os.close(inv.getArgument(0));
+            throw error;
+        }).when(mDeps).resNetworkResult(any());
+        final Handler handler1 = startHandler("DnsResolverTest1");
+        final Handler handler2 = startHandler("DnsResolverTest2");
+        final TestCallback cb1 = new TestCallback();
+        final TestCallback cb2 = new TestCallback();
+        rawQuery(handler1::post, null, cb1);
+        rawQuery(handler2::post, null, cb2);
+
+        sendAnswer(0);
+        for (TestCallback cb : new TestCallback[] { cb1, cb2 }) {
+            final Result result = cb.expectResult();
+            assertNull(result.mAnswer);
+            assertEquals(ERROR_SYSTEM, result.mError.code);
+            assertEquals(error, result.mError.getCause());
+        }
+        verify(mDeps).resNetworkResult(any());
+    }
+
+    @Test
+    public void testCallbacksOnOwnExecutors() throws Exception {
+        final Handler[] handlers = new Handler[] {
+                startHandler("DnsResolverTest1"),
+                startHandler("DnsResolverTest2"),
+                startHandler("DnsResolverTest3"),
+        };
+        final TestCallback[] callbacks = new TestCallback[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            callbacks[i] = new TestCallback();
+            rawQuery(handlers[i]::post, null, callbacks[i]);
+        }
+
+        sendAnswer(0);
+        for (int i = 0; i < handlers.length; i++) {
+            final Result result = callbacks[i].expectResult();
+            assertArrayEquals(TEST_ANSWER, result.mAnswer);
+            assertEquals(handlers[i].getLooper(), result.mLooper);
+        }
+    }
+
+    @Test
+    public void testReaderCancelledBeforeRead() throws Exception {
+        // The answer is read on the executor of the first waiter. Hold the read until that
+        // waiter is cancelled, so that another waiter becomes the first one.
+        final LinkedBlockingQueue<Runnable> readerTasks = new LinkedBlockingQueue<>();
+        final Handler handler2 = startHandler("DnsResolverTest2");
+        final Handler handler3 = startHandler("DnsResolverTest3");
+        final CancellationSignal signal1 = new CancellationSignal();
+        final TestCallback cb1 = new TestCallback();
+        final TestCallback cb2 = new TestCallback();
+        final TestCallback cb3 = new TestCallback();
+        rawQuery(readerTasks::add, signal1, cb1);
+        rawQuery(handler2::post, null, cb2);
+        rawQuery(handler3::post, null, cb3);
+
+        sendAnswer(0);
+        final Runnable read = readerTasks.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("The answer was not read on the executor of the first waiter", read);
+        signal1.cancel();
+        read.run();
+
+        // The remaining waiters are called on their own executors, not on the reader's.
+        final Result result2 = cb2.expectResult();
+        assertArrayEquals(TEST_ANSWER, result2.mAnswer);
+        assertEquals(handler2.getLooper(), result2.mLooper);
+        final Result result3 = cb3.expectResult();
+        assertArrayEquals(TEST_ANSWER, result3.mAnswer);
+        assertEquals(handler3.getLooper(), result3.mLooper);
+        cb1.assertNoCallback();
+        assertTrue(readerTasks.isEmpty());
+        verify(mDeps, never()).resNetworkCancel(any());
+    }
+}
@@ -22,6 +22,8 @@ import static libcore.junit.util.compat.CoreCompatChangeRule.EnableCompatChanges
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.doReturn;
@@ -54,6 +56,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.List;
 import java.time.Duration;
 
@@ -159,6 +162,26 @@ public class NsdManagerTest {
         doTestRegisterService();
     }
 
+    @Test
+    public void testOffloadImageUpdatedOnExecutor() throws Exception {
+        final OffloadEngine engine = mock(OffloadEngine.class);
+        final ArrayList<Runnable> tasks = new ArrayList<>();
+        mManager.registerOffloadEngine("wlan0", OffloadEngine.OFFLOAD_TYPE_REPLY,
+                0L /* offloadCapability */, tasks::add, engine);
+        final ArgumentCaptor<IOffloadEngine> cbCaptor =
+                ArgumentCaptor.forClass(IOffloadEngine.class);
+        verify(mServiceConn).registerOffloadEngine(eq("wlan0"), cbCaptor.capture(), anyLong(),
+                anyLong());
+
+        final byte[] image = new byte[] { 1, 2, 3 };
+        cbCaptor.getValue().onOffloadImageUpdated(image);
+        // The image is only passed to the engine on its executor.
+        verify(engine, never()).onOffloadImageUpdated(any());
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        verify(engine).onOffloadImageUpdated(image);
+    }
+
     private void verifyDaemonStarted(boolean targetSdkPreS) throws Exception {
         if (targetSdkPreS && !SdkLevel.isAtLeastV()) {
             verify(mServiceConn).startDaemon();
@@ -62,8 +62,11 @@ import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeFalse;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
@@ -78,6 +81,7 @@ import android.os.ServiceSpecificException;
 import android.system.ErrnoException;
 import android.util.ArraySet;
 import android.util.IndentingPrintWriter;
+import android.util.SparseIntArray;
 
 import androidx.test.filters.SmallTest;
 
@@ -147,7 +151,7 @@ public final class BpfNetMapsTest {
     @Mock Context mContext;
     private final IBpfMap<S32, U32> mConfigurationMap = new TestBpfMap<>(S32.class, U32.class);
     private final IBpfMap<S32, UidOwnerValue> mUidOwnerMap =
-            new TestBpfMap<>(S32.class, UidOwnerValue.class);
+            spy(new TestBpfMap<>(S32.class, UidOwnerValue.class));
     private final IBpfMap<S32, U8> mUidPermissionMap = new TestBpfMap<>(S32.class, U8.class);
     private final IBpfMap<CookieTagMapKey, CookieTagMapValue> mCookieTagMap =
             spy(new TestBpfMap<>(CookieTagMapKey.class, CookieTagMapValue.class));
@@ -843,6 +847,38 @@ public final class BpfNetMapsTest {
         checkUidOwnerValue(uid1, NULL_IIF, match1 | DOZABLE_MATCH);
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    public void testReplaceUidChainSkipsUnchangedEntries() throws Exception {
+        final int uid0 = TEST_UIDS[0];
+        final int uid1 = TEST_UIDS[1];
+        final int uid2 = TEST_UID;
+        mUidOwnerMap.updateEntry(new S32(uid0), new UidOwnerValue(NO_IIF, DOZABLE_MATCH));
+        mUidOwnerMap.updateEntry(new S32(uid1),
+                new UidOwnerValue(NO_IIF, DOZABLE_MATCH | POWERSAVE_MATCH));
+        clearInvocations(mUidOwnerMap);
+
+        mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, new int[]{uid1, uid2, uid2});
+
+        checkUidOwnerValue(uid0, NO_IIF, 0 /* match */);
+        checkUidOwnerValue(uid1, NO_IIF, DOZABLE_MATCH | POWERSAVE_MATCH);
+        checkUidOwnerValue(uid2, NO_IIF, DOZABLE_MATCH);
+        // uid1 already has the match, so only uid0 and uid2 are written.
+        verify(mUidOwnerMap).deleteEntry(new S32(uid0));
+        verify(mUidOwnerMap).updateEntry(eq(new S32(uid2)), any());
+        verify(mUidOwnerMap, never()).updateEntry(eq(new S32(uid1)), any());
+
+        // Replacing the chain with the same UIDs does not write the map.
+        clearInvocations(mUidOwnerMap);
+        mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, new int[]{uid2, uid1});
+        verify(mUidOwnerMap, never()).updateEntry(any(), any());
+        verify(mUidOwnerMap, never()).deleteEntry(any());
+
+        // The first call wrote 2 of the 3 entries a full rewrite would write (removing uid0, adding
+        // uid1 and uid2), the second call wrote none of 2.
+        assertDumpContains(getDump(), "replaceUidChain: 2 map writes, 3 writes saved");
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.S_V2)
     public void testReplaceUidChainInvalidChain() {
@@ -971,6 +1007,70 @@ public final class BpfNetMapsTest {
         assertNull(mUidPermissionMap.getValue(new S32(uid1)));
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    public void testSetNetPermForUidsBulk() throws Exception {
+        final int uid0 = TEST_UIDS[0];
+        final int uid1 = TEST_UIDS[1];
+        final int uid2 = TEST_UID;
+        mUidPermissionMap.updateEntry(new S32(uid2), new U8((short) PERMISSION_NONE));
+
+        final SparseIntArray uidsPermissions = new SparseIntArray();
+        uidsPermissions.put(uid0, PERMISSION_UPDATE_DEVICE_STATS);
+        uidsPermissions.put(uid1, PERMISSION_NONE);
+        uidsPermissions.put(uid2, PERMISSION_INTERNET);
+        mBpfNetMaps.setNetPermForUids(uidsPermissions);
+
+        assertEquals(PERMISSION_UPDATE_DEVICE_STATS, mUidPermissionMap.getValue(new S32(uid0)).val);
+        assertEquals(PERMISSION_NONE, mUidPermissionMap.getValue(new S32(uid1)).val);
+        assertNull(mUidPermissionMap.getValue(new S32(uid2)));
+
+        uidsPermissions.clear();
+        uidsPermissions.put(uid0, PERMISSION_UNINSTALLED);
+        uidsPermissions.put(uid2, PERMISSION_UPDATE_DEVICE_STATS);
+        mBpfNetMaps.setNetPermForUids(uidsPermissions);
+
+        assertNull(mUidPermissionMap.getValue(new S32(uid0)));
+        assertEquals(PERMISSION_NONE, mUidPermissionMap.getValue(new S32(uid1)).val);
+        assertEquals(PERMISSION_UPDATE_DEVICE_STATS, mUidPermissionMap.getValue(new S32(uid2)).val);
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    public void testSetNetPermForUidsSkipsUnchangedEntries() throws Exception {
+        final IBpfMap<S32, U8> uidPermissionMap = spy(new TestBpfMap<>(S32.class, U8.class));
+        BpfNetMaps.setUidPermissionMapForTest(uidPermissionMap);
+        final int uid0 = TEST_UIDS[0];
+        final int uid1 = TEST_UIDS[1];
+
+        final SparseIntArray uidsPermissions = new SparseIntArray();
+        uidsPermissions.put(uid0, PERMISSION_INTERNET);
+        uidsPermissions.put(uid1, PERMISSION_NONE);
+        mBpfNetMaps.setNetPermForUids(uidsPermissions);
+        // uid0 has no entry in the map, so there is nothing to delete.
+        verify(uidPermissionMap, never()).deleteEntry(new S32(uid0));
+        verify(uidPermissionMap).updateEntry(new S32(uid1), new U8((short) PERMISSION_NONE));
+
+        // Sending the same permissions again does not write the map.
+        mBpfNetMaps.setNetPermForUids(uidsPermissions);
+        mBpfNetMaps.setNetPermForUids(PERMISSION_NONE, new int[]{uid1});
+        verify(uidPermissionMap, never()).deleteEntry(any());
+        verify(uidPermissionMap).updateEntry(any(), any());
+    }
+
+    @Test
+    @IgnoreAfter(Build.VERSION_CODES.S_V2)
+    public void testSetNetPermForUidsBulkBeforeT() throws Exception {
+        final SparseIntArray uidsPermissions = new SparseIntArray();
+        uidsPermissions.put(TEST_UIDS[0], PERMISSION_NONE);
+        uidsPermissions.put(TEST_UIDS[1], PERMISSION_NONE);
+        uidsPermissions.put(TEST_UID, PERMISSION_INTERNET);
+        mBpfNetMaps.setNetPermForUids(uidsPermissions);
+
+        verify(mNetd).trafficSetNetPermForUids(PERMISSION_NONE, TEST_UIDS);
+        verify(mNetd).trafficSetNetPermForUids(PERMISSION_INTERNET, new int[]{TEST_UID});
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.S_V2)
     public void testSwapActiveStatsMap() throws Exception {
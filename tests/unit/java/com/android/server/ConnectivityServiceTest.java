@@ -370,6 +370,9 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.security.Credentials;
+import android.service.ConnectivityServiceDumpProto;
+import android.service.ConnectivityServiceNetworkProto;
+import android.service.ConnectivityServiceRequestProto;
 import android.system.Os;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
@@ -382,6 +385,7 @@ import android.util.Log;
 import android.util.Pair;
 import android.util.Range;
 import android.util.SparseArray;
+import android.util.proto.ProtoInputStream;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
@@ -411,6 +415,7 @@ import com.android.server.connectivity.ApplicationSelfCertifiedNetworkCapabiliti
 import com.android.server.connectivity.AutomaticOnOffKeepaliveTracker;
 import com.android.server.connectivity.CarrierPrivilegeAuthenticator;
 import com.android.server.connectivity.ClatCoordinator;
+import com.android.server.connectivity.ConnectionOwnerUidLookup;
 import com.android.server.connectivity.ConnectivityFlags;
 import com.android.server.connectivity.ConnectivityResources;
 import com.android.server.connectivity.KeepaliveTracker;
@@ -456,6 +461,7 @@ import org.mockito.Spy;
 import org.mockito.stubbing.Answer;
 
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -2116,15 +2122,17 @@ public class ConnectivityServiceTest {
         private Integer mConnectionOwnerUid = null;
 
         @Override
-        public int getConnectionOwnerUid(final int protocol, final InetSocketAddress local,
-                final InetSocketAddress remote) {
-            synchronized (this) {
-                if (null != mConnectionOwnerUid) return mConnectionOwnerUid;
-                return super.getConnectionOwnerUid(protocol, local, remote);
-            }
+        public ConnectionOwnerUidLookup makeConnectionOwnerUidLookup() {
+            final ConnectionOwnerUidLookup lookup = mock(ConnectionOwnerUidLookup.class);
+            doAnswer(inv -> {
+                synchronized (this) {
+                    return null != mConnectionOwnerUid ? mConnectionOwnerUid : INVALID_UID;
+                }
+            }).when(lookup).getConnectionOwnerUid(anyInt(), any(), any());
+            return lookup;
         }
 
-        // Pass null to get the production implementation of getConnectionOwnerUid
+        // Pass null to simulate connections that are not found
         public void setConnectionOwnerUid(final Integer uid) {
             synchronized (this) {
                 mConnectionOwnerUid = uid;
@@ -10973,24 +10981,34 @@ public class ConnectivityServiceTest {
         doReturn(getClatInterfaceConfigParcel(myIpv4)).when(mMockNetd)
                 .interfaceGetCfg(CLAT_MOBILE_IFNAME);
         // Change the NAT64 prefix without first removing it.
-        // Expect clatd to be stopped and started with the new prefix.
         mService.mResolverUnsolEventCallback.onNat64PrefixEvent(makeNat64PrefixEvent(
                 cellNetId, PREFIX_OPERATION_ADDED, kOtherNat64PrefixString, 96));
-        networkCallback.expect(LINK_PROPERTIES_CHANGED, mCellAgent,
-                cb -> cb.getLp().getStackedLinks().size() == 0);
-        verifyClatdStop(null /* inOrder */, MOBILE_IFNAME);
-        assertRoutesRemoved(cellNetId, stackedDefault);
-        verify(mMockNetd, times(1)).networkRemoveInterface(cellNetId, CLAT_MOBILE_IFNAME);
-
-        verifyClatdStart(null /* inOrder */, MOBILE_IFNAME, cellNetId,
-                kOtherNat64Prefix.toString());
-        networkCallback.expect(LINK_PROPERTIES_CHANGED, mCellAgent,
-                cb -> cb.getLp().getNat64Prefix().equals(kOtherNat64Prefix));
-        netdUnsolicitedListener.onInterfaceLinkStateChanged(CLAT_MOBILE_IFNAME, true);
-        networkCallback.expect(LINK_PROPERTIES_CHANGED, mCellAgent,
-                cb -> cb.getLp().getStackedLinks().size() == 1);
-        assertRoutesAdded(cellNetId, stackedDefault);
-        verify(mMockNetd, times(1)).networkAddInterface(cellNetId, CLAT_MOBILE_IFNAME);
+        if (mDeps.isAtLeastT()) {
+            // Expect clatd to be reconfigured in place, keeping the stacked link and its routes.
+            networkCallback.expect(LINK_PROPERTIES_CHANGED, mCellAgent,
+                    cb -> cb.getLp().getNat64Prefix().equals(kOtherNat64Prefix)
+                            && cb.getLp().getStackedLinks().size() == 1);
+            verify(mClatCoordinator).clatReconfigure(cellNetId, kOtherNat64Prefix);
+            verifyNeverClatdStop(null /* inOrder */, MOBILE_IFNAME);
+            verify(mMockNetd, never()).networkRemoveInterface(cellNetId, CLAT_MOBILE_IFNAME);
+        } else {
+            // Expect clatd to be stopped and started with the new prefix.
+            networkCallback.expect(LINK_PROPERTIES_CHANGED, mCellAgent,
+                    cb -> cb.getLp().getStackedLinks().size() == 0);
+            verifyClatdStop(null /* inOrder */, MOBILE_IFNAME);
+            assertRoutesRemoved(cellNetId, stackedDefault);
+            verify(mMockNetd, times(1)).networkRemoveInterface(cellNetId, CLAT_MOBILE_IFNAME);
+
+            verifyClatdStart(null /* inOrder */, MOBILE_IFNAME, cellNetId,
+                    kOtherNat64Prefix.toString());
+            networkCallback.expect(LINK_PROPERTIES_CHANGED, mCellAgent,
+                    cb -> cb.getLp().getNat64Prefix().equals(kOtherNat64Prefix));
+            netdUnsolicitedListener.onInterfaceLinkStateChanged(CLAT_MOBILE_IFNAME, true);
+            networkCallback.expect(LINK_PROPERTIES_CHANGED, mCellAgent,
+                    cb -> cb.getLp().getStackedLinks().size() == 1);
+            assertRoutesAdded(cellNetId, stackedDefault);
+            verify(mMockNetd, times(1)).networkAddInterface(cellNetId, CLAT_MOBILE_IFNAME);
+        }
         reset(mMockNetd);
         reset(mClatCoordinator);
 
@@ -11259,28 +11277,40 @@ public class ConnectivityServiceTest {
         inOrder.verify(mMockDnsResolver, never()).startPrefix64Discovery(netId);
         inOrder.verify(mMockDnsResolver, never()).setPrefix64(eq(netId), anyString());
 
-        // If the RA prefix changes, clatd is restarted and prefix discovery is stopped.
+        // If the RA prefix changes, clatd is reconfigured (restarted before T) and prefix
+        // discovery is stopped.
         lp.setNat64Prefix(pref64FromRa);
         mWiFiAgent.sendLinkProperties(lp);
         expectNat64PrefixChange(callback, mWiFiAgent, pref64FromRa);
-        verifyClatdStop(inOrder, iface);
+        if (mDeps.isAtLeastT()) {
+            inOrder.verify(mClatCoordinator).clatReconfigure(netId, pref64FromRa);
+        } else {
+            verifyClatdStop(inOrder, iface);
+        }
         inOrder.verify(mMockDnsResolver).stopPrefix64Discovery(netId);
 
         // Stopping prefix discovery results in a prefix removed notification.
         mService.mResolverUnsolEventCallback.onNat64PrefixEvent(
                 makeNat64PrefixEvent(netId, PREFIX_OPERATION_REMOVED, pref64FromDnsStr, 96));
 
-        verifyClatdStart(inOrder, iface, netId, pref64FromRa.toString());
+        if (!mDeps.isAtLeastT()) {
+            verifyClatdStart(inOrder, iface, netId, pref64FromRa.toString());
+        }
         inOrder.verify(mMockDnsResolver).setPrefix64(netId, pref64FromRa.toString());
         inOrder.verify(mMockDnsResolver, never()).startPrefix64Discovery(netId);
 
-        // If the RA prefix changes, clatd is restarted and prefix discovery is not started.
+        // If the RA prefix changes, clatd is reconfigured (restarted before T) and prefix
+        // discovery is not started.
         lp.setNat64Prefix(newPref64FromRa);
         mWiFiAgent.sendLinkProperties(lp);
         expectNat64PrefixChange(callback, mWiFiAgent, newPref64FromRa);
-        verifyClatdStop(inOrder, iface);
-        inOrder.verify(mMockDnsResolver).setPrefix64(netId, "");
-        verifyClatdStart(inOrder, iface, netId, newPref64FromRa.toString());
+        if (mDeps.isAtLeastT()) {
+            inOrder.verify(mClatCoordinator).clatReconfigure(netId, newPref64FromRa);
+        } else {
+            verifyClatdStop(inOrder, iface);
+            inOrder.verify(mMockDnsResolver).setPrefix64(netId, "");
+            verifyClatdStart(inOrder, iface, netId, newPref64FromRa.toString());
+        }
         inOrder.verify(mMockDnsResolver).setPrefix64(netId, newPref64FromRa.toString());
         inOrder.verify(mMockDnsResolver, never()).stopPrefix64Discovery(netId);
         inOrder.verify(mMockDnsResolver, never()).startPrefix64Discovery(netId);
@@ -13413,6 +13443,118 @@ public class ConnectivityServiceTest {
         verifyDump(invalidDumpArgs);
     }
 
+    private String dumpToString(String[] args) {
+        final StringWriter stringWriter = new StringWriter();
+        mService.dump(new FileDescriptor(), new PrintWriter(stringWriter), args);
+        return stringWriter.toString();
+    }
+
+    @Test
+    public void testDumpNetworksAndRequests() throws Exception {
+        mServiceContext.setPermission(DUMP, PERMISSION_GRANTED);
+        final NetworkRequest wifiRequest = new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_WIFI).build();
+        final TestNetworkCallback wifiCallback = new TestNetworkCallback();
+        mCm.requestNetwork(wifiRequest, wifiCallback);
+        mWiFiAgent = new TestNetworkAgentWrapper(TRANSPORT_WIFI);
+        mWiFiAgent.connect(false /* validated */);
+        wifiCallback.expectAvailableCallbacksUnvalidated(mWiFiAgent);
+        waitForIdle();
+
+        // The snapshot of the network is formatted like the network itself.
+        final String networks = dumpToString(new String[] {"networks"});
+        assertTrue(networks.startsWith(
+                mService.getNetworkAgentInfoForNetwork(mWiFiAgent.getNetwork()).toString()));
+        assertTrue(networks.contains("Requests: REQUEST:"));
+
+        final StringBuilder expectedRequests = new StringBuilder();
+        for (NetworkRequestInfo nri : mService.requestsSortedById()) {
+            expectedRequests.append(nri).append("\n");
+        }
+        assertEquals(expectedRequests.toString(), dumpToString(new String[] {"requests"}));
+
+        final int wifiNetId = mWiFiAgent.getNetwork().getNetId();
+        final NetworkAgentInfo wifiNai =
+                mService.getNetworkAgentInfoForNetwork(mWiFiAgent.getNetwork());
+        final Set<Integer> expectedNetworkRequestIds = new ArraySet<>();
+        for (int i = 0; i < wifiNai.numNetworkRequests(); i++) {
+            expectedNetworkRequestIds.add(wifiNai.requestAt(i).requestId);
+        }
+        final Set<Integer> expectedRequestIds = new ArraySet<>();
+        for (NetworkRequestInfo nri : mService.requestsSortedById()) {
+            for (NetworkRequest nr : nri.mRequests) {
+                expectedRequestIds.add(nr.requestId);
+            }
+        }
+
+        int defaultNetId = 0;
+        final List<Integer> netIds = new ArrayList<>();
+        final Set<Integer> transports = new ArraySet<>();
+        final Set<Integer> networkRequestIds = new ArraySet<>();
+        final Set<Integer> requestIds = new ArraySet<>();
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        try (ParcelFileDescriptor readFd = pipe[0]) {
+            try (ParcelFileDescriptor writeFd = pipe[1]) {
+                mService.dump(writeFd.getFileDescriptor(), new PrintWriter(new StringWriter()),
+                        new String[] {"--proto"});
+            }
+            try (FileInputStream in = new FileInputStream(readFd.getFileDescriptor())) {
+                final ProtoInputStream proto = new ProtoInputStream(in);
+                while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+                    switch (proto.getFieldNumber()) {
+                        case (int) ConnectivityServiceDumpProto.DEFAULT_NET_ID:
+                            defaultNetId = proto.readInt(
+                                    ConnectivityServiceDumpProto.DEFAULT_NET_ID);
+                            break;
+                        case (int) ConnectivityServiceDumpProto.NETWORKS:
+                            final long network = proto.start(ConnectivityServiceDumpProto.NETWORKS);
+                            readNetworkProto(proto, netIds, transports, networkRequestIds);
+                            proto.end(network);
+                            break;
+                        case (int) ConnectivityServiceDumpProto.REQUESTS:
+                            final long request = proto.start(ConnectivityServiceDumpProto.REQUESTS);
+                            readRequestProto(proto, requestIds);
+                            proto.end(request);
+                            break;
+                    }
+                }
+            }
+        }
+        assertEquals(wifiNetId, defaultNetId);
+        assertEquals(List.of(wifiNetId), netIds);
+        assertEquals(Set.of(TRANSPORT_WIFI), transports);
+        assertEquals(expectedNetworkRequestIds, networkRequestIds);
+        assertEquals(expectedRequestIds, requestIds);
+
+        mCm.unregisterNetworkCallback(wifiCallback);
+    }
+
+    private static void readNetworkProto(ProtoInputStream proto, List<Integer> netIds,
+            Set<Integer> transports, Set<Integer> requestIds) throws Exception {
+        while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+            switch (proto.getFieldNumber()) {
+                case (int) ConnectivityServiceNetworkProto.NET_ID:
+                    netIds.add(proto.readInt(ConnectivityServiceNetworkProto.NET_ID));
+                    break;
+                case (int) ConnectivityServiceNetworkProto.TRANSPORTS:
+                    transports.add(proto.readInt(ConnectivityServiceNetworkProto.TRANSPORTS));
+                    break;
+                case (int) ConnectivityServiceNetworkProto.REQUEST_IDS:
+                    requestIds.add(proto.readInt(ConnectivityServiceNetworkProto.REQUEST_IDS));
+                    break;
+            }
+        }
+    }
+
+    private static void readRequestProto(ProtoInputStream proto, Set<Integer> requestIds)
+            throws Exception {
+        while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+            if (proto.getFieldNumber() == (int) ConnectivityServiceRequestProto.REQUEST_IDS) {
+                requestIds.add(proto.readInt(ConnectivityServiceRequestProto.REQUEST_IDS));
+            }
+        }
+    }
+
     @Test
     public void testRequestsSortedByIdSortsCorrectly() {
         final TestNetworkCallback genericNetworkCallback = new TestNetworkCallback();
@@ -60,6 +60,7 @@ import android.net.IpSecMigrateInfoParcel;
 import android.net.IpSecSpiResponse;
 import android.net.IpSecTransform;
 import android.net.IpSecTransformResponse;
+import android.net.IpSecTransformState;
 import android.net.IpSecTunnelInterfaceResponse;
 import android.net.IpSecUdpEncapResponse;
 import android.net.LinkAddress;
@@ -72,6 +73,7 @@ import android.os.RemoteException;
 import android.system.Os;
 import android.test.mock.MockContext;
 import android.util.ArraySet;
+import android.util.Pair;
 
 import androidx.test.filters.SmallTest;
 
@@ -91,6 +93,8 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /** Unit tests for {@link IpSecService}. */
@@ -538,6 +542,45 @@ public class IpSecServiceParameterizedTest {
                         eq(Integer.toUnsignedLong(TEST_SPI)));
     }
 
+    @Test
+    public void getTransformStates() throws Exception {
+        XfrmNetlinkNewSaMessage mockXfrmNewSaMsg = mock(XfrmNetlinkNewSaMessage.class);
+        when(mockXfrmNewSaMsg.getBitmap()).thenReturn(new byte[512]);
+        final Pair<InetAddress, Long> saId = new Pair<>(
+                InetAddresses.parseNumericAddress(mDestinationAddr),
+                Integer.toUnsignedLong(TEST_SPI));
+        when(mMockXfrmCtrl.ipSecDumpSa(any())).thenReturn(Map.of(saId, mockXfrmNewSaMsg));
+
+        // Create transform
+        IpSecConfig ipSecConfig = new IpSecConfig();
+        addDefaultSpisAndRemoteAddrToIpSecConfig(ipSecConfig);
+        addAuthAndCryptToIpSecConfig(ipSecConfig);
+
+        IpSecTransformResponse createTransformResp =
+                mIpSecService.createTransform(ipSecConfig, new Binder(), BLESSED_PACKAGE);
+        assertEquals(IpSecManager.Status.OK, createTransformResp.status);
+
+        // Get transform states
+        final List<IpSecTransformState> states =
+                mIpSecService.getTransformStates(new int[] {createTransformResp.resourceId});
+
+        // Verifications
+        assertEquals(1, states.size());
+        assertNotNull(states.get(0));
+        verify(mMockXfrmCtrl).ipSecDumpSa(eq(Set.of(saId)));
+        verify(mMockXfrmCtrl, never()).ipSecGetSa(any(), anyLong());
+    }
+
+    @Test
+    public void getTransformStatesNullTransformIds() throws Exception {
+        try {
+            mIpSecService.getTransformStates(null);
+            fail("Expected NullPointerException for null transformIds");
+        } catch (NullPointerException expected) {
+        }
+        verify(mMockXfrmCtrl, never()).ipSecDumpSa(any());
+    }
+
     @Test
     public void testReleaseOwnedSpi() throws Exception {
         IpSecConfig ipSecConfig = new IpSecConfig();
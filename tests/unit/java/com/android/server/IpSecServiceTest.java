@@ -22,6 +22,7 @@ import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.SOCK_DGRAM;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -31,6 +32,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -41,12 +43,15 @@ import android.net.IpSecAlgorithm;
 import android.net.IpSecConfig;
 import android.net.IpSecManager;
 import android.net.IpSecSpiResponse;
+import android.net.IpSecTransform;
+import android.net.IpSecTransformResponse;
 import android.net.IpSecUdpEncapResponse;
 import android.os.Binder;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructStat;
@@ -71,6 +76,11 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for {@link IpSecService}. */
 @SmallTest
@@ -83,6 +93,13 @@ public class IpSecServiceTest {
     private static final int MAX_NUM_SPIS = 100;
     private static final int TEST_UDP_ENCAP_INVALID_PORT = 100;
     private static final int TEST_UDP_ENCAP_PORT_OUT_RANGE = 200000;
+    private static final int TEST_UID_1 = Process.FIRST_APPLICATION_UID + 1;
+    private static final int TEST_UID_2 = Process.FIRST_APPLICATION_UID + 2;
+    private static final String TEST_ADDRESS_1 = "192.0.2.1";
+    private static final String TEST_ADDRESS_2 = "192.0.2.2";
+    private static final int TEST_THREAD_COUNT = 4;
+    private static final int TEST_ITERATION_COUNT = 50;
+    private static final long TIMEOUT_MS = 5000;
 
     private static final InetAddress INADDR_ANY;
 
@@ -670,4 +687,211 @@ public class IpSecServiceTest {
         mIpSecService.releaseNetId(releasedNetId);
         assertEquals(releasedNetId, mIpSecService.reserveNetId());
     }
+
+    // Runs the callable with Binder.getCallingUid() returning the given UID.
+    private static <T> T callAsUid(int uid, Callable<T> callable) throws Exception {
+        final long token = Binder.clearCallingIdentity();
+        Binder.restoreCallingIdentity(((long) uid << 32) | Binder.getCallingPid());
+        try {
+            return callable.call();
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    private IpSecService.UserRecord getUserRecord(int uid) throws Exception {
+        return callAsUid(uid, () -> mIpSecService.mUserResourceTracker.getUserRecord(uid));
+    }
+
+    private IpSecSpiResponse allocateSpi(String address) throws Exception {
+        final IpSecSpiResponse spiResp =
+                mIpSecService.allocateSecurityParameterIndex(address, 0 /* spi */, new Binder());
+        assertEquals(IpSecManager.Status.OK, spiResp.status);
+        return spiResp;
+    }
+
+    // Waits until the thread waits for a lock held by another thread.
+    private static void waitForBlocked(Thread thread) {
+        final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (thread.getState() != Thread.State.BLOCKED) {
+            assertTrue("Thread is " + thread.getState(),
+                    SystemClock.elapsedRealtime() < deadline);
+            Thread.yield();
+        }
+    }
+
+    /** Runs the callable as the given UID on its own thread. */
+    private static class UidThread<T> extends Thread {
+        private final int mUid;
+        private final Callable<T> mCallable;
+        private volatile T mResult;
+        private volatile Throwable mError;
+
+        UidThread(int uid, Callable<T> callable) {
+            mUid = uid;
+            mCallable = callable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mResult = callAsUid(mUid, mCallable);
+            } catch (Throwable e) {
+                mError = e;
+            }
+        }
+
+        T getResult() throws Exception {
+            join(TIMEOUT_MS);
+            assertFalse("Thread did not finish", isAlive());
+            if (mError != null) throw new AssertionError(mError);
+            return mResult;
+        }
+    }
+
+    @Test
+    public void testNetdCallDoesNotBlockOtherUsers() throws Exception {
+        final CountDownLatch netdCalled = new CountDownLatch(1);
+        final CountDownLatch netdUnblocked = new CountDownLatch(1);
+        when(mMockNetd.ipSecAllocateSpi(anyInt(), anyString(), eq(TEST_ADDRESS_1), anyInt()))
+                .thenAnswer(invocation -> {
+                    netdCalled.countDown();
+                    assertTrue(netdUnblocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                    return DROID_SPI;
+                });
+        when(mMockNetd.ipSecAllocateSpi(anyInt(), anyString(), eq(TEST_ADDRESS_2), anyInt()))
+                .thenReturn(DROID_SPI + 1);
+
+        final UidThread<IpSecSpiResponse> slowThread =
+                new UidThread<>(TEST_UID_1, () -> allocateSpi(TEST_ADDRESS_1));
+        slowThread.start();
+        assertTrue(netdCalled.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Calls of the same user wait for the netd call to finish, calls of other users do not.
+        final UidThread<IpSecSpiResponse> sameUserThread =
+                new UidThread<>(TEST_UID_1, () -> allocateSpi(TEST_ADDRESS_2));
+        sameUserThread.start();
+        waitForBlocked(sameUserThread);
+        final IpSecSpiResponse otherUserSpi =
+                callAsUid(TEST_UID_2, () -> allocateSpi(TEST_ADDRESS_2));
+        assertTrue(slowThread.isAlive());
+        assertTrue(sameUserThread.isAlive());
+
+        netdUnblocked.countDown();
+        final IpSecSpiResponse slowSpi = slowThread.getResult();
+        final IpSecSpiResponse sameUserSpi = sameUserThread.getResult();
+        assertEquals(3, Set.of(slowSpi.resourceId, sameUserSpi.resourceId,
+                otherUserSpi.resourceId).size());
+        assertEquals(2, getUserRecord(TEST_UID_1).mSpiQuotaTracker.mCurrent);
+        assertEquals(1, getUserRecord(TEST_UID_2).mSpiQuotaTracker.mCurrent);
+    }
+
+    @Test
+    public void testConcurrentAllocateAndReleaseOnDifferentUsers() throws Exception {
+        when(mMockNetd.ipSecAllocateSpi(anyInt(), anyString(), anyString(), anyInt()))
+                .thenReturn(DROID_SPI);
+        final Set<Integer> resourceIds = ConcurrentHashMap.newKeySet();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<UidThread<Void>> threads = new ArrayList<>();
+        for (int i = 0; i < TEST_THREAD_COUNT; i++) {
+            threads.add(new UidThread<>(TEST_UID_1 + i, () -> {
+                start.await();
+                for (int j = 0; j < TEST_ITERATION_COUNT; j++) {
+                    final IpSecSpiResponse spiResp = allocateSpi(TEST_ADDRESS_1);
+                    resourceIds.add(spiResp.resourceId);
+                    mIpSecService.releaseSecurityParameterIndex(spiResp.resourceId);
+                }
+                return null;
+            }));
+        }
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (UidThread<Void> thread : threads) thread.getResult();
+
+        // Resource IDs are unique across users.
+        assertEquals(TEST_THREAD_COUNT * TEST_ITERATION_COUNT, resourceIds.size());
+        for (int i = 0; i < TEST_THREAD_COUNT; i++) {
+            final IpSecService.UserRecord userRecord = getUserRecord(TEST_UID_1 + i);
+            assertEquals(0, userRecord.mSpiQuotaTracker.mCurrent);
+            assertEquals(0, userRecord.mSpiRecords.mArray.size());
+            verify(mMockNetd, times(TEST_ITERATION_COUNT)).ipSecDeleteSecurityAssociation(
+                    eq(TEST_UID_1 + i), anyString(), anyString(), anyInt(), anyInt(), anyInt(),
+                    anyInt());
+        }
+    }
+
+    @Test
+    public void testConcurrentTransformsOfSameUser() throws Exception {
+        when(mMockNetd.ipSecAllocateSpi(anyInt(), anyString(), anyString(), anyInt()))
+                .thenReturn(DROID_SPI);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<UidThread<Void>> threads = new ArrayList<>();
+        for (int i = 0; i < TEST_THREAD_COUNT; i++) {
+            threads.add(new UidThread<>(TEST_UID_1, () -> {
+                start.await();
+                for (int j = 0; j < TEST_ITERATION_COUNT; j++) {
+                    final IpSecSpiResponse spiResp = allocateSpi(TEST_ADDRESS_2);
+                    final IpSecConfig config = new IpSecConfig();
+                    config.setMode(IpSecTransform.MODE_TRANSPORT);
+                    config.setSpiResourceId(spiResp.resourceId);
+                    config.setSourceAddress(TEST_ADDRESS_1);
+                    config.setDestinationAddress(TEST_ADDRESS_2);
+                    config.setAuthentication(AUTH_ALGO);
+                    config.setEncryption(CRYPT_ALGO);
+                    final IpSecTransformResponse transformResp =
+                            mIpSecService.createTransform(config, new Binder(), "com.android.test");
+                    assertEquals(IpSecManager.Status.OK, transformResp.status);
+                    // The transform holds a reference to the SPI, which is only freed with it.
+                    mIpSecService.releaseSecurityParameterIndex(spiResp.resourceId);
+                    mIpSecService.deleteTransform(transformResp.resourceId);
+                }
+                return null;
+            }));
+        }
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (UidThread<Void> thread : threads) thread.getResult();
+
+        final IpSecService.UserRecord userRecord = getUserRecord(TEST_UID_1);
+        assertEquals(0, userRecord.mSpiQuotaTracker.mCurrent);
+        assertEquals(0, userRecord.mTransformQuotaTracker.mCurrent);
+        assertEquals(0, userRecord.mSpiRecords.mArray.size());
+        assertEquals(0, userRecord.mTransformRecords.mArray.size());
+        // The SAs are deleted with the transforms, not again with the SPIs they own.
+        verify(mMockNetd, times(TEST_THREAD_COUNT * TEST_ITERATION_COUNT))
+                .ipSecDeleteSecurityAssociation(eq(TEST_UID_1), anyString(), anyString(),
+                        anyInt(), anyInt(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testRefcountedResourceLockedByUserRecord() throws Exception {
+        when(mMockNetd.ipSecAllocateSpi(anyInt(), anyString(), anyString(), anyInt()))
+                .thenReturn(DROID_SPI);
+        final IpSecSpiResponse spiResp = callAsUid(TEST_UID_1, () -> allocateSpi(TEST_ADDRESS_1));
+        final IpSecService.UserRecord userRecord = getUserRecord(TEST_UID_1);
+        final IpSecService.RefcountedResource refcountedRecord =
+                userRecord.mSpiRecords.getRefcountedResourceOrThrow(spiResp.resourceId);
+
+        final UidThread<Void> binderDeathThread = new UidThread<>(TEST_UID_1, () -> {
+            refcountedRecord.binderDied();
+            return null;
+        });
+        synchronized (userRecord) {
+            binderDeathThread.start();
+            waitForBlocked(binderDeathThread);
+            assertEquals(1, refcountedRecord.mRefCount);
+
+            // Resources of other users use the lock of their own UserRecord.
+            callAsUid(TEST_UID_2, () -> {
+                final IpSecSpiResponse otherSpi = allocateSpi(TEST_ADDRESS_2);
+                mIpSecService.releaseSecurityParameterIndex(otherSpi.resourceId);
+                return null;
+            });
+        }
+        binderDeathThread.getResult();
+
+        assertEquals(-1, refcountedRecord.mRefCount);
+        assertEquals(0, userRecord.mSpiQuotaTracker.mCurrent);
+        assertEquals(0, userRecord.mSpiRecords.mArray.size());
+    }
 }
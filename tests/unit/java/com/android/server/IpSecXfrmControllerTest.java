@@ -16,12 +16,15 @@
 
 package com.android.server;
 
+import static com.android.net.module.util.netlink.NetlinkConstants.NLMSG_DONE;
+import static com.android.net.module.util.netlink.StructNlMsgHdr.NLM_F_MULTI;
 import static com.android.server.IpSecXfrmControllerTestHex.XFRM_ESRCH_HEX;
 import static com.android.server.IpSecXfrmControllerTestHex.XFRM_NEW_SA_HEX;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -32,6 +35,8 @@ import static org.mockito.Mockito.when;
 
 import android.net.InetAddresses;
 import android.system.ErrnoException;
+import android.util.ArraySet;
+import android.util.Pair;
 
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
@@ -48,9 +53,13 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -126,4 +135,46 @@ public class IpSecXfrmControllerTest {
             assertEquals(ESRCH, e.errno);
         }
     }
+
+    @Test
+    public void testIpSecDumpSa() throws Exception {
+        final int doneMsgLen = 20;
+        final ByteBuffer buff = ByteBuffer.allocate(XFRM_NEW_SA_HEX.length + doneMsgLen);
+        buff.order(ByteOrder.nativeOrder());
+        buff.put(XFRM_NEW_SA_HEX);
+        buff.putInt(doneMsgLen).putShort(NLMSG_DONE).putShort(NLM_F_MULTI);
+        buff.putInt(0 /* seq */).putInt(0 /* pid */).putInt(0 /* error */);
+        buff.flip();
+        when(mMockDeps.recvMessage(any(FileDescriptor.class))).thenReturn(buff);
+
+        final Pair<InetAddress, Long> saId = new Pair<>(DEST_ADDRESS, SPI);
+        final Pair<InetAddress, Long> otherSaId = new Pair<>(DEST_ADDRESS, SPI + 1);
+        final Set<Pair<InetAddress, Long>> saIds = new ArraySet<>(Arrays.asList(saId, otherSaId));
+        final Map<Pair<InetAddress, Long>, XfrmNetlinkNewSaMessage> result =
+                mXfrmController.ipSecDumpSa(saIds);
+
+        // Verifications
+        assertEquals(1, result.size());
+        assertEquals(SPI, result.get(saId).getXfrmUsersaInfo().getSpi());
+
+        verify(mMockDeps).sendMessage(eq(mDummyNetlinkSocket), mRequestByteArrayCaptor.capture());
+        final byte[] request = mRequestByteArrayCaptor.getValue();
+        assertEquals(16, request.length);
+
+        // The socket is kept after a complete dump.
+        assertNotNull(mXfrmController.getNetlinkSocket());
+    }
+
+    @Test
+    public void testIpSecDumpSa_interrupted() throws Exception {
+        when(mMockDeps.recvMessage(any(FileDescriptor.class)))
+                .thenThrow(new InterruptedIOException());
+
+        assertThrows(InterruptedIOException.class,
+                () -> mXfrmController.ipSecDumpSa(Set.of(new Pair<>(DEST_ADDRESS, SPI))));
+
+        // The rest of the dump must not be read as the response to the next request.
+        verify(mMockDeps).releaseNetlinkSocket(eq(mDummyNetlinkSocket));
+        assertNull(mXfrmController.getNetlinkSocket());
+    }
 }
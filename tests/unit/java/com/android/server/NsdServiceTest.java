@@ -1955,6 +1955,48 @@ public class NsdServiceTest {
         client.unregisterOffloadEngine(offloadEngine);
     }
 
+    @Test
+    @EnableCompatChanges(ENABLE_PLATFORM_MDNS_BACKEND)
+    @DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.TIRAMISU)
+    public void testOffloadImageOnlySentToReplyEngines() {
+        setMdnsAdvertiserEnabled();
+        final NsdManager client = connectClient(mService);
+        final ArgumentCaptor<MdnsAdvertiser.AdvertiserCallback> cbCaptor =
+                ArgumentCaptor.forClass(MdnsAdvertiser.AdvertiserCallback.class);
+        verify(mDeps).makeMdnsAdvertiser(any(), any(), cbCaptor.capture(), any(), any(), any());
+        final MdnsAdvertiser.AdvertiserCallback cb = cbCaptor.getValue();
+
+        // An engine registering while an image exists receives it.
+        final byte[] image = new byte[] { 1, 2, 3 };
+        doReturn(image).when(mAdvertiser).getInterfaceOffloadImage("iface1");
+        final OffloadEngine replyEngine = mock(OffloadEngine.class);
+        final OffloadEngine filterEngine = mock(OffloadEngine.class);
+        final OffloadEngine otherIfaceEngine = mock(OffloadEngine.class);
+        client.registerOffloadEngine("iface1", OffloadEngine.OFFLOAD_TYPE_REPLY,
+                OffloadEngine.OFFLOAD_CAPABILITY_BYPASS_MULTICAST_LOCK, Runnable::run,
+                replyEngine);
+        client.registerOffloadEngine("iface1", OffloadEngine.OFFLOAD_TYPE_FILTER_REPLIES,
+                0 /* offloadCapability */, Runnable::run, filterEngine);
+        client.registerOffloadEngine("iface2", OffloadEngine.OFFLOAD_TYPE_REPLY,
+                0 /* offloadCapability */, Runnable::run, otherIfaceEngine);
+        waitForIdle();
+        verify(replyEngine, timeout(TIMEOUT_MS)).onOffloadImageUpdated(image);
+
+        // Updates are only sent to the engines of the interface that reply to queries.
+        final byte[] newImage = new byte[] { 4, 5 };
+        cb.onOffloadImageUpdate("iface1", newImage);
+        verify(replyEngine, timeout(TIMEOUT_MS)).onOffloadImageUpdated(newImage);
+        cb.onOffloadImageUpdate("iface1", new byte[0]);
+        verify(replyEngine, timeout(TIMEOUT_MS)).onOffloadImageUpdated(new byte[0]);
+        waitForIdle();
+        verify(filterEngine, never()).onOffloadImageUpdated(any());
+        verify(otherIfaceEngine, never()).onOffloadImageUpdated(any());
+
+        client.unregisterOffloadEngine(replyEngine);
+        client.unregisterOffloadEngine(filterEngine);
+        client.unregisterOffloadEngine(otherIfaceEngine);
+    }
+
 
     private void waitForIdle() {
         HandlerUtils.waitForIdle(mHandler, TIMEOUT_MS);
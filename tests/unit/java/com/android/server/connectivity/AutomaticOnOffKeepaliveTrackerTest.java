@@ -31,6 +31,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.longThat;
 import static org.mockito.Mockito.clearInvocations;
@@ -41,6 +42,7 @@ import static org.mockito.Mockito.ignoreStubs;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -426,6 +428,50 @@ public class AutomaticOnOffKeepaliveTrackerTest {
                 () -> mAOOKeepaliveTracker.isAnyTcpSocketConnected(TEST_NETID)));
     }
 
+    @Test
+    public void testIsAnyTcpSocketConnected_fwmarkIsCached() throws Exception {
+        setupResponseWithSocketExisting();
+        assertTrue(visibleOnHandlerThread(mTestHandler,
+                () -> mAOOKeepaliveTracker.isAnyTcpSocketConnected(TEST_NETID)));
+        setupResponseWithSocketExisting();
+        assertTrue(visibleOnHandlerThread(mTestHandler,
+                () -> mAOOKeepaliveTracker.isAnyTcpSocketConnected(TEST_NETID)));
+        verify(mNetd, times(1)).getFwmarkForNetwork(TEST_NETID);
+    }
+
+    @Test
+    public void testIsAnyTcpSocketConnected_fwmarkClearedOnDisconnect() throws Exception {
+        setupResponseWithSocketExisting();
+        assertTrue(visibleOnHandlerThread(mTestHandler,
+                () -> mAOOKeepaliveTracker.isAnyTcpSocketConnected(TEST_NETID)));
+        visibleOnHandlerThread(mTestHandler, () -> mAOOKeepaliveTracker.handleStopAllKeepalives(
+                mNai, SocketKeepalive.ERROR_INVALID_NETWORK));
+        setupResponseWithSocketExisting();
+        assertTrue(visibleOnHandlerThread(mTestHandler,
+                () -> mAOOKeepaliveTracker.isAnyTcpSocketConnected(TEST_NETID)));
+        verify(mNetd, times(2)).getFwmarkForNetwork(TEST_NETID);
+    }
+
+    @Test
+    public void testMonitorAutomaticKeepalive_probeIsShared() throws Exception {
+        final TestKeepaliveInfo testInfo = doStartNattKeepalive();
+        checkAndProcessKeepaliveStart(testInfo.kpd);
+        final AutomaticOnOffKeepalive autoKi = getAutoKiForBinder(testInfo.binder);
+        assertNotNull(autoKi);
+
+        // Keepalives monitored back to back share the same probe.
+        setupResponseWithSocketExisting();
+        visibleOnHandlerThread(mTestHandler, () -> {
+            mAOOKeepaliveTracker.handleMonitorAutomaticKeepalive(autoKi, TEST_NETID);
+            mAOOKeepaliveTracker.handleMonitorAutomaticKeepalive(autoKi, TEST_NETID);
+        });
+        verify(mDependencies, times(1)).createConnectedNetlinkSocket();
+
+        // The results are discarded once the handler processes the next messages.
+        doResumeKeepalive(autoKi);
+        verify(mDependencies, times(2)).createConnectedNetlinkSocket();
+    }
+
     private void triggerEventKeepalive(int slot, int reason) {
         visibleOnHandlerThread(
                 mTestHandler,
@@ -952,6 +998,112 @@ public class AutomaticOnOffKeepaliveTrackerTest {
         verifyNoMoreInteractions(ignoreStubs(testInfo2.socketKeepaliveCallback));
     }
 
+    private void setKeepaliveTrackerElapsedRealtime(long time) {
+        doReturn(time).when(mKeepaliveTrackerDeps).getElapsedRealtime();
+    }
+
+    // Returns the runnable that starts an aligned keepalive, checking that it was posted with
+    // the given delay. The mock dependencies do not run it.
+    private Runnable getPendingStart(long delayMs) {
+        final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mKeepaliveTrackerDeps).postDelayed(eq(mTestHandler), runnableCaptor.capture(),
+                eq(delayMs));
+        return runnableCaptor.getValue();
+    }
+
+    @Test
+    public void testAlignNattKeepalive() throws Exception {
+        doReturn(20).when(mKeepaliveTrackerDeps).getAlignmentTolerancePercent();
+        setKeepaliveTrackerElapsedRealtime(0L);
+        final TestKeepaliveInfo testInfo1 = doStartNattKeepalive();
+        checkAndProcessKeepaliveStart(testInfo1.kpd);
+
+        // The anchor next sends a packet in 1s. Starting the second keepalive then with the same
+        // interval sends its first packet 1s later than requested, which is within the tolerance
+        // of 20% of the interval.
+        setKeepaliveTrackerElapsedRealtime(9_000L);
+        final int intervalSec = 2 * TEST_KEEPALIVE_INTERVAL_SEC;
+        final TestKeepaliveInfo testInfo2 = doStartNattKeepalive(intervalSec);
+        final int slot2 = TEST_SLOT + 1;
+        verify(mNai).onAddNattKeepalivePacketFilter(slot2, (NattKeepalivePacketData) testInfo2.kpd);
+        verify(mNai, never()).onStartNattSocketKeepalive(eq(slot2), anyInt(), any());
+        verify(mKeepaliveStatsTracker).onAlignKeepalive(new Network(TEST_NETID), slot2,
+                TEST_SLOT, intervalSec);
+
+        final Runnable pendingStart = getPendingStart(1_000L);
+        visibleOnHandlerThread(mTestHandler, pendingStart::run);
+        verify(mNai).onStartNattSocketKeepalive(slot2, intervalSec,
+                (NattKeepalivePacketData) testInfo2.kpd);
+        triggerEventKeepalive(slot2, SocketKeepalive.SUCCESS);
+        verify(testInfo2.socketKeepaliveCallback).onStarted();
+
+        doStopKeepalive(getAutoKiForBinder(testInfo2.binder));
+        checkAndProcessKeepaliveStop(slot2);
+        verify(testInfo2.socketKeepaliveCallback).onStopped();
+    }
+
+    @Test
+    public void testAlignNattKeepalive_outsideTolerance() throws Exception {
+        doReturn(20).when(mKeepaliveTrackerDeps).getAlignmentTolerancePercent();
+        setKeepaliveTrackerElapsedRealtime(0L);
+        final TestKeepaliveInfo testInfo1 = doStartNattKeepalive();
+        checkAndProcessKeepaliveStart(testInfo1.kpd);
+
+        // Waiting 5s for the anchor would send the first packet 5s late, more than 20% of 20s.
+        setKeepaliveTrackerElapsedRealtime(5_000L);
+        final int intervalSec = 2 * TEST_KEEPALIVE_INTERVAL_SEC;
+        final TestKeepaliveInfo testInfo2 = doStartNattKeepalive(intervalSec);
+        verify(mNai).onStartNattSocketKeepalive(TEST_SLOT + 1, intervalSec,
+                (NattKeepalivePacketData) testInfo2.kpd);
+        verify(mKeepaliveTrackerDeps, never()).postDelayed(any(), any(), anyLong());
+        verify(mKeepaliveStatsTracker, never()).onAlignKeepalive(any(), anyInt(), anyInt(),
+                anyInt());
+    }
+
+    @Test
+    public void testAlignNattKeepalive_delayTooLong() throws Exception {
+        doReturn(50).when(mKeepaliveTrackerDeps).getAlignmentTolerancePercent();
+        setKeepaliveTrackerElapsedRealtime(0L);
+        final TestKeepaliveInfo testInfo1 = doStartNattKeepalive();
+        checkAndProcessKeepaliveStart(testInfo1.kpd);
+
+        // Waiting 9s for the anchor is within 50% of 60s, but would delay onStarted too much.
+        setKeepaliveTrackerElapsedRealtime(1_000L);
+        final int intervalSec = 6 * TEST_KEEPALIVE_INTERVAL_SEC;
+        final TestKeepaliveInfo testInfo2 = doStartNattKeepalive(intervalSec);
+        verify(mNai).onStartNattSocketKeepalive(TEST_SLOT + 1, intervalSec,
+                (NattKeepalivePacketData) testInfo2.kpd);
+        verify(mKeepaliveTrackerDeps, never()).postDelayed(any(), any(), anyLong());
+        verify(mKeepaliveStatsTracker, never()).onAlignKeepalive(any(), anyInt(), anyInt(),
+                anyInt());
+    }
+
+    @Test
+    public void testAlignNattKeepalive_stopWhilePending() throws Exception {
+        doReturn(20).when(mKeepaliveTrackerDeps).getAlignmentTolerancePercent();
+        setKeepaliveTrackerElapsedRealtime(0L);
+        final TestKeepaliveInfo testInfo1 = doStartNattKeepalive();
+        checkAndProcessKeepaliveStart(testInfo1.kpd);
+
+        // The anchor next sends a packet in 1s, so the second keepalive waits for it.
+        setKeepaliveTrackerElapsedRealtime(9_000L);
+        final TestKeepaliveInfo testInfo2 =
+                doStartNattKeepalive(2 * TEST_KEEPALIVE_INTERVAL_SEC);
+        final int slot2 = TEST_SLOT + 1;
+        final Runnable pendingStart = getPendingStart(1_000L);
+        doStopKeepalive(getAutoKiForBinder(testInfo2.binder));
+
+        // The hardware was never asked to start or stop the keepalive, which is stopped without
+        // waiting for an event.
+        verify(mKeepaliveTrackerDeps).removeCallbacks(mTestHandler, pendingStart);
+        verify(mNai).onRemoveKeepalivePacketFilter(slot2);
+        verify(testInfo2.socketKeepaliveCallback).onStopped();
+        assertNull(getAutoKiForBinder(testInfo2.binder));
+        verify(mNai, never()).onStartNattSocketKeepalive(eq(slot2), anyInt(), any());
+        verify(mNai, never()).onStopSocketKeepalive(slot2);
+        verify(testInfo2.socketKeepaliveCallback, never()).onStarted();
+    }
+
     @Test
     public void testStartTcpKeepalive_fdInitiatedStop() throws Exception {
         final InetAddress srcAddress = InetAddress.getByAddress(
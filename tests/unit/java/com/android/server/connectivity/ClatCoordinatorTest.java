@@ -28,9 +28,13 @@ import static com.android.server.connectivity.ClatCoordinator.INGRESS;
 import static com.android.server.connectivity.ClatCoordinator.INIT_V4ADDR_PREFIX_LEN;
 import static com.android.server.connectivity.ClatCoordinator.INIT_V4ADDR_STRING;
 import static com.android.server.connectivity.ClatCoordinator.PRIO_CLAT;
+import static com.android.server.connectivity.ClatCoordinator.SET_DBG_CLAT_BPF;
+import static com.android.server.connectivity.ClatCoordinator.SET_DBG_CLAT_DAEMON;
 import static com.android.testutils.MiscAsserts.assertThrows;
+import static com.android.testutils.NetworkStatsUtilsKt.assertNetworkStatsEquals;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
@@ -46,6 +50,7 @@ import android.annotation.NonNull;
 import android.net.INetd;
 import android.net.InetAddresses;
 import android.net.IpPrefix;
+import android.net.NetworkStats;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 
@@ -57,6 +62,8 @@ import com.android.net.module.util.bpf.ClatEgress4Key;
 import com.android.net.module.util.bpf.ClatEgress4Value;
 import com.android.net.module.util.bpf.ClatIngress6Key;
 import com.android.net.module.util.bpf.ClatIngress6Value;
+import com.android.net.module.util.bpf.ClatStatsKey;
+import com.android.net.module.util.bpf.ClatStatsValue;
 import com.android.net.module.util.bpf.CookieTagMapKey;
 import com.android.net.module.util.bpf.CookieTagMapValue;
 import com.android.testutils.DevSdkIgnoreRule;
@@ -76,7 +83,9 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.util.HashSet;
 import java.util.Objects;
+import java.util.Set;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -86,12 +95,18 @@ public class ClatCoordinatorTest {
     private static final String STACKED_IFACE = "v4-test0";
     private static final int BASE_IFINDEX = 1000;
     private static final int STACKED_IFINDEX = 1001;
+    private static final int OTHER_STACKED_IFINDEX = 1002;
+    private static final int TEST_UID = 10234;
 
     private static final IpPrefix NAT64_IP_PREFIX = new IpPrefix("64:ff9b::/96");
     private static final String NAT64_PREFIX_STRING = "64:ff9b::";
     private static final Inet6Address INET6_PFX96 = (Inet6Address)
             InetAddresses.parseNumericAddress(NAT64_PREFIX_STRING);
     private static final int GOOGLE_DNS_4 = 0x08080808;  // 8.8.8.8
+    private static final IpPrefix OTHER_NAT64_IP_PREFIX = new IpPrefix("2001:db8:64::/96");
+    private static final String OTHER_NAT64_PREFIX_STRING = "2001:db8:64::";
+    private static final Inet6Address OTHER_INET6_PFX96 = (Inet6Address)
+            InetAddresses.parseNumericAddress(OTHER_NAT64_PREFIX_STRING);
     private static final int NETID = 42;
 
     // The test fwmark means: PERMISSION_NETWORK | PERMISSION_SYSTEM (0x3), protectedFromVpn: true,
@@ -101,10 +116,13 @@ public class ClatCoordinatorTest {
 
     private static final String XLAT_LOCAL_IPV4ADDR_STRING = "192.0.0.46";
     private static final String XLAT_LOCAL_IPV6ADDR_STRING = "2001:db8:0:b11::464";
+    private static final String OTHER_XLAT_LOCAL_IPV6ADDR_STRING = "2001:db8:0:b11::3b3";
     private static final Inet4Address INET4_LOCAL4 = (Inet4Address)
             InetAddresses.parseNumericAddress(XLAT_LOCAL_IPV4ADDR_STRING);
     private static final Inet6Address INET6_LOCAL6 = (Inet6Address)
             InetAddresses.parseNumericAddress(XLAT_LOCAL_IPV6ADDR_STRING);
+    private static final Inet6Address OTHER_INET6_LOCAL6 = (Inet6Address)
+            InetAddresses.parseNumericAddress(OTHER_XLAT_LOCAL_IPV6ADDR_STRING);
     private static final int CLATD_PID = 10483;
 
     private static final int TUN_FD = 534;
@@ -117,6 +135,10 @@ public class ClatCoordinatorTest {
             new FileDescriptor()));
     private static final ParcelFileDescriptor PACKET_SOCK_PFD = spy(new ParcelFileDescriptor(
             new FileDescriptor()));
+    private static final ParcelFileDescriptor CONTROL_READ_PFD = spy(new ParcelFileDescriptor(
+            new FileDescriptor()));
+    private static final ParcelFileDescriptor CONTROL_WRITE_PFD = spy(new ParcelFileDescriptor(
+            new FileDescriptor()));
 
     private static final String EGRESS_PROG_PATH =
             "/sys/fs/bpf/net_shared/prog_clatd_schedcls_egress4_clat_rawip";
@@ -130,6 +152,10 @@ public class ClatCoordinatorTest {
             INET6_PFX96, INET6_LOCAL6);
     private static final ClatIngress6Value INGRESS_VALUE = new ClatIngress6Value(STACKED_IFINDEX,
             INET4_LOCAL4);
+    private static final ClatEgress4Value OTHER_EGRESS_VALUE = new ClatEgress4Value(BASE_IFINDEX,
+            OTHER_INET6_LOCAL6, OTHER_INET6_PFX96, (short) 1 /* oifIsEthernet, 1 = true */);
+    private static final ClatIngress6Key OTHER_INGRESS_KEY = new ClatIngress6Key(BASE_IFINDEX,
+            OTHER_INET6_PFX96, OTHER_INET6_LOCAL6);
     private static final CookieTagMapKey COOKIE_TAG_KEY = new CookieTagMapKey(RAW_SOCK_COOKIE);
     private static final CookieTagMapValue COOKIE_TAG_VALUE = new CookieTagMapValue(AID_CLAT,
             0 /* tag, unused */);
@@ -140,6 +166,8 @@ public class ClatCoordinatorTest {
             spy(new TestBpfMap<>(ClatEgress4Key.class, ClatEgress4Value.class));
     private final TestBpfMap<CookieTagMapKey, CookieTagMapValue> mCookieTagMap =
             spy(new TestBpfMap<>(CookieTagMapKey.class, CookieTagMapValue.class));
+    private final TestBpfMap<ClatStatsKey, ClatStatsValue> mStatsMap =
+            new TestBpfMap<>(ClatStatsKey.class, ClatStatsValue.class);
 
     @Mock private INetd mNetd;
     @Spy private TestDependencies mDeps = new TestDependencies();
@@ -150,6 +178,9 @@ public class ClatCoordinatorTest {
       * be overridden to avoid calling native methods.
       */
     protected class TestDependencies extends ClatCoordinator.Dependencies {
+        // The anycast groups joined by the raw socket, which are only left on drop.
+        public final Set<String> mAnycastGroups = new HashSet<>();
+
         /**
           * Get netd.
           */
@@ -225,6 +256,10 @@ public class ClatCoordinatorTest {
                     && NAT64_PREFIX_STRING.equals(prefix64) && MARK == mark) {
                 return XLAT_LOCAL_IPV6ADDR_STRING;
             }
+            if (BASE_IFACE.equals(iface) && XLAT_LOCAL_IPV4ADDR_STRING.equals(v4)
+                    && OTHER_NAT64_PREFIX_STRING.equals(prefix64) && MARK == mark) {
+                return OTHER_XLAT_LOCAL_IPV6ADDR_STRING;
+            }
             fail("unsupported args: " + iface + ", " + v4 + ", " + prefix64 + ", " + mark);
             return null;
         }
@@ -271,8 +306,23 @@ public class ClatCoordinatorTest {
         public void addAnycastSetsockopt(@NonNull FileDescriptor sock, String v6, int ifindex)
                 throws IOException {
             if (Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), sock)
-                    && XLAT_LOCAL_IPV6ADDR_STRING.equals(v6)
-                    && BASE_IFINDEX == ifindex) return;
+                    && (XLAT_LOCAL_IPV6ADDR_STRING.equals(v6)
+                            || OTHER_XLAT_LOCAL_IPV6ADDR_STRING.equals(v6))
+                    && BASE_IFINDEX == ifindex) {
+                mAnycastGroups.add(v6);
+                return;
+            }
+            fail("unsupported args: " + sock + ", " + v6 + ", " + ifindex);
+        }
+
+        /**
+         * Drop anycast setsockopt.
+         */
+        @Override
+        public void dropAnycastSetsockopt(@NonNull FileDescriptor sock, String v6, int ifindex)
+                throws IOException {
+            if (Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), sock)
+                    && mAnycastGroups.remove(v6) && BASE_IFINDEX == ifindex) return;
             fail("unsupported args: " + sock + ", " + v6 + ", " + ifindex);
         }
 
@@ -283,21 +333,32 @@ public class ClatCoordinatorTest {
         public void configurePacketSocket(@NonNull FileDescriptor sock, String v6, int ifindex)
                 throws IOException {
             if (Objects.equals(PACKET_SOCK_PFD.getFileDescriptor(), sock)
-                    && XLAT_LOCAL_IPV6ADDR_STRING.equals(v6)
+                    && (XLAT_LOCAL_IPV6ADDR_STRING.equals(v6)
+                            || OTHER_XLAT_LOCAL_IPV6ADDR_STRING.equals(v6))
                     && BASE_IFINDEX == ifindex) return;
             fail("unsupported args: " + sock + ", " + v6 + ", " + ifindex);
         }
 
+        /**
+         * Create the pipe on which clatd reads config updates.
+         */
+        @Override
+        public ParcelFileDescriptor[] createControlPipe() throws IOException {
+            return new ParcelFileDescriptor[] { CONTROL_READ_PFD, CONTROL_WRITE_PFD };
+        }
+
         /**
          * Start clatd.
          */
         @Override
         public int startClatd(@NonNull FileDescriptor tunfd, @NonNull FileDescriptor readsock6,
-                @NonNull FileDescriptor writesock6, @NonNull String iface, @NonNull String pfx96,
-                @NonNull String v4, @NonNull String v6) throws IOException {
+                @NonNull FileDescriptor writesock6, @NonNull FileDescriptor controlfd,
+                @NonNull String iface, @NonNull String pfx96, @NonNull String v4,
+                @NonNull String v6) throws IOException {
             if (Objects.equals(TUN_PFD.getFileDescriptor(), tunfd)
                     && Objects.equals(PACKET_SOCK_PFD.getFileDescriptor(), readsock6)
                     && Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), writesock6)
+                    && Objects.equals(CONTROL_READ_PFD.getFileDescriptor(), controlfd)
                     && BASE_IFACE.equals(iface)
                     && NAT64_PREFIX_STRING.equals(pfx96)
                     && XLAT_LOCAL_IPV4ADDR_STRING.equals(v4)
@@ -309,6 +370,16 @@ public class ClatCoordinatorTest {
             return -1;
         }
 
+        /**
+         * Send a new NAT64 prefix and IPv6 address to clatd on its control pipe.
+         */
+        @Override
+        public void writeClatdConfig(@NonNull FileDescriptor controlfd,
+                @NonNull Inet6Address pfx96, @NonNull Inet6Address v6) throws IOException {
+            if (Objects.equals(CONTROL_WRITE_PFD.getFileDescriptor(), controlfd)) return;
+            fail("unsupported args: " + controlfd + ", " + pfx96 + ", " + v6);
+        }
+
         /**
          * Stop clatd.
          */
@@ -338,6 +409,12 @@ public class ClatCoordinatorTest {
             return mEgressMap;
         }
 
+        /** Get stats BPF map. */
+        @Override
+        public IBpfMap<ClatStatsKey, ClatStatsValue> getBpfStatsMap() {
+            return mStatsMap;
+        }
+
         /** Get cookie tag map */
         @Override
         public IBpfMap<CookieTagMapKey, CookieTagMapValue> getBpfCookieTagMap() {
@@ -450,10 +527,12 @@ public class ClatCoordinatorTest {
                 eq(XLAT_LOCAL_IPV6ADDR_STRING), eq(BASE_IFINDEX));
 
         // Start clatd.
+        inOrder.verify(mDeps).createControlPipe();
         inOrder.verify(mDeps).startClatd(
                 argThat(fd -> Objects.equals(TUN_PFD.getFileDescriptor(), fd)),
                 argThat(fd -> Objects.equals(PACKET_SOCK_PFD.getFileDescriptor(), fd)),
                 argThat(fd -> Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), fd)),
+                argThat(fd -> Objects.equals(CONTROL_READ_PFD.getFileDescriptor(), fd)),
                 eq(BASE_IFACE), eq(NAT64_PREFIX_STRING),
                 eq(XLAT_LOCAL_IPV4ADDR_STRING), eq(XLAT_LOCAL_IPV6ADDR_STRING));
         inOrder.verify(mEgressMap).insertEntry(eq(EGRESS_KEY), eq(EGRESS_VALUE));
@@ -489,6 +568,102 @@ public class ClatCoordinatorTest {
         inOrder.verifyNoMoreInteractions();
     }
 
+    @Test
+    public void testReconfigureClatd() throws Exception {
+        final ClatCoordinator coordinator = makeClatCoordinator();
+        assertThrows("java.io.IOException: Clatd has not started", IOException.class,
+                () -> coordinator.clatReconfigure(NETID, OTHER_NAT64_IP_PREFIX));
+
+        clearInvocations(TUN_PFD, RAW_SOCK_PFD, PACKET_SOCK_PFD, CONTROL_READ_PFD,
+                CONTROL_WRITE_PFD);
+        coordinator.clatStart(BASE_IFACE, NETID, NAT64_IP_PREFIX);
+        // Only the fds that clatReconfigure does not need are closed.
+        verify(TUN_PFD).close();
+        verify(CONTROL_READ_PFD).close();
+        verify(PACKET_SOCK_PFD, never()).close();
+        verify(RAW_SOCK_PFD, never()).close();
+        verify(CONTROL_WRITE_PFD, never()).close();
+
+        final InOrder inOrder = inOrder(mNetd, mDeps, mIngressMap, mEgressMap, mCookieTagMap);
+        clearInvocations(mNetd, mDeps, mIngressMap, mEgressMap, mCookieTagMap);
+        assertThrows(IOException.class,
+                () -> coordinator.clatReconfigure(NETID, new IpPrefix("2001:db8::/64")));
+        assertEquals(OTHER_XLAT_LOCAL_IPV6ADDR_STRING,
+                coordinator.clatReconfigure(NETID, OTHER_NAT64_IP_PREFIX));
+        assertEquals(new ClatCoordinator.ClatdTracker(
+                BASE_IFACE, BASE_IFINDEX, STACKED_IFACE, STACKED_IFINDEX, INET4_LOCAL4,
+                OTHER_INET6_LOCAL6, OTHER_INET6_PFX96, CLATD_PID, RAW_SOCK_COOKIE),
+                coordinator.getClatdTrackerForTesting());
+
+        // clatd is not restarted, and the tun interface is not touched.
+        inOrder.verify(mDeps).generateIpv6Address(eq(BASE_IFACE),
+                eq(XLAT_LOCAL_IPV4ADDR_STRING), eq(OTHER_NAT64_PREFIX_STRING), eq(MARK));
+        inOrder.verify(mDeps).dropAnycastSetsockopt(
+                argThat(fd -> Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), fd)),
+                eq(XLAT_LOCAL_IPV6ADDR_STRING), eq(BASE_IFINDEX));
+        inOrder.verify(mDeps).addAnycastSetsockopt(
+                argThat(fd -> Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), fd)),
+                eq(OTHER_XLAT_LOCAL_IPV6ADDR_STRING), eq(BASE_IFINDEX));
+        inOrder.verify(mDeps).configurePacketSocket(
+                argThat(fd -> Objects.equals(PACKET_SOCK_PFD.getFileDescriptor(), fd)),
+                eq(OTHER_XLAT_LOCAL_IPV6ADDR_STRING), eq(BASE_IFINDEX));
+        inOrder.verify(mDeps).writeClatdConfig(
+                argThat(fd -> Objects.equals(CONTROL_WRITE_PFD.getFileDescriptor(), fd)),
+                eq(OTHER_INET6_PFX96), eq(OTHER_INET6_LOCAL6));
+        inOrder.verify(mEgressMap).getValue(eq(EGRESS_KEY));
+        inOrder.verify(mEgressMap).updateEntry(eq(EGRESS_KEY), eq(OTHER_EGRESS_VALUE));
+        inOrder.verify(mIngressMap).insertOrReplaceEntry(eq(OTHER_INGRESS_KEY),
+                eq(INGRESS_VALUE));
+        inOrder.verify(mIngressMap).deleteEntry(eq(INGRESS_KEY));
+        inOrder.verifyNoMoreInteractions();
+        assertEquals(OTHER_EGRESS_VALUE, mEgressMap.getValue(EGRESS_KEY));
+        assertEquals(INGRESS_VALUE, mIngressMap.getValue(OTHER_INGRESS_KEY));
+        assertNull(mIngressMap.getValue(INGRESS_KEY));
+
+        // Stopping clatd removes the new entries and closes the kept fds.
+        coordinator.clatStop();
+        inOrder.verify(mEgressMap).deleteEntry(eq(EGRESS_KEY));
+        inOrder.verify(mIngressMap).deleteEntry(eq(OTHER_INGRESS_KEY));
+        inOrder.verify(mDeps).stopClatd(eq(CLATD_PID));
+        verify(PACKET_SOCK_PFD).close();
+        verify(RAW_SOCK_PFD).close();
+        verify(CONTROL_WRITE_PFD).close();
+        assertNull(coordinator.getClatdTrackerForTesting());
+    }
+
+    @Test
+    public void testReconfigureClatdTwice() throws Exception {
+        final ClatCoordinator coordinator = makeClatCoordinator();
+        coordinator.clatStart(BASE_IFACE, NETID, NAT64_IP_PREFIX);
+        assertEquals(Set.of(XLAT_LOCAL_IPV6ADDR_STRING), mDeps.mAnycastGroups);
+
+        final InOrder inOrder = inOrder(mDeps);
+        clearInvocations(mDeps);
+        assertEquals(OTHER_XLAT_LOCAL_IPV6ADDR_STRING,
+                coordinator.clatReconfigure(NETID, OTHER_NAT64_IP_PREFIX));
+        assertEquals(Set.of(OTHER_XLAT_LOCAL_IPV6ADDR_STRING), mDeps.mAnycastGroups);
+        assertEquals(XLAT_LOCAL_IPV6ADDR_STRING,
+                coordinator.clatReconfigure(NETID, NAT64_IP_PREFIX));
+        // Only the anycast group of the current address is joined.
+        assertEquals(Set.of(XLAT_LOCAL_IPV6ADDR_STRING), mDeps.mAnycastGroups);
+        assertEquals(INET6_LOCAL6, coordinator.getClatdTrackerForTesting().v6);
+
+        inOrder.verify(mDeps).dropAnycastSetsockopt(
+                argThat(fd -> Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), fd)),
+                eq(XLAT_LOCAL_IPV6ADDR_STRING), eq(BASE_IFINDEX));
+        inOrder.verify(mDeps).addAnycastSetsockopt(
+                argThat(fd -> Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), fd)),
+                eq(OTHER_XLAT_LOCAL_IPV6ADDR_STRING), eq(BASE_IFINDEX));
+        inOrder.verify(mDeps).dropAnycastSetsockopt(
+                argThat(fd -> Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), fd)),
+                eq(OTHER_XLAT_LOCAL_IPV6ADDR_STRING), eq(BASE_IFINDEX));
+        inOrder.verify(mDeps).addAnycastSetsockopt(
+                argThat(fd -> Objects.equals(RAW_SOCK_PFD.getFileDescriptor(), fd)),
+                eq(XLAT_LOCAL_IPV6ADDR_STRING), eq(BASE_IFINDEX));
+
+        coordinator.clatStop();
+    }
+
     @Test
     public void testGetFwmark() throws Exception {
         assertEquals(0xf0064, ClatCoordinator.getFwmark(100));
@@ -521,7 +696,7 @@ public class ClatCoordinatorTest {
 
         final String[] dumpStrings = stringWriter.toString().split("\n");
         if (clatStarted) {
-            assertEquals(6, dumpStrings.length);
+            assertEquals(8, dumpStrings.length);
             assertEquals("CLAT tracker: iface: test0 (1000), v4iface: v4-test0 (1001), "
                     + "v4: /192.0.0.46, v6: /2001:db8:0:b11::464, pfx96: /64:ff9b::, "
                     + "pid: 10483, cookie: 27149", dumpStrings[0].trim());
@@ -534,6 +709,8 @@ public class ClatCoordinatorTest {
                     dumpStrings[4].trim());
             assertEquals("1001 /192.0.0.46 -> /2001:db8:0:b11::464 /64:ff9b::/96 1000 ether",
                     dumpStrings[5].trim());
+            assertEquals("Stats:", dumpStrings[6].trim());
+            assertEquals("<empty>", dumpStrings[7].trim());
         } else {
             assertEquals(1, dumpStrings.length);
             assertEquals("<not started>", dumpStrings[0].trim());
@@ -548,6 +725,63 @@ public class ClatCoordinatorTest {
         verifyDump(coordinator, true /* clatStarted */);
     }
 
+    private static NetworkStats.Entry newStatsEntry(int uid, int set, long rxBytes,
+            long rxPackets, long txBytes, long txPackets) {
+        return new NetworkStats.Entry(STACKED_IFACE, uid, set, NetworkStats.TAG_NONE,
+                NetworkStats.METERED_NO, NetworkStats.ROAMING_NO, NetworkStats.DEFAULT_NETWORK_NO,
+                rxBytes, rxPackets, txBytes, txPackets, 0 /* operations */);
+    }
+
+    @Test
+    public void testGetClatStats() throws Exception {
+        final ClatCoordinator coordinator = makeClatCoordinator();
+        assertNetworkStatsEquals(new NetworkStats(0L, 0), coordinator.getClatStats());
+
+        coordinator.clatStart(BASE_IFACE, NETID, NAT64_IP_PREFIX);
+        // Egress traffic of an app, ingress traffic whose UID is unknown, and traffic of another
+        // clat interface.
+        final ClatStatsKey appKey = new ClatStatsKey(STACKED_IFINDEX, TEST_UID);
+        final ClatStatsKey ingressKey = new ClatStatsKey(STACKED_IFINDEX, NetworkStats.UID_ALL);
+        final ClatStatsKey otherKey = new ClatStatsKey(OTHER_STACKED_IFINDEX, TEST_UID);
+        mStatsMap.insertEntry(appKey, new ClatStatsValue(0, 0, 0, 0, 10, 1400, 2, 56));
+        mStatsMap.insertEntry(ingressKey, new ClatStatsValue(20, 2800, 3, 84, 0, 0, 0, 0));
+        mStatsMap.insertEntry(otherKey, new ClatStatsValue(1, 100, 1, 100, 1, 100, 1, 100));
+
+        final NetworkStats expected = new NetworkStats(0L, 4)
+                .addEntry(newStatsEntry(TEST_UID, SET_DBG_CLAT_BPF, 0, 0, 1400, 10))
+                .addEntry(newStatsEntry(TEST_UID, SET_DBG_CLAT_DAEMON, 0, 0, 56, 2))
+                .addEntry(newStatsEntry(NetworkStats.UID_ALL, SET_DBG_CLAT_BPF, 2800, 20, 0, 0))
+                .addEntry(newStatsEntry(NetworkStats.UID_ALL, SET_DBG_CLAT_DAEMON, 84, 3, 0, 0));
+        assertNetworkStatsEquals(expected, coordinator.getClatStats());
+
+        // The entries are dumped after the header, in the same order.
+        final StringWriter stringWriter = new StringWriter();
+        coordinator.dump(new IndentingPrintWriter(stringWriter, " "));
+        final String[] dumpStrings = stringWriter.toString().split("\n");
+        int headerIndex = -1;
+        for (int i = 0; i < dumpStrings.length; i++) {
+            if (dumpStrings[i].trim().equals(
+                    "Translated traffic: uid path rxPackets rxBytes txPackets txBytes")) {
+                headerIndex = i;
+            }
+        }
+        assertNotEquals(-1, headerIndex);
+        assertEquals(headerIndex + 5, dumpStrings.length);
+        assertEquals(TEST_UID + " bpf 0 0 10 1400", dumpStrings[headerIndex + 1].trim());
+        assertEquals(TEST_UID + " clatd 0 0 2 56", dumpStrings[headerIndex + 2].trim());
+        assertEquals(NetworkStats.UID_ALL + " bpf 20 2800 0 0",
+                dumpStrings[headerIndex + 3].trim());
+        assertEquals(NetworkStats.UID_ALL + " clatd 3 84 0 0",
+                dumpStrings[headerIndex + 4].trim());
+
+        // Stopping clatd only deletes the stats of its interface.
+        coordinator.clatStop();
+        assertNetworkStatsEquals(new NetworkStats(0L, 0), coordinator.getClatStats());
+        assertNull(mStatsMap.getValue(appKey));
+        assertNull(mStatsMap.getValue(ingressKey));
+        assertNotNull(mStatsMap.getValue(otherKey));
+    }
+
     @Test
     public void testNotStartClatWithInvalidPrefix() throws Exception {
         final ClatCoordinator coordinator = makeClatCoordinator();
@@ -703,9 +937,9 @@ public class ClatCoordinatorTest {
         class FailureDependencies extends TestDependencies {
             @Override
             public int startClatd(@NonNull FileDescriptor tunfd, @NonNull FileDescriptor readsock6,
-                    @NonNull FileDescriptor writesock6, @NonNull String iface,
-                    @NonNull String pfx96, @NonNull String v4, @NonNull String v6)
-                    throws IOException {
+                    @NonNull FileDescriptor writesock6, @NonNull FileDescriptor controlfd,
+                    @NonNull String iface, @NonNull String pfx96, @NonNull String v4,
+                    @NonNull String v6) throws IOException {
                 throw new IOException();
             }
         }
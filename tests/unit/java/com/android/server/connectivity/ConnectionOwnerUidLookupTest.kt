@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity
+
+import android.net.InetAddresses.parseNumericAddress
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Process.INVALID_UID
+import android.system.ErrnoException
+import android.system.OsConstants.EIO
+import android.system.OsConstants.IPPROTO_TCP
+import android.util.IndentingPrintWriter
+import com.android.net.module.util.ip.NetlinkMonitor
+import com.android.net.module.util.netlink.StructInetDiagSockId
+import com.android.server.connectivity.ConnectionOwnerUidLookup.CACHE_ENTRY_LIFETIME_MS
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.waitForIdle
+import java.io.FileDescriptor
+import java.io.StringWriter
+import java.net.InetSocketAddress
+import java.util.concurrent.CountDownLatch
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentCaptor
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.doThrow
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+
+private const val TIMEOUT_MS = 1000L
+private const val TEST_UID = 10042
+
+private val LOCAL = InetSocketAddress(parseNumericAddress("2001:db8::1"), 40000)
+private val REMOTE = InetSocketAddress(parseNumericAddress("2001:db8::2"), 443)
+private val OTHER_LOCAL = InetSocketAddress(parseNumericAddress("2001:db8::1"), 40001)
+
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class ConnectionOwnerUidLookupTest {
+    private val handlerThread = HandlerThread(ConnectionOwnerUidLookupTest::class.simpleName)
+    private val deps = mock(ConnectionOwnerUidLookup.Dependencies::class.java)
+    private val listener = mock(NetlinkMonitor::class.java)
+    private val fd = FileDescriptor()
+    private var timeNs = 1_000_000_000L
+    private lateinit var lookup: ConnectionOwnerUidLookup
+
+    @Before
+    fun setUp() {
+        handlerThread.start()
+        doReturn(handlerThread.looper).`when`(deps).makeListenerLooper()
+        doReturn(fd).`when`(deps).createInetDiagSocket()
+        doReturn(listener).`when`(deps).makeSocketDestroyListener(any(), any(), any())
+        doReturn(true).`when`(listener).start()
+        doReturn(TEST_UID).`when`(deps).getConnectionOwnerUid(
+                eq(IPPROTO_TCP), eq(LOCAL), eq(REMOTE), any())
+        doReturn(INVALID_UID).`when`(deps).getConnectionOwnerUid(
+                eq(IPPROTO_TCP), eq(OTHER_LOCAL), eq(REMOTE), any())
+        // Each call advances the clock by 10us.
+        doAnswer {
+            timeNs += 10_000
+            timeNs
+        }.`when`(deps).elapsedRealtimeNanos()
+        lookup = ConnectionOwnerUidLookup(deps)
+    }
+
+    @After
+    fun tearDown() {
+        handlerThread.quitSafely()
+        handlerThread.join()
+    }
+
+    private fun startLookup() {
+        lookup.maybeStartListener()
+        handlerThread.waitForIdle(TIMEOUT_MS)
+    }
+
+    private fun verifyKernelLookups(count: Int) {
+        verify(deps, times(count)).getConnectionOwnerUid(anyInt(), any(), any(), any())
+    }
+
+    @Test
+    fun testSocketIsReused() {
+        // Keep the destroy listener from starting: the cache is disabled until then.
+        val listenerBlocked = CountDownLatch(1)
+        Handler(handlerThread.looper).post { listenerBlocked.await() }
+        repeat(3) {
+            assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        }
+        listenerBlocked.countDown()
+        verifyKernelLookups(3)
+        verify(deps, times(1)).createInetDiagSocket()
+        verify(deps, never()).closeSocket(any())
+    }
+
+    @Test
+    fun testListenerStartedOnFirstLookup() {
+        verify(deps, never()).makeListenerLooper()
+        verify(deps, never()).makeSocketDestroyListener(any(), any(), any())
+
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        handlerThread.waitForIdle(TIMEOUT_MS)
+        val handlerCaptor = ArgumentCaptor.forClass(Handler::class.java)
+        verify(deps).makeSocketDestroyListener(handlerCaptor.capture(), any(), eq(lookup))
+        assertEquals(handlerThread.looper, handlerCaptor.value.looper)
+        verify(listener).start()
+
+        // The listener is only started once.
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        handlerThread.waitForIdle(TIMEOUT_MS)
+        verify(deps).makeListenerLooper()
+        verify(listener).start()
+        // The second lookup was served from the cache.
+        verifyKernelLookups(1)
+    }
+
+    @Test
+    fun testSocketClosedOnError() {
+        doThrow(ErrnoException("getConnectionOwnerUid", EIO)).`when`(deps)
+                .getConnectionOwnerUid(eq(IPPROTO_TCP), eq(LOCAL), eq(REMOTE), any())
+        assertEquals(INVALID_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        verify(deps).closeSocket(fd)
+
+        assertEquals(INVALID_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        verify(deps, times(2)).createInetDiagSocket()
+    }
+
+    @Test
+    fun testCachedLookup() {
+        startLookup()
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        verifyKernelLookups(1)
+
+        // Failed lookups are not cached.
+        assertEquals(INVALID_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, OTHER_LOCAL, REMOTE))
+        assertEquals(INVALID_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, OTHER_LOCAL, REMOTE))
+        verifyKernelLookups(3)
+
+        // Entries expire even if no destroy notification is received.
+        timeNs += CACHE_ENTRY_LIFETIME_MS * 1_000_000L
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        verifyKernelLookups(4)
+    }
+
+    @Test
+    fun testCacheInvalidatedOnSocketDestroy() {
+        startLookup()
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+
+        lookup.onSocketDestroyed(StructInetDiagSockId(OTHER_LOCAL, REMOTE))
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        verifyKernelLookups(1)
+
+        lookup.onSocketDestroyed(StructInetDiagSockId(LOCAL, REMOTE))
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        verifyKernelLookups(2)
+    }
+
+    @Test
+    fun testCacheDisabledIfListenerFailsToStart() {
+        doReturn(false).`when`(listener).start()
+        startLookup()
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        assertEquals(TEST_UID, lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE))
+        verifyKernelLookups(2)
+    }
+
+    @Test
+    fun testDumpLatencyHistograms() {
+        startLookup()
+        lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE)
+        lookup.getConnectionOwnerUid(IPPROTO_TCP, LOCAL, REMOTE)
+
+        val sw = StringWriter()
+        lookup.dump(IndentingPrintWriter(sw, "  "))
+        val dump = sw.toString()
+        // The fake clock advances by 10us every time it is read, and each lookup reads it twice.
+        assertTrue(dump.contains("Cache hits: <50us=1 <100us=0"), dump)
+        assertTrue(dump.contains("Kernel lookups: <50us=1 <100us=0"), dump)
+    }
+}
@@ -1257,6 +1257,60 @@ public class KeepaliveStatsTrackerTest {
         assertKeepaliveStatsTrackerActive();
     }
 
+    private void onAlignKeepalive(long time, int slot, int anchorSlot,
+            int alignedIntervalSeconds) {
+        setElapsedRealtime(time);
+        visibleOnHandlerThread(mTestHandler, () -> mKeepaliveStatsTracker.onAlignKeepalive(
+                TEST_NETWORK, slot, anchorSlot, alignedIntervalSeconds));
+    }
+
+    private long getNumAvoidedWakeups(long time) {
+        setElapsedRealtime(time);
+        return visibleOnHandlerThread(
+                mTestHandler, () -> mKeepaliveStatsTracker.getNumAvoidedWakeups());
+    }
+
+    /*
+     * Diagram of test (not to scale):
+     * Key: S - Start/Stop, P - Pause, R - Resume, A - Align
+     *
+     * Keepalive1    S         P       R                       S
+     * Keepalive2       S A                 A        S
+     * Timeline  |------------------------------------------------|
+     */
+    @Test
+    public void testAvoidedWakeups() {
+        final int slot2 = TEST_SLOT + 1;
+        final int alignedIntervalSec = 10;
+        onStartKeepalive(0, TEST_SLOT);
+        onStartKeepalive(1000, slot2, alignedIntervalSec);
+        onAlignKeepalive(1000, slot2, TEST_SLOT, alignedIntervalSec);
+        assertEquals(0, getNumAvoidedWakeups(9_000));
+        assertEquals(2, getNumAvoidedWakeups(21_000));
+
+        // Pausing the anchor ends the alignment.
+        onPauseKeepalive(31_000, TEST_SLOT);
+        assertEquals(3, getNumAvoidedWakeups(100_000));
+
+        // Aligning with a paused anchor is ignored.
+        onAlignKeepalive(100_000, slot2, TEST_SLOT, alignedIntervalSec);
+        assertEquals(3, getNumAvoidedWakeups(200_000));
+
+        onResumeKeepalive(200_000, TEST_SLOT);
+        onAlignKeepalive(200_000, slot2, TEST_SLOT, alignedIntervalSec);
+        assertEquals(4, getNumAvoidedWakeups(215_000));
+
+        // Stopping the aligned keepalive ends the alignment.
+        onStopKeepalive(250_000, slot2);
+        onStopKeepalive(300_000, TEST_SLOT);
+        assertEquals(8, getNumAvoidedWakeups(400_000));
+
+        // Avoided wakeups are not reset with the metrics.
+        buildAndResetMetrics(400_000);
+        assertEquals(8, getNumAvoidedWakeups(400_000));
+        assertKeepaliveStatsTrackerActive();
+    }
+
     @Test
     @IgnoreAfter(Build.VERSION_CODES.S_V2)
     public void testWriteMetrics_doNothingBeforeT() {
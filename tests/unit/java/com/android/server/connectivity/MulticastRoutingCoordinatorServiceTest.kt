@@ -416,6 +416,34 @@ class MulticastRoutingCoordinatorServiceTest {
         verify(mDeps, timeout(TIMEOUT_MS).times(1)).setsockoptMrt6DelMfc(eq(mFd), eq(mf6cctlDel))
     }
 
+    @Test
+    fun testMulticastRouting_applyConfig_onlyUpdatesChangedMfcs() {
+        prepareService()
+        val otherSourceAddress = Inet6Address.getByName("2000::9999") as Inet6Address
+        applyMulticastForwardMinimumScope(mIfName1, mIfName2, 4 /* minScope */)
+        sendMrt6msgNocachePacket(0, mSourceAddress, mGroupAddressScope5)
+        sendMrt6msgNocachePacket(0, otherSourceAddress, mGroupAddressScope5)
+        sendMrt6msgNocachePacket(0, mSourceAddress, mGroupAddressScope3)
+        val iif = mService.getVirtualInterfaceIndex(mIfName1)
+        val blockingMfc = createStructMf6cctl(mSourceAddress, mGroupAddressScope3, iif, mEmptyOifs)
+        verify(mDeps, times(3)).setsockoptMrt6AddMfc(eq(mFd), any())
+
+        // Only the MFCs of the group with a scope larger than the new min scope are updated
+        applyMulticastForwardMinimumScope(mIfName1, mIfName3, 5 /* minScope */)
+        mLooper.dispatchAll()
+        val oifs = setOf(mService.getVirtualInterfaceIndex(mIfName2),
+                mService.getVirtualInterfaceIndex(mIfName3))
+        verify(mDeps).setsockoptMrt6AddMfc(eq(mFd),
+                eq(createStructMf6cctl(mSourceAddress, mGroupAddressScope5, iif, oifs)))
+        verify(mDeps).setsockoptMrt6AddMfc(eq(mFd),
+                eq(createStructMf6cctl(otherSourceAddress, mGroupAddressScope5, iif, oifs)))
+        verify(mDeps, times(1)).setsockoptMrt6AddMfc(eq(mFd), eq(blockingMfc))
+        verify(mDeps, times(5)).setsockoptMrt6AddMfc(eq(mFd), any())
+        verify(mDeps, never()).setsockoptMrt6DelMfc(any(), any())
+        // The MFCs are not read from the kernel to apply the config
+        verify(mDeps, never()).getIpv6MulticastRoutes()
+    }
+
     @Test
     @LargeTest
     fun testMulticastRouting_maxNumberOfMfcs() {
@@ -496,4 +524,31 @@ class MulticastRoutingCoordinatorServiceTest {
 
         verify(mDeps).setsockoptMrt6DelMfc(eq(mFd), eq(mf6cctlDel))
     }
+
+    @Test
+    fun testMulticastRouting_mfcsAreNotDumpedBeforeTheyCanExpire() {
+        prepareService()
+        applyMulticastForwardMinimumScope(mIfName1, mIfName2, 4 /* minScope */)
+        sendMrt6msgNocachePacket(0, mSourceAddress, mGroupAddressScope5)
+        val mf6cctlDel = createStructMf6cctl(mSourceAddress, mGroupAddressScope5,
+                mService.getVirtualInterfaceIndex(mIfName1), mEmptyOifs)
+
+        // The MFC was just used, so it cannot expire before MFC_INACTIVE_TIMEOUT_MS
+        val intervalMs = MulticastRoutingCoordinatorService.MFC_INACTIVE_CHECK_INTERVAL_MS.toLong()
+        repeat(MulticastRoutingCoordinatorService.MFC_INACTIVE_TIMEOUT_MS /
+                MulticastRoutingCoordinatorService.MFC_INACTIVE_CHECK_INTERVAL_MS - 1) {
+            mClock.fastForward(intervalMs)
+            mLooper.moveTimeForward(intervalMs)
+            mLooper.dispatchAll()
+        }
+        verify(mDeps, never()).getIpv6MulticastRoutes()
+        verify(mDeps, never()).setsockoptMrt6DelMfc(any(), any())
+
+        repeat(2) {
+            mClock.fastForward(intervalMs)
+            mLooper.moveTimeForward(intervalMs)
+            mLooper.dispatchAll()
+        }
+        verify(mDeps).setsockoptMrt6DelMfc(eq(mFd), eq(mf6cctlDel))
+    }
 }
@@ -37,6 +37,7 @@ import static org.mockito.Mockito.when;
 import android.net.ConnectivityManager;
 import android.net.IDnsResolver;
 import android.net.INetd;
+import android.net.InetAddresses;
 import android.net.InterfaceConfigurationParcel;
 import android.net.IpPrefix;
 import android.net.LinkAddress;
@@ -65,6 +66,9 @@ import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
 @DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
@@ -75,6 +79,7 @@ public class Nat464XlatTest {
     static final LinkAddress V6ADDR = new LinkAddress("2001:db8:1::f00/64");
     static final LinkAddress ADDR = new LinkAddress("192.0.2.5/29");
     static final String CLAT_V6 = "64:ff9b::1";
+    static final String OTHER_CLAT_V6 = "2001:db8:0:64::1";
     static final String NAT64_PREFIX = "64:ff9b::/96";
     static final String OTHER_NAT64_PREFIX = "2001:db8:0:64::/96";
     static final int NETID = 42;
@@ -543,6 +548,48 @@ public class Nat464XlatTest {
         assertEquals(null, fixedupLp.getNat64Prefix());
     }
 
+    @Test
+    public void testNat64PrefixChangeWhileRunning() throws Exception {
+        final IpPrefix prefix = new IpPrefix(NAT64_PREFIX);
+        final IpPrefix otherPrefix = new IpPrefix(OTHER_NAT64_PREFIX);
+        doReturn(OTHER_CLAT_V6).when(mClatCoordinator).clatReconfigure(NETID, otherPrefix);
+        Nat464Xlat nat = makeNat464Xlat(true);
+        mNai.linkProperties.addLinkAddress(V6ADDR);
+
+        // Start clat with the prefix from the RA, and bring up the stacked interface.
+        mNai.linkProperties.setNat64Prefix(prefix);
+        nat.setNat64PrefixFromRa(prefix);
+        nat.update();
+        verifyClatdStart(null /* inOrder */);
+        nat.handleInterfaceLinkStateChanged(STACKED_IFACE, true);
+        verify(mConnectivity).handleUpdateLinkProperties(eq(mNai), any());
+        assertRunning(nat);
+
+        // The RA prefix changes.
+        mNai.linkProperties.setNat64Prefix(otherPrefix);
+        nat.setNat64PrefixFromRa(otherPrefix);
+        nat.update();
+
+        if (SdkLevel.isAtLeastT()) {
+            // clatd is reconfigured in place: the stacked link is kept.
+            verify(mClatCoordinator).clatReconfigure(NETID, otherPrefix);
+            verify(mClatCoordinator, never()).clatStop();
+            verify(mDnsResolver).setPrefix64(NETID, otherPrefix.toString());
+            verify(mConnectivity).handleUpdateLinkProperties(eq(mNai), any());
+            assertRunning(nat);
+            assertEquals(OTHER_CLAT_V6, nat.mIPv6Address.getHostAddress());
+            final Inet6Address translated = nat.translateV4toV6(
+                    (Inet4Address) InetAddresses.parseNumericAddress("192.0.2.1"));
+            assertEquals(otherPrefix, new IpPrefix(translated, 96));
+        } else {
+            // clatd is restarted, and the stacked link is removed until the interface is up.
+            verifyClatdStop(null /* inOrder */);
+            verify(mNetd).clatdStart(eq(BASE_IFACE), eq(OTHER_NAT64_PREFIX));
+            verify(mConnectivity, times(2)).handleUpdateLinkProperties(eq(mNai), any());
+            assertStarting(nat);
+        }
+    }
+
     private void checkClatDisabledOnCellular(boolean onCellular) throws Exception {
         // Disable 464xlat on cellular networks.
         Nat464Xlat nat = makeNat464Xlat(false);
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.system.OsConstants.IPPROTO_UDP;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.InetAddresses;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.shared.PrivateDnsConfig;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class NetworkDiagnosticsTest {
+    private static final long TIMEOUT_MS = 5000;
+    private static final InetAddress TEST_DNS_SERVER =
+            InetAddresses.parseNumericAddress("192.0.2.53");
+    // Checks run against TEST_DNS_SERVER: ICMP with an empty and a full size payload, and DNS UDP.
+    private static final int DATAGRAM_CHECK_COUNT = 3;
+    private static final int MAX_REPLIES = 5;
+    private static final Pattern COUNTS = Pattern.compile(": (\\d+)/(\\d+)");
+
+    // Receives the probes of all the checks, whose sockets are connected to it instead of the
+    // target, and decides which of them are answered.
+    private abstract static class Responder extends Thread {
+        protected final DatagramSocket mSocket;
+        // Number of probes received from each check socket.
+        private final Map<SocketAddress, Integer> mProbeCounts = new HashMap<>();
+
+        Responder() throws SocketException {
+            mSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        }
+
+        // Returns the packets to send back for the given probe, which is the n-th one received
+        // from its socket, starting at 0.
+        protected abstract List<DatagramPacket> onProbe(@NonNull DatagramPacket probe, int n);
+
+        @Override
+        public void run() {
+            final byte[] buffer = new byte[2048];
+            while (!mSocket.isClosed()) {
+                final DatagramPacket probe = new DatagramPacket(buffer, buffer.length);
+                try {
+                    mSocket.receive(probe);
+                    final SocketAddress from = probe.getSocketAddress();
+                    final int n = mProbeCounts.getOrDefault(from, 0);
+                    mProbeCounts.put(from, n + 1);
+                    // Echoed probes are valid replies: the ICMP sequence number and the DNS
+                    // query ID are kept, and the DNS response code is NOERROR.
+                    final DatagramPacket copy = new DatagramPacket(probe.getData().clone(),
+                            probe.getLength(), from);
+                    for (DatagramPacket reply : onProbe(copy, n)) {
+                        mSocket.send(reply);
+                    }
+                } catch (IOException e) {
+                    // The socket was closed.
+                }
+            }
+        }
+
+        int getSocketCount() {
+            return mProbeCounts.size();
+        }
+    }
+
+    private Responder mResponder;
+
+    private class TestDependencies extends NetworkDiagnostics.Dependencies {
+        @Override
+        public FileDescriptor createSocket(int family, int type, int protocol)
+                throws ErrnoException {
+            // ICMP sockets cannot be connected to the responder, so use UDP for all checks.
+            return Os.socket(family, type, IPPROTO_UDP);
+        }
+
+        @Override
+        public void connectSocket(@NonNull Network network, @NonNull FileDescriptor fd,
+                @Nullable InetAddress source, @NonNull InetAddress target, int port)
+                throws ErrnoException {
+            Os.connect(fd, InetAddress.getLoopbackAddress(), mResponder.mSocket.getLocalPort());
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mResponder == null) return;
+        mResponder.mSocket.close();
+        mResponder.join();
+    }
+
+    private List<NetworkDiagnostics.Measurement> runDiagnostics(@NonNull Responder responder) {
+        mResponder = responder;
+        mResponder.start();
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName("test0");
+        lp.setMtu(1280);
+        lp.addDnsServer(TEST_DNS_SERVER);
+        final NetworkDiagnostics diags = new NetworkDiagnostics(new Network(100), lp,
+                new PrivateDnsConfig(null /* hostname */, new InetAddress[0]), TIMEOUT_MS,
+                new TestDependencies());
+        diags.waitForMeasurements();
+
+        final List<NetworkDiagnostics.Measurement> datagramMeasurements = new ArrayList<>();
+        for (NetworkDiagnostics.Measurement m : diags.getMeasurements()) {
+            // The DNS TLS check does not use the dependencies and fails.
+            if (m.description.startsWith("DNS TLS")) continue;
+            datagramMeasurements.add(m);
+        }
+        assertEquals(DATAGRAM_CHECK_COUNT, datagramMeasurements.size());
+        return datagramMeasurements;
+    }
+
+    // Returns the number of replies and of probes in the result of the measurement.
+    private static int[] getCounts(@NonNull NetworkDiagnostics.Measurement m) {
+        final Matcher matcher = COUNTS.matcher(m.result);
+        assertTrue(m.toString(), matcher.find());
+        return new int[] { Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) };
+    }
+
+    @Test
+    public void testAllProbesAnswered() throws Exception {
+        final List<NetworkDiagnostics.Measurement> measurements = runDiagnostics(
+                new Responder() {
+                    @Override
+                    protected List<DatagramPacket> onProbe(DatagramPacket probe, int n) {
+                        return Collections.singletonList(probe);
+                    }
+                });
+        for (NetworkDiagnostics.Measurement m : measurements) {
+            assertTrue(m.toString(), m.checkSucceeded());
+            final int[] counts = getCounts(m);
+            assertEquals(m.toString(), MAX_REPLIES, counts[0]);
+            assertEquals(m.toString(), MAX_REPLIES, counts[1]);
+            assertTrue(m.toString(), m.result.contains("rtt{min="));
+        }
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        final List<NetworkDiagnostics.Measurement> measurements = runDiagnostics(
+                new Responder() {
+                    @Override
+                    protected List<DatagramPacket> onProbe(DatagramPacket probe, int n) {
+                        return Collections.emptyList();
+                    }
+                });
+        for (NetworkDiagnostics.Measurement m : measurements) {
+            assertFalse(m.toString(), m.checkSucceeded());
+            final int[] counts = getCounts(m);
+            assertEquals(m.toString(), 0, counts[0]);
+            // Probes that time out are followed by new ones until the deadline.
+            assertTrue(m.toString(), counts[1] > 1);
+            assertTrue(m.toString(), m.finishTime - m.startTime <= TIMEOUT_MS);
+        }
+    }
+
+    @Test
+    public void testPartialAndDuplicateReplies() throws Exception {
+        final List<NetworkDiagnostics.Measurement> measurements = runDiagnostics(
+                new Responder() {
+                    @Override
+                    protected List<DatagramPacket> onProbe(DatagramPacket probe, int n) {
+                        // Drop every other probe, and answer the others twice.
+                        if (n % 2 == 1) return Collections.emptyList();
+                        final List<DatagramPacket> replies = new ArrayList<>();
+                        replies.add(probe);
+                        replies.add(probe);
+                        return replies;
+                    }
+                });
+        for (NetworkDiagnostics.Measurement m : measurements) {
+            assertTrue(m.toString(), m.checkSucceeded());
+            final int[] counts = getCounts(m);
+            // Duplicate replies are only counted once.
+            assertTrue(m.toString(), counts[0] > 0);
+            assertTrue(m.toString(), counts[0] < counts[1]);
+            assertTrue(m.toString(), counts[0] <= MAX_REPLIES);
+        }
+    }
+
+    @Test
+    public void testChecksRunConcurrently() throws Exception {
+        final List<NetworkDiagnostics.Measurement> measurements = runDiagnostics(
+                new Responder() {
+                    private final List<DatagramPacket> mHeld = new ArrayList<>();
+
+                    @Override
+                    protected List<DatagramPacket> onProbe(DatagramPacket probe, int n) {
+                        if (getSocketCount() == DATAGRAM_CHECK_COUNT) {
+                            final List<DatagramPacket> replies = new ArrayList<>(mHeld);
+                            mHeld.clear();
+                            replies.add(probe);
+                            return replies;
+                        }
+                        // Only answer once all checks have sent a probe, which never happens if
+                        // they run one after the other.
+                        mHeld.add(probe);
+                        return Collections.emptyList();
+                    }
+                });
+        for (NetworkDiagnostics.Measurement m : measurements) {
+            assertTrue(m.toString(), m.checkSucceeded());
+        }
+    }
+}
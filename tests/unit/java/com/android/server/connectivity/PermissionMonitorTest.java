@@ -616,6 +616,14 @@ public class PermissionMonitorTest {
                 }
                 return null;
             }).when(mockBpfmap).setNetPermForUids(anyInt(), any(int[].class));
+            doAnswer((InvocationOnMock invocation) -> {
+                final SparseIntArray uidsPermissions = invocation.getArgument(0);
+                for (int i = 0; i < uidsPermissions.size(); i++) {
+                    mAppIdsTrafficPermission.put(uidsPermissions.keyAt(i),
+                            uidsPermissions.valueAt(i));
+                }
+                return null;
+            }).when(mockBpfmap).setNetPermForUids(any(SparseIntArray.class));
         }
 
         public void expectTrafficPerm(int permission, Integer... appIds) {
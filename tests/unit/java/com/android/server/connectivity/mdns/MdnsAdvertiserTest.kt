@@ -43,7 +43,9 @@ import java.util.Objects
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
 import org.junit.After
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -251,10 +253,13 @@ class MdnsAdvertiserTest {
         )
 
         doReturn(false).`when`(mockInterfaceAdvertiser1).isProbing(SERVICE_ID_1)
+        doReturn(TEST_OFFLOAD_PACKET1).`when`(mockInterfaceAdvertiser1)
+            .getRawOffloadImage(eq(listOf(SERVICE_ID_1)))
         postSync { intAdvCbCaptor.value.onServiceProbingSucceeded(
                 mockInterfaceAdvertiser1, SERVICE_ID_1) }
         verify(cb).onRegisterServiceSucceeded(eq(SERVICE_ID_1), argThat { it.matches(SERVICE_1) })
         verify(cb).onOffloadStartOrUpdate(eq(TEST_INTERFACE1), eq(OFFLOAD_SERVICEINFO_NO_SUBTYPE))
+        verify(cb).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(TEST_OFFLOAD_PACKET1))
 
         // Service is conflicted.
         postSync {
@@ -275,6 +280,8 @@ class MdnsAdvertiserTest {
             .getRawOffloadPayload(
                 SERVICE_ID_1
             )
+        doReturn(TEST_OFFLOAD_PACKET2).`when`(mockInterfaceAdvertiser1)
+            .getRawOffloadImage(eq(listOf(SERVICE_ID_1)))
         postSync {
             socketCb.onAddressesChanged(
                 TEST_SOCKETKEY_1,
@@ -283,10 +290,23 @@ class MdnsAdvertiserTest {
             )
         }
         verify(cb).onOffloadStartOrUpdate(eq(TEST_INTERFACE1), eq(OFFLOAD_SERVICEINFO_NO_SUBTYPE2))
+        verify(cb).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(TEST_OFFLOAD_PACKET2))
+
+        // An image that cannot be created does not replace the previous one.
+        doReturn(null).`when`(mockInterfaceAdvertiser1)
+            .getRawOffloadImage(eq(listOf(SERVICE_ID_1)))
+        postSync {
+            socketCb.onAddressesChanged(TEST_SOCKETKEY_1, mockSocket1, listOf(TEST_LINKADDR))
+        }
+        verify(cb, times(1)).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(TEST_OFFLOAD_PACKET2))
+        verify(cb, never()).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(ByteArray(0)))
+        assertArrayEquals(TEST_OFFLOAD_PACKET2,
+                postReturn { advertiser.getInterfaceOffloadImage(TEST_INTERFACE1) })
 
         postSync { socketCb.onInterfaceDestroyed(TEST_SOCKETKEY_1, mockSocket1) }
         verify(mockInterfaceAdvertiser1).destroyNow()
         verify(cb).onOffloadStop(eq(TEST_INTERFACE1), eq(OFFLOAD_SERVICEINFO_NO_SUBTYPE2))
+        verify(cb).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(ByteArray(0)))
     }
 
     @Test
@@ -557,6 +577,74 @@ class MdnsAdvertiserTest {
                 argThat { it.matches(ALL_NETWORKS_SERVICE_SUBTYPE) }, any())
     }
 
+    @Test
+    fun testOffloadImage_UpdatedOnServiceUpdateAndRemoval() {
+        val advertiser =
+            MdnsAdvertiser(thread.looper, socketProvider, cb, mockDeps, sharedlog, flags, context)
+        val service2 = NsdServiceInfo("TestService2", "_advertisertest2._tcp").apply {
+            port = 12345
+            hostAddresses = listOf(TEST_ADDR)
+            network = TEST_NETWORK_1
+        }
+        postSync {
+            advertiser.addOrUpdateService(SERVICE_ID_1, SERVICE_1, DEFAULT_ADVERTISING_OPTION,
+                    TEST_CLIENT_UID_1)
+            advertiser.addOrUpdateService(SERVICE_ID_2, service2, DEFAULT_ADVERTISING_OPTION,
+                    TEST_CLIENT_UID_1)
+        }
+
+        val socketCbCaptor = ArgumentCaptor.forClass(SocketCallback::class.java)
+        verify(socketProvider).requestSocket(eq(TEST_NETWORK_1), socketCbCaptor.capture())
+        val socketCb = socketCbCaptor.value
+        postSync { socketCb.onSocketCreated(TEST_SOCKETKEY_1, mockSocket1, listOf(TEST_LINKADDR)) }
+
+        val intAdvCbCaptor = ArgumentCaptor.forClass(MdnsInterfaceAdvertiser.Callback::class.java)
+        verify(mockDeps).makeAdvertiser(eq(mockSocket1), eq(listOf(TEST_LINKADDR)),
+            eq(thread.looper), any(), intAdvCbCaptor.capture(), eq(TEST_HOSTNAME), any(), any()
+        )
+        val intAdvCb = intAdvCbCaptor.value
+
+        doReturn(TEST_OFFLOAD_PACKET1).`when`(mockInterfaceAdvertiser1)
+            .getRawOffloadImage(eq(listOf(SERVICE_ID_1)))
+        postSync { intAdvCb.onServiceProbingSucceeded(mockInterfaceAdvertiser1, SERVICE_ID_1) }
+        verify(cb).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(TEST_OFFLOAD_PACKET1))
+
+        // Updating the subtypes of the service probes it again, which refreshes the image.
+        val updateOptions = MdnsAdvertisingOptions.newBuilder().setIsOnlyUpdate(true).build()
+        postSync { advertiser.addOrUpdateService(SERVICE_ID_1, SERVICE_1_SUBTYPE, updateOptions,
+                TEST_CLIENT_UID_1) }
+        verify(mockInterfaceAdvertiser1).updateService(eq(SERVICE_ID_1), eq(setOf(TEST_SUBTYPE)))
+        doReturn(TEST_OFFLOAD_PACKET2).`when`(mockInterfaceAdvertiser1)
+            .getRawOffloadImage(eq(listOf(SERVICE_ID_1)))
+        postSync { intAdvCb.onServiceProbingSucceeded(mockInterfaceAdvertiser1, SERVICE_ID_1) }
+        verify(cb).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(TEST_OFFLOAD_PACKET2))
+
+        // An identical image is not sent again.
+        postSync { intAdvCb.onServiceProbingSucceeded(mockInterfaceAdvertiser1, SERVICE_ID_1) }
+        verify(cb, times(1)).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(TEST_OFFLOAD_PACKET2))
+
+        // The image combines all the services offloaded on the interface.
+        val combinedImage = byteArrayOf(0x01, 0x02, 0x03, 0x04)
+        doReturn(combinedImage).`when`(mockInterfaceAdvertiser1)
+            .getRawOffloadImage(eq(listOf(SERVICE_ID_1, SERVICE_ID_2)))
+        postSync { intAdvCb.onServiceProbingSucceeded(mockInterfaceAdvertiser1, SERVICE_ID_2) }
+        verify(cb).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(combinedImage))
+
+        // Removing a service rebuilds the image from the remaining ones.
+        val service2Image = byteArrayOf(0x05, 0x06)
+        doReturn(service2Image).`when`(mockInterfaceAdvertiser1)
+            .getRawOffloadImage(eq(listOf(SERVICE_ID_2)))
+        postSync { advertiser.removeService(SERVICE_ID_1) }
+        verify(cb).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(service2Image))
+        assertArrayEquals(service2Image,
+                postReturn { advertiser.getInterfaceOffloadImage(TEST_INTERFACE1) })
+
+        // Removing the last service clears the image.
+        postSync { advertiser.removeService(SERVICE_ID_2) }
+        verify(cb).onOffloadImageUpdate(eq(TEST_INTERFACE1), eq(ByteArray(0)))
+        assertNull(postReturn { advertiser.getInterfaceOffloadImage(TEST_INTERFACE1) })
+    }
+
     @Test
     fun testAddOrUpdateService_customTtl_registeredSuccess() {
         val advertiser = MdnsAdvertiser(
@@ -37,7 +37,9 @@ import com.android.testutils.waitForIdle
 import java.net.InetSocketAddress
 import kotlin.test.assertContentEquals
 import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
 import kotlin.test.assertNotSame
+import kotlin.test.assertNull
 import kotlin.test.assertTrue
 import org.junit.After
 import org.junit.Before
@@ -182,6 +184,37 @@ class MdnsInterfaceAdvertiserTest {
         verify(cb).onAllServicesRemoved(socket)
     }
 
+    private fun makeOffloadPacket(serviceCount: Int) = MdnsPacket(0x8400 /* flags */,
+            emptyList() /* questions */,
+            (0 until serviceCount).map {
+                MdnsPointerRecord(arrayOf("_service$it", "_tcp", "local"),
+                        0L /* receiptTimeMillis */, false /* cacheFlush */,
+                        120_000L /* ttlMillis */,
+                        arrayOf("instance$it", "_service$it", "_tcp", "local"))
+            },
+            emptyList() /* authorityRecords */,
+            emptyList() /* additionalRecords */)
+
+    @Test
+    fun testGetRawOffloadImage_largerThanBuffer() {
+        val packet = makeOffloadPacket(100)
+        doReturn(packet).`when`(repository).getOffloadPacket(listOf(TEST_SERVICE_ID_1))
+
+        val image = advertiser.getRawOffloadImage(listOf(TEST_SERVICE_ID_1))
+        assertNotNull(image)
+        assertTrue(image.size > TEST_BUFFER.size)
+        val parsed = MdnsPacket.parse(MdnsPacketReader(image, image.size, flags))
+        assertEquals(packet.answers, parsed.answers)
+    }
+
+    @Test
+    fun testGetRawOffloadImage_tooLarge() {
+        doReturn(makeOffloadPacket(1000)).`when`(repository)
+                .getOffloadPacket(listOf(TEST_SERVICE_ID_1))
+
+        assertNull(advertiser.getRawOffloadImage(listOf(TEST_SERVICE_ID_1)))
+    }
+
     @Test
     fun testDoubleRemove() {
         addServiceAndFinishProbing(TEST_SERVICE_ID_1, TEST_SERVICE_1)
@@ -520,6 +520,33 @@ class MdnsRecordRepositoryTest {
         ), offloadPacket.answers)
     }
 
+    @Test
+    fun testGetOffloadPacket_MultipleServices() {
+        val repository = MdnsRecordRepository(thread.looper, deps, TEST_HOSTNAME, makeFlags())
+        repository.initWithService(TEST_SERVICE_ID_1, TEST_SERVICE_1)
+        repository.addServiceAndFinishProbing(TEST_SERVICE_ID_2, TEST_SERVICE_2)
+        val packet1 = repository.getOffloadPacket(TEST_SERVICE_ID_1)
+        val packet2 = repository.getOffloadPacket(TEST_SERVICE_ID_2)
+        val combinedPacket =
+                repository.getOffloadPacket(listOf(TEST_SERVICE_ID_1, TEST_SERVICE_ID_2))
+        assertEquals(0x8400, combinedPacket.flags)
+        assertEquals(0, combinedPacket.questions.size)
+        assertEquals(0, combinedPacket.additionalRecords.size)
+        assertEquals(0, combinedPacket.authorityRecords.size)
+
+        // Service records of both services, followed by the shared address records only once.
+        val addressCount = TEST_ADDRESSES.size
+        assertContentEquals(
+                packet1.answers.dropLast(addressCount) +
+                        packet2.answers.dropLast(addressCount) +
+                        packet1.answers.takeLast(addressCount),
+                combinedPacket.answers)
+
+        assertFailsWith<IllegalArgumentException> {
+            repository.getOffloadPacket(listOf(TEST_SERVICE_ID_1, TEST_SERVICE_ID_3))
+        }
+    }
+
     @Test
     fun testGetReverseDnsAddress() {
         val expectedV6 = "1.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.8.B.D.0.1.0.0.2.ip6.arpa"
@@ -262,33 +262,57 @@ class MdnsServiceCacheTest {
     }
 
     @Test
-    fun testInsertResponseAndSortList() {
-        val responses = ArrayList<MdnsResponse>()
-        val response1 = createResponse(SERVICE_NAME_1, SERVICE_TYPE_1, 100L /* ttlTime */)
-        MdnsServiceCache.insertResponseAndSortList(responses, response1, TEST_ELAPSED_REALTIME_MS)
-        assertEquals(1, responses.size)
-        assertEquals(response1, responses[0])
-
-        val response2 = createResponse(SERVICE_NAME_2, SERVICE_TYPE_1, 50L /* ttlTime */)
-        MdnsServiceCache.insertResponseAndSortList(responses, response2, TEST_ELAPSED_REALTIME_MS)
-        assertEquals(2, responses.size)
-        assertEquals(response2, responses[0])
-        assertEquals(response1, responses[1])
-
-        val response3 = createResponse(SERVICE_NAME_3, SERVICE_TYPE_1, 75L /* ttlTime */)
-        MdnsServiceCache.insertResponseAndSortList(responses, response3, TEST_ELAPSED_REALTIME_MS)
-        assertEquals(3, responses.size)
-        assertEquals(response2, responses[0])
-        assertEquals(response3, responses[1])
-        assertEquals(response1, responses[2])
-
-        val response4 = createResponse("service-instance-4", SERVICE_TYPE_1, 125L /* ttlTime */)
-        MdnsServiceCache.insertResponseAndSortList(responses, response4, TEST_ELAPSED_REALTIME_MS)
-        assertEquals(4, responses.size)
-        assertEquals(response2, responses[0])
-        assertEquals(response3, responses[1])
-        assertEquals(response1, responses[2])
-        assertEquals(response4, responses[3])
+    fun testServicesExpireInTtlOrder() {
+        val serviceCache = MdnsServiceCache(
+                thread.looper, makeFlags(isExpiredServicesRemovalEnabled = true), clock)
+        val callback = ExpiredRecord()
+        registerServiceExpiredCallback(serviceCache, cacheKey1, callback)
+
+        doReturn(TEST_ELAPSED_REALTIME_MS).`when`(clock).elapsedRealtime()
+        // Add services out of TTL order.
+        addOrUpdateService(serviceCache, cacheKey1,
+                createResponse(SERVICE_NAME_1, SERVICE_TYPE_1, 100L /* ttlTime */))
+        addOrUpdateService(serviceCache, cacheKey1,
+                createResponse(SERVICE_NAME_2, SERVICE_TYPE_1, 50L /* ttlTime */))
+        addOrUpdateService(serviceCache, cacheKey1,
+                createResponse(SERVICE_NAME_3, SERVICE_TYPE_1, 75L /* ttlTime */))
+        // Refresh SERVICE_NAME_2 with a longer TTL: its previous expiration must be dropped.
+        addOrUpdateService(serviceCache, cacheKey1,
+                createResponse(SERVICE_NAME_2, SERVICE_TYPE_1, 125L /* ttlTime */))
+        assertEquals(3, getServices(serviceCache, cacheKey1).size)
+
+        doReturn(TEST_ELAPSED_REALTIME_MS + 50L).`when`(clock).elapsedRealtime()
+        assertEquals(3, getServices(serviceCache, cacheKey1).size)
+        callback.assertNoCallback()
+
+        doReturn(TEST_ELAPSED_REALTIME_MS + 75L).`when`(clock).elapsedRealtime()
+        assertEquals(2, getServices(serviceCache, cacheKey1).size)
+        callback.expectedServiceRecordExpired(SERVICE_NAME_3)
+
+        doReturn(TEST_ELAPSED_REALTIME_MS + 125L).`when`(clock).elapsedRealtime()
+        assertEquals(0, getServices(serviceCache, cacheKey1).size)
+        callback.expectedServiceRecordExpired(SERVICE_NAME_1)
+        callback.expectedServiceRecordExpired(SERVICE_NAME_2)
+    }
+
+    @Test
+    fun testRemovedServiceDoesNotExpire() {
+        val serviceCache = MdnsServiceCache(
+                thread.looper, makeFlags(isExpiredServicesRemovalEnabled = true), clock)
+        val callback = ExpiredRecord()
+        registerServiceExpiredCallback(serviceCache, cacheKey1, callback)
+
+        doReturn(TEST_ELAPSED_REALTIME_MS).`when`(clock).elapsedRealtime()
+        addOrUpdateService(serviceCache, cacheKey1,
+                createResponse(SERVICE_NAME_1, SERVICE_TYPE_1, 10L /* ttlTime */))
+        addOrUpdateService(serviceCache, cacheKey1,
+                createResponse(SERVICE_NAME_2, SERVICE_TYPE_1, 20L /* ttlTime */))
+        removeService(serviceCache, SERVICE_NAME_1, cacheKey1)
+
+        doReturn(TEST_ELAPSED_REALTIME_MS + 20L).`when`(clock).elapsedRealtime()
+        assertEquals(0, getServices(serviceCache, cacheKey1).size)
+        callback.expectedServiceRecordExpired(SERVICE_NAME_2)
+        callback.assertNoCallback()
     }
 
     private fun createResponse(
@@ -56,6 +56,8 @@ import static android.net.NetworkTemplate.OEM_MANAGED_YES;
 import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.net.TrafficStats.UID_REMOVED;
 import static android.net.TrafficStats.UID_TETHERING;
+import static android.net.TrafficStats.UNSUPPORTED;
+import static android.net.connectivity.ConnectivityCompatChanges.ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID_TAG;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_XT;
@@ -118,6 +120,7 @@ import android.net.TelephonyNetworkSpecifier;
 import android.net.TestNetworkSpecifier;
 import android.net.TetherStatsParcel;
 import android.net.TetheringManager;
+import android.net.TrafficStats;
 import android.net.UnderlyingNetworkInfo;
 import android.net.netstats.provider.INetworkStatsProviderCallback;
 import android.net.wifi.WifiInfo;
@@ -234,6 +237,8 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
 
     private static final long WAIT_TIMEOUT = 2 * 1000;  // 2 secs
     private static final int INVALID_TYPE = -1;
+    private static final int TRAFFIC_STATS_CACHE_EXPIRY_DURATION_MS = 1000;
+    private static final int TRAFFIC_STATS_CACHE_MAX_ENTRIES = 400;
 
     private static final String DUMPSYS_BPF_RAW_MAP = "--bpfRawMap";
     private static final String DUMPSYS_COOKIE_TAG_MAP = "--cookieTagMap";
@@ -241,6 +246,9 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
 
 
     private long mElapsedRealtime;
+    private boolean mTrafficStatsRateLimitCacheChangeEnabled = true;
+    private int mNativeGetTotalStatInvocations = 0;
+    private int mNativeGetIfaceStatInvocations = 0;
 
     private File mStatsDir;
     private File mLegacyStatsDir;
@@ -591,6 +599,67 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         public boolean supportEventLogger(@NonNull Context cts) {
             return true;
         }
+
+        @Override
+        public int getTrafficStatsRateLimitCacheExpiryDuration() {
+            return TRAFFIC_STATS_CACHE_EXPIRY_DURATION_MS;
+        }
+
+        @Override
+        public int getTrafficStatsRateLimitCacheMaxEntries() {
+            return TRAFFIC_STATS_CACHE_MAX_ENTRIES;
+        }
+
+        @Override
+        public boolean alwaysUseTrafficStatsRateLimitCache(Context ctx) {
+            return false;
+        }
+
+        @Override
+        public int getTrafficStatsSharedMemoryUpdateInterval() {
+            // Covered by TrafficStatsSharedMemoryManagerTest.
+            return 0;
+        }
+
+        @Override
+        public int getTrafficStatsSharedMemoryMaxRegions() {
+            return 0;
+        }
+
+        @Override
+        public Clock getTrafficStatsRateLimitCacheClock() {
+            return mClock;
+        }
+
+        @Override
+        public boolean isChangeEnabled(long changeId, int uid) {
+            return changeId == ENABLE_TRAFFICSTATS_RATE_LIMIT_CACHE
+                    && mTrafficStatsRateLimitCacheChangeEnabled;
+        }
+
+        @Override
+        public NetworkStats.Entry nativeGetTotalStat() {
+            mNativeGetTotalStatInvocations++;
+            return buildTrafficStatsEntry(IFACE_ALL, mNativeGetTotalStatInvocations);
+        }
+
+        @Override
+        public NetworkStats.Entry nativeGetIfaceStat(String iface) {
+            mNativeGetIfaceStatInvocations++;
+            return buildTrafficStatsEntry(iface, mNativeGetIfaceStatInvocations);
+        }
+
+        @Override
+        public NetworkStats.Entry nativeGetUidStat(int uid) {
+            return null;
+        }
+    }
+
+    // Returns a fresh entry on every call, since callers may modify it.
+    private static NetworkStats.Entry buildTrafficStatsEntry(String iface, long value) {
+        return new NetworkStats.Entry(iface, UID_ALL, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO, value /* rxBytes */, 1L /* rxPackets */,
+                value /* txBytes */, 1L /* txPackets */, 0L /* operations */);
     }
 
     @After
@@ -2865,4 +2934,35 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         final String dump = getDump();
         assertDumpContains(dump, "Log for testing");
     }
+
+    @Test
+    public void testTrafficStatsRateLimitCache() {
+        // Repeated queries within the expiry duration are served from the cache.
+        assertEquals(1L, mService.getTotalStats(TrafficStats.TYPE_RX_BYTES));
+        assertEquals(1L, mService.getTotalStats(TrafficStats.TYPE_TX_BYTES));
+        assertEquals(1L, mService.getIfaceStats(TEST_IFACE, TrafficStats.TYPE_RX_BYTES));
+        assertEquals(1L, mService.getIfaceStats(TEST_IFACE, TrafficStats.TYPE_RX_BYTES));
+        assertEquals(1, mNativeGetTotalStatInvocations);
+        assertEquals(1, mNativeGetIfaceStatInvocations);
+
+        // Expired entries are fetched again.
+        incrementCurrentTime(TRAFFIC_STATS_CACHE_EXPIRY_DURATION_MS + 1);
+        assertEquals(2L, mService.getTotalStats(TrafficStats.TYPE_RX_BYTES));
+        assertEquals(2L, mService.getIfaceStats(TEST_IFACE, TrafficStats.TYPE_RX_BYTES));
+        assertEquals(2, mNativeGetTotalStatInvocations);
+        assertEquals(2, mNativeGetIfaceStatInvocations);
+
+        // Unsupported types do not reach the kernel.
+        assertEquals(UNSUPPORTED, mService.getTotalStats(INVALID_TYPE));
+        assertEquals(2, mNativeGetTotalStatInvocations);
+    }
+
+    @Test
+    public void testTrafficStatsRateLimitCache_changeDisabled() {
+        mTrafficStatsRateLimitCacheChangeEnabled = false;
+        assertEquals(1L, mService.getTotalStats(TrafficStats.TYPE_RX_BYTES));
+        assertEquals(2L, mService.getTotalStats(TrafficStats.TYPE_RX_BYTES));
+        assertEquals(1L, mService.getIfaceStats(TEST_IFACE, TrafficStats.TYPE_RX_BYTES));
+        assertEquals(2L, mService.getIfaceStats(TEST_IFACE, TrafficStats.TYPE_RX_BYTES));
+    }
 }
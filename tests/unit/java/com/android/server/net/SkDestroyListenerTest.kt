@@ -18,9 +18,17 @@ package com.android.server.net
 
 import android.os.Handler
 import android.os.HandlerThread
+import android.system.ErrnoException
+import android.system.OsConstants.EIO
 import com.android.net.module.util.SharedLog
+import com.android.net.module.util.bpf.CookieTagMapKey
+import com.android.net.module.util.bpf.CookieTagMapValue
 import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.TestBpfMap
 import java.io.PrintWriter
+import java.io.StringWriter
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
@@ -28,6 +36,8 @@ import org.junit.runner.RunWith
 import org.mockito.ArgumentMatchers.any
 import org.mockito.Mock
 import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.doThrow
+import org.mockito.Mockito.spy
 import org.mockito.Mockito.verify
 import org.mockito.MockitoAnnotations
 
@@ -60,4 +70,73 @@ class SkDestroyListenerTest {
 
         verify(sharedLog).reverseDump(pw)
     }
+
+    private fun makeTaggedListener(vararg cookies: Long): Pair<SkDestroyListener,
+            TestBpfMap<CookieTagMapKey, CookieTagMapValue>> {
+        doReturn(sharedLog).`when`(sharedLog).forSubComponent(any())
+        val cookieTagMap = TestBpfMap(CookieTagMapKey::class.java, CookieTagMapValue::class.java)
+        cookies.forEach {
+            cookieTagMap.insertEntry(CookieTagMapKey(it), CookieTagMapValue(10042, 1))
+        }
+        val listener = spy(SkDestroyListener(cookieTagMap, Handler(handlerThread.looper),
+                sharedLog))
+        return listener to cookieTagMap
+    }
+
+    private fun taggedCookies(map: TestBpfMap<CookieTagMapKey, CookieTagMapValue>): Set<Long> {
+        val cookies = HashSet<Long>()
+        map.forEach { key, _ -> cookies.add(key.socketCookie) }
+        return cookies
+    }
+
+    @Test
+    fun testGarbageCollectCookieTagMap() {
+        val (listener, cookieTagMap) = makeTaggedListener(1L, 2L, 3L, 4L)
+        doReturn(setOf(2L, 4L, 5L)).`when`(listener).getLiveSocketCookies()
+
+        // Entries are only deleted once their socket is missing from two dumps in a row.
+        listener.garbageCollectCookieTagMap()
+        assertEquals(setOf(1L, 2L, 3L, 4L), taggedCookies(cookieTagMap))
+        listener.garbageCollectCookieTagMap()
+        assertEquals(setOf(2L, 4L), taggedCookies(cookieTagMap))
+
+        val sw = StringWriter()
+        listener.dump(PrintWriter(sw))
+        val dump = sw.toString()
+        assertTrue(dump.contains("runs=2 failures=0 notificationLosses=0 entriesReclaimed=2"),
+                dump)
+    }
+
+    @Test
+    fun testGarbageCollectCookieTagMap_socketMissingFromOneDump() {
+        val (listener, cookieTagMap) = makeTaggedListener(1L, 2L)
+        // Socket 2 is live but not reported, e.g. because it is tagged before being connected.
+        doReturn(setOf(1L)).`when`(listener).getLiveSocketCookies()
+        listener.garbageCollectCookieTagMap()
+        assertEquals(setOf(1L, 2L), taggedCookies(cookieTagMap))
+
+        // Once reported again, the socket must go missing from two more dumps to be reclaimed.
+        doReturn(setOf(1L, 2L)).`when`(listener).getLiveSocketCookies()
+        listener.garbageCollectCookieTagMap()
+        doReturn(setOf(1L)).`when`(listener).getLiveSocketCookies()
+        listener.garbageCollectCookieTagMap()
+        assertEquals(setOf(1L, 2L), taggedCookies(cookieTagMap))
+
+        listener.garbageCollectCookieTagMap()
+        assertEquals(setOf(1L), taggedCookies(cookieTagMap))
+    }
+
+    @Test
+    fun testGarbageCollectCookieTagMap_dumpFails() {
+        val (listener, cookieTagMap) = makeTaggedListener(1L, 2L)
+        doThrow(ErrnoException("dump", EIO)).`when`(listener).getLiveSocketCookies()
+
+        // An incomplete dump must not cause tags of live sockets to be deleted.
+        listener.garbageCollectCookieTagMap()
+        assertEquals(setOf(1L, 2L), taggedCookies(cookieTagMap))
+
+        val sw = StringWriter()
+        listener.dump(PrintWriter(sw))
+        assertTrue(sw.toString().contains("runs=1 failures=1"), sw.toString())
+    }
 }
@@ -30,11 +30,12 @@ import org.mockito.Mockito.`when`
 class TrafficStatsRateLimitCacheTest {
     companion object {
         private const val expiryDurationMs = 1000L
+        private const val maxSize = 2
     }
 
     private val clock = mock(Clock::class.java)
     private val entry = mock(NetworkStats.Entry::class.java)
-    private val cache = TrafficStatsRateLimitCache(clock, expiryDurationMs)
+    private val cache = TrafficStatsRateLimitCache(clock, expiryDurationMs, maxSize)
 
     @Test
     fun testGet_returnsEntryIfNotExpired() {
@@ -80,6 +81,44 @@ class TrafficStatsRateLimitCacheTest {
         assertEquals(entry2, cache.get("iface", 2))
     }
 
+    @Test
+    fun testPut_evictsLeastRecentlyUsedEntry() {
+        val entry1 = mock(NetworkStats.Entry::class.java)
+        val entry2 = mock(NetworkStats.Entry::class.java)
+        val entry3 = mock(NetworkStats.Entry::class.java)
+
+        cache.put("iface1", 2, entry1)
+        cache.put("iface2", 2, entry2)
+        // Accessing entry1 makes entry2 the least recently used entry.
+        assertEquals(entry1, cache.get("iface1", 2))
+        cache.put("iface3", 2, entry3)
+
+        assertEquals(entry1, cache.get("iface1", 2))
+        assertNull(cache.get("iface2", 2))
+        assertEquals(entry3, cache.get("iface3", 2))
+    }
+
+    @Test
+    fun testGetOrCompute() {
+        var computeCount = 0
+        val supplier = {
+            computeCount++
+            entry
+        }
+        assertEquals(entry, cache.getOrCompute("iface", 2, supplier))
+        assertEquals(entry, cache.getOrCompute("iface", 2, supplier))
+        assertEquals(1, computeCount)
+
+        `when`(clock.millis()).thenReturn(2000L) // Set clock to after expiry
+        assertEquals(entry, cache.getOrCompute("iface", 2, supplier))
+        assertEquals(2, computeCount)
+
+        // Null values are not cached.
+        assertNull(cache.getOrCompute("iface", 4) { null })
+        assertEquals(entry, cache.getOrCompute("iface", 4, supplier))
+        assertEquals(3, computeCount)
+    }
+
     @Test
     fun testClear() {
         cache.put("iface", 2, entry)
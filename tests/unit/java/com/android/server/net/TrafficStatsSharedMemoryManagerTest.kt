@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net
+
+import android.net.NetworkStats
+import android.net.NetworkStats.DEFAULT_NETWORK_NO
+import android.net.NetworkStats.METERED_NO
+import android.net.NetworkStats.ROAMING_NO
+import android.net.NetworkStats.SET_DEFAULT
+import android.net.NetworkStats.TAG_NONE
+import android.net.TrafficStats.TYPE_RX_BYTES
+import android.net.TrafficStats.TYPE_TX_PACKETS
+import android.net.netstats.TrafficStatsSharedMemory
+import android.os.Build
+import android.os.Handler
+import android.os.IBinder
+import android.os.RemoteException
+import android.os.test.TestLooper
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.DevSdkIgnoreRunner
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.time.Clock
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentCaptor
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.doThrow
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.verify
+
+private const val UPDATE_INTERVAL_MS = 1000L
+private const val MAX_REGIONS = 2
+private const val TEST_UID = 10001
+private const val OTHER_UID = 10002
+private const val THIRD_UID = 10003
+private const val TIMEOUT_MS = 1000L
+
+@RunWith(DevSdkIgnoreRunner::class)
+@IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class TrafficStatsSharedMemoryManagerTest {
+    private val looper = TestLooper()
+    private val clock = mock(Clock::class.java)
+    private var totalRxBytes = 100L
+    private var totalStatsQueries = 0
+    private val statsProvider = object : TrafficStatsSharedMemoryManager.StatsProvider {
+        override fun getTotalStats(): NetworkStats.Entry {
+            totalStatsQueries++
+            return buildEntry(totalRxBytes)
+        }
+        override fun getUidStats(uid: Int) = buildEntry(uid.toLong())
+    }
+    private val manager = TrafficStatsSharedMemoryManager(Handler(looper.looper), clock,
+            UPDATE_INTERVAL_MS, MAX_REGIONS, statsProvider)
+
+    private fun buildEntry(value: Long) = NetworkStats.Entry(null /* iface */, TEST_UID,
+            SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO,
+            value /* rxBytes */, 1L /* rxPackets */, value /* txBytes */, 2L /* txPackets */,
+            0L /* operations */)
+
+    private fun mapRegion(uid: Int, token: IBinder): ByteBuffer {
+        val memory = assertNotNull(manager.getSharedMemory(uid, token))
+        return memory.mapReadOnly().order(ByteOrder.nativeOrder())
+    }
+
+    private fun liveToken() = mock(IBinder::class.java).also {
+        doReturn(true).`when`(it).isBinderAlive
+    }
+
+    private fun captureDeathRecipient(token: IBinder): IBinder.DeathRecipient {
+        val captor = ArgumentCaptor.forClass(IBinder.DeathRecipient::class.java)
+        verify(token).linkToDeath(captor.capture(), anyInt())
+        return captor.value
+    }
+
+    @Test
+    fun testRegionHoldsCountersOfUid() {
+        doReturn(5000L).`when`(clock).millis()
+        val buffer = mapRegion(TEST_UID, mock(IBinder::class.java))
+        assertTrue(TrafficStatsSharedMemory.isValid(buffer, TEST_UID))
+        assertEquals(100L, TrafficStatsSharedMemory.read(buffer, false /* uidStats */,
+                TYPE_RX_BYTES, 5000L))
+        assertEquals(TEST_UID.toLong(), TrafficStatsSharedMemory.read(buffer,
+                true /* uidStats */, TYPE_RX_BYTES, 5000L))
+        assertEquals(2L, TrafficStatsSharedMemory.read(buffer, true /* uidStats */,
+                TYPE_TX_PACKETS, 5000L))
+    }
+
+    @Test
+    fun testRegionIsUpdatedPeriodically() {
+        doReturn(5000L).`when`(clock).millis()
+        val buffer = mapRegion(TEST_UID, mock(IBinder::class.java))
+
+        totalRxBytes = 200L
+        doReturn(6000L).`when`(clock).millis()
+        looper.moveTimeForward(UPDATE_INTERVAL_MS)
+        looper.dispatchAll()
+        assertEquals(200L, TrafficStatsSharedMemory.read(buffer, false /* uidStats */,
+                TYPE_RX_BYTES, 6000L))
+
+        // Values older than twice the update interval are stale.
+        assertEquals(TrafficStatsSharedMemory.VALUE_UNAVAILABLE, TrafficStatsSharedMemory.read(
+                buffer, false /* uidStats */, TYPE_RX_BYTES, 6000L + 2 * UPDATE_INTERVAL_MS + 1))
+    }
+
+    @Test
+    fun testRegionIsSharedByProcessesOfUid() {
+        val token1 = mock(IBinder::class.java)
+        val token2 = mock(IBinder::class.java)
+        val memory = manager.getSharedMemory(TEST_UID, token1)
+        assertSame(memory, manager.getSharedMemory(TEST_UID, token2))
+        assertEquals(1, manager.regionCount)
+
+        // The region is freed when all processes holding it have died.
+        captureDeathRecipient(token1).binderDied()
+        assertEquals(1, manager.regionCount)
+        captureDeathRecipient(token2).binderDied()
+        assertEquals(0, manager.regionCount)
+
+        // Updates stop when no region is held.
+        assertEquals(1, totalStatsQueries)
+        looper.moveTimeForward(UPDATE_INTERVAL_MS)
+        looper.dispatchAll()
+        assertEquals(1, totalStatsQueries)
+    }
+
+    @Test
+    fun testMaxRegions() {
+        assertNotNull(manager.getSharedMemory(TEST_UID, liveToken()))
+        assertNotNull(manager.getSharedMemory(OTHER_UID, liveToken()))
+        assertNull(manager.getSharedMemory(THIRD_UID, liveToken()))
+        // UIDs that already hold a region can still get it.
+        assertNotNull(manager.getSharedMemory(TEST_UID, liveToken()))
+    }
+
+    @Test
+    fun testDeadRegionsEvictedAtMaxRegions() {
+        val deadToken = liveToken()
+        assertNotNull(manager.getSharedMemory(TEST_UID, deadToken))
+        assertNotNull(manager.getSharedMemory(OTHER_UID, liveToken()))
+
+        // The process died, but its death has not been notified yet.
+        doReturn(false).`when`(deadToken).isBinderAlive
+        assertNotNull(manager.getSharedMemory(THIRD_UID, liveToken()))
+        assertEquals(MAX_REGIONS, manager.regionCount)
+        // The live regions are not evicted.
+        assertNull(manager.getSharedMemory(TEST_UID, liveToken()))
+
+        // The late death notification is ignored.
+        captureDeathRecipient(deadToken).binderDied()
+        assertEquals(MAX_REGIONS, manager.regionCount)
+    }
+
+    @Test
+    fun testUpdatesStopWhenIdle() {
+        var now = 5000L
+        doReturn(now).`when`(clock).millis()
+        val buffer = mapRegion(TEST_UID, mock(IBinder::class.java))
+        val idleIntervals = TrafficStatsSharedMemoryManager.IDLE_UPDATE_INTERVALS
+        repeat(idleIntervals + 2) {
+            now += UPDATE_INTERVAL_MS
+            doReturn(now).`when`(clock).millis()
+            looper.moveTimeForward(UPDATE_INTERVAL_MS)
+            looper.dispatchAll()
+        }
+        // The region was written when created, then updated until it had not been used for
+        // IDLE_UPDATE_INTERVALS intervals.
+        assertEquals(idleIntervals, totalStatsQueries)
+
+        // The values become stale, so the app falls back to a binder call, which resumes the
+        // updates right away.
+        assertEquals(TrafficStatsSharedMemory.VALUE_UNAVAILABLE, TrafficStatsSharedMemory.read(
+                buffer, false /* uidStats */, TYPE_RX_BYTES, now))
+        totalRxBytes = 300L
+        manager.noteBinderStatsRequest()
+        looper.dispatchAll()
+        assertEquals(300L, TrafficStatsSharedMemory.read(buffer, false /* uidStats */,
+                TYPE_RX_BYTES, now))
+        looper.moveTimeForward(UPDATE_INTERVAL_MS)
+        now += UPDATE_INTERVAL_MS
+        doReturn(now).`when`(clock).millis()
+        looper.dispatchAll()
+        assertEquals(idleIntervals + 2, totalStatsQueries)
+    }
+
+    @Test
+    fun testStatsReadWithoutLock() {
+        doReturn(5000L).`when`(clock).millis()
+        lateinit var lockingManager: TrafficStatsSharedMemoryManager
+        var lockHeldDuringRead = false
+        val provider = object : TrafficStatsSharedMemoryManager.StatsProvider {
+            override fun getTotalStats(): NetworkStats.Entry {
+                // Another thread can use the manager while the counters are read.
+                val t = thread { lockingManager.regionCount }
+                t.join(TIMEOUT_MS)
+                if (t.isAlive) lockHeldDuringRead = true
+                return buildEntry(totalRxBytes)
+            }
+            override fun getUidStats(uid: Int) = buildEntry(uid.toLong())
+        }
+        lockingManager = TrafficStatsSharedMemoryManager(Handler(looper.looper), clock,
+                UPDATE_INTERVAL_MS, MAX_REGIONS, provider)
+
+        // Both when the region is created and when it is updated.
+        assertNotNull(lockingManager.getSharedMemory(TEST_UID, mock(IBinder::class.java)))
+        looper.moveTimeForward(UPDATE_INTERVAL_MS)
+        looper.dispatchAll()
+        assertFalse(lockHeldDuringRead)
+    }
+}